@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import android.content.ContentValues;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.BulkInsertOutcome;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.CursorUtils;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.listener.ImportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs importSeparable, with its parser thread, against a fake UserDbInterface that
+ * records every privilegedBulkInsertRows() call. Needs a device for ContentValues and
+ * the app's csv folder.
+ */
+public class CsvUtilImportTest {
+
+  private static final String appName = "CsvUtilImportTest";
+  private static final String tableId = "importTable";
+  private static final String COUNT_COL = "count";
+
+  /**
+   * Spans two full batches and a partial one
+   */
+  private static final int NUM_ROWS = 2500;
+
+  private File appFolder;
+  private OrderedColumns orderedColumns;
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+
+    appFolder = new File(ODKFileUtils.getAppFolder(appName));
+    FileUtils.deleteDirectory(appFolder);
+    ODKFileUtils.assertDirectoryStructure(appName);
+
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(COUNT_COL, COUNT_COL, ElementDataType.integer.name(), null));
+    orderedColumns = new OrderedColumns(appName, tableId, columns);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(appFolder);
+  }
+
+  /**
+   * Even rows carry an _id, odd rows leave it blank
+   *
+   * @param badRow the 0-based row whose count is not a number, or -1
+   */
+  private void writeCsv(int badRow) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(DataTableColumns.ID).append(',').append(COUNT_COL).append("\r\n");
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      b.append(i % 2 == 0 ? "row" + i : "").append(',');
+      b.append(i == badRow ? "many" : Integer.toString(i)).append("\r\n");
+    }
+    File csv = new File(ODKFileUtils.getAssetsCsvFolder(appName), tableId + ".csv");
+    FileUtils.writeStringToFile(csv, b.toString(), StandardCharsets.UTF_8);
+  }
+
+  private static boolean isParserThreadAlive() {
+    Set<Thread> threads = Thread.getAllStackTraces().keySet();
+    for (Thread thread : threads) {
+      if (thread.getName().equals("CsvUtil import " + tableId) && thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testRowIdsAndDefaults() throws Exception {
+    writeCsv(-1);
+    FakeDatabase database = new FakeDatabase(-1);
+    assertTrue(database.csvUtil().importSeparable(new Listener(), tableId, null, false));
+
+    assertEquals(3, database.batchSizes.size());
+    assertEquals(1000, (int) database.batchSizes.get(0));
+    assertEquals(1000, (int) database.batchSizes.get(1));
+    assertEquals(500, (int) database.batchSizes.get(2));
+    assertEquals(NUM_ROWS, database.rowIds.size());
+    assertTrue(database.closed);
+
+    Set<String> generatedIds = new HashSet<>();
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      String rowId = database.rowIds.get(i);
+      ContentValues cv = database.values.get(i);
+      // the rows arrive in file order
+      assertEquals(i, (long) cv.getAsLong(COUNT_COL));
+      assertEquals(rowId, cv.getAsString(DataTableColumns.ID));
+      if (i % 2 == 0) {
+        assertEquals("row" + i, rowId);
+      } else {
+        assertEquals(rowId, UUID.fromString(rowId).toString());
+        assertTrue(generatedIds.add(rowId));
+      }
+
+      assertNull(cv.getAsString(DataTableColumns.FORM_ID));
+      assertEquals(CursorUtils.DEFAULT_LOCALE, cv.getAsString(DataTableColumns.LOCALE));
+      assertEquals(SavepointTypeManipulator.complete(),
+          cv.getAsString(DataTableColumns.SAVEPOINT_TYPE));
+      assertNotNull(cv.getAsString(DataTableColumns.SAVEPOINT_TIMESTAMP));
+      assertEquals(CursorUtils.DEFAULT_CREATOR,
+          cv.getAsString(DataTableColumns.SAVEPOINT_CREATOR));
+      assertNull(cv.getAsString(DataTableColumns.ROW_ETAG));
+      assertEquals(DataTableColumns.DEFAULT_DEFAULT_ACCESS,
+          cv.getAsString(DataTableColumns.DEFAULT_ACCESS));
+      assertEquals(DataTableColumns.DEFAULT_ROW_OWNER,
+          cv.getAsString(DataTableColumns.ROW_OWNER));
+      assertEquals(DataTableColumns.DEFAULT_GROUP_READ_ONLY,
+          cv.getAsString(DataTableColumns.GROUP_READ_ONLY));
+      assertEquals(DataTableColumns.DEFAULT_GROUP_MODDIFY,
+          cv.getAsString(DataTableColumns.GROUP_MODIFY));
+      assertEquals(DataTableColumns.DEFAULT_GROUP_PRIVILEGED,
+          cv.getAsString(DataTableColumns.GROUP_PRIVILEGED));
+      assertEquals(SyncState.new_row.name(), cv.getAsString(DataTableColumns.SYNC_STATE));
+      assertTrue(cv.containsKey(DataTableColumns.CONFLICT_TYPE));
+      assertNull(cv.get(DataTableColumns.CONFLICT_TYPE));
+    }
+    assertFalse(isParserThreadAlive());
+  }
+
+  @Test
+  public void testParseFailureAppliesEarlierRows() throws Exception {
+    int badRow = 1499;
+    writeCsv(badRow);
+    FakeDatabase database = new FakeDatabase(-1);
+    try {
+      database.csvUtil().importSeparable(new Listener(), tableId, null, false);
+      fail("the bad row was not reported");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+
+    // the full batch and the rows parsed before the failure were inserted
+    assertEquals(2, database.batchSizes.size());
+    assertEquals(1000, (int) database.batchSizes.get(0));
+    assertEquals(badRow - 1000, (int) database.batchSizes.get(1));
+    for (int i = 0; i < badRow; ++i) {
+      assertEquals(i, (long) database.values.get(i).getAsLong(COUNT_COL));
+    }
+    assertTrue(database.closed);
+    assertFalse(isParserThreadAlive());
+  }
+
+  @Test
+  public void testDatabaseFailureStopsParser() throws Exception {
+    writeCsv(-1);
+    FakeDatabase database = new FakeDatabase(1);
+    try {
+      database.csvUtil().importSeparable(new Listener(), tableId, null, false);
+      fail("the database failure was not reported");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+
+    // only the first batch got in, and the parser is not left blocked on the queue
+    assertEquals(1, database.batchSizes.size());
+    assertEquals(1000, database.rowIds.size());
+    assertTrue(database.closed);
+    assertFalse(isParserThreadAlive());
+  }
+
+  private static final class Listener implements ImportListener {
+    int lastRow = 0;
+
+    @Override
+    public void updateProgressDetail(int row, int total) {
+      assertTrue(row > lastRow);
+      assertTrue(total >= row);
+      lastRow = row;
+    }
+
+    @Override
+    public void importComplete(boolean outcome) {
+    }
+  }
+
+  private final class FakeDatabase implements InvocationHandler, CsvUtilSupervisor {
+    private final int failingCall;
+    private int calls = 0;
+
+    final List<Integer> batchSizes = new ArrayList<>();
+    final List<ContentValues> values = new ArrayList<>();
+    final List<String> rowIds = new ArrayList<>();
+    boolean closed = false;
+
+    /**
+     * @param failingCall the 0-based privilegedBulkInsertRows() call that fails, or -1
+     */
+    FakeDatabase(int failingCall) {
+      this.failingCall = failingCall;
+    }
+
+    CsvUtil csvUtil() {
+      return new CsvUtil(this, appName);
+    }
+
+    @Override
+    public UserDbInterface getDatabase() {
+      return (UserDbInterface) Proxy.newProxyInstance(UserDbInterface.class.getClassLoader(),
+          new Class<?>[] { UserDbInterface.class }, this);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("openDatabase".equals(name)) {
+        return new DbHandle("fake");
+      } else if ("closeDatabase".equals(name)) {
+        closed = true;
+        return null;
+      } else if ("hasTableId".equals(name)) {
+        return true;
+      } else if ("getUserDefinedColumns".equals(name)) {
+        return orderedColumns;
+      } else if ("privilegedBulkInsertRows".equals(name)) {
+        if (calls++ == failingCall) {
+          throw new ServicesAvailabilityException("database went away");
+        }
+        // the lists are cleared once the batch is applied
+        List<ContentValues> batchValues = (List<ContentValues>) args[4];
+        List<String> batchRowIds = (List<String>) args[5];
+        assertEquals(batchValues.size(), batchRowIds.size());
+        batchSizes.add(batchRowIds.size());
+        values.addAll(batchValues);
+        rowIds.addAll(batchRowIds);
+        int[] outcomes = new int[batchRowIds.size()];
+        for (int i = 0; i < outcomes.length; ++i) {
+          outcomes[i] = BulkInsertOutcome.INSERTED;
+        }
+        return outcomes;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+  }
+}
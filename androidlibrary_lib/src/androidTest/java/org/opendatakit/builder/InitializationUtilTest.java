@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.androidlibrary.R;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs stub tasks through InitializationUtil's worker pool to check how failures and
+ * cancellation are handled and that the pool is always shut down.
+ */
+public class InitializationUtilTest {
+
+  private static final String appName = "InitializationUtilTest";
+
+  private Context context;
+  private Supervisor supervisor;
+  private InitializationUtil util;
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+
+    context = InstrumentationRegistry.getContext();
+    supervisor = new Supervisor();
+    util = new InitializationUtil(context, appName, supervisor);
+    util.setMaxParallelTasks(2);
+  }
+
+  /**
+   * Wait briefly for the workers to exit, then check that none are left
+   */
+  private static void assertPoolShutDown() throws InterruptedException {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith(InitializationUtil.WORKER_THREAD_NAME)) {
+        thread.join(1000L);
+        assertFalse(thread.getName() + " is still running", thread.isAlive());
+      }
+    }
+  }
+
+  private static Callable<Void> succeeding(final AtomicInteger completed) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Thread.sleep(20L);
+        completed.incrementAndGet();
+        return null;
+      }
+    };
+  }
+
+  private static Callable<Void> failing(final Exception e) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        throw e;
+      }
+    };
+  }
+
+  @Test
+  public void testFailuresDoNotStopOtherTasks() throws Exception {
+    AtomicInteger completed = new AtomicInteger(0);
+    ServicesAvailabilityException first = new ServicesAvailabilityException("database down");
+    List<Callable<Void>> tasks = new ArrayList<>();
+    tasks.add(succeeding(completed));
+    tasks.add(failing(first));
+    tasks.add(succeeding(completed));
+    tasks.add(failing(new IllegalStateException("second failure")));
+    tasks.add(succeeding(completed));
+
+    try {
+      util.runConcurrently(tasks);
+      fail("the failures were not reported");
+    } catch (ServicesAvailabilityException e) {
+      // the first failure in the order of the tasks
+      assertSame(first, e);
+    }
+    assertEquals(3, completed.get());
+    assertPoolShutDown();
+  }
+
+  @Test
+  public void testCancelledTasksAreNotFailures() throws Exception {
+    util.setMaxParallelTasks(1);
+    final AtomicBoolean interrupted = new AtomicBoolean(false);
+    AtomicInteger completed = new AtomicInteger(0);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        supervisor.cancelled = true;
+        try {
+          Thread.sleep(10000L);
+        } catch (InterruptedException e) {
+          interrupted.set(true);
+          throw e;
+        }
+        return null;
+      }
+    });
+    for (int i = 0; i < 4; ++i) {
+      tasks.add(succeeding(completed));
+    }
+
+    long start = System.currentTimeMillis();
+    assertFalse(util.runConcurrently(tasks));
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+    assertTrue(interrupted.get());
+    // the queued tasks never ran
+    assertEquals(0, completed.get());
+    assertPoolShutDown();
+  }
+
+  @Test
+  public void testCompletedTasks() throws Exception {
+    AtomicInteger completed = new AtomicInteger(0);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      tasks.add(succeeding(completed));
+    }
+
+    assertTrue(util.runConcurrently(tasks));
+    assertEquals(4, completed.get());
+    assertPoolShutDown();
+  }
+
+  @Test
+  public void testInterruptIsReported() throws Exception {
+    final AtomicBoolean interrupted = new AtomicBoolean(false);
+    final Thread caller = Thread.currentThread();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    tasks.add(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        caller.interrupt();
+        try {
+          Thread.sleep(10000L);
+        } catch (InterruptedException e) {
+          interrupted.set(true);
+          throw e;
+        }
+        return null;
+      }
+    });
+
+    try {
+      assertFalse(util.runConcurrently(tasks));
+      // the caller is told, and the task was stopped
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+    assertPoolShutDown();
+    assertTrue(interrupted.get());
+  }
+
+  @Test
+  public void testFailedImportReleasesProgress() throws Exception {
+    InitializationUtil.ImportProgress progress = util.new ImportProgress(2);
+    // the first table got part way before the database went away
+    progress.update("table1", 500, 1000, "table1 title");
+
+    InitializationUtil.TableImport tableImport = new InitializationUtil.TableImport(
+        new ImportRequest("table1", null), 1, "table1.csv");
+    try {
+      util.importTable(tableImport, 2, progress, new InitializationOutcome());
+      fail("the database failure was not reported");
+    } catch (ServicesAvailabilityException e) {
+      // expected
+    }
+
+    // only the second table's rows are counted now
+    supervisor.progress.clear();
+    supervisor.details.clear();
+    progress.update("table2", 10, 100, "table2 title");
+    assertEquals("table2 title", supervisor.progress.get(0));
+    assertEquals(context.getString(R.string.import_in_progress, 10, 100),
+        supervisor.details.get(0));
+
+    // and it is counted as the second file
+    progress.update("table3", 20, 200, "table3 title");
+    String title = supervisor.progress.get(1);
+    assertTrue(title.equals(context.getString(R.string.importing_file_without_detail, 2, 2,
+        "table2, table3")) || title.equals(context
+        .getString(R.string.importing_file_without_detail, 2, 2, "table3, table2")));
+    assertEquals(context.getString(R.string.import_in_progress, 30, 300),
+        supervisor.details.get(1));
+  }
+
+  private static final class Supervisor implements InitializationSupervisor, InvocationHandler {
+    volatile boolean cancelled = false;
+    final List<String> progress = new ArrayList<>();
+    final List<String> details = new ArrayList<>();
+
+    @Override
+    public synchronized void publishProgress(String progress, String detail) {
+      this.progress.add(progress);
+      this.details.add(detail);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public String getToolName() {
+      return null;
+    }
+
+    @Override
+    public String getVersionCodeString() {
+      return null;
+    }
+
+    @Override
+    public int getSystemZipResourceId() {
+      return 0;
+    }
+
+    @Override
+    public int getConfigZipResourceId() {
+      return 0;
+    }
+
+    /**
+     * A database that is always down
+     */
+    @Override
+    public UserDbInterface getDatabase() {
+      return (UserDbInterface) Proxy.newProxyInstance(UserDbInterface.class.getClassLoader(),
+          new Class<?>[] { UserDbInterface.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      throw new ServicesAvailabilityException("database down");
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the old count-then-extract ZipInputStream walk against RawZipExtractor on an
+ * archive laid out like an app-designer build: a system/ tree of libraries and a
+ * config/ tree of many small html, js, csv and formDef files.
+ */
+public class RawZipExtractorTest {
+
+  private static final String TAG = RawZipExtractorTest.class.getSimpleName();
+
+  private static final String appName = "RawZipExtractorTest";
+
+  private static final int NUM_TABLES = 40;
+  private static final int FORMS_PER_TABLE = 3;
+  private static final int NUM_LIBRARIES = 12;
+  private static final int LIBRARY_SIZE = 400 * 1024;
+  private static final int NUM_IMAGES = 20;
+  private static final int IMAGE_SIZE = 150 * 1024;
+
+  private File workDir;
+  private File archive;
+
+  @Before
+  public void setUp() throws Exception {
+    workDir = new File(ODKFileUtils.getAppFolder(appName));
+    FileUtils.deleteDirectory(workDir);
+    assertTrue(workDir.mkdirs());
+    archive = new File(workDir, "configzip.zip");
+    writeAppDesignerZip(archive);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(workDir);
+  }
+
+  @Test
+  public void testSinglePassParallelExtraction() throws Exception {
+    File legacyDir = new File(workDir, "legacy");
+    long legacyStart = System.nanoTime();
+    int legacyFiles = legacyExtract(archive, legacyDir);
+    long legacyNanos = System.nanoTime() - legacyStart;
+
+    File parallelDir = new File(workDir, "parallel");
+    long parallelStart = System.nanoTime();
+    int parallelFiles = parallelExtract(archive, parallelDir,
+        InitializationUtil.DEFAULT_MAX_PARALLEL_TASKS);
+    long parallelNanos = System.nanoTime() - parallelStart;
+
+    assertEquals(legacyFiles, parallelFiles);
+    assertSameTree(legacyDir, parallelDir);
+
+    Log.i(TAG, "entries: " + legacyFiles + " archive bytes: " + archive.length()
+        + " count+extract: " + (legacyNanos / 1000000L) + "ms, single pass with "
+        + InitializationUtil.DEFAULT_MAX_PARALLEL_TASKS + " workers: "
+        + (parallelNanos / 1000000L) + "ms");
+  }
+
+  @Test
+  public void testInterruptedExtractionKeepsOldFile() throws Exception {
+    FileInputStream in = new FileInputStream(archive);
+    try {
+      RawZipExtractor extractor = new RawZipExtractor(in.getChannel(), 0L, archive.length());
+      RawZipExtractor.Entry library = null;
+      for (RawZipExtractor.Entry entry : extractor.getEntries()) {
+        if (entry.getName().equals("system/libs/lib0.js")) {
+          library = entry;
+        }
+      }
+      File target = new File(workDir, "lib0.js");
+      FileUtils.writeStringToFile(target, "previous version", StandardCharsets.UTF_8);
+
+      try {
+        extractor.extract(library, target, new byte[RawZipExtractor.BUFFER_SIZE],
+            new byte[RawZipExtractor.BUFFER_SIZE], new RawZipExtractor.ProgressListener() {
+              @Override
+              public void bytesExtracted(int count) {
+                // as if the worker were cancelled part way through the entry
+                Thread.currentThread().interrupt();
+              }
+            });
+        fail("the interrupt was not reported");
+      } catch (InterruptedIOException e) {
+        // expected
+      } finally {
+        Thread.interrupted();
+      }
+
+      assertEquals("previous version", FileUtils.readFileToString(target,
+          StandardCharsets.UTF_8));
+      assertFalse(new File(target.getPath() + RawZipExtractor.PARTIAL_SUFFIX).exists());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * What InitializationUtil used to do: one pass to count, one pass to extract
+   */
+  private static int legacyExtract(File zip, File destDir) throws IOException {
+    int count = 0;
+    ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zip));
+    try {
+      while (zipInputStream.getNextEntry() != null) {
+        ++count;
+      }
+    } finally {
+      zipInputStream.close();
+    }
+
+    zipInputStream = new ZipInputStream(new FileInputStream(zip));
+    try {
+      ZipEntry entry;
+      byte[] buffer = new byte[8192];
+      while ((entry = zipInputStream.getNextEntry()) != null) {
+        File target = new File(destDir, entry.getName());
+        if (entry.isDirectory()) {
+          assertTrue(target.exists() || target.mkdirs());
+          continue;
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target, false), 8192);
+        int bread;
+        while ((bread = zipInputStream.read(buffer)) != -1) {
+          out.write(buffer, 0, bread);
+        }
+        out.close();
+      }
+    } finally {
+      zipInputStream.close();
+    }
+    return count;
+  }
+
+  private static int parallelExtract(File zip, final File destDir, int workers)
+      throws Exception {
+    FileInputStream in = new FileInputStream(zip);
+    try {
+      final RawZipExtractor extractor = new RawZipExtractor(in.getChannel(), 0L, zip.length());
+      final List<RawZipExtractor.Entry> entries = extractor.getEntries();
+      final AtomicLong bytes = new AtomicLong(0L);
+      for (RawZipExtractor.Entry entry : entries) {
+        if (entry.isDirectory()) {
+          extractor.extract(entry, new File(destDir, entry.getName()), null, null, null);
+        }
+      }
+
+      final AtomicInteger next = new AtomicInteger(0);
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      try {
+        Future<?>[] futures = new Future<?>[workers];
+        for (int i = 0; i < workers; ++i) {
+          futures[i] = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              byte[] inBuffer = new byte[RawZipExtractor.BUFFER_SIZE];
+              byte[] outBuffer = new byte[RawZipExtractor.BUFFER_SIZE];
+              int index;
+              while ((index = next.getAndIncrement()) < entries.size()) {
+                RawZipExtractor.Entry entry = entries.get(index);
+                if (!entry.isDirectory()) {
+                  extractor.extract(entry, new File(destDir, entry.getName()), inBuffer,
+                      outBuffer, new RawZipExtractor.ProgressListener() {
+                        @Override
+                        public void bytesExtracted(int count) {
+                          bytes.addAndGet(count);
+                        }
+                      });
+                }
+              }
+              return null;
+            }
+          });
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      assertEquals(extractor.getTotalSize(), bytes.get());
+      return entries.size();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void assertSameTree(File expected, File actual) throws IOException {
+    File[] children = expected.listFiles();
+    assertEquals(children.length, actual.listFiles().length);
+    for (File child : children) {
+      File other = new File(actual, child.getName());
+      if (child.isDirectory()) {
+        assertTrue(other.isDirectory());
+        assertSameTree(child, other);
+      } else {
+        assertTrue(child.getPath(), FileUtils.contentEquals(child, other));
+      }
+    }
+  }
+
+  private static void writeAppDesignerZip(File zip) throws IOException {
+    Random random = new Random(1234L);
+    ZipOutputStream out = new ZipOutputStream(
+        new BufferedOutputStream(new FileOutputStream(zip, false)));
+    try {
+      putDirectory(out, "system/");
+      putDirectory(out, "system/libs/");
+      for (int i = 0; i < NUM_LIBRARIES; ++i) {
+        putFile(out, "system/libs/lib" + i + ".js", text(random, LIBRARY_SIZE));
+      }
+      putDirectory(out, "config/");
+      putDirectory(out, "config/assets/");
+      putDirectory(out, "config/assets/img/");
+      for (int i = 0; i < NUM_IMAGES; ++i) {
+        // already-compressed content
+        byte[] image = new byte[IMAGE_SIZE];
+        random.nextBytes(image);
+        putFile(out, "config/assets/img/image" + i + ".jpg", image);
+      }
+      putDirectory(out, "config/tables/");
+      for (int t = 0; t < NUM_TABLES; ++t) {
+        String table = "config/tables/table" + t + "/";
+        putDirectory(out, table);
+        putFile(out, table + "definition.csv", text(random, 2 * 1024));
+        putFile(out, table + "properties.csv", text(random, 8 * 1024));
+        putDirectory(out, table + "html/");
+        putFile(out, table + "html/table" + t + "_list.html", text(random, 4 * 1024));
+        putFile(out, table + "html/table" + t + "_detail.html", text(random, 4 * 1024));
+        putDirectory(out, table + "js/");
+        putFile(out, table + "js/table" + t + "_list.js", text(random, 6 * 1024));
+        putDirectory(out, table + "forms/");
+        for (int f = 0; f < FORMS_PER_TABLE; ++f) {
+          String form = table + "forms/form" + f + "/";
+          putDirectory(out, form);
+          putFile(out, form + "formDef.json", text(random, 60 * 1024));
+          putFile(out, form + "table" + t + ".xlsx", text(random, 20 * 1024));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void putDirectory(ZipOutputStream out, String name) throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.closeEntry();
+  }
+
+  private static void putFile(ZipOutputStream out, String name, byte[] content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+
+  /**
+   * Compressible text drawn from a small vocabulary
+   */
+  private static byte[] text(Random random, int size) {
+    String[] words = { "function", "var", "return", "odkData", "tableId", "rowId", "{", "}",
+        "<div>", "</div>", "\"type\":", "\"name\":", "select_one", "text", "integer", "\n" };
+    StringBuilder b = new StringBuilder(size + 16);
+    while (b.length() < size) {
+      b.append(words[random.nextInt(words.length)]).append(' ');
+    }
+    b.setLength(size);
+    return b.toString().getBytes();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.logging;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares composing log file lines with a cached timestamp and a reused builder against
+ * formatting a DateTime and concatenating strings for every line, as was done before.
+ */
+public class WebLoggerImplTest {
+
+  private static final String TAG = WebLoggerImplTest.class.getSimpleName();
+
+  private static final int NUM_LINES = 100000;
+  private static final String LOG_TAG = "org.opendatakit.logging.WebLoggerImplTest";
+  private static final String MESSAGE = "fetched 20 rows of table household in 12 ms";
+
+  private static String legacyBuildLogLine(int severity, String t, String logMsg) {
+    String curLogLineStamp = new DateTime().toString("yyyy-MM-dd HH:mm:ss.SSS");
+    if (!logMsg.startsWith(curLogLineStamp.substring(0, 16))) {
+      logMsg = curLogLineStamp + " " + logMsg;
+    }
+    // the old switch, for INFO
+    return "I/" + t + ": " + logMsg;
+  }
+
+  @Test
+  public void testLogLineMatchesLegacyFormat() {
+    DateTime time = new DateTime(2017, 3, 4, 5, 6, 7, 89);
+    long now = time.getMillis();
+    String stamp = time.toString("yyyy-MM-dd HH:mm:ss.SSS");
+
+    assertEquals("I/" + LOG_TAG + ": " + stamp + " " + MESSAGE,
+        WebLoggerImpl.buildLogLine(now, WebLoggerIf.INFO, LOG_TAG, MESSAGE));
+    // later in the same second, and in the next hour
+    assertEquals("E/t: 2017-03-04 05:06:07.999 m",
+        WebLoggerImpl.buildLogLine(now + 910, WebLoggerIf.ERROR, "t", "m"));
+    assertEquals("W/t: 2017-03-04 06:06:07.089 m",
+        WebLoggerImpl.buildLogLine(now + 3600000L, WebLoggerIf.WARN, "t", "m"));
+    // a message that already carries the time is not stamped again
+    assertEquals("D/t: " + stamp + " m",
+        WebLoggerImpl.buildLogLine(now, WebLoggerIf.DEBUG, "t", stamp + " m"));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testLogLineThroughput() {
+    // warm up both paths
+    for (int i = 0; i < NUM_LINES / 10; ++i) {
+      legacyBuildLogLine(WebLoggerIf.INFO, LOG_TAG, MESSAGE);
+      WebLoggerImpl.buildLogLine(System.currentTimeMillis(), WebLoggerIf.INFO, LOG_TAG, MESSAGE);
+    }
+
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocSize();
+      long legacyStart = System.nanoTime();
+      int legacyLength = 0;
+      for (int i = 0; i < NUM_LINES; ++i) {
+        legacyLength += legacyBuildLogLine(WebLoggerIf.INFO, LOG_TAG, MESSAGE).length();
+      }
+      long legacyNanos = System.nanoTime() - legacyStart;
+      long legacyBytes = Debug.getThreadAllocSize();
+
+      Debug.resetThreadAllocSize();
+      long cachedStart = System.nanoTime();
+      int cachedLength = 0;
+      for (int i = 0; i < NUM_LINES; ++i) {
+        cachedLength += WebLoggerImpl.buildLogLine(System.currentTimeMillis(), WebLoggerIf.INFO,
+            LOG_TAG, MESSAGE).length();
+      }
+      long cachedNanos = System.nanoTime() - cachedStart;
+      long cachedBytes = Debug.getThreadAllocSize();
+
+      assertEquals(legacyLength, cachedLength);
+      Log.i(TAG, "legacy: " + (NUM_LINES * 1000000000L / Math.max(1L, legacyNanos))
+          + " lines/s, " + (legacyBytes / NUM_LINES) + " bytes/line");
+      Log.i(TAG, "cached: " + (NUM_LINES * 1000000000L / Math.max(1L, cachedNanos))
+          + " lines/s, " + (cachedBytes / NUM_LINES) + " bytes/line");
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+}
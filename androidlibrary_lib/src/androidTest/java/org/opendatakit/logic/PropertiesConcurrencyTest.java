@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.logic;
+
+import android.Manifest;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Measures property reads per second from several threads, with and without a thread
+ * updating the properties at the same time, and checks that readers never see a
+ * half-applied update.
+ */
+public class PropertiesConcurrencyTest {
+
+  private static final String TAG = PropertiesConcurrencyTest.class.getSimpleName();
+
+  private static final String APPNAME = "unittestPropConcurrency";
+  private static final long RUN_MILLIS = 1000L;
+  private static final long WRITE_INTERVAL_MILLIS = 20L;
+
+  @Rule
+  public GrantPermissionRule writeRuntimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+  @Rule
+  public GrantPermissionRule readtimePermissionRule = GrantPermissionRule
+      .grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+  private PropertiesSingleton props;
+
+  @Before
+  public void setUp() throws Exception {
+    ODKFileUtils.verifyExternalStorageAvailability();
+    ODKFileUtils.assertDirectoryStructure(APPNAME);
+
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+
+    Context context = InstrumentationRegistry.getContext();
+    props = CommonToolProperties.get(context, APPNAME);
+    props.setProperties(update(0));
+  }
+
+  /**
+   * Both values of an update are always set together; a reader seeing them differ has
+   * seen half of an update.
+   */
+  private static Map<String, String> update(int generation) {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(CommonToolProperties.KEY_FONT_SIZE, Integer.toString(generation));
+    properties.put(CommonToolProperties.KEY_USERNAME, "user" + generation);
+    return properties;
+  }
+
+  private long measureReads(int numReaders, boolean withWriter) throws InterruptedException {
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicLong reads = new AtomicLong(0L);
+    final AtomicReference<String> torn = new AtomicReference<>(null);
+    final CountDownLatch start = new CountDownLatch(1);
+
+    Thread[] readers = new Thread[numReaders];
+    for (int i = 0; i < numReaders; ++i) {
+      readers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long count = 0L;
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (!done.get()) {
+            String fontSize = props.getProperty(CommonToolProperties.KEY_FONT_SIZE);
+            String username = props.getProperty(CommonToolProperties.KEY_USERNAME);
+            if (!username.equals("user" + fontSize) && torn.get() == null) {
+              // only a problem if no update came between the two reads
+              String again = props.getProperty(CommonToolProperties.KEY_FONT_SIZE);
+              if (fontSize.equals(again)) {
+                torn.set(fontSize + " / " + username);
+              }
+            }
+            count += 2;
+          }
+          reads.addAndGet(count);
+        }
+      });
+      readers[i].start();
+    }
+
+    Thread writer = null;
+    if (withWriter) {
+      writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          int generation = 0;
+          while (!done.get()) {
+            props.setProperties(update(++generation));
+            try {
+              Thread.sleep(WRITE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+      writer.start();
+    }
+
+    start.countDown();
+    Thread.sleep(RUN_MILLIS);
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    if (writer != null) {
+      writer.join();
+    }
+
+    assertNull("reader saw a partial update", torn.get());
+    return reads.get() * 1000L / RUN_MILLIS;
+  }
+
+  @Test
+  public void testConcurrentReads() throws InterruptedException {
+    for (int numReaders : new int[] { 1, 2, 4, 8 }) {
+      long idle = measureReads(numReaders, false);
+      long contended = measureReads(numReaders, true);
+      Log.i(TAG, numReaders + " readers: " + idle + " reads/s, " + contended
+          + " reads/s while writing");
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import android.content.ContentValues;
+import android.os.Parcel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.BulkInsertOutcome;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.IDbInterface;
+import org.opendatakit.database.service.InternalUserDbInterfaceAidlWrapperImpl;
+import org.opendatakit.database.service.UserDbInterfaceImpl;
+import org.opendatakit.database.utilities.DbChunkUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how privilegedBulkInsertRows() splits the rows across binder calls and how it
+ * falls back to per-row inserts when the database service does not support it.
+ * The IDbInterface is faked with a dynamic proxy.
+ */
+public class OdkBulkInsertTest {
+
+  private static final String APP_NAME = "bulkInsertTest";
+  private static final String TABLE_ID = "table1";
+  private static final String NOTE_COL = "note";
+
+  private static final int NUM_ROWS = 1000;
+  /**
+   * Limit on the marshalled rows of one call, as in the wrapper
+   */
+  private static final int MAX_CALL_BYTES = 256 * 1024;
+
+  private final DbHandle db = new DbHandle("bulkInsertTest");
+  private OrderedColumns orderedColumns;
+  private List<ContentValues> values;
+  private List<String> rowIds;
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(NOTE_COL, NOTE_COL, ElementDataType.string.name(), null));
+    orderedColumns = new OrderedColumns(APP_NAME, TABLE_ID, columns);
+
+    // about 2MB of rows in all
+    char[] padding = new char[1000];
+    Arrays.fill(padding, 'x');
+    values = new ArrayList<>();
+    rowIds = new ArrayList<>();
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      ContentValues cv = new ContentValues();
+      cv.put(NOTE_COL, i + new String(padding));
+      values.add(cv);
+      rowIds.add("uuid:" + i);
+    }
+  }
+
+  private static int marshalledSize(ContentValues cv) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      cv.writeToParcel(parcel, 0);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  @Test
+  public void testRowsAreSplitAcrossCalls() throws Exception {
+    FakeBulkInsertService service = new FakeBulkInsertService(-1);
+    int[] outcomes = service.wrapper()
+        .privilegedBulkInsertRows(APP_NAME, db, TABLE_ID, values, rowIds, true);
+
+    assertTrue("Expected a multi-call insert", service.callSizes.size() > 1);
+    for (List<ContentValues> call : service.callValues) {
+      int callBytes = 0;
+      for (ContentValues cv : call) {
+        callBytes += marshalledSize(cv);
+      }
+      assertTrue(callBytes <= MAX_CALL_BYTES);
+    }
+
+    // every row is sent once, in order, and its outcome lands in its place
+    assertEquals(rowIds, service.rowIds);
+    assertEquals(NUM_ROWS, outcomes.length);
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      assertEquals(FakeBulkInsertService.outcomeOf(rowIds.get(i)), outcomes[i]);
+    }
+  }
+
+  @Test
+  public void testOldServiceFallsBackOnFirstCall() throws Exception {
+    FakeBulkInsertService service = new FakeBulkInsertService(0);
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = service.wrapper();
+    assertNull(wrapper.privilegedBulkInsertRows(APP_NAME, db, TABLE_ID, values, rowIds, true));
+    assertEquals(1, service.bulkCalls);
+    assertTrue(service.rowIds.isEmpty());
+
+    // the service is not asked again
+    assertNull(wrapper.privilegedBulkInsertRows(APP_NAME, db, TABLE_ID, values, rowIds, true));
+    assertEquals(1, service.bulkCalls);
+
+    // every row is inserted one at a time instead
+    int[] outcomes = new UserDbInterfaceImpl(wrapper)
+        .privilegedBulkInsertRows(APP_NAME, db, TABLE_ID, orderedColumns, values, rowIds, true);
+    assertEquals(1, service.bulkCalls);
+    assertEquals(rowIds, service.insertedRowIds);
+    assertEquals(NUM_ROWS, outcomes.length);
+    for (int outcome : outcomes) {
+      assertEquals(BulkInsertOutcome.INSERTED, outcome);
+    }
+  }
+
+  @Test
+  public void testEmptyReplyOnLaterCallFallsBack() throws Exception {
+    FakeBulkInsertService service = new FakeBulkInsertService(2);
+    int[] outcomes = new UserDbInterfaceImpl(service.wrapper())
+        .privilegedBulkInsertRows(APP_NAME, db, TABLE_ID, orderedColumns, values, rowIds, true);
+
+    // the first two calls were applied in bulk and the rest one row at a time
+    assertEquals(3, service.bulkCalls);
+    int applied = service.callSizes.get(0) + service.callSizes.get(1);
+    assertEquals(rowIds.subList(0, applied), service.rowIds);
+    assertEquals(rowIds.subList(applied, NUM_ROWS), service.insertedRowIds);
+    assertEquals(NUM_ROWS, outcomes.length);
+    for (int i = 0; i < NUM_ROWS; ++i) {
+      int expected = i < applied ?
+          FakeBulkInsertService.outcomeOf(rowIds.get(i)) :
+          BulkInsertOutcome.INSERTED;
+      assertEquals(expected, outcomes[i]);
+    }
+  }
+
+  private static final class FakeBulkInsertService implements InvocationHandler {
+    private final int unsupportedCall;
+
+    int bulkCalls = 0;
+    final List<Integer> callSizes = new ArrayList<>();
+    final List<List<ContentValues>> callValues = new ArrayList<>();
+    final List<String> rowIds = new ArrayList<>();
+    final List<String> insertedRowIds = new ArrayList<>();
+
+    /**
+     * @param unsupportedCall the 0-based privilegedBulkInsertRows() call from which the
+     *                        service answers like one that predates it, or -1
+     */
+    FakeBulkInsertService(int unsupportedCall) {
+      this.unsupportedCall = unsupportedCall;
+    }
+
+    /**
+     * A mix of outcomes that depends only on the row
+     */
+    static int outcomeOf(String rowId) {
+      int i = Integer.parseInt(rowId.substring(rowId.indexOf(':') + 1));
+      return i % 7 == 0 ? BulkInsertOutcome.UNCHANGED : BulkInsertOutcome.INSERTED;
+    }
+
+    InternalUserDbInterfaceAidlWrapperImpl wrapper() {
+      IDbInterface dbInterface = (IDbInterface) Proxy
+          .newProxyInstance(IDbInterface.class.getClassLoader(),
+              new Class<?>[] { IDbInterface.class }, this);
+      return new InternalUserDbInterfaceAidlWrapperImpl(dbInterface);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("privilegedBulkInsertRows".equals(name)) {
+        int call = bulkCalls++;
+        if (unsupportedCall != -1 && call >= unsupportedCall) {
+          // what a service that predates privilegedBulkInsertRows() effectively returns
+          return new int[0];
+        }
+        List<ContentValues> callRows = (List<ContentValues>) args[3];
+        String[] callRowIds = (String[]) args[4];
+        assertEquals(callRows.size(), callRowIds.length);
+        callSizes.add(callRowIds.length);
+        callValues.add(new ArrayList<>(callRows));
+        Collections.addAll(rowIds, callRowIds);
+        int[] outcomes = new int[callRowIds.length];
+        for (int i = 0; i < outcomes.length; ++i) {
+          outcomes[i] = outcomeOf(callRowIds[i]);
+        }
+        return outcomes;
+      } else if ("getAdminColumns".equals(name)) {
+        return DbChunkUtil.convertToChunks(new String[0], 4096).get(0);
+      } else if ("privilegedGetRowsWithId".equals(name)) {
+        // no such row yet
+        return DbChunkUtil.convertToChunks(emptyTable(), 4096).get(0);
+      } else if ("privilegedInsertRowWithId".equals(name)) {
+        insertedRowIds.add((String) args[4]);
+        return DbChunkUtil.convertToChunks(emptyTable(), 4096).get(0);
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    private static BaseTable emptyTable() {
+      return new BaseTable(null, new String[] { NOTE_COL }, null, 0);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.RowCursor;
+import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.service.DbSharedChunk;
+import org.opendatakit.database.service.IDbInterface;
+import org.opendatakit.database.service.InternalUserDbInterfaceAidlWrapperImpl;
+import org.opendatakit.database.utilities.DbChunkRowDecoder;
+import org.opendatakit.database.utilities.DbChunkUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the one-chunk-per-call linked list walk against batched getChunks() retrieval.
+ * The IDbInterface is faked with a dynamic proxy that charges a fixed cost per round-trip.
+ */
+public class OdkDbChunkBatchTest {
+
+  private static final String TAG = OdkDbChunkBatchTest.class.getSimpleName();
+
+  private static final int NUM_ROWS = 20000;
+  private static final int TABLE_WIDTH = 8;
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * Simulated cost of a single binder transaction
+   */
+  private static final long ROUND_TRIP_NANOS = 200000L;
+
+  private BaseTable table;
+  private List<DbChunk> chunks;
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+
+    String[] elementKeyForIndex = new String[TABLE_WIDTH];
+    for (int i = 0; i < TABLE_WIDTH; i++) {
+      elementKeyForIndex[i] = "col" + i;
+    }
+    table = new BaseTable(null, elementKeyForIndex, null, NUM_ROWS);
+    for (int r = 0; r < NUM_ROWS; r++) {
+      String[] rowValues = new String[TABLE_WIDTH];
+      for (int i = 0; i < TABLE_WIDTH; i++) {
+        rowValues[i] = "row " + r + " value " + i;
+      }
+      table.addRow(new Row(rowValues, table));
+    }
+    chunks = DbChunkUtil.convertToChunks(table, CHUNK_SIZE);
+  }
+
+  @Test
+  public void testBatchedChunkFetch() throws Exception {
+    assertTrue("Expected a multi-chunk result", chunks.size() > 1);
+
+    FakeChunkService legacy = new FakeChunkService(chunks, false);
+    long legacyStart = System.nanoTime();
+    BaseTable legacyResult = legacy.wrapper().simpleQuery("app", null, "", null, null, null);
+    long legacyNanos = System.nanoTime() - legacyStart;
+
+    FakeChunkService batched = new FakeChunkService(chunks, true);
+    long batchedStart = System.nanoTime();
+    BaseTable batchedResult = batched.wrapper().simpleQuery("app", null, "", null, null, null);
+    long batchedNanos = System.nanoTime() - batchedStart;
+
+    assertNotNull(legacyResult);
+    assertNotNull(batchedResult);
+    assertEquals(NUM_ROWS, legacyResult.getNumberOfRows());
+    assertEquals(NUM_ROWS, batchedResult.getNumberOfRows());
+    for (int r = 0; r < NUM_ROWS; r += 997) {
+      for (int i = 0; i < TABLE_WIDTH; i++) {
+        assertEquals(table.getRowAtIndex(r).getRawStringByIndex(i),
+            batchedResult.getRowAtIndex(r).getRawStringByIndex(i));
+      }
+    }
+
+    Log.i(TAG, "chunks: " + chunks.size()
+        + " linked list walk: " + legacy.roundTrips + " round-trips " + (legacyNanos / 1000000L)
+        + "ms, batched: " + batched.roundTrips + " round-trips " + (batchedNanos / 1000000L)
+        + "ms");
+
+    // one call per chunk plus the single unanswered getChunks() probe
+    assertEquals(chunks.size() + 1, legacy.roundTrips);
+    assertTrue("Batching should reduce round-trips", batched.roundTrips < legacy.roundTrips);
+  }
+
+  @Test
+  public void testStreamingRowCursor() throws Exception {
+    assertTrue("Expected a multi-chunk result", chunks.size() > 1);
+
+    FakeChunkService service = new FakeChunkService(chunks, true);
+    RowCursor cursor = service.wrapper().simpleQueryCursor("app", null, "", null, null, null);
+    try {
+      BaseTable header = cursor.getHeaderTable();
+      assertNotNull(header);
+      assertEquals(0, header.getNumberOfRows());
+      assertEquals(TABLE_WIDTH, header.getWidth());
+
+      int r = 0;
+      while (cursor.hasNext()) {
+        Row row = cursor.next();
+        for (int i = 0; i < TABLE_WIDTH; i++) {
+          assertEquals(table.getRowAtIndex(r).getRawStringByIndex(i),
+              row.getRawStringByIndex(i));
+        }
+        ++r;
+      }
+      assertEquals(NUM_ROWS, r);
+      assertFalse(cursor.hasNext());
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void testDecoderWithSplitFields() throws Exception {
+    String[] elementKeyForIndex = { "a", "b", "c" };
+    BaseTable small = new BaseTable(null, elementKeyForIndex, null, 50);
+    for (int r = 0; r < 50; r++) {
+      // nulls, empty strings and odd lengths, so the splits land everywhere
+      small.addRow(new Row(new String[] { r % 3 == 0 ? null : "v" + r, "",
+          r % 5 == 0 ? null : "odd" + r + "x" }, small));
+    }
+    Parcel parcel = Parcel.obtain();
+    byte[] bytes;
+    try {
+      small.writeToParcel(parcel, 0);
+      bytes = parcel.marshall();
+    } finally {
+      parcel.recycle();
+    }
+
+    // feed it three bytes at a time
+    DbChunkRowDecoder decoder = new DbChunkRowDecoder();
+    List<Row> rows = new ArrayList<>();
+    for (int pos = 0; pos < bytes.length; pos += 3) {
+      byte[] piece = new byte[Math.min(3, bytes.length - pos)];
+      System.arraycopy(bytes, pos, piece, 0, piece.length);
+      decoder.append(piece);
+      decoder.decodeRows(rows);
+    }
+
+    assertTrue(decoder.isComplete());
+    assertNull(decoder.getHeaderTable().getPrimaryKey());
+    assertEquals(50, rows.size());
+    for (int r = 0; r < 50; r++) {
+      for (int i = 0; i < elementKeyForIndex.length; i++) {
+        assertEquals(small.getRowAtIndex(r).getRawStringByIndex(i),
+            rows.get(r).getRawStringByIndex(i));
+      }
+    }
+  }
+
+  @Test
+  public void testServiceWithoutSharedMemory() throws Exception {
+    FakeChunkService service = new FakeChunkService(chunks, true);
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = service.wrapper();
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(NUM_ROWS,
+          wrapper.simpleQuery("app", null, "", null, null, null).getNumberOfRows());
+    }
+    // asked at most once, then only the DbChunk transport is used
+    assertTrue(service.sharedMemoryCalls <= 1);
+  }
+
+  @Test
+  public void testSharedMemoryFallbackIsPerCall() throws Exception {
+    assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1);
+
+    FakeChunkService service = new FakeChunkService(chunks, true);
+    service.sharedMemoryReplies.add(DbChunkUtil.convertToSharedChunk(table, "first"));
+    // a result the service could not place in shared memory
+    service.sharedMemoryReplies.add(null);
+    service.sharedMemoryReplies.add(DbChunkUtil.convertToSharedChunk(table, "third"));
+
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = service.wrapper();
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(NUM_ROWS,
+          wrapper.simpleQuery("app", null, "", null, null, null).getNumberOfRows());
+    }
+    assertEquals(3, service.sharedMemoryCalls);
+    // only the second query walked the chunks
+    assertEquals(1, service.chunkedQueries);
+  }
+
+  private static final class FakeChunkService implements InvocationHandler {
+    private final Map<UUID, DbChunk> chunkMap = new HashMap<>();
+    private final DbChunk firstChunk;
+    private final boolean supportsBatching;
+    int roundTrips = 0;
+
+    /**
+     * Answers to simpleQuerySharedMemory(), in order; null once they run out
+     */
+    final LinkedList<DbSharedChunk> sharedMemoryReplies = new LinkedList<>();
+    int sharedMemoryCalls = 0;
+    int chunkedQueries = 0;
+
+    FakeChunkService(List<DbChunk> chunks, boolean supportsBatching) {
+      for (DbChunk chunk : chunks) {
+        chunkMap.put(chunk.getThisID(), chunk);
+      }
+      this.firstChunk = chunks.get(0);
+      this.supportsBatching = supportsBatching;
+    }
+
+    InternalUserDbInterfaceAidlWrapperImpl wrapper() {
+      IDbInterface dbInterface = (IDbInterface) Proxy
+          .newProxyInstance(IDbInterface.class.getClassLoader(),
+              new Class<?>[] { IDbInterface.class }, this);
+      return new InternalUserDbInterfaceAidlWrapperImpl(dbInterface);
+    }
+
+    private void chargeRoundTrip() {
+      ++roundTrips;
+      long end = System.nanoTime() + ROUND_TRIP_NANOS;
+      while (System.nanoTime() < end) {
+        // spin
+      }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("simpleQuery".equals(name)) {
+        chargeRoundTrip();
+        ++chunkedQueries;
+        return firstChunk;
+      } else if ("getChunk".equals(name)) {
+        chargeRoundTrip();
+        return chunkMap.get(((ParcelUuid) args[0]).getUuid());
+      } else if ("getChunks".equals(name)) {
+        chargeRoundTrip();
+        List<DbChunk> batch = new ArrayList<>();
+        if (!supportsBatching) {
+          // what a service that predates getChunks() effectively returns
+          return batch;
+        }
+        int maxCount = (Integer) args[1];
+        DbChunk chunk = chunkMap.get(((ParcelUuid) args[0]).getUuid());
+        while (chunk != null && batch.size() < maxCount) {
+          batch.add(chunk);
+          chunk = chunk.hasNextID() ? chunkMap.get(chunk.getNextID()) : null;
+        }
+        return batch;
+      } else if ("simpleQuerySharedMemory".equals(name)) {
+        ++sharedMemoryCalls;
+        return sharedMemoryReplies.isEmpty() ? null : sharedMemoryReplies.removeFirst();
+      }
+      throw new UnsupportedOperationException(name);
+    }
+  }
+}
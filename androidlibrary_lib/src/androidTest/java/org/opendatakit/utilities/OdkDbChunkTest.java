@@ -14,12 +14,14 @@
 
 package org.opendatakit.utilities;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.service.DbSharedChunk;
 import org.opendatakit.database.utilities.DbChunkUtil;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
@@ -36,6 +38,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 
 public class OdkDbChunkTest {
@@ -391,4 +394,44 @@ public class OdkDbChunkTest {
     }
   }
 
+  @Test
+  public void testConvertParcelableToAndFromSharedChunk() {
+    assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1);
+
+    Bundle parcelableTestData = new Bundle();
+    parcelableTestData.putStringArray("testData", testData);
+
+    DbSharedChunk sharedChunk = DbChunkUtil.convertToSharedChunk(parcelableTestData, "test");
+
+    if (sharedChunk == null) {
+      fail("Failed to convert parcelable to shared chunk");
+      return;
+    }
+
+    /*
+     * Marshall the region handle as the binder would
+     */
+    Parcel p = Parcel.obtain();
+    sharedChunk.writeToParcel(p, 0);
+    p.setDataPosition(0);
+    DbSharedChunk result = DbSharedChunk.CREATOR.createFromParcel(p);
+    p.recycle();
+
+    Bundle results = DbChunkUtil.rebuildFromSharedChunk(result, Bundle.CREATOR);
+    sharedChunk.close();
+
+    if (results == null) {
+      fail("Failed to rebuild parcelable from shared chunk");
+      return;
+    }
+
+    assertEquals("Unexpected unpacked bundle size", results.size(), parcelableTestData.size());
+    assertTrue("Data unpack error", results.containsKey("testData"));
+    String[] resultsTestData = results.getStringArray("testData");
+
+    for (int i = 0; i < testData.length; i++) {
+      assertEquals("Data unpack mismatch", testData[i], resultsTestData[i]);
+    }
+  }
+
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.service.IDbInterface;
+import org.opendatakit.database.service.ITableMetadataChangeListener;
+import org.opendatakit.database.service.InternalUserDbInterfaceAidlWrapperImpl;
+import org.opendatakit.database.service.UserDbInterfaceImpl;
+import org.opendatakit.database.utilities.DbChunkUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that cached table metadata is served without a round-trip when the database
+ * service announces changes, that this client's own writes are seen at once, and that
+ * older services are still polled.
+ * The IDbInterface is faked with a dynamic proxy.
+ */
+public class OdkMetadataNotificationTest {
+
+  private static final String APP_NAME = "metadataNotificationTest";
+  private static final String TABLE_ID = "table1";
+  private static final int LOOKUPS = 50;
+
+  @Before
+  public void setUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  private static String lookupRevId(UserDbInterfaceImpl db) throws Exception {
+    return db.getTableMetadata(APP_NAME, null, TABLE_ID, null, null, null, null).getRevId();
+  }
+
+  @Test
+  public void testNotifiedCacheHitsAreLocal() throws Exception {
+    FakeMetadataService service = new FakeMetadataService(true);
+    InternalUserDbInterfaceAidlWrapperImpl wrapper = service.wrapper();
+    UserDbInterfaceImpl db = new UserDbInterfaceImpl(wrapper);
+
+    for (int i = 0; i < LOOKUPS; ++i) {
+      assertEquals("rev1", lookupRevId(db));
+    }
+    assertEquals(1, service.fetches);
+    assertEquals(0, service.polls);
+    assertNotNull(service.listener);
+
+    // a change is announced; the next lookup revalidates, later ones are local again
+    service.revId = "rev2";
+    service.listener.onTableMetadataChanged(APP_NAME, TABLE_ID, "rev2");
+    for (int i = 0; i < LOOKUPS; ++i) {
+      assertEquals("rev2", lookupRevId(db));
+    }
+    assertEquals(1, service.fetches);
+    assertEquals(1, service.polls);
+
+    // a reconnect drops the registration, so everything is fetched again
+    service.listener = null;
+    wrapper.setDbInterface(service.proxy());
+    assertEquals("rev2", lookupRevId(db));
+    assertNotNull(service.listener);
+    assertEquals(2, service.fetches);
+    assertEquals(2, service.registrations);
+  }
+
+  @Test
+  public void testOwnWritesAreSeen() throws Exception {
+    FakeMetadataService service = new FakeMetadataService(true);
+    UserDbInterfaceImpl db = new UserDbInterfaceImpl(service.wrapper());
+    assertEquals("rev1", lookupRevId(db));
+
+    // the service announces nothing: writes are only announced once committed
+    KeyValueStoreEntry entry = new KeyValueStoreEntry();
+    entry.tableId = TABLE_ID;
+    service.revId = "rev2";
+    db.replaceTableMetadata(APP_NAME, null, entry);
+    assertEquals("rev2", lookupRevId(db));
+
+    service.revId = "rev3";
+    db.replaceTableMetadataList(APP_NAME, null, TABLE_ID,
+        Collections.singletonList(entry), false);
+    assertEquals("rev3", lookupRevId(db));
+
+    service.revId = "rev4";
+    db.replaceTableMetadataSubList(APP_NAME, null, TABLE_ID, "partition", "aspect",
+        Collections.singletonList(entry));
+    assertEquals("rev4", lookupRevId(db));
+
+    service.revId = "rev5";
+    db.deleteTableMetadata(APP_NAME, null, TABLE_ID, "partition", null, null);
+    assertEquals("rev5", lookupRevId(db));
+
+    service.revId = "rev6";
+    db.deleteTableAndAllData(APP_NAME, null, TABLE_ID);
+    assertEquals("rev6", lookupRevId(db));
+
+    assertEquals(6, service.fetches);
+    assertEquals(0, service.polls);
+  }
+
+  @Test
+  public void testOlderServiceIsPolled() throws Exception {
+    FakeMetadataService service = new FakeMetadataService(false);
+    UserDbInterfaceImpl db = new UserDbInterfaceImpl(service.wrapper());
+
+    for (int i = 0; i < LOOKUPS; ++i) {
+      assertEquals("rev1", lookupRevId(db));
+    }
+    assertEquals(1, service.fetches);
+    assertEquals(LOOKUPS - 1, service.polls);
+    // registration is attempted once, not on every lookup
+    assertEquals(1, service.registrations);
+  }
+
+  private static final class FakeMetadataService implements InvocationHandler {
+    private final boolean supportsNotifications;
+    volatile String revId = "rev1";
+    volatile ITableMetadataChangeListener listener = null;
+    int registrations = 0;
+    int fetches = 0;
+    int polls = 0;
+
+    FakeMetadataService(boolean supportsNotifications) {
+      this.supportsNotifications = supportsNotifications;
+    }
+
+    IDbInterface proxy() {
+      return (IDbInterface) Proxy
+          .newProxyInstance(IDbInterface.class.getClassLoader(),
+              new Class<?>[] { IDbInterface.class }, this);
+    }
+
+    InternalUserDbInterfaceAidlWrapperImpl wrapper() {
+      return new InternalUserDbInterfaceAidlWrapperImpl(proxy());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("registerTableMetadataChangeListener".equals(name)) {
+        ++registrations;
+        if (supportsNotifications) {
+          listener = (ITableMetadataChangeListener) args[1];
+        }
+        // what a service that predates notifications effectively returns
+        return supportsNotifications;
+      } else if ("unregisterTableMetadataChangeListener".equals(name)) {
+        listener = null;
+        return null;
+      } else if ("getTableMetadata".equals(name)) {
+        ++fetches;
+        return entriesChunk();
+      } else if ("getTableMetadataIfChanged".equals(name)) {
+        ++polls;
+        return entriesChunk();
+      } else if ("replaceTableMetadata".equals(name) || "replaceTableMetadataList".equals(name)
+          || "replaceTableMetadataSubList".equals(name) || "deleteTableMetadata".equals(name)
+          || "deleteTableAndAllData".equals(name)) {
+        // a write; only the revId matters here
+        return null;
+      }
+      throw new UnsupportedOperationException(name);
+    }
+
+    private Object entriesChunk() {
+      return DbChunkUtil.convertToChunks(new TableMetaDataEntries(TABLE_ID, revId), 4096)
+          .get(0);
+    }
+  }
+}
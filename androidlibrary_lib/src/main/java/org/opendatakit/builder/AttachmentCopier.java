@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import org.opendatakit.listener.CopyProgressListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the attachment folders of an import or export on a small shared pool of threads,
+ * so that the rows can be processed while the files are copied.
+ * <p>
+ * Only a limited number of folders may be waiting to be copied; beyond that
+ * {@link #submit(File, File)} blocks. {@link #awaitCompletion()} waits for every copy and
+ * reports all the folders that failed. If the import or export gives up, it must call
+ * {@link #finish()}, which still copies every submitted folder, or {@link #cancel()},
+ * which skips the copies that have not started and waits for the rest.
+ * <p>
+ * Used in CsvUtil
+ */
+final class AttachmentCopier {
+
+  private static final String TAG = AttachmentCopier.class.getSimpleName();
+
+  /**
+   * Copies running at once, across all imports and exports
+   */
+  private static final int POOL_SIZE = 3;
+  /**
+   * Folders one import or export may have waiting before it is made to wait
+   */
+  private static final int MAX_IN_FLIGHT = 32;
+  /**
+   * How often progress is reported while waiting for the copies to finish
+   */
+  private static final long PROGRESS_INTERVAL_MILLIS = 250L;
+  private static final long POOL_KEEP_ALIVE_SECONDS = 30L;
+
+  private static ThreadPoolExecutor gPool = null;
+
+  private static synchronized ThreadPoolExecutor getPool() {
+    if (gPool == null) {
+      final AtomicInteger count = new AtomicInteger(0);
+      gPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, POOL_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "AttachmentCopier-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      gPool.allowCoreThreadTimeOut(true);
+    }
+    return gPool;
+  }
+
+  private final String appName;
+  private final CopyProgressListener listener;
+
+  private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+  private final AtomicInteger foldersCopied = new AtomicInteger(0);
+  private final AtomicLong bytesCopied = new AtomicLong(0L);
+  private final List<String> failures = new ArrayList<>();
+  private IOException firstFailure = null;
+  private int failuresLogged = 0;
+  private volatile boolean cancelled = false;
+
+  // only used on the importing or exporting thread
+  private int foldersSubmitted = 0;
+  private int lastReportedCopied = -1;
+
+  /**
+   * @param appName  the app name
+   * @param listener the import or export listener; told about progress if it is a
+   *                 CopyProgressListener
+   */
+  AttachmentCopier(String appName, Object listener) {
+    this.appName = appName;
+    this.listener = listener instanceof CopyProgressListener ?
+        (CopyProgressListener) listener :
+        null;
+  }
+
+  /**
+   * Copy the contents of a folder into another, creating it if needed
+   *
+   * @param srcFolder  the folder to copy
+   * @param destFolder where to copy it to
+   * @throws InterruptedIOException if interrupted while waiting for earlier copies
+   */
+  void submit(final File srcFolder, final File destFolder) throws InterruptedIOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying attachments");
+    }
+    ++foldersSubmitted;
+    getPool().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!cancelled) {
+            copy(srcFolder, destFolder);
+          }
+        } finally {
+          inFlight.release();
+        }
+      }
+    });
+  }
+
+  private void copy(File srcFolder, File destFolder) {
+    try {
+      if (!destFolder.mkdirs() && !destFolder.isDirectory()) {
+        throw new IOException("Unable to create " + destFolder);
+      }
+      bytesCopied.addAndGet(ODKFileUtils.copyDirectory(appName, srcFolder, destFolder, false));
+      foldersCopied.incrementAndGet();
+    } catch (IOException e) {
+      addFailure(srcFolder, e);
+    } catch (RuntimeException e) {
+      addFailure(srcFolder, new IOException(e));
+    }
+  }
+
+  private synchronized void addFailure(File srcFolder, IOException e) {
+    failures.add(srcFolder.getName() + ": " + e.getMessage());
+    if (firstFailure == null) {
+      firstFailure = e;
+    }
+  }
+
+  /**
+   * Tell the listener, if any, how far the copies have got if that changed since last time
+   */
+  void reportProgress() {
+    if (listener == null) {
+      return;
+    }
+    int copied = foldersCopied.get();
+    if (copied != lastReportedCopied) {
+      lastReportedCopied = copied;
+      listener.updateCopyProgress(copied, foldersSubmitted, bytesCopied.get());
+    }
+  }
+
+  /**
+   * Wait for every submitted copy to finish
+   *
+   * @throws IOException if any folder could not be copied, or if interrupted
+   */
+  void awaitCompletion() throws IOException {
+    try {
+      while (!inFlight.tryAcquire(MAX_IN_FLIGHT, PROGRESS_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS)) {
+        reportProgress();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying attachments");
+    }
+    inFlight.release(MAX_IN_FLIGHT);
+    reportProgress();
+
+    synchronized (this) {
+      logFailures();
+      if (!failures.isEmpty()) {
+        throw new IOException(failures.size() + " of " + foldersSubmitted
+            + " attachment folders could not be copied", firstFailure);
+      }
+    }
+  }
+
+  /**
+   * Wait for every submitted copy to finish, even if interrupted, and log any that failed.
+   * For an import that fails part way: the folders submitted so far belong to rows that
+   * are already in the database.
+   */
+  void finish() {
+    inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+    inFlight.release(MAX_IN_FLIGHT);
+    synchronized (this) {
+      logFailures();
+    }
+  }
+
+  private void logFailures() {
+    for (; failuresLogged < failures.size(); ++failuresLogged) {
+      WebLogger.getLogger(appName)
+          .e(TAG, "Unable to copy attachments of " + failures.get(failuresLogged));
+    }
+  }
+
+  /**
+   * Skip the copies that have not started yet and wait for the others to finish
+   */
+  void cancel() {
+    cancelled = true;
+    inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+    inFlight.release(MAX_IN_FLIGHT);
+  }
+
+  long getBytesCopied() {
+    return bytesCopied.get();
+  }
+
+  int getFoldersCopied() {
+    return foldersCopied.get();
+  }
+}
@@ -24,12 +24,18 @@ import org.opendatakit.aggregate.odktables.rest.RFC4180CsvWriter;
 import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
-import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TypedRowDescriptor;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.database.queries.KeysetQuery;
+import org.opendatakit.database.queries.ResumableQuery;
+import org.opendatakit.database.service.BulkInsertOutcome;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -37,14 +43,15 @@ import org.opendatakit.listener.ExportListener;
 import org.opendatakit.listener.ImportListener;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.provider.DataTableColumns;
-import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
@@ -55,6 +62,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Various utilities for importing/exporting tables from/to CSV.
@@ -68,10 +77,30 @@ public class CsvUtil {
 
   private static final String TAG = CsvUtil.class.getSimpleName();
 
+  /**
+   * Number of csv rows handed to privilegedBulkInsertRows() at a time
+   */
+  private static final int IMPORT_BATCH_SIZE = 1000;
+
+  /**
+   * Number of parsed batches that may wait for the database before the parser blocks
+   */
+  private static final int IMPORT_QUEUE_DEPTH = 2;
+
+  /**
+   * Default number of rows fetched from the database per page during export
+   */
+  public static final int DEFAULT_EXPORT_PAGE_SIZE = 1000;
+
   private final String appName;
 
   private final CsvUtilSupervisor supervisor;
 
+  /**
+   * Number of rows fetched from the database per page during export
+   */
+  private int exportPageSize = DEFAULT_EXPORT_PAGE_SIZE;
+
   public CsvUtil(CsvUtilSupervisor supervisor, String appName) {
     this.supervisor = supervisor;
     this.appName = appName;
@@ -96,6 +125,9 @@ public class CsvUtil {
    * <li>tableid.properties.csv - key-value store of this table</li>
    * </ul>
    * <p>
+   * The rows are written in _id order rather than in the order they were inserted, so
+   * that each page of the export can seek on the _id index.
+   * <p>
    * Used in ExportTask
    *
    * @param exportListener We send it progress updates
@@ -156,6 +188,8 @@ public class CsvUtil {
 
     OutputStreamWriter output = null;
     File outputCsv = null;
+    // attachments are copied in the background while the rows are written
+    AttachmentCopier copier = new AttachmentCopier(appName, exportListener);
     try {
       // both files go under the output/csv directory...
       outputCsv = new File(ODKFileUtils.getOutputTableCsvFile(appName, tableId, fileQualifier));
@@ -180,11 +214,30 @@ public class CsvUtil {
               .toString(ConflictType.LOCAL_UPDATED_UPDATED_VALUES) + ")";
 
       BindArgs emptyArgs = new BindArgs(new Object[0]);
-      String[] emptyArray = new String[0];
 
+      // the total is only needed for progress reporting
+      BaseTable countTable = supervisor.getDatabase()
+          .arbitrarySqlQuery(appName, db, tableId,
+              "SELECT COUNT(*) FROM \"" + tableId + "\" WHERE " + whereString, emptyArgs, null,
+              null);
+      int totalRows = Integer.parseInt(countTable.getRowAtIndex(0).getRawStringByIndex(0));
+
+      // page through the table in _id order so the whole table is never held in memory;
+      // each page seeks past the last _id rather than skipping the earlier rows
+      ResumableQuery query = new KeysetQuery(tableId, emptyArgs, whereString,
+          DataTableColumns.ID, "ASC", exportPageSize);
       UserTable table = supervisor.getDatabase()
-          .simpleQuery(appName, db, tableId, orderedDefns, whereString, emptyArgs, emptyArray, null,
-              null, null, null, null);
+          .resumeSimpleQuery(appName, db, orderedDefns, query);
+
+      // precompute each output column's type and position so per-cell work is O(1)
+      TypedRowDescriptor descriptor = table.getTypedRowDescriptor();
+      int[] cellIndexes = new int[columns.size()];
+      ElementDataType[] cellTypes = new ElementDataType[columns.size()];
+      for (int j = 0; j < columns.size(); ++j) {
+        cellIndexes[j] = descriptor.getColumnIndex(columns.get(j));
+        cellTypes[j] = cellIndexes[j] == -1 ? null : descriptor.getDataType(cellIndexes[j]);
+      }
+      int idIndex = table.getColumnIndexOfElementKey(DataTableColumns.ID);
 
       // emit data table...
       File file = new File(outputCsv,
@@ -196,38 +249,48 @@ public class CsvUtil {
       // don't have to worry about quotes in elementKeys...
       cw.writeNext(columns.toArray(new String[columns.size()]));
       String[] row = new String[columns.size()];
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        exportListener.updateProgressDetail(i, table.getNumberOfRows());
-        TypedRow dataRow = table.getRowAtIndex(i);
-        for (int j = 0; j < columns.size(); ++j) {
-          row[j] = dataRow.getStringValueByKey(columns.get(j));
-        }
-        cw.writeNext(row);
-        /*
-         * Copy all attachment files into the output directory tree.
-         * Don't worry about whether they are referenced in the current
-         * row. This is a simplification (and biases toward preserving
-         * data).
-         */
-        String instanceId = table.getRowId(i);
-        File tableInstanceFolder = new File(
-            ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
-        if (instancesWithData.contains(tableInstanceFolder)) {
-          File outputInstanceFolder = new File(
-              ODKFileUtils.getOutputCsvInstanceFolder(appName, tableId, instanceId));
-          if (!outputInstanceFolder.mkdirs()) {
-            throw new IOException();
+      int rowsWritten = 0;
+      while (table != null) {
+        BaseTable page = table.getBaseTable();
+        for (int i = 0; i < page.getNumberOfRows(); i++) {
+          exportListener.updateProgressDetail(rowsWritten, Math.max(totalRows, rowsWritten));
+          copier.reportProgress();
+          Row dataRow = page.getRowAtIndex(i);
+          for (int j = 0; j < row.length; ++j) {
+            row[j] = cellIndexes[j] == -1 ? null :
+                formatExportValue(cellTypes[j], dataRow.getRawStringByIndex(cellIndexes[j]));
+          }
+          cw.writeNext(row);
+          ++rowsWritten;
+          /*
+           * Copy all attachment files into the output directory tree.
+           * Don't worry about whether they are referenced in the current
+           * row. This is a simplification (and biases toward preserving
+           * data).
+           */
+          String instanceId = dataRow.getRawStringByIndex(idIndex);
+          File tableInstanceFolder = new File(
+              ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
+          if (instancesWithData.contains(tableInstanceFolder)) {
+            File outputInstanceFolder = new File(
+                ODKFileUtils.getOutputCsvInstanceFolder(appName, tableId, instanceId));
+            copier.submit(tableInstanceFolder, outputInstanceFolder);
+            instancesWithData.remove(tableInstanceFolder);
           }
-          ODKFileUtils.copyDirectory(tableInstanceFolder, outputInstanceFolder);
-          instancesWithData.remove(tableInstanceFolder);
         }
 
+        ResumableQuery nextPage = table.resumeQueryForward(exportPageSize);
+        table = nextPage == null ? null :
+            supervisor.getDatabase().resumeSimpleQuery(appName, db, orderedDefns, nextPage);
       }
       cw.flush();
       cw.close();
 
+      copier.awaitCompletion();
       return true;
     } catch (IOException ignored) {
+      // stop copying before the output is removed
+      copier.cancel();
       try {
         File outputCsvFolder = new File(ODKFileUtils.getOutputCsvFolder(appName));
         while (ODKFileUtils.directoryContains(outputCsvFolder, outputCsv)) {
@@ -240,6 +303,7 @@ public class CsvUtil {
       }
       return false;
     } finally {
+      copier.cancel();
       try {
         if (output != null) {
           output.close();
@@ -250,6 +314,56 @@ public class CsvUtil {
     }
   }
 
+  /**
+   * Format a raw database value for export exactly as TypedRow.getStringValueByKey()
+   * would, without looking up the column type again.
+   *
+   * @param dataType the precomputed data type of the column
+   * @param raw      the raw database value
+   * @return the exported value
+   * @throws IllegalStateException if an array value is not valid json
+   */
+  private String formatExportValue(ElementDataType dataType, String raw) {
+    if (raw == null) {
+      return null;
+    }
+    switch (dataType) {
+    case integer:
+      return Long.toString(Long.parseLong(raw));
+    case number:
+      return Double.toString(Double.parseDouble(raw));
+    case bool:
+      return Boolean.toString(!DatabaseConstants.INT_FALSE_STRING.equals(raw));
+    case array:
+      try {
+        return ODKFileUtils.mapper
+            .writeValueAsString(ODKFileUtils.mapper.readValue(raw, ArrayList.class));
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
+        throw new IllegalStateException(
+            "Unexpected data type conversion failure " + e + " on SQLite table");
+      }
+    default:
+      return raw;
+    }
+  }
+
+  /**
+   * Set the number of rows fetched from the database per page during export
+   *
+   * @param exportPageSize the page size, at least 1
+   */
+  public void setExportPageSize(int exportPageSize) {
+    if (exportPageSize < 1) {
+      throw new IllegalArgumentException("exportPageSize must be at least 1");
+    }
+    this.exportPageSize = exportPageSize;
+  }
+
+  public int getExportPageSize() {
+    return exportPageSize;
+  }
+
   /**
    * Common routine to write the definition and properties files.
    * Writes the definition and properties files for the given tableId. This is
@@ -421,6 +535,7 @@ public class CsvUtil {
 
       // reading data
       InputStreamReader input = null;
+      AttachmentCopier copier = null;
       try {
 
         File assetsCsvInstances = new File(
@@ -444,314 +559,71 @@ public class CsvUtil {
         File file = new File(assetsCsv,
             tableId + (fileQualifier != null && !fileQualifier.isEmpty() ? "." + fileQualifier : "")
                 + ".csv");
-        FileInputStream in = new FileInputStream(file);
-        input = new InputStreamReader(in, StandardCharsets.UTF_8);
-        int total = 0;
-        char[] buf = new char[1024];
-        int read;
-        while ((read = input.read(buf)) > 0) {
-          int i = 0;
-          // while not for because we change i in the loop
-          while (i < read) {
-            if (buf[i] == '\r' || buf[i] == '\n') {
-              if (i + 1 < buf.length && (buf[i + 1] == '\r' || buf[i + 1] == '\n')) {
-                i++;
-              }
-              total++;
-            }
-            i++;
-          }
-        }
-        input.close();
-        in.close();
-        in = new FileInputStream(file);
+        long fileLength = file.length();
+        CountingInputStream in = new CountingInputStream(new FileInputStream(file));
         input = new InputStreamReader(in, StandardCharsets.UTF_8);
-        //int total = r.getLineNumber();
         RFC4180CsvReader cr = new RFC4180CsvReader(input);
         // don't have to worry about quotes in elementKeys...
         String[] columnsInFile = cr.readNext();
-        int columnsInFileLength = countUpToLastNonNullElement(columnsInFile);
-
-        String v_id;
-        String v_form_id;
-        String v_locale;
-        String v_savepoint_type;
-        String v_savepoint_creator;
-        String v_savepoint_timestamp;
-        String v_row_etag;
-        String v_default_access;
-        String v_row_owner;
-        String v_group_read_only;
-        String v_group_modify;
-        String v_group_privileged;
-
-        HashMap<String, String> valueMap = new HashMap<>();
-
-        int rowCount = 0;
-        String[] row;
-        while (true) {
-          row = cr.readNext();
-          rowCount++;
-          importListener.updateProgressDetail(rowCount, total);
-          if (row == null || countUpToLastNonNullElement(row) == 0) {
-            break;
-          }
-          int rowLength = countUpToLastNonNullElement(row);
-
-          // default values for metadata columns if not provided
-          v_id = UUID.randomUUID().toString();
-          v_form_id = null;
-          v_locale = CursorUtils.DEFAULT_LOCALE;
-          v_savepoint_type = SavepointTypeManipulator.complete();
-          v_savepoint_creator = CursorUtils.DEFAULT_CREATOR;
-          v_savepoint_timestamp = TableConstants.nanoSecondsFromMillis(
-              System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
-          v_row_etag = null;
-          v_default_access = DataTableColumns.DEFAULT_DEFAULT_ACCESS;
-          v_row_owner = DataTableColumns.DEFAULT_ROW_OWNER;
-          v_group_read_only = DataTableColumns.DEFAULT_GROUP_READ_ONLY;
-          v_group_modify = DataTableColumns.DEFAULT_GROUP_MODDIFY;
-          v_group_privileged = DataTableColumns.DEFAULT_GROUP_PRIVILEGED;
-
-          // clear value map
-          valueMap.clear();
-
-          boolean foundId = false;
-          for (int i = 0; i < columnsInFileLength; ++i) {
-            if (i >= rowLength)
-              break;
-            String column = columnsInFile[i];
-            String tmp = row[i];
-            if (DataTableColumns.ID.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                foundId = true;
-                v_id = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.FORM_ID.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_form_id = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.LOCALE.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_locale = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.SAVEPOINT_TYPE.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_savepoint_type = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.SAVEPOINT_CREATOR.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_savepoint_creator = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-
-                // first convert string format of v_savepoint_timestamp
-                // to Long format so we can compare
-                Long savepoint_timestamp = TableConstants.milliSecondsFromNanos(v_savepoint_timestamp, TableConstants.TIMESTAMP_LOCALE);
-
-                // convert current data point of timestamp in csv file from string format to Long
-                Long timestamp;
-                try {
-                  timestamp = TableConstants.milliSecondsFromNanos(tmp, TableConstants.TIMESTAMP_LOCALE);
-                } catch (IllegalArgumentException e) {
-                  // illegal timestamp format, continue
-                  // current v_savepoint_timestamp is already current time
-                  // so we can go on
-                  continue;
-                }
-
-
-                if (timestamp > savepoint_timestamp) {
-                  // user-entered timestamp is greater than current time. so just correct
-                  // to current time. In this case we do nothing since it v_save is already
-                  // current time
-                  continue;
-                }
-
-                // otherwise, the date is valid, so we just import the timestamp with
-                // whatever it was.
-                v_savepoint_timestamp = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.ROW_ETAG.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_row_etag = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.DEFAULT_ACCESS.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_default_access = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.ROW_OWNER.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_row_owner = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.GROUP_READ_ONLY.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_group_read_only = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.GROUP_MODIFY.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_group_modify = tmp;
-              }
-              continue;
-            }
-            if (DataTableColumns.GROUP_PRIVILEGED.equals(column)) {
-              if (tmp != null && !tmp.isEmpty()) {
-                v_group_privileged = tmp;
-              }
-              continue;
-            }
 
-            try {
-              orderedDefns.find(column);
-              valueMap.put(column, tmp);
-            } catch (IllegalArgumentException ignored) {
-              // this is OK --
-              // the csv contains an extra column
-            }
-          }
-
-          // if there are any conflicts or checkpoints on this row, we do not import
-          // this row change. Instead, silently ignore them.
-          UserTable table = supervisor.getDatabase()
-              .privilegedGetRowsWithId(appName, db, tableId, orderedDefns, v_id);
-          if (table.getNumberOfRows() > 1) {
-            WebLogger.getLogger(appName).w(TAG,
-                "importSeparable: tableId: " + tableId + " rowId: " + v_id +
-                    " has checkpoints or conflicts -- IGNORED in .csv");
-            continue;
-          }
-
-          SyncState syncState = null;
-          if (foundId && table.getNumberOfRows() == 1) {
-            String syncStateStr = table.getRowAtIndex(0).getRawStringByKey(DataTableColumns.SYNC_STATE);
-            if (syncStateStr == null) {
-              throw new IllegalStateException("Unexpected null syncState value");
-            }
-            syncState = SyncState.valueOf(syncStateStr);
-          }
-
-          /*
-           * Insertion will set the SYNC_STATE to new_row.
-           *
-           * If the table is sync'd to the server, this will cause one sync
-           * interaction with the server to confirm that the server also has
-           * this record.
-           *
-           * If a record with this same rowId already exists, if it is in an
-           * new_row sync state, we update it here. Otherwise, if there were any
-           * local changes, we leave the row unchanged.
-           */
-          if (syncState != null) {
-            ContentValues cv = valueMapToContentValues(valueMap, orderedDefns);
-
-            // The admin columns get added here
-            cv.put(DataTableColumns.FORM_ID, v_form_id);
-            cv.put(DataTableColumns.LOCALE, v_locale);
-            cv.put(DataTableColumns.SAVEPOINT_TYPE, v_savepoint_type);
-            cv.put(DataTableColumns.SAVEPOINT_TIMESTAMP, v_savepoint_timestamp);
-            cv.put(DataTableColumns.SAVEPOINT_CREATOR, v_savepoint_creator);
-            cv.put(DataTableColumns.ROW_ETAG, v_row_etag);
-            cv.put(DataTableColumns.DEFAULT_ACCESS, v_default_access);
-            cv.put(DataTableColumns.ROW_OWNER, v_row_owner);
-            cv.put(DataTableColumns.GROUP_READ_ONLY, v_group_read_only);
-            cv.put(DataTableColumns.GROUP_MODIFY, v_group_modify);
-            cv.put(DataTableColumns.GROUP_PRIVILEGED, v_group_privileged);
-
-            cv.put(DataTableColumns.SYNC_STATE, SyncState.new_row.name());
-            cv.putNull(DataTableColumns.CONFLICT_TYPE);
-
-            if (v_id != null) {
-              cv.put(DataTableColumns.ID, v_id);
-            }
-
-            if (syncState == SyncState.new_row) {
-              // delete the existing row then insert the new values for it
-              supervisor.getDatabase()
-                  .privilegedDeleteRowWithId(appName, db, tableId, orderedDefns, v_id);
-              supervisor.getDatabase()
-                  .privilegedInsertRowWithId(appName, db, tableId, orderedDefns, cv, v_id, true);
+        // parse on a separate thread so that it overlaps the database writes, and copy
+        // attachments in the background
+        BlockingQueue<ImportBatch> queue = new ArrayBlockingQueue<>(IMPORT_QUEUE_DEPTH);
+        ImportParser parser = new ImportParser(cr, in, columnsInFile, orderedDefns, queue);
+        Thread parserThread = new Thread(parser, "CsvUtil import " + tableId);
+        copier = new AttachmentCopier(appName, importListener);
+        parserThread.start();
+        try {
+          while (true) {
+            ImportBatch batch = queue.take();
+            if (batch == ImportBatch.END_OF_IMPORT) {
+              break;
             }
-            // otherwise, do NOT update the row.
-            // i.e., if the row has been sync'd with
-            // the server, then we don't revise it.
+            applyImportBatch(db, tableId, orderedDefns, batch.values, batch.rowIds,
+                instancesHavingData, copier);
 
-          } else {
-            ContentValues cv = valueMapToContentValues(valueMap, orderedDefns);
-
-            // The admin columns get added here
-            cv.put(DataTableColumns.FORM_ID, v_form_id);
-            cv.put(DataTableColumns.LOCALE, v_locale);
-            cv.put(DataTableColumns.SAVEPOINT_TYPE, v_savepoint_type);
-            cv.put(DataTableColumns.SAVEPOINT_TIMESTAMP, v_savepoint_timestamp);
-            cv.put(DataTableColumns.SAVEPOINT_CREATOR, v_savepoint_creator);
-            cv.put(DataTableColumns.ROW_ETAG, v_row_etag);
-            cv.put(DataTableColumns.DEFAULT_ACCESS, v_default_access);
-            cv.put(DataTableColumns.ROW_OWNER, v_row_owner);
-            cv.put(DataTableColumns.GROUP_READ_ONLY, v_group_read_only);
-            cv.put(DataTableColumns.GROUP_MODIFY, v_group_modify);
-            cv.put(DataTableColumns.GROUP_PRIVILEGED, v_group_privileged);
-
-            cv.put(DataTableColumns.SYNC_STATE, SyncState.new_row.name());
-            cv.putNull(DataTableColumns.CONFLICT_TYPE);
-
-            if (v_id == null) {
-              v_id = LocalizationUtils.genUUID();
+            // the total is estimated from the fraction of the file consumed so far
+            int total = batch.rowsRead;
+            if (batch.bytesRead > 0 && batch.bytesRead < fileLength) {
+              total = (int) (batch.rowsRead * fileLength / batch.bytesRead);
             }
-
-            cv.put(DataTableColumns.ID, v_id);
-
-            // imports assume super-user level powers. Treat these as if they were
-            // directed by the server during a sync.
-            supervisor.getDatabase()
-                .privilegedInsertRowWithId(appName, db, tableId, orderedDefns, cv, v_id, true);
+            importListener.updateProgressDetail(batch.rowsRead, total);
+            copier.reportProgress();
           }
-
-          /*
-           * Copy all attachment files into the destination row.
-           * The attachments are in instance-id-labeled sub-directories.
-           * Anything in the corresponding subdirectory should be
-           * referenced by the valuesMap above. If it isn't, don't worry about
-           * it. This is a simplification.
-           */
-          File assetsInstanceFolder = new File(
-              ODKFileUtils.getAssetsCsvInstanceFolder(appName, tableId, v_id));
-          if (instancesHavingData.contains(assetsInstanceFolder)) {
-            File tableInstanceFolder = new File(
-                ODKFileUtils.getInstanceFolder(appName, tableId, v_id));
-            tableInstanceFolder.mkdirs();
-            ODKFileUtils.copyDirectory(assetsInstanceFolder, tableInstanceFolder);
-            instancesHavingData.remove(assetsInstanceFolder);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        } finally {
+          parserThread.interrupt();
+          try {
+            parserThread.join();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
           }
+        }
 
+        if (parser.failure instanceof IOException) {
+          throw (IOException) parser.failure;
+        } else if (parser.failure instanceof RuntimeException) {
+          throw (RuntimeException) parser.failure;
+        } else if (parser.failure != null) {
+          throw new IllegalStateException(parser.failure);
         }
+        copier.awaitCompletion();
         cr.close();
         return true;
       } catch (IOException ignored) {
         return false;
       } finally {
+        if (copier != null) {
+          // every submitted folder belongs to a row that was inserted, so let them all
+          // be copied even if the import failed
+          copier.finish();
+        }
         try {
-          input.close();
+          if (input != null) {
+            input.close();
+          }
         } catch (IOException ignored) {
           // we never even opened the file
         }
@@ -765,6 +637,390 @@ public class CsvUtil {
     }
   }
 
+  /**
+   * Convert one csv row into the ContentValues of a database row, supplying default
+   * values for any metadata columns that are not provided. The rowId is stored under
+   * DataTableColumns.ID.
+   *
+   * @param columnsInFile       the header row of the csv
+   * @param columnsInFileLength the number of non-null entries in the header row
+   * @param row                 the csv row
+   * @param rowLength           the number of non-null entries in the csv row
+   * @param orderedDefns        the columns of the table
+   * @param valueMap            scratch map, cleared on entry
+   * @return the values to insert
+   */
+  private ContentValues parseImportRow(String[] columnsInFile, int columnsInFileLength,
+      String[] row, int rowLength, OrderedColumns orderedDefns, Map<String, String> valueMap) {
+    String v_id;
+    String v_form_id;
+    String v_locale;
+    String v_savepoint_type;
+    String v_savepoint_creator;
+    String v_savepoint_timestamp;
+    String v_row_etag;
+    String v_default_access;
+    String v_row_owner;
+    String v_group_read_only;
+    String v_group_modify;
+    String v_group_privileged;
+
+    // default values for metadata columns if not provided
+    v_id = UUID.randomUUID().toString();
+    v_form_id = null;
+    v_locale = CursorUtils.DEFAULT_LOCALE;
+    v_savepoint_type = SavepointTypeManipulator.complete();
+    v_savepoint_creator = CursorUtils.DEFAULT_CREATOR;
+    v_savepoint_timestamp = TableConstants.nanoSecondsFromMillis(
+        System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE);
+    v_row_etag = null;
+    v_default_access = DataTableColumns.DEFAULT_DEFAULT_ACCESS;
+    v_row_owner = DataTableColumns.DEFAULT_ROW_OWNER;
+    v_group_read_only = DataTableColumns.DEFAULT_GROUP_READ_ONLY;
+    v_group_modify = DataTableColumns.DEFAULT_GROUP_MODDIFY;
+    v_group_privileged = DataTableColumns.DEFAULT_GROUP_PRIVILEGED;
+
+    // clear value map
+    valueMap.clear();
+
+    for (int i = 0; i < columnsInFileLength; ++i) {
+      if (i >= rowLength)
+        break;
+      String column = columnsInFile[i];
+      String tmp = row[i];
+      if (DataTableColumns.ID.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_id = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.FORM_ID.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_form_id = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.LOCALE.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_locale = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.SAVEPOINT_TYPE.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_savepoint_type = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.SAVEPOINT_CREATOR.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_savepoint_creator = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+
+          // first convert string format of v_savepoint_timestamp
+          // to Long format so we can compare
+          Long savepoint_timestamp = TableConstants.milliSecondsFromNanos(v_savepoint_timestamp, TableConstants.TIMESTAMP_LOCALE);
+
+          // convert current data point of timestamp in csv file from string format to Long
+          Long timestamp;
+          try {
+            timestamp = TableConstants.milliSecondsFromNanos(tmp, TableConstants.TIMESTAMP_LOCALE);
+          } catch (IllegalArgumentException e) {
+            // illegal timestamp format, continue
+            // current v_savepoint_timestamp is already current time
+            // so we can go on
+            continue;
+          }
+
+
+          if (timestamp > savepoint_timestamp) {
+            // user-entered timestamp is greater than current time. so just correct
+            // to current time. In this case we do nothing since it v_save is already
+            // current time
+            continue;
+          }
+
+          // otherwise, the date is valid, so we just import the timestamp with
+          // whatever it was.
+          v_savepoint_timestamp = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.ROW_ETAG.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_row_etag = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.DEFAULT_ACCESS.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_default_access = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.ROW_OWNER.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_row_owner = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.GROUP_READ_ONLY.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_group_read_only = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.GROUP_MODIFY.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_group_modify = tmp;
+        }
+        continue;
+      }
+      if (DataTableColumns.GROUP_PRIVILEGED.equals(column)) {
+        if (tmp != null && !tmp.isEmpty()) {
+          v_group_privileged = tmp;
+        }
+        continue;
+      }
+
+      try {
+        orderedDefns.find(column);
+        valueMap.put(column, tmp);
+      } catch (IllegalArgumentException ignored) {
+        // this is OK --
+        // the csv contains an extra column
+      }
+    }
+
+    ContentValues cv = valueMapToContentValues(valueMap, orderedDefns);
+
+    // The admin columns get added here
+    cv.put(DataTableColumns.FORM_ID, v_form_id);
+    cv.put(DataTableColumns.LOCALE, v_locale);
+    cv.put(DataTableColumns.SAVEPOINT_TYPE, v_savepoint_type);
+    cv.put(DataTableColumns.SAVEPOINT_TIMESTAMP, v_savepoint_timestamp);
+    cv.put(DataTableColumns.SAVEPOINT_CREATOR, v_savepoint_creator);
+    cv.put(DataTableColumns.ROW_ETAG, v_row_etag);
+    cv.put(DataTableColumns.DEFAULT_ACCESS, v_default_access);
+    cv.put(DataTableColumns.ROW_OWNER, v_row_owner);
+    cv.put(DataTableColumns.GROUP_READ_ONLY, v_group_read_only);
+    cv.put(DataTableColumns.GROUP_MODIFY, v_group_modify);
+    cv.put(DataTableColumns.GROUP_PRIVILEGED, v_group_privileged);
+
+    cv.put(DataTableColumns.SYNC_STATE, SyncState.new_row.name());
+    cv.putNull(DataTableColumns.CONFLICT_TYPE);
+
+    cv.put(DataTableColumns.ID, v_id);
+
+    return cv;
+  }
+
+  /**
+   * Insert the pending rows of an import with one bulk call, then start copying the
+   * attachments of the rows that were not skipped. Clears the pending lists.
+   * <p>
+   * Insertion will set the SYNC_STATE to new_row.
+   * <p>
+   * If the table is sync'd to the server, this will cause one sync
+   * interaction with the server to confirm that the server also has
+   * this record.
+   * <p>
+   * If a record with this same rowId already exists, if it is in an
+   * new_row sync state, we replace it here. Otherwise, if there were any
+   * local changes, we leave the row unchanged. If there are any conflicts or
+   * checkpoints on a row, we do not import that row change.
+   *
+   * @param db                  the open database handle
+   * @param tableId             the table being imported
+   * @param orderedDefns        the columns of the table
+   * @param pendingValues       the values of each pending row
+   * @param pendingRowIds       the rowId of each pending row
+   * @param instancesHavingData the csv instance folders whose attachments remain to be copied
+   * @param copier              copies the attachments
+   * @throws ServicesAvailabilityException if the database is down
+   * @throws IOException                   if interrupted while waiting to copy attachments
+   */
+  private void applyImportBatch(DbHandle db, String tableId, OrderedColumns orderedDefns,
+      List<ContentValues> pendingValues, List<String> pendingRowIds,
+      HashSet<File> instancesHavingData, AttachmentCopier copier)
+      throws ServicesAvailabilityException, IOException {
+    if (pendingRowIds.isEmpty()) {
+      return;
+    }
+
+    // imports assume super-user level powers. Treat these as if they were
+    // directed by the server during a sync.
+    int[] outcomes = supervisor.getDatabase()
+        .privilegedBulkInsertRows(appName, db, tableId, orderedDefns, pendingValues,
+            pendingRowIds, true);
+
+    for (int i = 0; i < outcomes.length; ++i) {
+      String rowId = pendingRowIds.get(i);
+      if (outcomes[i] == BulkInsertOutcome.SKIPPED_CHECKPOINT_OR_CONFLICT) {
+        WebLogger.getLogger(appName).w(TAG,
+            "importSeparable: tableId: " + tableId + " rowId: " + rowId +
+                " has checkpoints or conflicts -- IGNORED in .csv");
+        continue;
+      }
+
+      /*
+       * Copy all attachment files into the destination row.
+       * The attachments are in instance-id-labeled sub-directories.
+       * Anything in the corresponding subdirectory should be
+       * referenced by the valuesMap above. If it isn't, don't worry about
+       * it. This is a simplification.
+       */
+      File assetsInstanceFolder = new File(
+          ODKFileUtils.getAssetsCsvInstanceFolder(appName, tableId, rowId));
+      if (instancesHavingData.contains(assetsInstanceFolder)) {
+        File tableInstanceFolder = new File(
+            ODKFileUtils.getInstanceFolder(appName, tableId, rowId));
+        copier.submit(assetsInstanceFolder, tableInstanceFolder);
+        instancesHavingData.remove(assetsInstanceFolder);
+      }
+    }
+
+    pendingValues.clear();
+    pendingRowIds.clear();
+  }
+
+  /**
+   * A batch of parsed csv rows, along with how far into the file the parser was
+   * when the batch was completed.
+   */
+  private static final class ImportBatch {
+    static final ImportBatch END_OF_IMPORT = new ImportBatch(0);
+
+    final List<ContentValues> values;
+    final List<String> rowIds;
+    int rowsRead;
+    long bytesRead;
+
+    ImportBatch(int capacity) {
+      values = new ArrayList<>(capacity);
+      rowIds = new ArrayList<>(capacity);
+    }
+  }
+
+  /**
+   * The parser stage of importSeparable. Reads and converts csv rows into batches
+   * and hands them to the database stage through a bounded queue. Always ends the
+   * queue with END_OF_IMPORT unless interrupted; any failure is left in failure.
+   */
+  private final class ImportParser implements Runnable {
+    private final RFC4180CsvReader cr;
+    private final CountingInputStream in;
+    private final String[] columnsInFile;
+    private final OrderedColumns orderedDefns;
+    private final BlockingQueue<ImportBatch> queue;
+
+    private ImportBatch batch = new ImportBatch(IMPORT_BATCH_SIZE);
+    private int rowCount = 0;
+
+    volatile Throwable failure = null;
+
+    ImportParser(RFC4180CsvReader cr, CountingInputStream in, String[] columnsInFile,
+        OrderedColumns orderedDefns, BlockingQueue<ImportBatch> queue) {
+      this.cr = cr;
+      this.in = in;
+      this.columnsInFile = columnsInFile;
+      this.orderedDefns = orderedDefns;
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        try {
+          parse();
+        } catch (InterruptedException e) {
+          // the database stage gave up; nobody is waiting for END_OF_IMPORT
+          return;
+        } catch (Throwable t) {
+          failure = t;
+        }
+        // rows parsed before the end of the file or a failure are still applied
+        if (!batch.rowIds.isEmpty()) {
+          queue.put(batch);
+        }
+        queue.put(ImportBatch.END_OF_IMPORT);
+      } catch (InterruptedException ignored) {
+        // the database stage gave up
+      }
+    }
+
+    private void parse() throws IOException, InterruptedException {
+      int columnsInFileLength = countUpToLastNonNullElement(columnsInFile);
+      HashMap<String, String> valueMap = new HashMap<>();
+
+      String[] row;
+      while (true) {
+        row = cr.readNext();
+        if (row == null || countUpToLastNonNullElement(row) == 0) {
+          break;
+        }
+        int rowLength = countUpToLastNonNullElement(row);
+        ++rowCount;
+
+        ContentValues cv = parseImportRow(columnsInFile, columnsInFileLength, row, rowLength,
+            orderedDefns, valueMap);
+        batch.values.add(cv);
+        batch.rowIds.add(cv.getAsString(DataTableColumns.ID));
+        batch.rowsRead = rowCount;
+        batch.bytesRead = in.getCount();
+
+        if (batch.rowIds.size() >= IMPORT_BATCH_SIZE) {
+          queue.put(batch);
+          batch = new ImportBatch(IMPORT_BATCH_SIZE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes read through it, for byte-based import progress
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        ++count;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
   /**
    * Populates a ContentValue instance with data from a map of column to value
    * and using type information from OrderedColumns
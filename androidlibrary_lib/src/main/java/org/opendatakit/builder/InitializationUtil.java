@@ -15,7 +15,9 @@
 package org.opendatakit.builder;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.text.TextUtils;
 import org.opendatakit.androidlibrary.R;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -23,9 +25,9 @@ import org.opendatakit.listener.ImportListener;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.utilities.Md5DigestCache;
 import org.opendatakit.utilities.ODKFileUtils;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -34,14 +36,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background task for exploding the built-in zipfile resource into the
@@ -57,11 +70,26 @@ public class InitializationUtil {
   private static final String CSV = "csv";
   private static final String PROPERTIES = "properties";
 
+  /**
+   * Default number of tables processed concurrently during initialization
+   */
+  public static final int DEFAULT_MAX_PARALLEL_TASKS = Math
+      .max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * How often the worker pool is checked for cancellation
+   */
+  private static final long CANCEL_POLL_MILLIS = 250L;
+
+  /**
+   * Prefix of the names of the worker pool threads
+   */
+  static final String WORKER_THREAD_NAME = "InitializationUtil-";
+
   private Context appContext;
   private InitializationSupervisor supervisor;
   private String appName;
-  private String displayTablesProgress;
-  private String tableIdInProgress;
+  private int maxParallelTasks = DEFAULT_MAX_PARALLEL_TASKS;
 
   public InitializationUtil(Context appContext, String appName,
       InitializationSupervisor supervisor) {
@@ -74,6 +102,23 @@ public class InitializationUtil {
     return supervisor;
   }
 
+  /**
+   * Set the number of tables that are created, scanned for forms or imported
+   * concurrently. 1 processes the tables one after another.
+   *
+   * @param maxParallelTasks the size of the worker pool, at least 1
+   */
+  public void setMaxParallelTasks(int maxParallelTasks) {
+    if (maxParallelTasks < 1) {
+      throw new IllegalArgumentException("maxParallelTasks must be at least 1");
+    }
+    this.maxParallelTasks = maxParallelTasks;
+  }
+
+  public int getMaxParallelTasks() {
+    return maxParallelTasks;
+  }
+
   public InitializationOutcome initialize() {
     InitializationOutcome pendingOutcome = new InitializationOutcome();
 
@@ -91,6 +136,11 @@ public class InitializationUtil {
       extractFromRawZip(appContext.getResources(), getSupervisor().getConfigZipResourceId(), false,
               pendingOutcome);
 
+      if (getSupervisor().isCancelled() || Thread.currentThread().isInterrupted()) {
+        // some files were not extracted; try again next time
+        return pendingOutcome;
+      }
+
       ODKFileUtils
               .assertConfiguredToolApp(appName, toolName, getSupervisor().getVersionCodeString());
     }
@@ -109,8 +159,12 @@ public class InitializationUtil {
 
   private InitializationOutcome commonInitialization(InitializationOutcome pendingOutcome,
                                                      PropertiesSingleton propertiesSingleton) {
+    // a phase that was cancelled or interrupted leaves the flag set so the whole
+    // sweep is run again next time
     try {
-      updateTableDirs(pendingOutcome);
+      if (!updateTableDirs(pendingOutcome)) {
+        return pendingOutcome;
+      }
 
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
@@ -120,7 +174,9 @@ public class InitializationUtil {
     }
 
     try {
-      updateFormDirs(pendingOutcome);
+      if (!updateFormDirs(pendingOutcome)) {
+        return pendingOutcome;
+      }
 
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
@@ -130,7 +186,9 @@ public class InitializationUtil {
     }
 
     try {
-      initTables(pendingOutcome);
+      if (!initTables(pendingOutcome)) {
+        return pendingOutcome;
+      }
     } catch (ServicesAvailabilityException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
       WebLogger.getLogger(appName).e(TAG, "Error accesssing database during CSV import sweep");
@@ -143,53 +201,44 @@ public class InitializationUtil {
     return pendingOutcome;
   }
 
-  private void doActionOnRawZip(Resources resources, int resourceId,
-      InitializationOutcome pendingOutcome, ZipAction action) {
+  private void extractFromRawZip(Resources resources, int resourceId, final boolean overwrite,
+      InitializationOutcome pendingOutcome) {
+
+    if (resourceId == -1) {
+      return;
+    }
+
     String message;
-    InputStream rawInputStream = null;
+    AssetFileDescriptor rawFd = null;
+    File spooledZip = null;
+    FileInputStream archiveStream = null;
     try {
-      rawInputStream = resources.openRawResource(resourceId);
-      ZipInputStream zipInputStream = null;
-      ZipEntry entry = null;
       try {
-        int countFiles = 0;
+        rawFd = resources.openRawResourceFd(resourceId);
+      } catch (Resources.NotFoundException e) {
+        // the resource is compressed within the apk
+        rawFd = null;
+      }
 
-        zipInputStream = new ZipInputStream(rawInputStream);
-        while ((entry = zipInputStream.getNextEntry()) != null) {
-          if (getSupervisor().isCancelled()) {
-            message = "cancelled";
-            pendingOutcome.add(entry.getName() + " " + message);
-            break;
-          }
-          ++countFiles;
-          action.doWorker(entry, zipInputStream, countFiles, 0);
-        }
-        zipInputStream.close();
-
-        action.done(countFiles);
-      } catch (IOException e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        pendingOutcome.problemExtractingToolZipContent = true;
-        if (e.getCause() != null) {
-          message = e.getCause().getMessage();
-        } else {
-          message = e.getMessage();
-        }
-        if (entry != null) {
-          pendingOutcome.add(entry.getName() + " " + message);
-        } else {
-          pendingOutcome.add("Error accessing zipfile resource " + message);
-        }
-      } finally {
-        if (zipInputStream != null) {
-          try {
-            zipInputStream.close();
-          } catch (IOException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            WebLogger.getLogger(appName).e(TAG, "Closing of ZipFile failed: " + e.toString());
-          }
-        }
+      long archiveOffset;
+      long archiveLength;
+      if (rawFd != null) {
+        archiveStream = rawFd.createInputStream();
+        archiveOffset = rawFd.getStartOffset();
+        archiveLength = (rawFd.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) ?
+            archiveStream.getChannel().size() - archiveOffset :
+            rawFd.getLength();
+      } else {
+        // copy it out once so that the central directory can be read
+        spooledZip = spoolRawResource(resources, resourceId);
+        archiveStream = new FileInputStream(spooledZip);
+        archiveOffset = 0L;
+        archiveLength = spooledZip.length();
       }
+
+      RawZipExtractor extractor = new RawZipExtractor(archiveStream.getChannel(), archiveOffset,
+          archiveLength);
+      extractEntries(extractor, overwrite, pendingOutcome);
     } catch (Exception e) {
       WebLogger.getLogger(appName).printStackTrace(e);
       pendingOutcome.problemExtractingToolZipContent = true;
@@ -200,90 +249,149 @@ public class InitializationUtil {
       }
       pendingOutcome.add("Error accessing zipfile resource " + message);
     } finally {
-      if (rawInputStream != null) {
+      if (archiveStream != null) {
+        try {
+          archiveStream.close();
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          WebLogger.getLogger(appName).e(TAG, "Closing of ZipFile failed: " + e.toString());
+        }
+      }
+      if (rawFd != null) {
         try {
-          rawInputStream.close();
+          rawFd.close();
         } catch (IOException e) {
           WebLogger.getLogger(appName).printStackTrace(e);
         }
       }
+      if (spooledZip != null && !spooledZip.delete()) {
+        WebLogger.getLogger(appName).w(TAG, "Unable to delete " + spooledZip.getAbsolutePath());
+      }
     }
   }
 
-  private void extractFromRawZip(Resources resources, int resourceId, final boolean overwrite,
-      InitializationOutcome result) {
-
-    final ZipEntryCounter countTotal = new ZipEntryCounter();
-
-    if (resourceId == -1) {
-      return;
-    }
-
-    doActionOnRawZip(resources, resourceId, result, countTotal);
-
-    if (countTotal.totalFiles == -1) {
-      return;
+  private File spoolRawResource(Resources resources, int resourceId) throws IOException {
+    File spooledZip = File.createTempFile("raw", ".zip", appContext.getCacheDir());
+    InputStream rawInputStream = resources.openRawResource(resourceId);
+    try {
+      OutputStream out = new FileOutputStream(spooledZip, false);
+      try {
+        byte[] buffer = new byte[RawZipExtractor.BUFFER_SIZE];
+        int bread;
+        while ((bread = rawInputStream.read(buffer)) != -1) {
+          out.write(buffer, 0, bread);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      rawInputStream.close();
     }
+    return spooledZip;
+  }
 
-    ZipAction worker = new ZipAction() {
-
-      long bytesProcessed = 0L;
-      long lastBytesProcessedThousands = 0L;
-
-      @Override
-      public void doWorker(ZipEntry entry, ZipInputStream zipInputStream, int indexIntoZip,
-          long size) throws IOException {
-
-        File tempFile = new File(ODKFileUtils.getAppFolder(appName), entry.getName());
-        String formattedString = appContext
-            .getString(R.string.expansion_unzipping_without_detail, entry.getName(), indexIntoZip,
-                countTotal.totalFiles);
-        String detail;
-        if (entry.isDirectory()) {
-          detail = appContext.getString(R.string.expansion_create_dir_detail);
-          getSupervisor().publishProgress(formattedString, detail);
-          if (!tempFile.exists() && !tempFile.mkdirs()) {
-            throw new RuntimeException("Unable to make required directories");
-          }
-        } else if (overwrite || !tempFile.exists()) {
-          int bufferSize = 8192;
-          OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile, false),
-              bufferSize);
-          byte buffer[] = new byte[bufferSize];
-          int bread;
-          while ((bread = zipInputStream.read(buffer)) != -1) {
-            bytesProcessed += bread;
-            long curThousands = (bytesProcessed / 1000L);
-            if (curThousands != lastBytesProcessedThousands) {
-              detail = appContext
-                  .getString(R.string.expansion_unzipping_detail, bytesProcessed, indexIntoZip);
-              getSupervisor().publishProgress(formattedString, detail);
-              lastBytesProcessedThousands = curThousands;
-            }
-            out.write(buffer, 0, bread);
-          }
-          out.flush();
-          out.close();
-
-          detail = appContext
-              .getString(R.string.expansion_unzipping_detail, bytesProcessed, indexIntoZip);
-          getSupervisor().publishProgress(formattedString, detail);
+  /**
+   * Create the directories, then inflate the files on the worker pool, largest first.
+   */
+  private void extractEntries(final RawZipExtractor extractor, final boolean overwrite,
+      final InitializationOutcome pendingOutcome) throws ServicesAvailabilityException {
+    final File appFolder = new File(ODKFileUtils.getAppFolder(appName));
+    final ZipProgress progress = new ZipProgress(extractor.getEntries().size(),
+        extractor.getTotalSize());
+
+    final List<RawZipExtractor.Entry> files = new ArrayList<>();
+    for (RawZipExtractor.Entry entry : extractor.getEntries()) {
+      if (getSupervisor().isCancelled()) {
+        pendingOutcome.add(entry.getName() + " cancelled");
+        return;
+      }
+      File target = new File(appFolder, entry.getName());
+      if (entry.isDirectory()) {
+        getSupervisor().publishProgress(appContext
+                .getString(R.string.expansion_unzipping_without_detail, entry.getName(),
+                    progress.entriesCompleted + 1, progress.totalEntries),
+            appContext.getString(R.string.expansion_create_dir_detail));
+        if (!target.exists() && !target.mkdirs()) {
+          throw new RuntimeException("Unable to make required directories");
         }
-        WebLogger.getLogger(appName).i(TAG, "Extracted ZipEntry: " + entry.getName());
+        progress.entryCompleted(entry, 0L);
+      } else if (overwrite || !target.exists()) {
+        files.add(entry);
+      } else {
+        progress.entryCompleted(entry, entry.getSize());
       }
+    }
 
+    Collections.sort(files, new Comparator<RawZipExtractor.Entry>() {
       @Override
-      public void done(int totalCount) {
-        String completionString = appContext.getString(R.string.expansion_unzipping_complete);
-        getSupervisor().publishProgress(completionString, null);
+      public int compare(RawZipExtractor.Entry lhs, RawZipExtractor.Entry rhs) {
+        return Long.compare(rhs.getCompressedSize(), lhs.getCompressedSize());
       }
+    });
 
-    };
+    // each worker pulls the next entry and reuses its own buffers
+    final AtomicInteger nextFile = new AtomicInteger(0);
+    final AtomicBoolean stopped = new AtomicBoolean(false);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < Math.min(maxParallelTasks, files.size()); ++i) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          byte[] inBuffer = new byte[RawZipExtractor.BUFFER_SIZE];
+          byte[] outBuffer = new byte[RawZipExtractor.BUFFER_SIZE];
+          int index;
+          while (!stopped.get() && (index = nextFile.getAndIncrement()) < files.size()) {
+            final RawZipExtractor.Entry entry = files.get(index);
+            if (getSupervisor().isCancelled()) {
+              if (stopped.compareAndSet(false, true)) {
+                synchronized (pendingOutcome) {
+                  pendingOutcome.add(entry.getName() + " cancelled");
+                }
+              }
+              return null;
+            }
+            try {
+              extractor.extract(entry, new File(appFolder, entry.getName()), inBuffer, outBuffer,
+                  new RawZipExtractor.ProgressListener() {
+                    @Override
+                    public void bytesExtracted(int count) {
+                      progress.bytesExtracted(entry, count);
+                    }
+                  });
+            } catch (IOException e) {
+              if (stopped.compareAndSet(false, true)) {
+                WebLogger.getLogger(appName).printStackTrace(e);
+                synchronized (pendingOutcome) {
+                  if (getSupervisor().isCancelled()) {
+                    pendingOutcome.add(entry.getName() + " cancelled");
+                  } else {
+                    pendingOutcome.problemExtractingToolZipContent = true;
+                    pendingOutcome.add(entry.getName() + " " +
+                        ((e.getCause() != null) ? e.getCause().getMessage() : e.getMessage()));
+                  }
+                }
+              }
+              return null;
+            }
+            progress.entryCompleted(entry, 0L);
+            WebLogger.getLogger(appName).i(TAG, "Extracted ZipEntry: " + entry.getName());
+          }
+          return null;
+        }
+      });
+    }
+    boolean completed = runConcurrently(tasks);
 
-    doActionOnRawZip(resources, resourceId, result, worker);
+    if (completed && !stopped.get()) {
+      getSupervisor().publishProgress(appContext
+          .getString(R.string.expansion_unzipping_complete, progress.entriesCompleted), null);
+    }
   }
 
-  private void updateTableDirs(InitializationOutcome pendingOutcome)
+  /**
+   * @return false if the sweep was cancelled or interrupted before every table was checked
+   */
+  private boolean updateTableDirs(final InitializationOutcome pendingOutcome)
       throws ServicesAvailabilityException {
     // /////////////////////////////////////////
     // /////////////////////////////////////////
@@ -299,11 +407,9 @@ public class InitializationUtil {
     // that
     // changed it will be triggering a reload of it through other means.
 
-    CsvUtil util = new CsvUtil(getSupervisor(), appName);
-
     ODKFileUtils.assertDirectoryStructure(appName);
     File tablesDir = new File(ODKFileUtils.getTablesFolder(appName));
-    File[] tableIdDirs = tablesDir.listFiles(new FileFilter() {
+    final File[] tableIdDirs = tablesDir.listFiles(new FileFilter() {
 
       @Override
       public boolean accept(File pathname) {
@@ -311,33 +417,50 @@ public class InitializationUtil {
       }
     });
 
-    List<String> tableIdsWithDefinitions = new ArrayList<String>();
+    final List<String> tableIdsWithDefinitions = Collections
+        .synchronizedList(new ArrayList<String>());
+    List<Callable<Void>> tasks = new ArrayList<>();
     for (int i = 0; i < tableIdDirs.length; ++i) {
       File tableIdDir = tableIdDirs[i];
-      String tableId = tableIdDir.getName();
+      final String tableId = tableIdDir.getName();
+      final int tableIndex = i;
 
       File definitionCsv = new File(ODKFileUtils.getTableDefinitionCsvFile(appName, tableId));
       File propertiesCsv = new File(ODKFileUtils.getTablePropertiesCsvFile(appName, tableId));
       if (definitionCsv.exists() && definitionCsv.isFile() && propertiesCsv.exists()
           && propertiesCsv.isFile()) {
 
-        String formattedString = appContext
-            .getString(R.string.scanning_for_table_definitions, tableId, (i + 1),
-                tableIdDirs.length);
-        String detail = appContext.getString(R.string.processing_file);
-        displayTablesProgress = formattedString;
-        tableIdInProgress = tableId;
-        getSupervisor().publishProgress(formattedString, detail);
-
-        try {
-          util.updateTablePropertiesFromCsv(tableId);
-          tableIdsWithDefinitions.add(tableId);
-        } catch (IOException e) {
-          pendingOutcome.add(appContext.getString(R.string.defining_tableid_error, tableId));
-          WebLogger.getLogger(appName).e(TAG, "Unexpected error during update from csv");
-        }
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            if (getSupervisor().isCancelled()) {
+              return null;
+            }
+            String formattedString = appContext
+                .getString(R.string.scanning_for_table_definitions, tableId, (tableIndex + 1),
+                    tableIdDirs.length);
+            String detail = appContext.getString(R.string.processing_file);
+            getSupervisor().publishProgress(formattedString, detail);
+
+            CsvUtil util = new CsvUtil(getSupervisor(), appName);
+            try {
+              util.updateTablePropertiesFromCsv(tableId);
+              tableIdsWithDefinitions.add(tableId);
+            } catch (IOException e) {
+              synchronized (pendingOutcome) {
+                pendingOutcome.add(appContext.getString(R.string.defining_tableid_error, tableId));
+              }
+              WebLogger.getLogger(appName).e(TAG, "Unexpected error during update from csv");
+            }
+            return null;
+          }
+        });
       }
     }
+    if (!runConcurrently(tasks)) {
+      // do not delete tables whose definitions were never processed
+      return false;
+    }
 
     DbHandle db = null;
     try {
@@ -355,9 +478,13 @@ public class InitializationUtil {
         getSupervisor().getDatabase().closeDatabase(appName, db);
       }
     }
+    return true;
   }
 
-  private void initTables(final InitializationOutcome pendingOutcome)
+  /**
+   * @return false if the imports were cancelled or interrupted before they all finished
+   */
+  private boolean initTables(final InitializationOutcome pendingOutcome)
       throws ServicesAvailabilityException {
 
     final String EMPTY_STRING = "";
@@ -377,15 +504,17 @@ public class InitializationUtil {
     File completedFile = new File(ODKFileUtils.getTablesInitializationCompleteMarkerFile(appName));
     if (!init.exists()) {
       // no initialization file -- we are done!
-      return;
+      return true;
     }
     // Check if we've already processed this file
     if (completedFile.exists()) {
       String initMd5 = ODKFileUtils.getMd5Hash(appName, init);
       String completedFileMd5 = ODKFileUtils.getMd5Hash(appName, completedFile);
+      // so the next start need not read these again
+      Md5DigestCache.getInstance(appName).save();
       if (initMd5.equals(completedFileMd5)) {
         // we are done!
-        return;
+        return true;
       }
     }
 
@@ -396,19 +525,7 @@ public class InitializationUtil {
       WebLogger.getLogger(appName).printStackTrace(ex);
       pendingOutcome.add(appContext.getString(R.string.poorly_formatted_init_file));
       pendingOutcome.problemImportingAssetCsvContent = true;
-      return;
-    }
-
-    // assume if we load it, we have processed it.
-
-    // We shouldn't really do this, but it avoids an infinite
-    // recycle if there is an error during the processing of the
-    // file.
-    try {
-      ODKFileUtils.copyFile(init, completedFile);
-    } catch (IOException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-      // ignore this.
+      return true;
     }
 
     // prop was loaded
@@ -419,12 +536,15 @@ public class InitializationUtil {
       if (table_keys != null) {
         // remove spaces and split at commas to get key names
         String[] keys = table_keys.replace(SPACE, EMPTY_STRING).split(COMMA);
-        int fileCount = keys.length;
+        final int fileCount = keys.length;
         int curFileCount = 0;
-        String detail = appContext.getString(R.string.processing_file);
+        boolean poorlyFormatted = false;
+
+        // imports of the same tableId must stay in tables.init order; different
+        // tableIds are independent and are imported concurrently
+        Map<String, List<TableImport>> importsByTableId = new LinkedHashMap<>();
 
         File file;
-        CsvUtil cu = new CsvUtil(getSupervisor(), appName);
         for (String key : keys) {
           curFileCount++;
           String srcFilename = prop.getProperty(key + KEY_SUFFIX_CSV_FILENAME);
@@ -440,11 +560,6 @@ public class InitializationUtil {
             continue;
           }
 
-          // update dialog message with current filename
-          String formattedString = appContext
-              .getString(R.string.importing_file_without_detail, curFileCount, fileCount, filename);
-          displayTablesProgress = formattedString;
-          getSupervisor().publishProgress(formattedString, detail);
           ImportRequest request = null;
 
           // If the import file is in the config/assets/csv directory
@@ -477,54 +592,175 @@ public class InitializationUtil {
               String fileQualifier = terms[1];
               request = new ImportRequest(tableId, fileQualifier);
             }
+          }
 
-            if (request != null) {
-              tableIdInProgress = request.getTableId();
-              boolean success = cu.importSeparable(new ImportListener() {
-                @Override
-                public void updateProgressDetail(int row, int total) {
-                  getSupervisor().publishProgress(displayTablesProgress,
-                      appContext.getString(R.string.import_in_progress, row, total));
-                }
+          if (request == null) {
+            // import the files listed before this one, then give up
+            poorlyFormatted = true;
+            break;
+          }
 
-                @Override
-                public void importComplete(boolean outcome) {
-                  if (outcome) {
-                    pendingOutcome
-                        .add(appContext.getString(R.string.import_csv_success, tableIdInProgress));
-                  } else {
-                    pendingOutcome
-                        .add(appContext.getString(R.string.import_csv_failure, tableIdInProgress));
-                  }
-                  pendingOutcome.problemImportingAssetCsvContent =
-                      pendingOutcome.problemImportingAssetCsvContent || !outcome;
+          List<TableImport> imports = importsByTableId.get(request.getTableId());
+          if (imports == null) {
+            imports = new ArrayList<>();
+            importsByTableId.put(request.getTableId(), imports);
+          }
+          imports.add(new TableImport(request, curFileCount, filename));
+        }
+
+        final ImportProgress progress = new ImportProgress(fileCount);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final List<TableImport> imports : importsByTableId.values()) {
+          tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              for (TableImport tableImport : imports) {
+                if (getSupervisor().isCancelled()) {
+                  return null;
                 }
-              }, request.getTableId(), request.getFileQualifier(), true);
-              //importStatus.put(key, success);
-              if (success) {
-                detail = appContext.getString(R.string.import_success);
-                getSupervisor().publishProgress(appContext
-                    .getString(R.string.importing_file_without_detail, curFileCount, fileCount,
-                        filename), detail);
+                importTable(tableImport, fileCount, progress, pendingOutcome);
               }
+              return null;
             }
-          }
+          });
+        }
+        if (!runConcurrently(tasks)) {
+          // leave the marker alone so the skipped imports are run next time
+          return false;
+        }
 
-          if (request == null) {
-            pendingOutcome.add(appContext.getString(R.string.poorly_formatted_init_file));
-            pendingOutcome.problemImportingAssetCsvContent = true;
-            return;
-          }
+        if (poorlyFormatted) {
+          pendingOutcome.add(appContext.getString(R.string.poorly_formatted_init_file));
+          pendingOutcome.problemImportingAssetCsvContent = true;
         }
       } else {
         pendingOutcome.add(appContext.getString(R.string.poorly_formatted_init_file));
         pendingOutcome.problemImportingAssetCsvContent = true;
       }
     }
+
+    // every import has finished, so assume we have processed it.
+
+    // We shouldn't really do this, but it avoids an infinite
+    // recycle if there is an error during the processing of the
+    // file.
+    try {
+      ODKFileUtils.copyFile(init, completedFile);
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      // ignore this.
+    }
+    return true;
   }
   //private Map<String, Boolean> importStatus = new TreeMap<>();
 
-  private void updateFormDirs(InitializationOutcome pendingOutcome)
+  /**
+   * Import one csv file listed in tables.init. Runs on a worker thread. The file's
+   * rows are removed from the shared progress whether or not the import succeeds.
+   *
+   * @param tableImport    the file to import
+   * @param fileCount      the number of files listed in tables.init
+   * @param progress       the progress shared by all of the concurrent imports
+   * @param pendingOutcome the outcome to add results to
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  void importTable(final TableImport tableImport, final int fileCount,
+      final ImportProgress progress, final InitializationOutcome pendingOutcome)
+      throws ServicesAvailabilityException {
+    final String tableId = tableImport.request.getTableId();
+    final String displayTablesProgress = appContext
+        .getString(R.string.importing_file_without_detail, tableImport.fileIndex, fileCount,
+            tableImport.filename);
+    getSupervisor().publishProgress(displayTablesProgress,
+        appContext.getString(R.string.processing_file));
+
+    // each import opens its own database handle
+    CsvUtil cu = new CsvUtil(getSupervisor(), appName);
+    boolean success;
+    try {
+      success = cu.importSeparable(new ImportListener() {
+        @Override
+        public void updateProgressDetail(int row, int total) {
+          progress.update(tableId, row, total, displayTablesProgress);
+        }
+
+        @Override
+        public void importComplete(boolean outcome) {
+          synchronized (pendingOutcome) {
+            if (outcome) {
+              pendingOutcome.add(appContext.getString(R.string.import_csv_success, tableId));
+            } else {
+              pendingOutcome.add(appContext.getString(R.string.import_csv_failure, tableId));
+            }
+            pendingOutcome.problemImportingAssetCsvContent =
+                pendingOutcome.problemImportingAssetCsvContent || !outcome;
+          }
+        }
+      }, tableId, tableImport.request.getFileQualifier(), true);
+    } finally {
+      progress.complete(tableId);
+    }
+    //importStatus.put(key, success);
+    if (success) {
+      getSupervisor().publishProgress(displayTablesProgress,
+          appContext.getString(R.string.import_success));
+    }
+  }
+
+  /**
+   * A csv file from tables.init and its position in that file
+   */
+  static final class TableImport {
+    final ImportRequest request;
+    final int fileIndex;
+    final String filename;
+
+    TableImport(ImportRequest request, int fileIndex, String filename) {
+      this.request = request;
+      this.fileIndex = fileIndex;
+      this.filename = filename;
+    }
+  }
+
+  /**
+   * Sums the row progress of the imports that are running concurrently so that a
+   * single "row x of about y" line can be published for all of them.
+   */
+  final class ImportProgress {
+    private final int fileCount;
+    private final Map<String, int[]> rowsByTableId = new HashMap<>();
+    private int filesCompleted = 0;
+
+    ImportProgress(int fileCount) {
+      this.fileCount = fileCount;
+    }
+
+    synchronized void update(String tableId, int row, int total, String displayTablesProgress) {
+      rowsByTableId.put(tableId, new int[] { row, total });
+      int rows = 0;
+      int totals = 0;
+      for (int[] entry : rowsByTableId.values()) {
+        rows += entry[0];
+        totals += entry[1];
+      }
+      String title = rowsByTableId.size() == 1 ?
+          displayTablesProgress :
+          appContext.getString(R.string.importing_file_without_detail, filesCompleted + 1,
+              fileCount, TextUtils.join(", ", rowsByTableId.keySet()));
+      getSupervisor()
+          .publishProgress(title, appContext.getString(R.string.import_in_progress, rows, totals));
+    }
+
+    synchronized void complete(String tableId) {
+      rowsByTableId.remove(tableId);
+      ++filesCompleted;
+    }
+  }
+
+  /**
+   * @return false if the sweep was cancelled or interrupted before every table was scanned
+   */
+  private boolean updateFormDirs(final InitializationOutcome pendingOutcome)
       throws ServicesAvailabilityException {
 
     // /////////////////////////////////////////
@@ -535,62 +771,215 @@ public class InitializationUtil {
     String completionString = appContext.getString(R.string.searching_for_form_defs);
     getSupervisor().publishProgress(completionString, null);
 
+    final List<String> tableIds;
     DbHandle dbHandle = null;
     try {
       dbHandle = getSupervisor().getDatabase().openDatabase(appName);
-      List<String> tableIds = getSupervisor().getDatabase().getAllTableIds(appName, dbHandle);
+      tableIds = getSupervisor().getDatabase().getAllTableIds(appName, dbHandle);
+    } finally {
+      if (dbHandle != null) {
+        getSupervisor().getDatabase().closeDatabase(appName, dbHandle);
+      }
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for ( int i = 0 ; i < tableIds.size() ; ++i ) {
+      final String tableId = tableIds.get(i);
+      final int tableIndex = i;
 
-      for ( int i = 0 ; i < tableIds.size() ; ++i ) {
-        String tableId = tableIds.get(i);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          if (getSupervisor().isCancelled()) {
+            return null;
+          }
+          // specifically target this tableId...
+          WebLogger.getLogger(appName).i(TAG, "updateFormInfo: tableid: " + tableId);
+
+          String examString = appContext
+              .getString(R.string.updating_table_form_information, tableId, tableIndex + 1,
+                  tableIds.size());
+          getSupervisor().publishProgress(examString, null);
+
+          // each worker uses its own database handle
+          boolean outcome;
+          DbHandle db = null;
+          try {
+            db = getSupervisor().getDatabase().openDatabase(appName);
+            outcome = getSupervisor().getDatabase().rescanTableFormDefs(appName, db, tableId);
+          } finally {
+            if (db != null) {
+              getSupervisor().getDatabase().closeDatabase(appName, db);
+            }
+          }
 
-        // specifically target this tableId...
-        WebLogger.getLogger(appName).i(TAG, "updateFormInfo: tableid: " + tableId);
+          synchronized (pendingOutcome) {
+            if ( outcome ) {
+
+              String successMessage = appContext.getString(R.string.table_forms_register_success,
+                  tableId);
+              pendingOutcome.add(successMessage);
+            } else {
+              String failureMessage = appContext.getString(R.string.table_forms_register_failure,
+                  tableId);
+              pendingOutcome.add(failureMessage);
+              pendingOutcome.problemDefiningForms = true;
+            }
+          }
+          return null;
+        }
+      });
+    }
+    return runConcurrently(tasks);
+  }
 
-        String examString = appContext
-            .getString(R.string.updating_table_form_information, tableId, i + 1, tableIds.size());
-        getSupervisor().publishProgress(examString, null);
+  /**
+   * Run the tasks on a worker pool of at most maxParallelTasks threads and wait for
+   * them to finish. If the supervisor is cancelled, tasks that have not started are
+   * dropped and running tasks are interrupted. Tasks should also check isCancelled()
+   * themselves before doing any work.
+   * <p>
+   * A task that fails does not stop the others. Every failure is logged, and the first
+   * one, in the order of the tasks, is rethrown once all of the tasks are done. Tasks
+   * that end with an InterruptedException after a cancellation are not failures.
+   * <p>
+   * If the calling thread is interrupted, the tasks are stopped as for a cancellation
+   * and the thread's interrupt flag is set again.
+   *
+   * @param tasks the independent tasks to run
+   * @return true if every task ran to completion; false if the supervisor was cancelled
+   * or the calling thread was interrupted, in which case some work may have been skipped
+   * @throws ServicesAvailabilityException if any task could not reach the database
+   */
+  boolean runConcurrently(List<Callable<Void>> tasks)
+      throws ServicesAvailabilityException {
+    if (tasks.isEmpty()) {
+      return !getSupervisor().isCancelled();
+    }
 
+    final AtomicInteger threadCount = new AtomicInteger(0);
+    ExecutorService executor = Executors
+        .newFixedThreadPool(Math.min(maxParallelTasks, tasks.size()), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, WORKER_THREAD_NAME + threadCount.incrementAndGet());
+          }
+        });
+    List<Future<Void>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (Callable<Void> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      executor.shutdown();
+      boolean cancelled = false;
+      while (!executor.awaitTermination(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (getSupervisor().isCancelled()) {
+          cancelled = true;
+          cancelPending(executor);
+          break;
+        }
+      }
 
-        boolean outcome = getSupervisor().getDatabase().rescanTableFormDefs(appName, dbHandle,
-            tableId);
-        if ( outcome ) {
+      Throwable firstFailure = null;
+      int failures = 0;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (CancellationException ignored) {
+          // never started because we were cancelled
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cancelled && cause instanceof InterruptedException) {
+            // stopped by cancelPending
+            continue;
+          }
+          ++failures;
+          WebLogger.getLogger(appName).e(TAG, "runConcurrently: task failed: " + cause);
+          WebLogger.getLogger(appName).printStackTrace(cause);
+          if (firstFailure == null) {
+            firstFailure = cause;
+          }
+        }
+      }
 
-          String successMessage = appContext.getString(R.string.table_forms_register_success,
-              tableId);
-          pendingOutcome.add(successMessage);
-        } else {
-          String failureMessage = appContext.getString(R.string.table_forms_register_failure,
-              tableId);
-          pendingOutcome.add(failureMessage);
-          pendingOutcome.problemDefiningForms = true;
+      if (firstFailure != null) {
+        WebLogger.getLogger(appName)
+            .e(TAG, "runConcurrently: " + failures + " of " + tasks.size() + " tasks failed");
+        if (firstFailure instanceof ServicesAvailabilityException) {
+          throw (ServicesAvailabilityException) firstFailure;
+        } else if (firstFailure instanceof RuntimeException) {
+          throw (RuntimeException) firstFailure;
+        } else if (firstFailure instanceof Error) {
+          throw (Error) firstFailure;
         }
+        throw new IllegalStateException(firstFailure);
       }
+      // tasks return early, without failing, once they see a cancellation
+      return !cancelled && !getSupervisor().isCancelled();
+    } catch (InterruptedException e) {
+      cancelPending(executor);
+      Thread.currentThread().interrupt();
+      return false;
     } finally {
-      if (dbHandle != null) {
-        getSupervisor().getDatabase().closeDatabase(appName, dbHandle);
-      }
+      executor.shutdownNow();
     }
   }
 
-  private interface ZipAction {
-    void doWorker(ZipEntry entry, ZipInputStream zipInputStream, int indexIntoZip, long size)
-        throws IOException;
-
-    void done(int totalCount);
+  /**
+   * Interrupt the running tasks and cancel the queued ones so waiting on them returns
+   */
+  private static void cancelPending(ExecutorService executor) {
+    for (Runnable neverStarted : executor.shutdownNow()) {
+      if (neverStarted instanceof Future) {
+        ((Future<?>) neverStarted).cancel(false);
+      }
+    }
   }
 
-  private static class ZipEntryCounter implements ZipAction {
-    int totalFiles = -1;
+  /**
+   * Progress of a zip extraction, in bytes, shared by the extraction workers
+   */
+  private final class ZipProgress {
+    /**
+     * Publish at most once per this many bytes
+     */
+    private static final long PUBLISH_INTERVAL_BYTES = 64L * 1024L;
+
+    final int totalEntries;
+    final long totalBytes;
+    int entriesCompleted = 0;
+    private long bytesCompleted = 0L;
+    private long lastPublishedBytes = 0L;
+
+    ZipProgress(int totalEntries, long totalBytes) {
+      this.totalEntries = totalEntries;
+      this.totalBytes = totalBytes;
+    }
+
+    synchronized void bytesExtracted(RawZipExtractor.Entry entry, int count) {
+      bytesCompleted += count;
+      if (bytesCompleted - lastPublishedBytes >= PUBLISH_INTERVAL_BYTES) {
+        publish(entry);
+      }
+    }
 
-    @Override
-    public void doWorker(ZipEntry entry, ZipInputStream zipInputStream, int indexIntoZip,
-        long size) {
-      // no-op
+    /**
+     * @param skippedBytes bytes of an entry that did not need to be extracted
+     */
+    synchronized void entryCompleted(RawZipExtractor.Entry entry, long skippedBytes) {
+      ++entriesCompleted;
+      bytesCompleted += skippedBytes;
+      if (!entry.isDirectory()) {
+        publish(entry);
+      }
     }
 
-    @Override
-    public void done(int totalCount) {
-      totalFiles = totalCount;
+    private void publish(RawZipExtractor.Entry entry) {
+      lastPublishedBytes = bytesCompleted;
+      getSupervisor().publishProgress(appContext
+              .getString(R.string.expansion_unzipping_without_detail, entry.getName(),
+                  entriesCompleted, totalEntries), appContext
+              .getString(R.string.expansion_unzipping_bytes_detail, bytesCompleted, totalBytes));
     }
   }
 }
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Extracts the entries of a zip archive held in a region of a file, e.g. an uncompressed
+ * raw resource inside the apk.
+ * <p>
+ * The central directory is read once to learn the names, sizes and offsets of every
+ * entry. Each entry can then be extracted independently with positional reads, so
+ * several threads may extract different entries from the same extractor concurrently.
+ * Each thread must supply its own buffers.
+ * <p>
+ * ZIP64, encrypted and multi-disk archives are not supported.
+ */
+public final class RawZipExtractor {
+
+  /**
+   * Suggested size of the buffers passed to {@link #extract}
+   */
+  public static final int BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * Appended to the destination's name while an entry is being written
+   */
+  static final String PARTIAL_SUFFIX = ".partial";
+
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+  private static final int EOCD_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int LOCAL_HEADER_SIZE = 30;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private static final int FLAG_ENCRYPTED = 0x0001;
+
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  // as with java.util.zip on Android, names are always decoded as UTF-8
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Receives the number of uncompressed bytes written as an entry is extracted
+   */
+  public interface ProgressListener {
+    void bytesExtracted(int count);
+  }
+
+  /**
+   * An entry as described by the central directory
+   */
+  public static final class Entry {
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    Entry(String name, int method, long crc, long compressedSize, long size,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  private final FileChannel channel;
+  private final long archiveOffset;
+  private final long archiveLength;
+  private final List<Entry> entries;
+  private final long totalSize;
+
+  /**
+   * Read the central directory of the archive.
+   *
+   * @param channel       the file holding the archive. Only positional reads are used;
+   *                      the caller retains ownership and closes it.
+   * @param archiveOffset the position of the archive within the file
+   * @param archiveLength the length of the archive
+   * @throws IOException if the archive cannot be read or is not supported
+   */
+  public RawZipExtractor(FileChannel channel, long archiveOffset, long archiveLength)
+      throws IOException {
+    this.channel = channel;
+    this.archiveOffset = archiveOffset;
+    this.archiveLength = archiveLength;
+    this.entries = Collections.unmodifiableList(readCentralDirectory());
+
+    long total = 0L;
+    for (Entry entry : entries) {
+      total += entry.size;
+    }
+    this.totalSize = total;
+  }
+
+  /**
+   * @return the entries, in central directory order
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the sum of the uncompressed sizes of every entry
+   */
+  public long getTotalSize() {
+    return totalSize;
+  }
+
+  /**
+   * Extract a file entry. Directory entries are created. Safe to call concurrently
+   * for different entries as long as each caller supplies its own buffers.
+   * <p>
+   * The data is written to a file beside the destination that is renamed over it once
+   * the entry is complete, so a failed or interrupted extraction leaves any existing
+   * destination untouched rather than truncated.
+   *
+   * @param entry       an entry of this archive
+   * @param destination the file to write
+   * @param inBuffer    scratch space for compressed data
+   * @param outBuffer   scratch space for uncompressed data
+   * @param listener    notified as bytes are written; may be null
+   * @throws IOException if the entry is corrupt or cannot be written
+   */
+  public void extract(Entry entry, File destination, byte[] inBuffer, byte[] outBuffer,
+      ProgressListener listener) throws IOException {
+    if (entry.isDirectory()) {
+      if (!destination.exists() && !destination.mkdirs()) {
+        throw new IOException("Unable to make required directories");
+      }
+      return;
+    }
+
+    File parent = destination.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+      throw new IOException("Unable to make required directories");
+    }
+
+    long dataOffset = findData(entry);
+    File partial = new File(destination.getPath() + PARTIAL_SUFFIX);
+    boolean extracted = false;
+    try {
+      FileOutputStream out = new FileOutputStream(partial, false);
+      try {
+        if (entry.method == METHOD_STORED) {
+          copyStored(entry, dataOffset, out.getChannel(), listener);
+        } else {
+          inflate(entry, dataOffset, out, inBuffer, outBuffer, listener);
+        }
+      } finally {
+        out.close();
+      }
+      if (!partial.renameTo(destination)
+          && !(destination.delete() && partial.renameTo(destination))) {
+        throw new IOException("Unable to replace " + destination.getPath());
+      }
+      extracted = true;
+    } finally {
+      if (!extracted) {
+        partial.delete();
+      }
+    }
+  }
+
+  private void copyStored(Entry entry, long dataOffset, FileChannel out,
+      ProgressListener listener) throws IOException {
+    long position = archiveOffset + dataOffset;
+    long remaining = entry.size;
+    while (remaining > 0) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException(entry.name);
+      }
+      long transferred = channel.transferTo(position, Math.min(remaining, BUFFER_SIZE), out);
+      if (transferred <= 0) {
+        throw new IOException("Truncated entry " + entry.name);
+      }
+      position += transferred;
+      remaining -= transferred;
+      if (listener != null) {
+        listener.bytesExtracted((int) transferred);
+      }
+    }
+  }
+
+  private void inflate(Entry entry, long dataOffset, FileOutputStream out, byte[] inBuffer,
+      byte[] outBuffer, ProgressListener listener) throws IOException {
+    Inflater inflater = new Inflater(true);
+    CRC32 crc = new CRC32();
+    long position = archiveOffset + dataOffset;
+    long compressedRemaining = entry.compressedSize;
+    long written = 0L;
+    boolean dummyByteSupplied = false;
+    try {
+      while (!inflater.finished()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException(entry.name);
+        }
+        if (inflater.needsInput()) {
+          if (compressedRemaining > 0) {
+            int len = (int) Math.min(compressedRemaining, inBuffer.length);
+            readFully(position, inBuffer, len);
+            position += len;
+            compressedRemaining -= len;
+            inflater.setInput(inBuffer, 0, len);
+          } else if (!dummyByteSupplied) {
+            // nowrap inflaters may need one byte past the end of the deflated data
+            dummyByteSupplied = true;
+            inflater.setInput(new byte[1], 0, 1);
+          } else {
+            throw new IOException("Truncated entry " + entry.name);
+          }
+        }
+        int count = inflater.inflate(outBuffer);
+        if (count > 0) {
+          out.write(outBuffer, 0, count);
+          crc.update(outBuffer, 0, count);
+          written += count;
+          if (listener != null) {
+            listener.bytesExtracted(count);
+          }
+        } else if (inflater.needsDictionary()) {
+          throw new IOException("Unsupported compression of " + entry.name);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt entry " + entry.name, e);
+    } finally {
+      inflater.end();
+    }
+
+    if (written != entry.size || crc.getValue() != entry.crc) {
+      throw new IOException("Corrupt entry " + entry.name);
+    }
+  }
+
+  /**
+   * @return the offset of the entry's data; the local header repeats the name and
+   * may have a different extra field than the central directory
+   */
+  private long findData(Entry entry) throws IOException {
+    ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException("Bad local header for " + entry.name);
+    }
+    int nameLength = header.getShort(26) & 0xffff;
+    int extraLength = header.getShort(28) & 0xffff;
+    long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    if (dataOffset + entry.compressedSize > archiveLength) {
+      throw new IOException("Truncated entry " + entry.name);
+    }
+    return dataOffset;
+  }
+
+  private List<Entry> readCentralDirectory() throws IOException {
+    // the end of central directory record is followed by a comment of up to 64k
+    int tailLength = (int) Math.min(archiveLength, EOCD_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = read(archiveLength - tailLength, tailLength);
+    int eocd = -1;
+    for (int i = tailLength - EOCD_SIZE; i >= 0; --i) {
+      if (tail.getInt(i) == EOCD_SIGNATURE) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd == -1) {
+      throw new IOException("Not a zip archive");
+    }
+
+    int diskNumber = tail.getShort(eocd + 4) & 0xffff;
+    int centralDirectoryDisk = tail.getShort(eocd + 6) & 0xffff;
+    int entryCount = tail.getShort(eocd + 10) & 0xffff;
+    long centralDirectorySize = tail.getInt(eocd + 12) & ZIP64_MARKER;
+    long centralDirectoryOffset = tail.getInt(eocd + 16) & ZIP64_MARKER;
+    if (diskNumber != 0 || centralDirectoryDisk != 0) {
+      throw new IOException("Multi-disk zip archives are not supported");
+    }
+    if (entryCount == 0xffff || centralDirectorySize == ZIP64_MARKER
+        || centralDirectoryOffset == ZIP64_MARKER) {
+      throw new IOException("ZIP64 archives are not supported");
+    }
+    if (centralDirectoryOffset + centralDirectorySize > archiveLength) {
+      throw new IOException("Truncated zip archive");
+    }
+
+    ByteBuffer directory = read(centralDirectoryOffset, (int) centralDirectorySize);
+    List<Entry> result = new ArrayList<>(entryCount);
+    int pos = 0;
+    for (int i = 0; i < entryCount; ++i) {
+      if (pos + CENTRAL_HEADER_SIZE > centralDirectorySize
+          || directory.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad central directory");
+      }
+      int flags = directory.getShort(pos + 8) & 0xffff;
+      int method = directory.getShort(pos + 10) & 0xffff;
+      long crc = directory.getInt(pos + 16) & ZIP64_MARKER;
+      long compressedSize = directory.getInt(pos + 20) & ZIP64_MARKER;
+      long size = directory.getInt(pos + 24) & ZIP64_MARKER;
+      int nameLength = directory.getShort(pos + 28) & 0xffff;
+      int extraLength = directory.getShort(pos + 30) & 0xffff;
+      int commentLength = directory.getShort(pos + 32) & 0xffff;
+      long localHeaderOffset = directory.getInt(pos + 42) & ZIP64_MARKER;
+
+      if (pos + CENTRAL_HEADER_SIZE + nameLength > centralDirectorySize) {
+        throw new IOException("Bad central directory");
+      }
+      byte[] nameBytes = new byte[nameLength];
+      directory.position(pos + CENTRAL_HEADER_SIZE);
+      directory.get(nameBytes);
+      String name = new String(nameBytes, UTF8);
+
+      if ((flags & FLAG_ENCRYPTED) != 0) {
+        throw new IOException("Encrypted entry " + name + " is not supported");
+      }
+      if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+        throw new IOException("Unsupported compression of " + name);
+      }
+      if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER
+          || localHeaderOffset == ZIP64_MARKER) {
+        throw new IOException("ZIP64 archives are not supported");
+      }
+      if (method == METHOD_STORED && compressedSize != size) {
+        throw new IOException("Bad central directory entry for " + name);
+      }
+
+      result.add(new Entry(name, method, crc, compressedSize, size, localHeaderOffset));
+      pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return result;
+  }
+
+  private ByteBuffer read(long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    readFully(archiveOffset + offset, bytes, length);
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void readFully(long position, byte[] bytes, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, position + buffer.position());
+      if (count < 0) {
+        throw new IOException("Truncated zip archive");
+      }
+    }
+  }
+}
@@ -18,7 +18,6 @@ package org.opendatakit.data;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.database.data.TypedRow;
-import org.opendatakit.logging.WebLogger;
 
 import java.util.TreeMap;
 import java.util.UUID;
@@ -107,6 +106,12 @@ public class ColorRule {
   private String mValue;
   private int mForeground;
   private int mBackground;
+  /**
+   * This rule compiled for the data type it was last checked against. Cleared when
+   * the rule changes.
+   */
+  @JsonIgnore
+  private transient CompiledColorRule mCompiled = null;
 
   // ONLY FOR SERIALIZATION
   @SuppressWarnings("unused")
@@ -200,6 +205,7 @@ public class ColorRule {
 
   public void setVal(String newVal) {
     this.mValue = newVal;
+    this.mCompiled = null;
   }
 
   /**
@@ -280,6 +286,7 @@ public class ColorRule {
 
   public void setOperator(RuleType newOperator) {
     this.mOperator = newOperator;
+    this.mCompiled = null;
   }
 
   /**
@@ -289,46 +296,34 @@ public class ColorRule {
    */
   public void setColumnElementKey(String elementKey) {
     this.mElementKey = elementKey;
+    this.mCompiled = null;
   }
 
-  public boolean checkMatch(ElementDataType type, TypedRow row) {
-    try {
-      // Get the value we're testing against.
-      String testValue = row.getRawStringByKey(mElementKey);
-      
-      // nulls are never matched (mValue is never null)
-      if (testValue == null) {
-        return false;
-      }
-      
-      int compVal;
-      if ((type == ElementDataType.number || type == ElementDataType.integer)) {
-        double doubleValue = Double.parseDouble(testValue);
-        double doubleRule = Double.parseDouble(mValue);
-        compVal = (Double.valueOf(doubleValue)).compareTo(Double.valueOf(doubleRule));
-      } else {
-        compVal = testValue.compareTo(mValue);
-      }
-      switch (mOperator) {
-      case LESS_THAN:
-        return (compVal < 0);
-      case LESS_THAN_OR_EQUAL:
-        return (compVal <= 0);
-      case EQUAL:
-        return (compVal == 0);
-      case GREATER_THAN_OR_EQUAL:
-        return (compVal >= 0);
-      case GREATER_THAN:
-        return (compVal > 0);
-      default:
-        throw new IllegalArgumentException("unrecognized op passed to checkMatch: "
-            + mOperator);
-      }
-    } catch (NumberFormatException e) {
-      // not printing stack trace here because this could be called 800 times for a list of health facilities, and that much logging really slows down the ui thread
-      //WebLogger.getLogger(appName).printStackTrace(e);
-      WebLogger.getLogger(appName).w(TAG, "error parsing value as number, ignoring the offending rule");
-      return false;
+  /**
+   * Prepare this rule for checking values of the given data type, parsing its value
+   * once. The result is kept until the rule changes.
+   *
+   * @param type the data type of the column the rule tests
+   * @return the compiled rule
+   */
+  public CompiledColorRule compile(ElementDataType type) {
+    CompiledColorRule compiled = mCompiled;
+    if (compiled == null || compiled.getType() != type) {
+      compiled = new CompiledColorRule(this, type);
+      mCompiled = compiled;
     }
+    return compiled;
+  }
+
+  /**
+   * To check several rules against the same rows, use a {@link ColorRuleEvaluator}.
+   *
+   * @param type the data type of the column the rule tests
+   * @param row  the row to check
+   * @return whether the rule matches the row
+   */
+  public boolean checkMatch(ElementDataType type, TypedRow row) {
+    // Get the value we're testing against; nulls are never matched
+    return compile(type).matches(row.getRawStringByKey(mElementKey));
   }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.TypedRowDescriptor;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates an ordered list of color rules, such as those of a color rule group, against
+ * rows. The rules are compiled once, and each column the rules refer to is read and
+ * parsed once per row no matter how many rules test it.
+ * <p>
+ * Like the compiled rules, this is a snapshot of the rules it was built from.
+ */
+public final class ColorRuleEvaluator {
+
+  private static final byte UNREAD = 0;
+  private static final byte PARSED = 1;
+  private static final byte NO_NUMBER = 2;
+
+  private final CompiledColorRule[] mRules;
+  /**
+   * For each rule, the index of the column it tests into mElementKeys
+   */
+  private final int[] mRuleColumns;
+  private final String[] mElementKeys;
+  private final boolean[] mNumericColumns;
+
+  /**
+   * For rules that all test columns of the same data type, e.g. the rules of one column
+   *
+   * @param rules the rules, in the order they are checked
+   * @param type  the data type of the columns the rules test
+   */
+  public ColorRuleEvaluator(List<ColorRule> rules, ElementDataType type) {
+    this(rules, null, type);
+  }
+
+  /**
+   * For rules over any of the columns of a table, e.g. the row rules of a table
+   *
+   * @param rules      the rules, in the order they are checked
+   * @param descriptor the column types of the table
+   */
+  public ColorRuleEvaluator(List<ColorRule> rules, TypedRowDescriptor descriptor) {
+    this(rules, descriptor, null);
+  }
+
+  private ColorRuleEvaluator(List<ColorRule> rules, TypedRowDescriptor descriptor,
+      ElementDataType type) {
+    int size = rules.size();
+    mRules = new CompiledColorRule[size];
+    mRuleColumns = new int[size];
+
+    Map<String, Integer> columns = new HashMap<>();
+    for (int i = 0; i < size; ++i) {
+      ColorRule rule = rules.get(i);
+      String elementKey = rule.getColumnElementKey();
+      ElementDataType ruleType = type;
+      if (descriptor != null) {
+        int index = descriptor.getColumnIndex(elementKey);
+        ruleType = index < 0 ? ElementDataType.string : descriptor.getDataType(index);
+      }
+      mRules[i] = rule.compile(ruleType);
+
+      Integer column = columns.get(elementKey);
+      if (column == null) {
+        column = columns.size();
+        columns.put(elementKey, column);
+      }
+      mRuleColumns[i] = column;
+    }
+
+    mElementKeys = new String[columns.size()];
+    mNumericColumns = new boolean[columns.size()];
+    for (int i = 0; i < size; ++i) {
+      mElementKeys[mRuleColumns[i]] = mRules[i].getRule().getColumnElementKey();
+      mNumericColumns[mRuleColumns[i]] |= mRules[i].isNumeric();
+    }
+  }
+
+  /**
+   * @param row the row to check
+   * @return the first rule that matches the row, or null if none does
+   */
+  public ColorRule getMatchingRule(TypedRow row) {
+    int index = getMatchingRuleIndex(row);
+    return index < 0 ? null : mRules[index].getRule();
+  }
+
+  /**
+   * @param row the row to check
+   * @return the index of the first rule that matches the row, or -1 if none does
+   */
+  public int getMatchingRuleIndex(TypedRow row) {
+    int columnCount = mElementKeys.length;
+    String[] rawValues = new String[columnCount];
+    double[] numericValues = new double[columnCount];
+    byte[] state = new byte[columnCount];
+
+    for (int i = 0; i < mRules.length; ++i) {
+      int column = mRuleColumns[i];
+      if (state[column] == UNREAD) {
+        rawValues[column] = row.getRawStringByKey(mElementKeys[column]);
+        state[column] = NO_NUMBER;
+        if (rawValues[column] != null && mNumericColumns[column]) {
+          try {
+            numericValues[column] = Double.parseDouble(rawValues[column]);
+            state[column] = PARSED;
+          } catch (NumberFormatException e) {
+            WebLogger.getLogger(null).w(ColorRule.TAG,
+                "error parsing value as number, ignoring the offending rule");
+          }
+        }
+      }
+
+      CompiledColorRule rule = mRules[i];
+      boolean matches;
+      if (rule.isNumeric()) {
+        matches = state[column] == PARSED && rule.matches(numericValues[column]);
+      } else {
+        matches = rule.matches(rawValues[column]);
+      }
+      if (matches) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.logging.WebLogger;
+
+/**
+ * A {@link ColorRule} prepared for comparing against values of one data type. The
+ * rule's value is parsed once here rather than on every comparison.
+ * <p>
+ * This is a snapshot: later changes to the ColorRule are not seen.
+ */
+public final class CompiledColorRule {
+
+  private final ColorRule mRule;
+  private final ElementDataType mType;
+  private final ColorRule.RuleType mOperator;
+  private final String mValue;
+  /**
+   * Whether values are compared as numbers rather than as strings
+   */
+  private final boolean mNumeric;
+  private final double mNumericValue;
+  /**
+   * False if the rule is numeric but its value is not a number; it then never matches
+   */
+  private final boolean mValid;
+
+  /**
+   * @param rule the rule to compile
+   * @param type the data type of the column the rule tests
+   */
+  public CompiledColorRule(ColorRule rule, ElementDataType type) {
+    this.mRule = rule;
+    this.mType = type;
+    this.mOperator = rule.getOperator();
+    this.mValue = rule.getVal();
+    this.mNumeric = isNumeric(type);
+
+    double numericValue = 0;
+    boolean valid = mValue != null;
+    if (mNumeric && valid) {
+      try {
+        numericValue = Double.parseDouble(mValue);
+      } catch (NumberFormatException e) {
+        WebLogger.getLogger(null).w(ColorRule.TAG,
+            "error parsing value as number, ignoring the offending rule " + rule.getRuleId());
+        valid = false;
+      }
+    }
+    this.mNumericValue = numericValue;
+    this.mValid = valid;
+  }
+
+  static boolean isNumeric(ElementDataType type) {
+    return type == ElementDataType.number || type == ElementDataType.integer;
+  }
+
+  /**
+   * @return the rule this was compiled from
+   */
+  public ColorRule getRule() {
+    return mRule;
+  }
+
+  /**
+   * @return the data type this was compiled for
+   */
+  public ElementDataType getType() {
+    return mType;
+  }
+
+  /**
+   * @return whether the rule compares numbers, and so wants {@link #matches(double)}
+   */
+  public boolean isNumeric() {
+    return mNumeric;
+  }
+
+  /**
+   * @param testValue the raw value of the rule's column; null never matches
+   * @return whether the rule matches the value
+   */
+  public boolean matches(String testValue) {
+    if (testValue == null || !mValid) {
+      return false;
+    }
+    if (mNumeric) {
+      double doubleValue;
+      try {
+        doubleValue = Double.parseDouble(testValue);
+      } catch (NumberFormatException e) {
+        // not printing stack trace here because this could be called 800 times for a list of
+        // health facilities, and that much logging really slows down the ui thread
+        WebLogger.getLogger(null)
+            .w(ColorRule.TAG, "error parsing value as number, ignoring the offending rule");
+        return false;
+      }
+      return matches(doubleValue);
+    }
+    return matchesComparison(testValue.compareTo(mValue));
+  }
+
+  /**
+   * For numeric rules, when the value of the column has already been parsed
+   *
+   * @param testValue the value of the rule's column
+   * @return whether the rule matches the value
+   */
+  public boolean matches(double testValue) {
+    if (!mValid) {
+      return false;
+    }
+    return matchesComparison(Double.compare(testValue, mNumericValue));
+  }
+
+  private boolean matchesComparison(int compVal) {
+    switch (mOperator) {
+    case LESS_THAN:
+      return (compVal < 0);
+    case LESS_THAN_OR_EQUAL:
+      return (compVal <= 0);
+    case EQUAL:
+      return (compVal == 0);
+    case GREATER_THAN_OR_EQUAL:
+      return (compVal >= 0);
+    case GREATER_THAN:
+      return (compVal > 0);
+    default:
+      throw new IllegalArgumentException("unrecognized op passed to checkMatch: " + mOperator);
+    }
+  }
+}
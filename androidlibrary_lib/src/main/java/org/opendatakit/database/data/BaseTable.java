@@ -18,10 +18,11 @@ package org.opendatakit.database.data;
 import android.os.Parcel;
 import android.os.Parcelable;
 import org.opendatakit.database.queries.BindArgs;
-import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.queries.KeysetQuery;
 import org.opendatakit.database.queries.ResumableQuery;
 import org.opendatakit.database.utilities.MarshallUtil;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.provider.DataTableColumns;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -201,17 +202,17 @@ public class BaseTable implements Parcelable {
    * @return the start index for the table
    */
   public int getStartIndex() {
-    if (mQuery == null || mQuery.getSqlQueryBounds() == null) {
+    if (mQuery == null) {
       return 0;
     }
 
-    QueryBounds bounds = mQuery.getSqlQueryBounds();
-
-    if (bounds.mOffset <= 0) {
+    // a KeysetQuery keeps the offset only to track its position
+    int offset = mQuery.getSqlOffset();
+    if (offset <= 0) {
       return 0;
     }
 
-    return bounds.mOffset;
+    return offset;
   }
 
   /**
@@ -243,6 +244,10 @@ public class BaseTable implements Parcelable {
       return null;
     }
 
+    if (mQuery instanceof KeysetQuery) {
+      seekFrom((KeysetQuery) mQuery, mRows.get(numCurrentRows - 1), true);
+    }
+
     mQuery.setSqlLimit(limit);
     mQuery.setSqlOffset(getEndIndex() + 1);
 
@@ -272,6 +277,18 @@ public class BaseTable implements Parcelable {
       return null;
     }
 
+    if (mQuery instanceof KeysetQuery) {
+      if (mRows.isEmpty()) {
+        return null;
+      }
+      // the seek stops at the beginning by itself, and the position may be stale if
+      // rows were added since, so do not shrink the limit
+      seekFrom((KeysetQuery) mQuery, mRows.get(0), false);
+      mQuery.setSqlLimit(limit);
+      mQuery.setSqlOffset(Math.max(0, startIndex - limit));
+      return mQuery;
+    }
+
     // If we are asked to retrieve more rows than exist when counting back to the beginning,
     // shrink the bounds accordingly
     if (limit > startIndex) {
@@ -285,6 +302,16 @@ public class BaseTable implements Parcelable {
     return mQuery;
   }
 
+  private static void seekFrom(KeysetQuery query, Row row, boolean forward) {
+    String sortKey = row.getRawStringByKey(query.getSortColumn());
+    String rowId = row.getRawStringByKey(DataTableColumns.ID);
+    if (forward) {
+      query.seekAfter(sortKey, rowId);
+    } else {
+      query.seekBefore(sortKey, rowId);
+    }
+  }
+
   public void addRow(Row row) {
     mRows.add(row);
   }
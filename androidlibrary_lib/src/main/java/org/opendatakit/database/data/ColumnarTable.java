@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.database.DatabaseConstants;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only, column-oriented copy of a {@link BaseTable}.
+ * <p>
+ * Each column is held in a primitive array chosen from its {@link ElementDataType}:
+ * integer columns as long[], number columns as double[], boolean columns and nulls as
+ * BitSets, and everything else as dictionary-encoded strings. Values are parsed once,
+ * when the table is built, so numeric aggregation and sorting over large tables do not
+ * box or re-parse every cell the way {@link Row#getDataType(int, Class)} does.
+ * <p>
+ * {@link #getRowAtIndex(int)} and {@link #getTypedRowAtIndex(int)} return the same raw
+ * strings as the source table. Integer and boolean columns are only stored in primitive
+ * form if every value in them converts back to the exact same string. Number columns
+ * are stored as double[] whenever every value parses; the few values that do not
+ * convert back (e.g. "1.50" or "1.0e-05") also have their raw string kept on the side.
+ * Columns with values that do not parse are kept as strings.
+ */
+public final class ColumnarTable {
+
+  /**
+   * The storage chosen for a column
+   */
+  public enum StorageType {
+    LONG, DOUBLE, BOOLEAN, STRING
+  }
+
+  private final OrderedColumns mColumnDefns;
+  private final TypedRowDescriptor mDescriptor;
+  /**
+   * Header-only table that owns the Row views; never holds any rows itself
+   */
+  private final BaseTable mHeader;
+  private final int mNumRows;
+
+  private final StorageType[] mStorage;
+  private final BitSet[] mNulls;
+  private final long[][] mLongs;
+  private final double[][] mDoubles;
+  /**
+   * Per DOUBLE column, the raw strings of the cells that do not round trip through
+   * Double.toString, by row; null if there are none
+   */
+  private final List<Map<Integer, String>> mRawDoubleOverrides;
+  private final BitSet[] mBooleans;
+  private final int[][] mStringCodes;
+  private final String[][] mStringDictionaries;
+
+  /**
+   * Build a columnar copy of the table
+   *
+   * @param table       the row-oriented table to copy
+   * @param columnDefns the column definitions used to type the data columns
+   */
+  public ColumnarTable(BaseTable table, OrderedColumns columnDefns) {
+    if (table == null || columnDefns == null) {
+      throw new IllegalArgumentException("Null arguments are not permitted");
+    }
+    mColumnDefns = columnDefns;
+    mHeader = new BaseTable(table.getPrimaryKey(), table.getElementKeyForIndex(), null, 0);
+    mDescriptor = new TypedRowDescriptor(mHeader.getElementKeyForIndex(), columnDefns);
+    mHeader.setEffectiveAccessCreateRow(table.getEffectiveAccessCreateRow());
+    mNumRows = table.getNumberOfRows();
+
+    int width = table.getWidth();
+    mStorage = new StorageType[width];
+    mNulls = new BitSet[width];
+    mLongs = new long[width][];
+    mDoubles = new double[width][];
+    mRawDoubleOverrides = new ArrayList<>(width);
+    mBooleans = new BitSet[width];
+    mStringCodes = new int[width][];
+    mStringDictionaries = new String[width][];
+
+    List<Row> rows = table.getRows();
+    for (int col = 0; col < width; ++col) {
+      mRawDoubleOverrides.add(null);
+      BitSet nulls = new BitSet(mNumRows);
+      for (int r = 0; r < mNumRows; ++r) {
+        if (rows.get(r).getRawStringByIndex(col) == null) {
+          nulls.set(r);
+        }
+      }
+      mNulls[col] = nulls;
+
+      ElementDataType dataType = mDescriptor.getDataType(col);
+      boolean stored = false;
+      if (dataType == ElementDataType.integer) {
+        stored = storeLongs(rows, col);
+      } else if (dataType == ElementDataType.number) {
+        stored = storeDoubles(rows, col);
+      } else if (dataType == ElementDataType.bool) {
+        stored = storeBooleans(rows, col);
+      }
+      if (!stored) {
+        storeStrings(rows, col);
+      }
+    }
+  }
+
+  private boolean storeLongs(List<Row> rows, int col) {
+    long[] values = new long[mNumRows];
+    for (int r = 0; r < mNumRows; ++r) {
+      String raw = rows.get(r).getRawStringByIndex(col);
+      if (raw == null) {
+        continue;
+      }
+      try {
+        values[r] = Long.parseLong(raw);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      if (!Long.toString(values[r]).equals(raw)) {
+        return false;
+      }
+    }
+    mStorage[col] = StorageType.LONG;
+    mLongs[col] = values;
+    return true;
+  }
+
+  private boolean storeDoubles(List<Row> rows, int col) {
+    double[] values = new double[mNumRows];
+    Map<Integer, String> overrides = null;
+    for (int r = 0; r < mNumRows; ++r) {
+      String raw = rows.get(r).getRawStringByIndex(col);
+      if (raw == null) {
+        continue;
+      }
+      try {
+        values[r] = Double.parseDouble(raw);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      if (!Double.toString(values[r]).equals(raw)) {
+        if (overrides == null) {
+          overrides = new HashMap<>();
+        }
+        overrides.put(r, raw);
+      }
+    }
+    mStorage[col] = StorageType.DOUBLE;
+    mDoubles[col] = values;
+    mRawDoubleOverrides.set(col, overrides);
+    return true;
+  }
+
+  private boolean storeBooleans(List<Row> rows, int col) {
+    BitSet values = new BitSet(mNumRows);
+    for (int r = 0; r < mNumRows; ++r) {
+      String raw = rows.get(r).getRawStringByIndex(col);
+      if (raw == null || DatabaseConstants.INT_FALSE_STRING.equals(raw)) {
+        continue;
+      }
+      if (!DatabaseConstants.INT_TRUE_STRING.equals(raw)) {
+        return false;
+      }
+      values.set(r);
+    }
+    mStorage[col] = StorageType.BOOLEAN;
+    mBooleans[col] = values;
+    return true;
+  }
+
+  private void storeStrings(List<Row> rows, int col) {
+    Map<String, Integer> codes = new HashMap<>();
+    List<String> dictionary = new ArrayList<>();
+    int[] values = new int[mNumRows];
+    for (int r = 0; r < mNumRows; ++r) {
+      String raw = rows.get(r).getRawStringByIndex(col);
+      if (raw == null) {
+        values[r] = -1;
+        continue;
+      }
+      Integer code = codes.get(raw);
+      if (code == null) {
+        code = dictionary.size();
+        codes.put(raw, code);
+        dictionary.add(raw);
+      }
+      values[r] = code;
+    }
+    mStorage[col] = StorageType.STRING;
+    mStringCodes[col] = values;
+    mStringDictionaries[col] = dictionary.toArray(new String[dictionary.size()]);
+  }
+
+  public OrderedColumns getColumnDefinitions() {
+    return mColumnDefns;
+  }
+
+  public int getNumberOfRows() {
+    return mNumRows;
+  }
+
+  public int getWidth() {
+    return mStorage.length;
+  }
+
+  public String getElementKey(int colNum) {
+    return mHeader.getElementKey(colNum);
+  }
+
+  public Integer getColumnIndexOfElementKey(String elementKey) {
+    return mHeader.getColumnIndexOfElementKey(elementKey);
+  }
+
+  public StorageType getStorageType(int colNum) {
+    return mStorage[colNum];
+  }
+
+  public boolean isNull(int rowIndex, int colNum) {
+    return mNulls[colNum].get(rowIndex);
+  }
+
+  /**
+   * @param rowIndex the row
+   * @param colNum   a column with StorageType LONG
+   * @return the value, or 0 if the cell is null
+   */
+  public long getLong(int rowIndex, int colNum) {
+    checkStorage(colNum, StorageType.LONG);
+    return mLongs[colNum][rowIndex];
+  }
+
+  /**
+   * @param rowIndex the row
+   * @param colNum   a column with StorageType LONG or DOUBLE
+   * @return the value, or 0 if the cell is null
+   */
+  public double getDouble(int rowIndex, int colNum) {
+    if (mStorage[colNum] == StorageType.LONG) {
+      return mLongs[colNum][rowIndex];
+    }
+    checkStorage(colNum, StorageType.DOUBLE);
+    return mDoubles[colNum][rowIndex];
+  }
+
+  /**
+   * @param rowIndex the row
+   * @param colNum   a column with StorageType BOOLEAN
+   * @return the value, or false if the cell is null
+   */
+  public boolean getBoolean(int rowIndex, int colNum) {
+    checkStorage(colNum, StorageType.BOOLEAN);
+    return mBooleans[colNum].get(rowIndex);
+  }
+
+  /**
+   * Return the raw string of a cell, as {@link Row#getRawStringByIndex(int)} would
+   *
+   * @param rowIndex the row
+   * @param colNum   any column
+   * @return the raw string, or null if the cell is null
+   */
+  public String getRawString(int rowIndex, int colNum) {
+    if (mNulls[colNum].get(rowIndex)) {
+      return null;
+    }
+    switch (mStorage[colNum]) {
+    case LONG:
+      return Long.toString(mLongs[colNum][rowIndex]);
+    case DOUBLE:
+      Map<Integer, String> overrides = mRawDoubleOverrides.get(colNum);
+      if (overrides != null) {
+        String raw = overrides.get(rowIndex);
+        if (raw != null) {
+          return raw;
+        }
+      }
+      return Double.toString(mDoubles[colNum][rowIndex]);
+    case BOOLEAN:
+      return mBooleans[colNum].get(rowIndex) ?
+          DatabaseConstants.INT_TRUE_STRING :
+          DatabaseConstants.INT_FALSE_STRING;
+    default:
+      return mStringDictionaries[colNum][mStringCodes[colNum][rowIndex]];
+    }
+  }
+
+  /**
+   * Materialize a Row view of the given row. The row's owner table holds no rows.
+   *
+   * @param rowIndex the row
+   * @return the row, or null if out of bounds
+   */
+  public Row getRowAtIndex(int rowIndex) {
+    if (rowIndex < 0 || rowIndex >= mNumRows) {
+      return null;
+    }
+    String[] rowData = new String[mStorage.length];
+    for (int col = 0; col < rowData.length; ++col) {
+      rowData[col] = getRawString(rowIndex, col);
+    }
+    return new Row(rowData, mHeader);
+  }
+
+  /**
+   * @param rowIndex the row
+   * @return a TypedRow view of the given row, or null if out of bounds
+   */
+  public TypedRow getTypedRowAtIndex(int rowIndex) {
+    Row row = getRowAtIndex(rowIndex);
+    return row == null ? null : new TypedRow(row, mColumnDefns, mDescriptor);
+  }
+
+  /**
+   * @param colNum a column with StorageType LONG or DOUBLE
+   * @return the number of non-null values in the column
+   */
+  public int countNonNull(int colNum) {
+    return mNumRows - mNulls[colNum].cardinality();
+  }
+
+  /**
+   * @param colNum a column with StorageType LONG or DOUBLE
+   * @return the sum of the non-null values in the column
+   */
+  public double sum(int colNum) {
+    BitSet nulls = mNulls[colNum];
+    double total = 0;
+    if (mStorage[colNum] == StorageType.LONG) {
+      long[] values = mLongs[colNum];
+      for (int r = 0; r < mNumRows; ++r) {
+        if (!nulls.get(r)) {
+          total += values[r];
+        }
+      }
+    } else {
+      checkStorage(colNum, StorageType.DOUBLE);
+      double[] values = mDoubles[colNum];
+      for (int r = 0; r < mNumRows; ++r) {
+        if (!nulls.get(r)) {
+          total += values[r];
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @param colNum a column with StorageType LONG or DOUBLE
+   * @return the smallest non-null value in the column, or null if there are none
+   */
+  public Double min(int colNum) {
+    return extreme(colNum, true);
+  }
+
+  /**
+   * @param colNum a column with StorageType LONG or DOUBLE
+   * @return the largest non-null value in the column, or null if there are none
+   */
+  public Double max(int colNum) {
+    return extreme(colNum, false);
+  }
+
+  private Double extreme(int colNum, boolean min) {
+    BitSet nulls = mNulls[colNum];
+    boolean found = false;
+    double result = 0;
+    for (int r = nulls.nextClearBit(0); r < mNumRows; r = nulls.nextClearBit(r + 1)) {
+      double value = getDouble(r, colNum);
+      if (!found || (min ? value < result : value > result)) {
+        result = value;
+        found = true;
+      }
+    }
+    return found ? result : null;
+  }
+
+  /**
+   * Return the row indexes ordered by the given column. The sort is stable; nulls sort
+   * first when ascending and last when descending, as they do in SQLite. Strings compare
+   * with {@link String#compareTo(String)}.
+   *
+   * @param colNum    the column to sort by
+   * @param ascending the sort direction
+   * @return the ordered row indexes
+   */
+  public int[] getSortedRowIndexes(int colNum, boolean ascending) {
+    int[] order = new int[mNumRows];
+    for (int r = 0; r < mNumRows; ++r) {
+      order[r] = r;
+    }
+    int[] scratch = new int[mNumRows];
+    mergeSort(order, scratch, 0, mNumRows, colNum, ascending ? 1 : -1);
+    return order;
+  }
+
+  private void mergeSort(int[] order, int[] scratch, int from, int to, int colNum, int sign) {
+    if (to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(order, scratch, from, mid, colNum, sign);
+    mergeSort(order, scratch, mid, to, colNum, sign);
+    if (sign * compareRows(order[mid - 1], order[mid], colNum) <= 0) {
+      return;
+    }
+    System.arraycopy(order, from, scratch, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; ++k) {
+      if (j >= to || (i < mid && sign * compareRows(scratch[i], scratch[j], colNum) <= 0)) {
+        order[k] = scratch[i++];
+      } else {
+        order[k] = scratch[j++];
+      }
+    }
+  }
+
+  private int compareRows(int a, int b, int colNum) {
+    boolean aNull = mNulls[colNum].get(a);
+    boolean bNull = mNulls[colNum].get(b);
+    if (aNull || bNull) {
+      return aNull == bNull ? 0 : (aNull ? -1 : 1);
+    }
+    switch (mStorage[colNum]) {
+    case LONG:
+      return Long.compare(mLongs[colNum][a], mLongs[colNum][b]);
+    case DOUBLE:
+      return Double.compare(mDoubles[colNum][a], mDoubles[colNum][b]);
+    case BOOLEAN:
+      return Boolean.compare(mBooleans[colNum].get(a), mBooleans[colNum].get(b));
+    default:
+      int codeA = mStringCodes[colNum][a];
+      int codeB = mStringCodes[colNum][b];
+      if (codeA == codeB) {
+        return 0;
+      }
+      return mStringDictionaries[colNum][codeA].compareTo(mStringDictionaries[colNum][codeB]);
+    }
+  }
+
+  private void checkStorage(int colNum, StorageType expected) {
+    if (mStorage[colNum] != expected) {
+      throw new IllegalStateException(
+          "Column " + getElementKey(colNum) + " is stored as " + mStorage[colNum] + " not "
+              + expected);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+/**
+ * A forward-only cursor over the rows of a query result. Rows are decoded as the
+ * result arrives from the database service, so only a bounded window of the result
+ * is held in memory at any time. Rows that have been consumed can be collected.
+ * <p>
+ * The cursor must be read to the end or closed.
+ */
+public interface RowCursor {
+
+  /**
+   * Return the table the rows belong to. It carries the column names and access
+   * flags of the result, but not the rows themselves.
+   *
+   * @return the header-only table
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  BaseTable getHeaderTable() throws ServicesAvailabilityException;
+
+  /**
+   * @return true if another row is available
+   * @throws ServicesAvailabilityException if the database is down
+   */
+  boolean hasNext() throws ServicesAvailabilityException;
+
+  /**
+   * @return the next row
+   * @throws ServicesAvailabilityException if the database is down
+   * @throws java.util.NoSuchElementException if there are no more rows
+   */
+  Row next() throws ServicesAvailabilityException;
+
+  /**
+   * Release any portion of the result that has not yet been read.
+   */
+  void close();
+}
@@ -6,33 +6,47 @@ import android.os.Parcelable;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
-import org.opendatakit.aggregate.odktables.rest.ElementType;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.provider.DataTableColumns;
 
 import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * A typed view of a {@link Row}. The column types are held by a shared
+ * {@link TypedRowDescriptor}, so a TypedRow is only a pair of references.
+ */
 public final class TypedRow implements Parcelable {
 
-   private final Row row;
+   private Row row;
 
    private final OrderedColumns columns;
 
-   private String [] colNames;
+   private TypedRowDescriptor descriptor;
 
    private static final ObjectMapper mapper = new ObjectMapper();
 
    public TypedRow(Row rowData, OrderedColumns orderedColumns) {
       this.row = rowData;
       this.columns = orderedColumns;
-      this.colNames = null;
+      this.descriptor = null;
+   }
+
+   /**
+    * @param rowData        the row
+    * @param orderedColumns the column definitions of the row's table
+    * @param descriptor     the column types of the row's table
+    */
+   TypedRow(Row rowData, OrderedColumns orderedColumns, TypedRowDescriptor descriptor) {
+      this.row = rowData;
+      this.columns = orderedColumns;
+      this.descriptor = descriptor;
    }
 
    protected TypedRow(Parcel in) {
       row = in.readParcelable(Row.class.getClassLoader());
       columns = in.readParcelable(OrderedColumns.class.getClassLoader());
-      colNames = in.createStringArray();
+      // the element keys of the row; the descriptor is rebuilt from the row when needed
+      in.createStringArray();
+      descriptor = null;
    }
 
    public static final Creator<TypedRow> CREATOR = new Creator<TypedRow>() {
@@ -47,32 +61,43 @@ public final class TypedRow implements Parcelable {
       }
    };
 
-   private ElementDataType getColumnDataTypeFromIndex(int index) {
-      if(colNames == null) {
-         colNames = row.getElementKeyForIndexMap(); // not a Map, bad naming
-      }
-      return getColumnDataType(colNames[index]);
+   /**
+    * Point this TypedRow at another row of the same table
+    *
+    * @param rowData a row with the same element keys as the current one
+    */
+   void setRow(Row rowData) {
+      this.row = rowData;
    }
 
-   private ElementDataType getColumnDataType(String key) {
-      // if you change this function make sure to update TypeColumnWebIfCache
-      if (DataTableColumns.CONFLICT_TYPE.equals(key)) {
-         return ElementDataType.integer;
-      }
-
-      List<String> adminColumns = DataTableColumns.getAdminColumns();
+   /**
+    * @return true if this TypedRow shares the given descriptor
+    */
+   boolean isDescribedBy(TypedRowDescriptor typedRowDescriptor) {
+      return descriptor == typedRowDescriptor;
+   }
 
-      if(adminColumns.contains(key)) {
-         return ElementDataType.string;
+   private TypedRowDescriptor getDescriptor() {
+      if (descriptor == null) {
+         descriptor = new TypedRowDescriptor(row.getElementKeyForIndexMap(), columns);
       }
+      return descriptor;
+   }
 
-      ColumnDefinition def;
+   private Object decode(int cellIndex, Class<?> clazz) {
+      if (clazz == null) {
+         throw new IllegalStateException("Unexpected data type in SQLite table");
+      }
       try {
-         def = columns.find(key);
-         ElementType type = def.getType();
-         return type.getDataType();
-      } catch (IllegalArgumentException e) {
-         return ElementDataType.string;
+         if (clazz == String.class) {
+            return row.getRawStringByIndex(cellIndex);
+         }
+         return row.getDataType(cellIndex, clazz);
+      } catch (ClassCastException e) {
+         // JsonParseException and JsonMappingException extends IOException and will be caught here
+         WebLogger.getLogger(null).printStackTrace(e);
+         throw new IllegalStateException(
+             "Unexpected data type conversion failure " + e + " on SQLite table");
       }
    }
 
@@ -113,37 +138,11 @@ public final class TypedRow implements Parcelable {
     * returned as null. Note that boolean values are reported as "1" or "0"
     */
    public final Object getDataByKey(String key) {
-      ElementDataType dataType = getColumnDataType(key);
-      if(dataType == null) {
+      int cellIndex = getDescriptor().getColumnIndex(key);
+      if (cellIndex == -1) {
          return null;
       }
-      try {
-         if (ElementDataType.string.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else if (ElementDataType.integer.equals(dataType)) {
-            return row.getDataType(key, Long.class);
-         } else if (ElementDataType.number.equals(dataType)) {
-            return row.getDataType(key, Double.class);
-         } else if (ElementDataType.bool.equals(dataType)) {
-            return row.getDataType(key, Boolean.class);
-         } else if (ElementDataType.array.equals(dataType)) {
-            return row.getDataType(key, ArrayList.class);
-         } else if (ElementDataType.rowpath.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else if (ElementDataType.configpath.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else if (ElementDataType.object.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else {
-            throw new IllegalStateException("Unexpected data type in SQLite table");
-         }
-      } catch (ClassCastException e) {
-         // JsonParseException and JsonMappingException extends IOException and will be caught here
-         WebLogger.getLogger(null).printStackTrace(e);
-         throw new IllegalStateException(
-             "Unexpected data type conversion failure " + e + " on SQLite table");
-      }
-
+      return getDataByIndex(cellIndex);
    }
 
    /**
@@ -156,37 +155,7 @@ public final class TypedRow implements Parcelable {
     * returned as null.
     */
    public final Object getDataByIndex(int cellIndex) {
-      ElementDataType dataType = getColumnDataTypeFromIndex(cellIndex);
-      if(dataType == null) {
-         return null;
-      }
-      try {
-         if (ElementDataType.string.equals(dataType)) {
-            return row.getRawStringByIndex(cellIndex);
-         } else if (ElementDataType.integer.equals(dataType)) {
-            return row.getDataType(cellIndex, Long.class);
-         } else if (ElementDataType.number.equals(dataType)) {
-            return row.getDataType(cellIndex, Double.class);
-         } else if (ElementDataType.bool.equals(dataType)) {
-            return row.getDataType(cellIndex, Boolean.class);
-         } else if (ElementDataType.array.equals(dataType)) {
-            return row.getDataType(cellIndex, ArrayList.class);
-         } else if (ElementDataType.rowpath.equals(dataType)) {
-            return row.getRawStringByIndex(cellIndex);
-         } else if (ElementDataType.configpath.equals(dataType)) {
-            return row.getRawStringByIndex(cellIndex);
-         } else if (ElementDataType.object.equals(dataType)) {
-            return row.getRawStringByIndex(cellIndex);
-         } else {
-            throw new IllegalStateException("Unexpected data type in SQLite table");
-         }
-      } catch (ClassCastException e) {
-         // JsonParseException and JsonMappingException extends IOException and will be caught here
-         WebLogger.getLogger(null).printStackTrace(e);
-         throw new IllegalStateException(
-             "Unexpected data type conversion failure " + e + " on SQLite table");
-      }
-
+      return decode(cellIndex, getDescriptor().getDecodeType(cellIndex));
    }
 
 
@@ -200,12 +169,11 @@ public final class TypedRow implements Parcelable {
     * returned as null. Note that boolean values are reported as "1" or "0"
     */
    public final Object getOdkDataIfDataByKey(String key) {
-      ElementDataType dataType = getColumnDataType(key);
-      if(dataType == null) {
+      int cellIndex = getDescriptor().getColumnIndex(key);
+      if (cellIndex == -1) {
          return null;
       }
-      return getDataType(key, getOdkDataWebIfType(dataType));
-
+      return getOdkDataIfDataByIndex(cellIndex);
    }
 
    /**
@@ -218,12 +186,7 @@ public final class TypedRow implements Parcelable {
     * returned as null.
     */
    public final Object getOdkDataIfDataByIndex(int cellIndex) {
-      ElementDataType dataType = getColumnDataTypeFromIndex(cellIndex);
-      if(dataType == null) {
-         return null;
-      }
-      return getDataType(cellIndex, getOdkDataWebIfType(dataType));
-
+      return getDataType(cellIndex, getDescriptor().getOdkDataWebIfType(cellIndex));
    }
 
 
@@ -237,44 +200,27 @@ public final class TypedRow implements Parcelable {
     * returned as null.
     */
    public final String getStringValueByKey(String key) {
-      ElementDataType dataType = getColumnDataType(key);
-      if(dataType == null) {
+      if (row == null) {
          return null;
       }
-      if (row == null) {
+      int cellIndex = getDescriptor().getColumnIndex(key);
+      if (cellIndex == -1) {
          return null;
       }
-      try {
-         if (ElementDataType.string.equals(dataType)) {
-            return row.getRawStringByKey(key); 
-         } else if (ElementDataType.integer.equals(dataType)) {
-            Long i = row.getDataType(key, Long.class);
-            return (i == null ? null : i.toString());
-         } else if (ElementDataType.number.equals(dataType)) {
-            Double d = row.getDataType(key, Double.class);
-            return (d == null ? null : d.toString());
-         } else if (ElementDataType.bool.equals(dataType)) {
-            Boolean bool = row.getDataType(key, Boolean.class);
-            return (bool == null ? null : bool.toString());
-         } else if (ElementDataType.array.equals(dataType)) {
-            ArrayList<String> a = row.getDataType(key, ArrayList.class);
-            return (a == null ? null : mapper.writeValueAsString(a));
-         } else if (ElementDataType.rowpath.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else if (ElementDataType.configpath.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else if (ElementDataType.object.equals(dataType)) {
-            return row.getRawStringByKey(key);
-         } else {
-            throw new IllegalStateException("Unexpected data type in SQLite table");
+      Object value = getDataByIndex(cellIndex);
+      if (value == null || value instanceof String) {
+         return (String) value;
+      }
+      if (value instanceof ArrayList) {
+         try {
+            return mapper.writeValueAsString(value);
+         } catch (JsonProcessingException e) {
+            WebLogger.getLogger(null).printStackTrace(e);
+            throw new IllegalStateException(
+                "Unexpected data type conversion failure " + e + " on SQLite table");
          }
-      } catch (ClassCastException | JsonProcessingException e ) {
-         // JsonParseException and JsonMappingException extends IOException and will be caught here
-         WebLogger.getLogger(null).printStackTrace(e);
-         throw new IllegalStateException(
-             "Unexpected data type conversion failure " + e + " on SQLite table");
       }
-
+      return value.toString();
    }
 
    /**
@@ -345,6 +291,6 @@ public final class TypedRow implements Parcelable {
    public void writeToParcel(Parcel dest, int flags) {
       dest.writeParcelable(row, flags);
       dest.writeParcelable(columns, flags);
-      dest.writeStringArray(colNames);
+      dest.writeStringArray(row == null ? null : row.getElementKeyForIndexMap());
    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+/**
+ * The {@link UserTable} counterpart of a {@link RowCursor}: presents each row as a
+ * {@link TypedRow} using the table's column definitions.
+ */
+public class TypedRowCursor {
+
+  private final RowCursor mRowCursor;
+  private final OrderedColumns mColumnDefns;
+
+  public TypedRowCursor(RowCursor rowCursor, OrderedColumns columnDefns) {
+    if (rowCursor == null || columnDefns == null) {
+      throw new IllegalArgumentException("Null arguments are not permitted");
+    }
+    this.mRowCursor = rowCursor;
+    this.mColumnDefns = columnDefns;
+  }
+
+  public OrderedColumns getColumnDefinitions() {
+    return mColumnDefns;
+  }
+
+  public RowCursor getRowCursor() {
+    return mRowCursor;
+  }
+
+  public boolean hasNext() throws ServicesAvailabilityException {
+    return mRowCursor.hasNext();
+  }
+
+  public TypedRow next() throws ServicesAvailabilityException {
+    return new TypedRow(mRowCursor.next(), mColumnDefns);
+  }
+
+  public void close() {
+    mRowCursor.close();
+  }
+}
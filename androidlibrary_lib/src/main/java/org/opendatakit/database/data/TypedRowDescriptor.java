@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.data;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data type of each column of a table, resolved once and shared by every
+ * {@link TypedRow} of that table.
+ * <p>
+ * This is an immutable class.
+ */
+public final class TypedRowDescriptor {
+
+  private final String[] elementKeyForIndex;
+  private final Map<String, Integer> elementKeyToIndex;
+  private final ElementDataType[] dataTypes;
+  /**
+   * The class each column is decoded into by TypedRow.getDataByIndex(), or null
+   * if the column has a data type that cannot be decoded
+   */
+  private final Class<?>[] decodeTypes;
+  private final Class<?>[] odkDataWebIfTypes;
+
+  /**
+   * @param elementKeyForIndex the element keys of the table, in column order
+   * @param columns            the column definitions of the table
+   */
+  public TypedRowDescriptor(String[] elementKeyForIndex, OrderedColumns columns) {
+    this.elementKeyForIndex = elementKeyForIndex;
+    int width = elementKeyForIndex.length;
+    this.elementKeyToIndex = new HashMap<>(width * 2);
+    this.dataTypes = new ElementDataType[width];
+    this.decodeTypes = new Class<?>[width];
+    this.odkDataWebIfTypes = new Class<?>[width];
+
+    Map<String, ElementDataType> userColumnTypes = new HashMap<>();
+    if (columns != null) {
+      for (ColumnDefinition def : columns.getColumnDefinitions()) {
+        userColumnTypes.put(def.getElementKey(), def.getType().getDataType());
+      }
+    }
+
+    for (int i = 0; i < width; ++i) {
+      String key = elementKeyForIndex[i];
+      elementKeyToIndex.put(key, i);
+      ElementDataType dataType = getColumnDataType(key, userColumnTypes);
+      dataTypes[i] = dataType;
+      decodeTypes[i] = toDecodeType(dataType);
+      odkDataWebIfTypes[i] = TypedRow.getOdkDataWebIfType(dataType);
+    }
+  }
+
+  /**
+   * The typing rules for the columns of a data table.
+   * If you change this function make sure to update TypeColumnWebIfCache
+   *
+   * @param key             the element key of the column
+   * @param userColumnTypes the data types of the user-defined columns
+   * @return the data type of the column
+   */
+  private static ElementDataType getColumnDataType(String key,
+      Map<String, ElementDataType> userColumnTypes) {
+    if (DataTableColumns.CONFLICT_TYPE.equals(key)) {
+      return ElementDataType.integer;
+    }
+
+    List<String> adminColumns = DataTableColumns.getAdminColumns();
+    if (adminColumns.contains(key)) {
+      return ElementDataType.string;
+    }
+
+    ElementDataType dataType = userColumnTypes.get(key);
+    return dataType == null ? ElementDataType.string : dataType;
+  }
+
+  private static Class<?> toDecodeType(ElementDataType dataType) {
+    if (dataType == ElementDataType.integer) {
+      return Long.class;
+    } else if (dataType == ElementDataType.number) {
+      return Double.class;
+    } else if (dataType == ElementDataType.bool) {
+      return Boolean.class;
+    } else if (dataType == ElementDataType.array) {
+      return ArrayList.class;
+    } else if (dataType == ElementDataType.string || dataType == ElementDataType.rowpath
+        || dataType == ElementDataType.configpath || dataType == ElementDataType.object) {
+      return String.class;
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of columns
+   */
+  public int getWidth() {
+    return elementKeyForIndex.length;
+  }
+
+  /**
+   * @return the element keys, in column order. Do not modify.
+   */
+  public String[] getElementKeyForIndex() {
+    return elementKeyForIndex;
+  }
+
+  /**
+   * @param elementKey the element key of a column
+   * @return the index of the column, or -1 if the table has no such column
+   */
+  public int getColumnIndex(String elementKey) {
+    Integer index = elementKeyToIndex.get(elementKey);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * @param cellIndex the index of a column
+   * @return the data type of the column
+   */
+  public ElementDataType getDataType(int cellIndex) {
+    return dataTypes[cellIndex];
+  }
+
+  /**
+   * @param cellIndex the index of a column
+   * @return the class the column's values are decoded into, or null if its data type
+   * is not supported
+   */
+  public Class<?> getDecodeType(int cellIndex) {
+    return decodeTypes[cellIndex];
+  }
+
+  /**
+   * @param cellIndex the index of a column
+   * @return the class used for the column across the odkData Javascript interface
+   */
+  public Class<?> getOdkDataWebIfType(int cellIndex) {
+    return odkDataWebIfTypes[cellIndex];
+  }
+}
@@ -60,6 +60,10 @@ public class UserTable implements Parcelable, WrapperTable {
   private final BaseTable mBaseTable;
   private final OrderedColumns mColumnDefns;
   private final String[] mAdminColumnOrder;
+  /**
+   * The column types shared by the TypedRows of this table, built on first use
+   */
+  private volatile TypedRowDescriptor mTypedRowDescriptor = null;
 
   public UserTable(UserTable table, List<Integer> indexes) {
     this.mBaseTable = new BaseTable(table.mBaseTable, indexes);
@@ -126,7 +130,37 @@ public class UserTable implements Parcelable, WrapperTable {
   }
 
   public TypedRow getRowAtIndex(int index) {
-    return new TypedRow(mBaseTable.getRowAtIndex(index), mColumnDefns);
+    return new TypedRow(mBaseTable.getRowAtIndex(index), mColumnDefns, getTypedRowDescriptor());
+  }
+
+  /**
+   * Like {@link #getRowAtIndex(int)}, but repositions reuse onto the row instead of
+   * allocating a new TypedRow when reuse came from this table. For loops over the rows;
+   * the TypedRow changes on the next call, so it must not be retained.
+   *
+   * @param index the row index
+   * @param reuse a TypedRow previously returned by this table, or null
+   * @return a TypedRow for the row at index
+   */
+  public TypedRow getRowAtIndex(int index, TypedRow reuse) {
+    TypedRowDescriptor descriptor = getTypedRowDescriptor();
+    if (reuse == null || !reuse.isDescribedBy(descriptor)) {
+      return new TypedRow(mBaseTable.getRowAtIndex(index), mColumnDefns, descriptor);
+    }
+    reuse.setRow(mBaseTable.getRowAtIndex(index));
+    return reuse;
+  }
+
+  /**
+   * @return the data type of every column of this table
+   */
+  public TypedRowDescriptor getTypedRowDescriptor() {
+    TypedRowDescriptor descriptor = mTypedRowDescriptor;
+    if (descriptor == null) {
+      descriptor = new TypedRowDescriptor(mBaseTable.getElementKeyForIndex(), mColumnDefns);
+      mTypedRowDescriptor = descriptor;
+    }
+    return descriptor;
   }
 
   public String getElementKey(int colNum) {
@@ -186,6 +220,16 @@ public class UserTable implements Parcelable, WrapperTable {
     return mColumnDefns;
   }
 
+  /**
+   * Build a column-oriented copy of this table for numeric aggregation and sorting.
+   * This copies every cell, so callers should hold on to the result.
+   *
+   * @return a columnar copy of the rows currently in this table
+   */
+  public ColumnarTable toColumnarTable() {
+    return new ColumnarTable(mBaseTable, mColumnDefns);
+  }
+
   public String getRowId(int rowIndex) {
     return mBaseTable.getRowAtIndex(rowIndex).getRawStringByKey(DataTableColumns.ID);
   }
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.queries;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.provider.DataTableColumns;
+
+/**
+ * A query over a single sort column that pages by seeking rather than by OFFSET.
+ * <p>
+ * Results are ordered by the sort column and then by _id, so every row has a unique
+ * position. When resumed, the query remembers the sort key and _id of the last (or first)
+ * row of the current page and only selects rows past that position, so the database can
+ * start at the right place in the index instead of stepping over every earlier row.
+ * A page costs the same no matter how deep into the results it is.
+ * <p>
+ * Run it with UserDbInterface.resumeSimpleQuery and page it with
+ * BaseTable.resumeQueryForward / resumeQueryBackward as with any other ResumableQuery.
+ * The offset is still maintained, but only to track the position of the page; it is
+ * not sent to the database.
+ */
+public class KeysetQuery extends SimpleQuery {
+
+   private static final String ID = DataTableColumns.ID;
+   private static final String DESC = "DESC";
+
+   private static final byte SEEK_NONE = 0;
+   private static final byte SEEK_AFTER = 1;
+   private static final byte SEEK_BEFORE = 2;
+
+   /**
+    * Whether to return the rows at the start of the results, or the rows after or
+    * before the remembered position
+    */
+   private byte mSeek;
+
+   /**
+    * The sort key of the remembered row. May be null.
+    */
+   private String mSeekSortKey;
+
+   /**
+    * The _id of the remembered row
+    */
+   private String mSeekRowId;
+
+   /**
+    * The commands for each shape of seek, built on first use
+    */
+   private transient String[] mSeekSqlCommands;
+
+   /**
+    * Construct the query
+    *
+    * @param tableId       The table to query
+    * @param bindArgs      The sql selection args
+    * @param whereClause   The sql where clause
+    * @param sortColumn    The column to order by; _id is always added as a tie-breaker
+    * @param sortDirection ASC or DESC; null means ASC
+    * @param limit         The maximum number of rows to return per page
+    */
+   public KeysetQuery(String tableId, BindArgs bindArgs, String whereClause, String sortColumn,
+       String sortDirection, Integer limit) {
+      this(tableId, null, bindArgs, whereClause, sortColumn, sortDirection, limit);
+   }
+
+   /**
+    * Construct a query that only returns some of the user columns
+    *
+    * @param tableId       The table to query
+    * @param projection    The element keys of the user columns to return; null for all
+    * @param bindArgs      The sql selection args
+    * @param whereClause   The sql where clause
+    * @param sortColumn    The column to order by; _id is always added as a tie-breaker
+    * @param sortDirection ASC or DESC; null means ASC
+    * @param limit         The maximum number of rows to return per page
+    */
+   public KeysetQuery(String tableId, String[] projection, BindArgs bindArgs, String whereClause,
+       String sortColumn, String sortDirection, Integer limit) {
+      super(tableId, withSortColumn(projection, sortColumn), bindArgs, whereClause, null, null,
+          orderByColNames(sortColumn), orderByDirections(sortColumn, sortDirection), limit, 0);
+      this.mSeek = SEEK_NONE;
+   }
+
+   public KeysetQuery(Parcel in) {
+      super(in);
+
+      this.mSeek = in.readByte();
+      this.mSeekSortKey = readStringFromParcel(in);
+      this.mSeekRowId = readStringFromParcel(in);
+   }
+
+   /**
+    * The sort key is read from each page to resume the query, so it must be returned
+    */
+   private static String[] withSortColumn(String[] projection, String sortColumn) {
+      if (projection == null || projection.length == 0) {
+         return projection;
+      }
+      for (String elementKey : projection) {
+         if (sortColumn == null || sortColumn.equals(elementKey)) {
+            return projection;
+         }
+      }
+      String[] withSort = new String[projection.length + 1];
+      System.arraycopy(projection, 0, withSort, 0, projection.length);
+      withSort[projection.length] = sortColumn;
+      return withSort;
+   }
+
+   private static String[] orderByColNames(String sortColumn) {
+      if (sortColumn == null || sortColumn.isEmpty()) {
+         throw new IllegalArgumentException("Sort column must not be null");
+      }
+      if (ID.equals(sortColumn)) {
+         return new String[] { ID };
+      }
+      return new String[] { sortColumn, ID };
+   }
+
+   private static String[] orderByDirections(String sortColumn, String sortDirection) {
+      String direction = DESC.equalsIgnoreCase(sortDirection) ? DESC : "ASC";
+      if (ID.equals(sortColumn)) {
+         return new String[] { direction };
+      }
+      return new String[] { direction, direction };
+   }
+
+   /**
+    * @return the column the results are ordered by
+    */
+   public String getSortColumn() {
+      return mOrderByColNames[0];
+   }
+
+   private boolean isDescending() {
+      return DESC.equals(mOrderByDirections[0]);
+   }
+
+   private boolean isSortedById() {
+      return mOrderByColNames.length == 1;
+   }
+
+   /**
+    * Resume after the given row; used by BaseTable.resumeQueryForward
+    *
+    * @param sortKey the sort key of the last row of the current page, may be null
+    * @param rowId   the _id of the last row of the current page
+    */
+   public void seekAfter(String sortKey, String rowId) {
+      setSeek(SEEK_AFTER, sortKey, rowId);
+   }
+
+   /**
+    * Resume before the given row; used by BaseTable.resumeQueryBackward
+    *
+    * @param sortKey the sort key of the first row of the current page, may be null
+    * @param rowId   the _id of the first row of the current page
+    */
+   public void seekBefore(String sortKey, String rowId) {
+      setSeek(SEEK_BEFORE, sortKey, rowId);
+   }
+
+   private void setSeek(byte seek, String sortKey, String rowId) {
+      if (rowId == null) {
+         throw new IllegalArgumentException("Row ID must not be null");
+      }
+      this.mSeek = seek;
+      this.mSeekSortKey = sortKey;
+      this.mSeekRowId = rowId;
+   }
+
+   /**
+    * Builds the predicate selecting the rows that come after the remembered row in the
+    * given direction. SQLite sorts NULL before every other value. The row-value form
+    * (key, _id) &gt; (?, ?) is avoided because older devices ship an SQLite without it.
+    *
+    * @param ascending whether the rows wanted are later in ascending order
+    * @return the predicate; its bind args are given by {@link #seekArgs()}
+    */
+   private String seekPredicate(boolean ascending) {
+      String cmp = ascending ? ">" : "<";
+      if (isSortedById()) {
+         return ID + cmp + "?";
+      }
+
+      String key = getSortColumn();
+      if (mSeekSortKey == null) {
+         String nullRows = "(" + key + " IS NULL AND " + ID + cmp + "?)";
+         return ascending ? nullRows + " OR " + key + " IS NOT NULL" : nullRows;
+      }
+
+      String predicate = key + cmp + "? OR (" + key + "=? AND " + ID + cmp + "?)";
+      return ascending ? predicate : predicate + " OR " + key + " IS NULL";
+   }
+
+   private Object[] seekArgs() {
+      if (isSortedById() || mSeekSortKey == null) {
+         return new Object[] { mSeekRowId };
+      }
+      return new Object[] { mSeekSortKey, mSeekSortKey, mSeekRowId };
+   }
+
+   /**
+    * @return whether the rows wanted are later in ascending order
+    */
+   private boolean isSeekAscending() {
+      return (mSeek == SEEK_AFTER) != isDescending();
+   }
+
+   private String seekWhereClause(String predicate) {
+      if (mWhereClause == null || mWhereClause.isEmpty()) {
+         return predicate;
+      }
+      return "(" + mWhereClause + ") AND (" + predicate + ")";
+   }
+
+   @Override
+   public String getSqlCommand() {
+      if (mSeek == SEEK_NONE) {
+         return super.getSqlCommand();
+      }
+
+      // the text only depends on the seek direction and whether the sort key is null, so
+      // every page after the first reuses one of four commands
+      int shape = (mSeek == SEEK_AFTER ? 0 : 2) + (mSeekSortKey == null ? 1 : 0);
+      if (mSeekSqlCommands == null) {
+         mSeekSqlCommands = new String[4];
+      }
+      String sqlCommand = mSeekSqlCommands[shape];
+      if (sqlCommand == null) {
+         sqlCommand = buildSeekSqlCommand();
+         mSeekSqlCommands[shape] = sqlCommand;
+      }
+      return sqlCommand;
+   }
+
+   private String buildSeekSqlCommand() {
+      String whereClause = seekWhereClause(seekPredicate(isSeekAscending()));
+      if (mSeek == SEEK_AFTER) {
+         return QueryUtil.buildSqlStatement(mTableId, mProjection, whereClause, null, null,
+             mOrderByColNames, mOrderByDirections);
+      }
+
+      // walk backward from the remembered row, then restore the requested ordering
+      String[] reversed = new String[mOrderByDirections.length];
+      for (int i = 0; i < reversed.length; ++i) {
+         reversed[i] = isDescending() ? "ASC" : DESC;
+      }
+      StringBuilder s = new StringBuilder();
+      s.append("SELECT * FROM (").append(QueryUtil
+          .buildSqlStatement(mTableId, mProjection, whereClause, null, null, mOrderByColNames,
+              reversed));
+      s.append(" LIMIT ?) ");
+      for (int i = 0; i < mOrderByColNames.length; ++i) {
+         s.append(i == 0 ? " ORDER BY " : ", ").append(mOrderByColNames[i]).append(" ")
+             .append(mOrderByDirections[i]);
+      }
+      return s.toString();
+   }
+
+   @Override
+   public BindArgs getSqlBindArgs() {
+      if (mSeek == SEEK_NONE) {
+         return mBindArgs;
+      }
+
+      Object[] seekArgs = seekArgs();
+      Object[] baseArgs = mBindArgs.bindArgs != null ? mBindArgs.bindArgs : new Object[0];
+      boolean bindLimit = mSeek == SEEK_BEFORE;
+      Object[] args = new Object[baseArgs.length + seekArgs.length + (bindLimit ? 1 : 0)];
+      System.arraycopy(baseArgs, 0, args, 0, baseArgs.length);
+      System.arraycopy(seekArgs, 0, args, baseArgs.length, seekArgs.length);
+      if (bindLimit) {
+         // a negative limit means no limit to SQLite, as it does here
+         args[args.length - 1] = mLimit;
+      }
+      return new BindArgs(args);
+   }
+
+   /**
+    * The offset is never sent to the database; a backward seek binds its limit inside
+    * the SQL command.
+    *
+    * @return the query bounds
+    */
+   @Override
+   public QueryBounds getSqlQueryBounds() {
+      if (mLimit < 0 || mSeek == SEEK_BEFORE) {
+         return null;
+      }
+      return new QueryBounds(mLimit, 0);
+   }
+
+   @Override
+   public void writeToParcel(Parcel dest, int flags) {
+      super.writeToParcel(dest, flags);
+
+      dest.writeByte(mSeek);
+      writeStringToParcel(dest, mSeekSortKey);
+      writeStringToParcel(dest, mSeekRowId);
+   }
+
+   public static final Parcelable.Creator<KeysetQuery> CREATOR =
+           new Parcelable.Creator<KeysetQuery>() {
+              public KeysetQuery createFromParcel(Parcel in) {
+                 return new KeysetQuery(in);
+              }
+
+              public KeysetQuery[] newArray(int size) {
+                 return new KeysetQuery[size];
+              }
+           };
+}
@@ -49,7 +49,10 @@ public class SimpleQuery extends ResumableQuery {
     */
    protected final String[] mOrderByDirections;
 
-
+   /**
+    * The user columns to return, or null for every column
+    */
+   protected final String[] mProjection;
 
    /**
     * Construct the query
@@ -68,6 +71,29 @@ public class SimpleQuery extends ResumableQuery {
        String[] groupByArgs, String havingClause, String[] orderByColNames,
        String[] orderByDirections, Integer limit, Integer offset) {
 
+      this(tableId, null, bindArgs, whereClause, groupByArgs, havingClause, orderByColNames,
+          orderByDirections, limit, offset);
+   }
+
+   /**
+    * Construct a query that only returns some of the user columns. The admin columns are
+    * always returned.
+    *
+    * @param tableId The table to query
+    * @param projection The element keys of the user columns to return; null or empty for all
+    * @param bindArgs The sql selection args
+    * @param whereClause The sql where clause
+    * @param groupByArgs The sql group by arguments
+    * @param havingClause The sql having clause
+    * @param orderByColNames The columns to order by
+    * @param orderByDirections The directions to order by
+    * @param limit The maximum number of rows to return
+    * @param offset The offset to start counting the limit from
+    */
+   public SimpleQuery(String tableId, String[] projection, BindArgs bindArgs,
+       String whereClause, String[] groupByArgs, String havingClause, String[] orderByColNames,
+       String[] orderByDirections, Integer limit, Integer offset) {
+
       super(tableId, bindArgs, limit, offset);
 
       if (tableId == null) {
@@ -80,6 +106,7 @@ public class SimpleQuery extends ResumableQuery {
 
       this.mOrderByColNames = orderByColNames;
       this.mOrderByDirections = orderByDirections;
+      this.mProjection = (projection != null && projection.length != 0) ? projection : null;
    }
 
    public SimpleQuery(String tableId, BindArgs bindArgs, String whereClause,
@@ -99,12 +126,35 @@ public class SimpleQuery extends ResumableQuery {
       this.mHavingClause = readStringFromParcel(in);
       this.mOrderByColNames = readStringArrFromParcel(in);
       this.mOrderByDirections = readStringArrFromParcel(in);
+      this.mProjection = readStringArrFromParcel(in);
    }
 
 
+   /**
+    * The SQL command, built on first use. Every part of it is final, so resuming the
+    * query reuses it.
+    */
+   private transient String mSqlCommand;
+
    public String getSqlCommand() {
-      return QueryUtil.buildSqlStatement(mTableId, mWhereClause, mGroupByArgs, mHavingClause,
-          mOrderByColNames, mOrderByDirections);
+      String sqlCommand = mSqlCommand;
+      if (sqlCommand == null) {
+         sqlCommand = buildSqlCommand();
+         mSqlCommand = sqlCommand;
+      }
+      return sqlCommand;
+   }
+
+   private String buildSqlCommand() {
+      return QueryUtil.buildSqlStatement(mTableId, mProjection, mWhereClause, mGroupByArgs,
+          mHavingClause, mOrderByColNames, mOrderByDirections);
+   }
+
+   /**
+    * @return the user columns the query returns, or null if it returns every column
+    */
+   public String[] getProjection() {
+      return mProjection != null ? mProjection.clone() : null;
    }
 
    /**
@@ -160,6 +210,7 @@ public class SimpleQuery extends ResumableQuery {
       writeStringToParcel(dest, mHavingClause);
       writeStringArrToParcel(dest, mOrderByColNames);
       writeStringArrToParcel(dest, mOrderByDirections);
+      writeStringArrToParcel(dest, mProjection);
    }
 
    public static final Parcelable.Creator<SimpleQuery> CREATOR =
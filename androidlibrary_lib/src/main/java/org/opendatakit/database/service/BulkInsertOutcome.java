@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+/**
+ * Per-row outcome codes returned by privilegedBulkInsertRows.
+ * These values cross the AIDL boundary, so they must never be renumbered.
+ */
+public final class BulkInsertOutcome {
+
+  /**
+   * No row with this rowId existed; the row was inserted
+   */
+  public static final int INSERTED = 0;
+  /**
+   * A row with this rowId existed in the new_row sync state; it was replaced
+   */
+  public static final int REPLACED = 1;
+  /**
+   * A row with this rowId existed and has been synced; it was left unchanged
+   */
+  public static final int UNCHANGED = 2;
+  /**
+   * The row with this rowId has checkpoints or conflicts; it was left unchanged
+   */
+  public static final int SKIPPED_CHECKPOINT_OR_CONFLICT = 3;
+
+  private BulkInsertOutcome() {
+  }
+}
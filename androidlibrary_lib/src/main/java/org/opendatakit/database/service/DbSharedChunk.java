@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+
+/**
+ * The single-region alternative to a linked list of {@link DbChunk}s. The marshalled
+ * payload is written once into an ashmem region by the service and only the file
+ * descriptor crosses the binder boundary.
+ *
+ * Requires API 27 (SharedMemory). Callers must fall back to the DbChunk transport
+ * on older devices or when the service returns null.
+ */
+public class DbSharedChunk implements Parcelable {
+
+  private final SharedMemory sharedMemory;
+  private final int dataLength;
+
+  public DbSharedChunk(SharedMemory sharedMemory, int dataLength) {
+    if ( sharedMemory == null ) {
+      throw new IllegalArgumentException("null sharedMemory");
+    }
+    if ( dataLength < 0 || dataLength > sharedMemory.getSize() ) {
+      throw new IllegalArgumentException("invalid data length");
+    }
+    this.sharedMemory = sharedMemory;
+    this.dataLength = dataLength;
+  }
+
+  public DbSharedChunk(Parcel in) {
+    dataLength = in.readInt();
+    if ( dataLength < 0 ) {
+      throw new IllegalArgumentException("invalid data length");
+    }
+    sharedMemory = in.readParcelable(SharedMemory.class.getClassLoader());
+    if ( sharedMemory == null ) {
+      throw new IllegalArgumentException("null sharedMemory");
+    }
+  }
+
+  public SharedMemory getSharedMemory() {
+    return this.sharedMemory;
+  }
+
+  public int getDataLength() {
+    return this.dataLength;
+  }
+
+  /**
+   * Release the region. The mapping is reference counted by the kernel, so this
+   * only drops this process' handle on it.
+   */
+  public void close() {
+    sharedMemory.close();
+  }
+
+  @Override
+  public int describeContents() {
+    return Parcelable.CONTENTS_FILE_DESCRIPTOR;
+  }
+
+  /**
+   * When written as the return value of a binder call, the region is closed afterwards:
+   * the parcel holds its own duplicate of the file descriptor, and SharedMemory itself
+   * ignores PARCELABLE_WRITE_RETURN_VALUE, which would otherwise leave every result
+   * resident in the service until this object is finalized.
+   */
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeInt(dataLength);
+    dest.writeParcelable(sharedMemory, flags);
+    if ( (flags & Parcelable.PARCELABLE_WRITE_RETURN_VALUE) != 0 ) {
+      sharedMemory.close();
+    }
+  }
+
+  public static final Parcelable.Creator<DbSharedChunk> CREATOR =
+      new Parcelable.Creator<DbSharedChunk>() {
+    public DbSharedChunk createFromParcel(Parcel in) {
+      return new DbSharedChunk(in);
+    }
+
+    public DbSharedChunk[] newArray(int size) {
+      return new DbSharedChunk[size];
+    }
+  };
+}
@@ -19,6 +19,7 @@ import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.RowCursor;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.queries.BindArgs;
@@ -146,6 +147,20 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
 
+   /**
+    * @return true if the listener will be told about metadata changes in appName;
+    * false if the database service does not support change notifications
+    */
+   boolean registerTableMetadataChangeListener(String appName,
+                                               TableMetadataChangeListener listener)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
+   void unregisterTableMetadataChangeListener(String appName,
+                                              TableMetadataChangeListener listener)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
    String[] getExportColumns()
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
@@ -181,6 +196,17 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
 
+   RowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String sqlCommand,
+                               BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
+   RowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName,
+                                         String sqlCommand, BindArgs bindArgs,
+                                         QueryBounds sqlQueryBounds, String tableId)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
    void privilegedExecute(String appName, DbHandle dbHandleName, String sqlCommand,
                           BindArgs bindArgs)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
@@ -245,6 +271,12 @@ public interface InternalUserDbInterface {
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
        ServicesAvailabilityException;
 
+   int[] privilegedBulkInsertRows(String appName, DbHandle dbHandleName, String tableId,
+                                  List<ContentValues> cvValuesList, List<String> rowIds,
+                                  boolean asCsvRequestedChange)
+       throws IllegalStateException, IllegalArgumentException, SQLiteException,
+       ServicesAvailabilityException;
+
    BaseTable insertCheckpointRowWithId(String appName, DbHandle dbHandleName, String tableId,
                                        ContentValues cvValues, String rowId)
        throws IllegalStateException, IllegalArgumentException, SQLiteException,
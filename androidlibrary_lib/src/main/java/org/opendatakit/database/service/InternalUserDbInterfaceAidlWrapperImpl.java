@@ -15,6 +15,8 @@
 package org.opendatakit.database.service;
 
 import android.content.ContentValues;
+import android.os.Build;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 import android.os.RemoteException;
@@ -22,10 +24,13 @@ import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.RowCursor;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.QueryBounds;
+import org.opendatakit.database.utilities.DbChunkRowDecoder;
 import org.opendatakit.database.utilities.DbChunkUtil;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
@@ -35,8 +40,12 @@ import org.sqlite.database.sqlite.SQLiteException;
 import org.opendatakit.database.service.IDbInterface;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
 
 /**
  * Wrapper for the Aidl DbChunk and Exception pass-through interface that presents
@@ -49,8 +58,54 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
 
   private static final String TAG = InternalUserDbInterfaceAidlWrapperImpl.class.getSimpleName();
 
+  /**
+   * Maximum number of chunks to request per getChunks() round-trip.
+   * The service further limits each batch to what fits in a binder transaction.
+   */
+  private static final int CHUNK_BATCH_SIZE = 16;
+
+  /**
+   * Target marshalled size of the rows sent in one privilegedBulkInsertRows() call,
+   * kept well under the 1MB binder transaction buffer shared by the whole process.
+   */
+  private static final int BULK_INSERT_MAX_BYTES = 256 * 1024;
+
   private IDbInterface dbInterface;
 
+  /**
+   * Cleared once the service has shown that it does not support the shared memory
+   * query transport, after which only the DbChunk transport is used.
+   */
+  private volatile boolean useSharedMemoryTransport =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1;
+
+  /**
+   * Set once the service has answered with a shared memory region, after which a null
+   * answer only means that one result could not be placed in shared memory.
+   */
+  private volatile boolean sharedMemoryTransportSupported = false;
+
+  /**
+   * Cleared once the service has shown that it does not support getChunks(),
+   * after which the chunk list is walked one getChunk() call at a time.
+   */
+  private volatile boolean useBatchedChunkFetch = true;
+
+  /**
+   * Cleared once the service has shown that it does not support
+   * privilegedBulkInsertRows(), after which callers fall back to per-row inserts.
+   */
+  private volatile boolean useBulkInsert = true;
+
+  /**
+   * The table metadata change listeners registered through this wrapper.
+   * Registrations do not survive a reconnect to the service, so setDbInterface()
+   * tells each of these listeners that its notifications were lost.
+   * Guarded by itself.
+   */
+  private final List<MetadataListenerRegistration> metadataListenerRegistrations =
+      new ArrayList<>();
+
   public InternalUserDbInterfaceAidlWrapperImpl(IDbInterface dbInterface) throws IllegalArgumentException {
     if (dbInterface == null) {
       throw new IllegalArgumentException("Database Interface must not be null");
@@ -69,6 +124,54 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
 
     this.dbInterface = dbInterface;
+    this.useSharedMemoryTransport = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1;
+    this.sharedMemoryTransportSupported = false;
+    this.useBatchedChunkFetch = true;
+    this.useBulkInsert = true;
+
+    List<MetadataListenerRegistration> lost;
+    synchronized (metadataListenerRegistrations) {
+      lost = new ArrayList<>(metadataListenerRegistrations);
+      metadataListenerRegistrations.clear();
+    }
+    for (MetadataListenerRegistration registration : lost) {
+      registration.listener.onTableMetadataNotificationsLost(registration.appName);
+    }
+  }
+
+  /**
+   * A TableMetadataChangeListener and the binder object the service calls it through
+   */
+  private static final class MetadataListenerRegistration {
+    final String appName;
+    final TableMetadataChangeListener listener;
+    final ITableMetadataChangeListener.Stub stub;
+
+    MetadataListenerRegistration(String appName, final TableMetadataChangeListener listener) {
+      this.appName = appName;
+      this.listener = listener;
+      this.stub = new ITableMetadataChangeListener.Stub() {
+        @Override
+        public void onTableMetadataChanged(String appName, String tableId, String revId) {
+          listener.onTableMetadataChanged(appName, tableId, revId);
+        }
+      };
+    }
+  }
+
+  /**
+   * @return the registration of listener for appName, or null
+   */
+  private MetadataListenerRegistration findMetadataListenerRegistration(String appName,
+      TableMetadataChangeListener listener) {
+    synchronized (metadataListenerRegistrations) {
+      for (MetadataListenerRegistration registration : metadataListenerRegistrations) {
+        if (registration.listener == listener && registration.appName.equals(appName)) {
+          return registration;
+        }
+      }
+      return null;
+    }
   }
 
   private void rethrowNotAuthorizedRemoteException(Exception e)
@@ -714,6 +817,66 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     return entries;
   }
 
+  /**
+   * Ask the service to tell listener about every change to the metadata of the
+   * tables in appName. The registration is remembered even when the service does
+   * not support notifications so that the listener can be told to try again after
+   * a reconnect.
+   *
+   * @param appName
+   * @param listener
+   * @return true if the service will notify the listener
+   */
+  @Override
+  public boolean registerTableMetadataChangeListener(String appName,
+                                                     TableMetadataChangeListener listener)
+      throws ServicesAvailabilityException {
+    if (appName == null || listener == null) {
+      throw new IllegalArgumentException("appName and listener must not be null");
+    }
+
+    MetadataListenerRegistration registration;
+    synchronized (metadataListenerRegistrations) {
+      registration = findMetadataListenerRegistration(appName, listener);
+      if (registration == null) {
+        registration = new MetadataListenerRegistration(appName, listener);
+        metadataListenerRegistrations.add(registration);
+      }
+    }
+
+    try {
+      // an older service answers with an empty reply, i.e., false
+      return dbInterface.registerTableMetadataChangeListener(appName, registration.stub);
+    } catch (Exception e) {
+      synchronized (metadataListenerRegistrations) {
+        metadataListenerRegistrations.remove(registration);
+      }
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  @Override
+  public void unregisterTableMetadataChangeListener(String appName,
+                                                    TableMetadataChangeListener listener)
+      throws ServicesAvailabilityException {
+    MetadataListenerRegistration registration;
+    synchronized (metadataListenerRegistrations) {
+      registration = findMetadataListenerRegistration(appName, listener);
+      if (registration == null) {
+        return;
+      }
+      metadataListenerRegistrations.remove(registration);
+    }
+
+    try {
+      dbInterface.unregisterTableMetadataChangeListener(appName, registration.stub);
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
   private TableMetaDataEntries filterEntries(TableMetaDataEntries allEntries, String partition,
                                              String aspect, String key) {
     if (partition == null && aspect == null && key == null) {
@@ -880,6 +1043,16 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
 
     try {
 
+      if (useSharedMemoryTransport) {
+        DbSharedChunk sharedChunk = dbInterface
+            .simpleQuerySharedMemory(appName, dbHandleName, sqlCommand, bindArgs,
+                sqlQueryBounds, tableId);
+        BaseTable baseTable = rebuildSharedChunk(sharedChunk, BaseTable.CREATOR);
+        if (baseTable != null) {
+          return baseTable;
+        }
+      }
+
       BaseTable baseTable = fetchAndRebuildChunks(dbInterface
           .simpleQuery(appName, dbHandleName, sqlCommand, bindArgs,
               sqlQueryBounds, tableId), BaseTable.CREATOR);
@@ -914,6 +1087,16 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
       throws ServicesAvailabilityException {
 
     try {
+      if (useSharedMemoryTransport) {
+        DbSharedChunk sharedChunk = dbInterface
+            .privilegedSimpleQuerySharedMemory(appName, dbHandleName, sqlCommand,
+                bindArgs, sqlQueryBounds, tableId);
+        BaseTable baseTable = rebuildSharedChunk(sharedChunk, BaseTable.CREATOR);
+        if (baseTable != null) {
+          return baseTable;
+        }
+      }
+
       BaseTable baseTable = fetchAndRebuildChunks(dbInterface
               .privilegedSimpleQuery(appName, dbHandleName, sqlCommand,
                   bindArgs, sqlQueryBounds, tableId),
@@ -925,6 +1108,67 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
   }
 
+  /**
+   * Get a {@link RowCursor} over the result set of the given SQL command. Rows are
+   * decoded as each DbChunk arrives rather than after the whole result has been
+   * retrieved.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param sqlCommand
+   * @param bindArgs       (effectively a typed array of values)
+   * @param sqlQueryBounds bounds for query (offset and limit)
+   * @param tableId        if supplied, resolve column data types based upon columns in this table
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  @Override
+  public RowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String sqlCommand,
+                                     BindArgs bindArgs, QueryBounds sqlQueryBounds, String tableId)
+      throws ServicesAvailabilityException {
+
+    try {
+      return new ChunkedRowCursor(dbInterface
+          .simpleQuery(appName, dbHandleName, sqlCommand, bindArgs,
+              sqlQueryBounds, tableId));
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
+  /**
+   * SYNC ONLY
+   * <p>
+   * Privileged version of above query.
+   * <p>
+   * Get a {@link RowCursor} over the result set of the given SQL command.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param sqlCommand
+   * @param bindArgs       (effectively a typed array of values)
+   * @param sqlQueryBounds bounds for query (offset and limit)
+   * @param tableId        if supplied, resolve column data types based upon columns in this table
+   * @return
+   * @throws ServicesAvailabilityException
+   */
+  @Override
+  public RowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName,
+                                               String sqlCommand, BindArgs bindArgs,
+                                               QueryBounds sqlQueryBounds, String tableId)
+      throws ServicesAvailabilityException {
+
+    try {
+      return new ChunkedRowCursor(dbInterface
+          .privilegedSimpleQuery(appName, dbHandleName, sqlCommand, bindArgs,
+              sqlQueryBounds, tableId));
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
   /**
    * Execute an arbitrary command with bind parameters.
    *
@@ -1253,6 +1497,81 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
     }
   }
 
+  /**
+   * CSV Import ONLY
+   * <p>
+   * Insert or replace many rows, returning one {@link BulkInsertOutcome} code per row.
+   * The rows are split across as many calls as needed to stay within the binder
+   * transaction buffer; each call is applied in its own transaction.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param cvValuesList
+   * @param rowIds
+   * @param asCsvRequestedChange
+   * @return the outcome codes of the rows that were applied, always the leading rows and
+   * fewer than were given if the service stopped supporting bulk insertion part way
+   * through, or null if the service does not support bulk insertion
+   */
+  @Override
+  public int[] privilegedBulkInsertRows(String appName, DbHandle dbHandleName, String tableId,
+                                        List<ContentValues> cvValuesList, List<String> rowIds,
+                                        boolean asCsvRequestedChange)
+      throws ServicesAvailabilityException {
+    if (cvValuesList.size() != rowIds.size()) {
+      throw new IllegalArgumentException("cvValuesList and rowIds must be the same size");
+    }
+    if (!useBulkInsert) {
+      return null;
+    }
+    try {
+      int[] outcomes = new int[cvValuesList.size()];
+      int start = 0;
+      while (start < cvValuesList.size()) {
+        int end = start;
+        int batchBytes = 0;
+        Parcel sizer = Parcel.obtain();
+        try {
+          while (end < cvValuesList.size()) {
+            sizer.setDataPosition(0);
+            sizer.setDataSize(0);
+            cvValuesList.get(end).writeToParcel(sizer, 0);
+            int rowBytes = sizer.dataSize();
+            if (end > start && batchBytes + rowBytes > BULK_INSERT_MAX_BYTES) {
+              break;
+            }
+            batchBytes += rowBytes;
+            ++end;
+          }
+        } finally {
+          sizer.recycle();
+        }
+
+        List<String> batchRowIds = rowIds.subList(start, end);
+        int[] batchOutcomes = dbInterface
+            .privilegedBulkInsertRows(appName, dbHandleName, tableId,
+                cvValuesList.subList(start, end),
+                batchRowIds.toArray(new String[batchRowIds.size()]), asCsvRequestedChange);
+
+        if (batchOutcomes == null || batchOutcomes.length != end - start) {
+          // an older service answers with an empty reply and applies nothing; the
+          // service may also have been replaced by an older one part way through
+          WebLogger.getLogger(appName).i(TAG, "privilegedBulkInsertRows: not supported by "
+              + "the database service; falling back to per-row inserts after row " + start);
+          useBulkInsert = false;
+          return start == 0 ? null : Arrays.copyOf(outcomes, start);
+        }
+        System.arraycopy(batchOutcomes, 0, outcomes, start, batchOutcomes.length);
+        start = end;
+      }
+      return outcomes;
+    } catch (Exception e) {
+      rethrowAlwaysAllowedRemoteException(e);
+      throw new IllegalStateException("unreachable - keep IDE happy");
+    }
+  }
+
   /**
    * Inserts a checkpoint row for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
@@ -1859,7 +2178,36 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
   }
 
   /**
-   * Iterate through the chunks like a linked list, retrieving them one by one from the service
+   * Rebuild an object returned through the shared memory transport.
+   * <p>
+   * A null region means the service does not support shared memory, or could not
+   * allocate a region for this result. Services that predate this transport always
+   * answer null, so if the service has never returned a region, stop asking it. Once it
+   * has, a null only sends this one call to the DbChunk transport.
+   *
+   * @param sharedChunk The shared memory region. May be null.
+   * @param creator     The parcelable reconstructor
+   * @param <T>         The type to reconstruct into
+   * @return The original object or null if the caller must fall back
+   */
+  private <T> T rebuildSharedChunk(DbSharedChunk sharedChunk, Parcelable.Creator<T> creator) {
+    if (sharedChunk == null) {
+      if (!sharedMemoryTransportSupported) {
+        useSharedMemoryTransport = false;
+      }
+      return null;
+    }
+    sharedMemoryTransportSupported = true;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+      // unreachable; the transport is never enabled below API 27
+      return null;
+    }
+    return DbChunkUtil.rebuildFromSharedChunk(sharedChunk, creator);
+  }
+
+  /**
+   * Iterate through the chunks like a linked list, retrieving them in batches from the service.
+   * Falls back to retrieving them one by one if the service does not support batching.
    *
    * @param firstChunk
    * @return
@@ -1871,11 +2219,127 @@ public class InternalUserDbInterfaceAidlWrapperImpl implements InternalUserDbInt
 
     DbChunk currChunk = firstChunk;
     while (currChunk.hasNextID()) {
-      ParcelUuid parcelUuid = new ParcelUuid(currChunk.getNextID());
-      currChunk = dbInterface.getChunk(parcelUuid);
-      aggregatedChunks.add(currChunk);
+      List<DbChunk> batch = retrieveNextChunks(currChunk.getNextID());
+      aggregatedChunks.addAll(batch);
+      currChunk = batch.get(batch.size() - 1);
     }
 
     return aggregatedChunks;
   }
+
+  /**
+   * Retrieve the chunk with the given id, along with as many of its successors as the
+   * service will return in the same round-trip.
+   *
+   * @param chunkID the id of the first chunk to retrieve
+   * @return the retrieved chunks, in order. Never empty.
+   * @throws RemoteException
+   */
+  private List<DbChunk> retrieveNextChunks(UUID chunkID) throws RemoteException {
+    ParcelUuid parcelUuid = new ParcelUuid(chunkID);
+    if (useBatchedChunkFetch) {
+      List<DbChunk> batch = dbInterface.getChunks(parcelUuid, CHUNK_BATCH_SIZE);
+      if (batch != null && !batch.isEmpty()) {
+        return batch;
+      }
+      // services that predate getChunks() answer with an empty reply
+      useBatchedChunkFetch = false;
+    }
+    List<DbChunk> single = new ArrayList<>(1);
+    single.add(dbInterface.getChunk(parcelUuid));
+    return single;
+  }
+
+  /**
+   * Walks the DbChunk linked list on demand, decoding rows as each batch of chunks
+   * arrives. Chunk payloads are released as soon as they have been decoded.
+   */
+  private final class ChunkedRowCursor implements RowCursor {
+
+    private final DbChunkRowDecoder decoder = new DbChunkRowDecoder();
+    private final LinkedList<Row> decodedRows = new LinkedList<>();
+    private UUID nextChunkID;
+
+    ChunkedRowCursor(DbChunk firstChunk) {
+      if (firstChunk == null) {
+        throw new IllegalStateException("null DbChunk returned from IDbInterface");
+      }
+      accept(firstChunk);
+    }
+
+    private void accept(DbChunk chunk) {
+      decoder.append(chunk.getData());
+      nextChunkID = chunk.hasNextID() ? chunk.getNextID() : null;
+      decoder.decodeRows(decodedRows);
+    }
+
+    /**
+     * Pull chunks until a row or the header is available or the result is exhausted
+     *
+     * @return false if the result is exhausted
+     */
+    private boolean fetchMore() throws ServicesAvailabilityException {
+      if (nextChunkID == null) {
+        return false;
+      }
+      try {
+        for (DbChunk chunk : retrieveNextChunks(nextChunkID)) {
+          accept(chunk);
+        }
+      } catch (Exception e) {
+        nextChunkID = null;
+        rethrowAlwaysAllowedRemoteException(e);
+        throw new IllegalStateException("unreachable - keep IDE happy");
+      }
+      return true;
+    }
+
+    @Override
+    public BaseTable getHeaderTable() throws ServicesAvailabilityException {
+      while (decoder.getHeaderTable() == null) {
+        if (!fetchMore()) {
+          throw new IllegalStateException("truncated BaseTable in DbChunk stream");
+        }
+      }
+      return decoder.getHeaderTable();
+    }
+
+    @Override
+    public boolean hasNext() throws ServicesAvailabilityException {
+      while (decodedRows.isEmpty() && !decoder.isComplete()) {
+        if (!fetchMore()) {
+          throw new IllegalStateException("truncated BaseTable in DbChunk stream");
+        }
+      }
+      return !decodedRows.isEmpty();
+    }
+
+    @Override
+    public Row next() throws ServicesAvailabilityException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return decodedRows.removeFirst();
+    }
+
+    /**
+     * The service only releases a chunk once it has been retrieved, so drain the
+     * remainder of the list without decoding it.
+     */
+    @Override
+    public void close() {
+      decodedRows.clear();
+      decoder.release();
+      try {
+        while (nextChunkID != null) {
+          List<DbChunk> batch = retrieveNextChunks(nextChunkID);
+          DbChunk last = batch.get(batch.size() - 1);
+          nextChunkID = last.hasNextID() ? last.getNextID() : null;
+        }
+      } catch (Exception e) {
+        nextChunkID = null;
+        WebLogger.getContextLogger().e(TAG, "Failed to release unread DbChunks: " + e.toString());
+      }
+    }
+  }
 }
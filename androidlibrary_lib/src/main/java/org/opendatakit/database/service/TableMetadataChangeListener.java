@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.service;
+
+/**
+ * Receives table metadata change notifications from the database service.
+ * Both methods are called on binder or service-connection threads.
+ */
+public interface TableMetadataChangeListener {
+
+  /**
+   * The key value store entries of a table changed
+   *
+   * @param appName the app name
+   * @param tableId the table whose metadata changed
+   * @param revId   the revId of the metadata after the change
+   */
+  void onTableMetadataChanged(String appName, String tableId, String revId);
+
+  /**
+   * Notifications for appName will no longer be delivered, e.g. because the
+   * database service was reconnected. Anything cached for appName must be
+   * revalidated and the listener registered again.
+   *
+   * @param appName the app name
+   */
+  void onTableMetadataNotificationsLost(String appName);
+}
@@ -19,8 +19,10 @@ import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.RowCursor;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.data.TypedRowCursor;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.ResumableQuery;
@@ -578,6 +580,64 @@ public interface UserDbInterface {
   BaseTable resumePrivilegedSimpleQuery(String appName, DbHandle dbHandleName, ResumableQuery query)
       throws ServicesAvailabilityException;
 
+  /**
+   * Get a {@link RowCursor} over the results of this query. Unlike simpleQuery, rows
+   * are decoded as the result arrives from the database service and can be collected
+   * once consumed, so arbitrarily large tables can be processed in bounded memory.
+   * <p>
+   * If any of the clause parts are omitted (null), then the appropriate
+   * simplified SQL statement is constructed.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link RowCursor} over the results of the query. Must be read to the end or closed.
+   */
+  RowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String tableId,
+                              String whereClause, BindArgs bindArgs, String[] groupBy,
+                              String having, String[] orderByColNames,
+                              String[] orderByDirections, Integer limit, Integer offset)
+      throws ServicesAvailabilityException;
+
+  /**
+   * SYNC ONLY
+   * <p>
+   * Privileged version of above query.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link RowCursor} over the results of the query. Must be read to the end or closed.
+   */
+  RowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName, String tableId,
+                                        String whereClause, BindArgs bindArgs, String[] groupBy,
+                                        String having, String[] orderByColNames,
+                                        String[] orderByDirections, Integer limit,
+                                        Integer offset)
+      throws ServicesAvailabilityException;
+
   /**
    * Execute an arbitrary command with bind parameters.
    *
@@ -620,6 +680,40 @@ public interface UserDbInterface {
                         String[] orderByDirections, Integer limit, Integer offset)
       throws ServicesAvailabilityException;
 
+  /**
+   * Get a {@link UserTable} for this table based on the given SQL command. Only the
+   * user columns in the projection and the admin columns are returned, so a caller that
+   * shows a few fields does not marshal the whole row.
+   * <p>
+   * If any of the clause parts are omitted (null), then the appropriate
+   * simplified SQL statement is constructed.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param columnDefns
+   * @param projection        the element keys of the user columns to return; null or
+   *                          empty to return every column
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link UserTable} containing the results of the query
+   */
+  UserTable simpleQuery(String appName, DbHandle dbHandleName, String tableId,
+                        OrderedColumns columnDefns, String[] projection, String whereClause,
+                        BindArgs bindArgs, String[] groupBy, String having,
+                        String[] orderByColNames, String[] orderByDirections, Integer limit,
+                        Integer offset)
+      throws ServicesAvailabilityException;
+
   /**
    * SYNC ONLY
    * <p>
@@ -704,6 +798,65 @@ public interface UserDbInterface {
                                         OrderedColumns columnDefns, ResumableQuery query)
       throws ServicesAvailabilityException;
 
+  /**
+   * Get a {@link TypedRowCursor} over the results of this query. This is the
+   * {@link UserTable} counterpart of the {@link RowCursor} query above.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param columnDefns
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link TypedRowCursor} over the results. Must be read to the end or closed.
+   */
+  TypedRowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String tableId,
+                                   OrderedColumns columnDefns, String whereClause,
+                                   BindArgs bindArgs, String[] groupBy, String having,
+                                   String[] orderByColNames, String[] orderByDirections,
+                                   Integer limit, Integer offset)
+      throws ServicesAvailabilityException;
+
+  /**
+   * SYNC ONLY
+   * <p>
+   * Privileged version of the above query.
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param columnDefns
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link TypedRowCursor} over the results. Must be read to the end or closed.
+   */
+  TypedRowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName,
+                                             String tableId, OrderedColumns columnDefns,
+                                             String whereClause, BindArgs bindArgs,
+                                             String[] groupBy, String having,
+                                             String[] orderByColNames,
+                                             String[] orderByDirections, Integer limit,
+                                             Integer offset)
+      throws ServicesAvailabilityException;
+
   /**
    * Insert or update a single table-level metadata KVS entry.
    *
@@ -896,6 +1049,30 @@ public interface UserDbInterface {
                                       String rowId, boolean asCsvRequestedChange)
       throws ServicesAvailabilityException;
 
+  /**
+   * CSV Import ONLY
+   * <p>
+   * Insert or replace many rows with a few binder calls instead of several per row.
+   * For each entry, in order: if the rowId has checkpoints or conflicts, the row is left
+   * unchanged; else if a row with the rowId exists in the new_row sync state, it is
+   * replaced; else if a row with the rowId exists, it is left unchanged; otherwise the
+   * values are inserted. All metadata values must be specified in each cvValues
+   * (even null values).
+   *
+   * @param appName
+   * @param dbHandleName
+   * @param tableId
+   * @param orderedColumns
+   * @param cvValuesList         the values of each row
+   * @param rowIds               the rowId of each row, parallel to cvValuesList
+   * @param asCsvRequestedChange
+   * @return one {@link BulkInsertOutcome} code per row
+   */
+  int[] privilegedBulkInsertRows(String appName, DbHandle dbHandleName, String tableId,
+                                 OrderedColumns orderedColumns, List<ContentValues> cvValuesList,
+                                 List<String> rowIds, boolean asCsvRequestedChange)
+      throws ServicesAvailabilityException;
+
   /**
    * Inserts a checkpoint row for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
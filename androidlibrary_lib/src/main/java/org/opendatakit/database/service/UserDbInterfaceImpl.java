@@ -15,25 +15,30 @@
 package org.opendatakit.database.service;
 
 import android.content.ContentValues;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.RowCursor;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.data.TypedRowCursor;
 import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.ArbitraryQuery;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.ResumableQuery;
 import org.opendatakit.database.queries.SimpleQuery;
+import org.opendatakit.database.utilities.ConcurrentLruCache;
 import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Used in CommonApplication
@@ -44,24 +49,125 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   private final InternalUserDbInterface internalUserDbInterface;
 
   /**
-   * Access this ONLY through getMetadata(tableId) and putMetadata(tableId, entries).
+   * Default number of tables whose metadata is cached
+   */
+  public static final int DEFAULT_METADATA_CACHE_SIZE = 64;
+
+  /**
+   * The full metadata of recently used tables, keyed by (appName, tableId).
+   * Access this ONLY through getMetadata() and putMetadata().
    * Multiple threads may be accessing this.
    */
-  private final Map<String, TableMetaDataEntries> privateMetaDataCache = new HashMap<>();
+  private final ConcurrentLruCache<MetadataKey, CachedMetadata> privateMetaDataCache;
+
+  /**
+   * Per appName, whether the database service notifies metadataChangeListener of
+   * metadata changes. Absent if registration has not been attempted since the last
+   * reconnect.
+   */
+  private final ConcurrentHashMap<String, Boolean> metadataNotifications =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Incremented on every announced change, so that an entry fetched while a
+   * change was being announced is revalidated on its next use.
+   */
+  private final AtomicLong metadataChangeCount = new AtomicLong(0L);
+
+  /**
+   * Incremented whenever the cache is flushed, so that an entry fetched before
+   * the flush is not put back afterwards.
+   */
+  private final AtomicLong metadataCacheEpoch = new AtomicLong(0L);
+
+  private final TableMetadataChangeListener metadataChangeListener =
+      new TableMetadataChangeListener() {
+        @Override
+        public void onTableMetadataChanged(String appName, String tableId, String revId) {
+          metadataChangeCount.incrementAndGet();
+          CachedMetadata cached = privateMetaDataCache.peek(new MetadataKey(appName, tableId));
+          if (cached != null && (revId == null || !revId.equals(cached.entries.getRevId()))) {
+            cached.stale = true;
+          }
+        }
+
+        @Override
+        public void onTableMetadataNotificationsLost(String appName) {
+          // changes made while we were not listening were never announced
+          metadataCacheEpoch.incrementAndGet();
+          metadataNotifications.remove(appName);
+          privateMetaDataCache.clear();
+        }
+      };
 
   /**
    * Access this ONLY through internalGetAdminColumns()
    * Multiple threads may be accessing this.
    */
-  private String[] internalAdminColumns = null;
+  private volatile String[] internalAdminColumns = null;
+
+  /**
+   * Cache key for a table's metadata
+   */
+  private static final class MetadataKey {
+    final String appName;
+    final String tableId;
+
+    MetadataKey(String appName, String tableId) {
+      this.appName = appName;
+      this.tableId = tableId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof MetadataKey)) {
+        return false;
+      }
+      MetadataKey other = (MetadataKey) o;
+      return tableId.equals(other.tableId) && (appName == null ?
+          other.appName == null :
+          appName.equals(other.appName));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (appName == null ? 0 : appName.hashCode()) + tableId.hashCode();
+    }
+  }
+
+  /**
+   * A table's full metadata and whether a change has been announced since it was fetched
+   */
+  private static final class CachedMetadata {
+    final TableMetaDataEntries entries;
+    volatile boolean stale;
+
+    CachedMetadata(TableMetaDataEntries entries, boolean stale) {
+      this.entries = entries;
+      this.stale = stale;
+    }
+  }
 
   public UserDbInterfaceImpl(InternalUserDbInterface internalUserDbInterface)
       throws IllegalArgumentException {
+    this(internalUserDbInterface, DEFAULT_METADATA_CACHE_SIZE);
+  }
+
+  /**
+   * @param internalUserDbInterface the database interface
+   * @param metadataCacheSize       the number of tables whose metadata is cached
+   */
+  public UserDbInterfaceImpl(InternalUserDbInterface internalUserDbInterface,
+      int metadataCacheSize) throws IllegalArgumentException {
     if (internalUserDbInterface == null) {
       throw new IllegalArgumentException("Database Interface must not be null");
     }
 
     this.internalUserDbInterface = internalUserDbInterface;
+    this.privateMetaDataCache = new ConcurrentLruCache<>(metadataCacheSize);
   }
 
   private static TableMetaDataEntries filterEntries(TableMetaDataEntries allEntries,
@@ -82,29 +188,105 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     return entries;
   }
 
-  private TableMetaDataEntries getMetadata(String tableId) {
-    synchronized (privateMetaDataCache) {
-      return privateMetaDataCache.get(tableId);
+  private CachedMetadata getMetadata(MetadataKey key) {
+    return privateMetaDataCache.get(key);
+  }
+
+  /**
+   * @param changeCount the metadataChangeCount before entries were fetched
+   * @param epoch       the metadataCacheEpoch before entries were fetched
+   */
+  private void putMetadata(MetadataKey key, TableMetaDataEntries entries, long changeCount,
+      long epoch) {
+    boolean stale = metadataChangeCount.get() != changeCount;
+    privateMetaDataCache.put(key, new CachedMetadata(entries, stale));
+    if (metadataCacheEpoch.get() != epoch) {
+      // fetched before a flush
+      privateMetaDataCache.remove(key);
+    }
+  }
+
+  /**
+   * Forget the cached metadata of a table that this client has written. The service only
+   * announces a change after it is committed, and the announcement is asynchronous, so
+   * without this a read right after the write, or within the same transaction, would be
+   * served the old metadata.
+   *
+   * @param appName the app name
+   * @param tableId the table whose metadata was written
+   */
+  private void invalidateMetadata(String appName, String tableId) {
+    // a fetch that started before the write must not be put back afterwards
+    metadataCacheEpoch.incrementAndGet();
+    if (tableId == null) {
+      privateMetaDataCache.clear();
+    } else {
+      privateMetaDataCache.remove(new MetadataKey(appName, tableId));
     }
   }
 
-  private void putMetadata(String tableId, TableMetaDataEntries entries) {
-    synchronized (privateMetaDataCache) {
-      privateMetaDataCache.put(tableId, entries);
+  /**
+   * Register for metadata change notifications the first time appName is seen.
+   * This must happen before anything for appName is cached, so that no change
+   * after the fetch goes unannounced.
+   *
+   * @return true if cache hits for appName can be served without asking the service
+   */
+  private boolean isNotifiedOfMetadataChanges(String appName)
+      throws ServicesAvailabilityException {
+    if (appName == null) {
+      return false;
+    }
+    Boolean notified = metadataNotifications.get(appName);
+    if (notified != null) {
+      return notified;
+    }
+
+    long epoch = metadataCacheEpoch.get();
+    boolean registered = internalUserDbInterface
+        .registerTableMetadataChangeListener(appName, metadataChangeListener);
+    metadataNotifications.put(appName, registered);
+    if (metadataCacheEpoch.get() != epoch) {
+      // the registration raced a reconnect; try again on the next lookup
+      metadataNotifications.remove(appName);
+      return false;
     }
+    return registered;
+  }
+
+  /**
+   * @return the number of metadata lookups answered from the cache
+   */
+  public long getMetadataCacheHitCount() {
+    return privateMetaDataCache.getHitCount();
+  }
+
+  /**
+   * @return the number of metadata lookups that had to fetch the full metadata
+   */
+  public long getMetadataCacheMissCount() {
+    return privateMetaDataCache.getMissCount();
+  }
+
+  /**
+   * @return the number of tables dropped from the cache to stay within its size
+   */
+  public long getMetadataCacheEvictionCount() {
+    return privateMetaDataCache.getEvictionCount();
   }
 
   public InternalUserDbInterface getInternalUserDbInterface() {
     return internalUserDbInterface;
   }
 
-  private synchronized String[] internalGetAdminColumns() throws ServicesAvailabilityException {
-    if (internalAdminColumns != null) {
-      return internalAdminColumns;
-    } else {
-      internalAdminColumns = getAdminColumns();
-      return internalAdminColumns;
+  private String[] internalGetAdminColumns() throws ServicesAvailabilityException {
+    String[] adminColumns = internalAdminColumns;
+    if (adminColumns == null) {
+      // racing threads may both fetch; they get the same answer
+      adminColumns = getAdminColumns();
+      internalAdminColumns = adminColumns;
     }
+    return adminColumns;
   }
 
   /**
@@ -465,8 +647,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public OrderedColumns createOrOpenTableWithColumns(String appName, DbHandle dbHandleName,
       String tableId, ColumnList columns) throws ServicesAvailabilityException {
 
-    return internalUserDbInterface
-        .createOrOpenTableWithColumns(appName, dbHandleName, tableId, columns);
+    try {
+      return internalUserDbInterface
+          .createOrOpenTableWithColumns(appName, dbHandleName, tableId, columns);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -492,9 +678,13 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       DbHandle dbHandleName, String tableId, ColumnList columns, List<KeyValueStoreEntry> metaData,
       boolean clear) throws ServicesAvailabilityException {
 
-    return internalUserDbInterface
-        .createOrOpenTableWithColumnsAndProperties(appName, dbHandleName, tableId, columns,
-            metaData, clear);
+    try {
+      return internalUserDbInterface
+          .createOrOpenTableWithColumnsAndProperties(appName, dbHandleName, tableId, columns,
+              metaData, clear);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -509,7 +699,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteTableAndAllData(String appName, DbHandle dbHandleName, String tableId)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface.deleteTableAndAllData(appName, dbHandleName, tableId);
+    try {
+      internalUserDbInterface.deleteTableAndAllData(appName, dbHandleName, tableId);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -543,8 +737,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void deleteTableMetadata(String appName, DbHandle dbHandleName, String tableId,
       String partition, String aspect, String key) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .deleteTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
+    try {
+      internalUserDbInterface
+          .deleteTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -612,24 +810,35 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       entries = internalUserDbInterface
           .getTableMetadata(appName, dbHandleName, tableId, partition, aspect, key);
     } else {
-      TableMetaDataEntries allEntries = getMetadata(tableId);
-
-      if (allEntries == null) {
+      boolean notified = isNotifiedOfMetadataChanges(appName);
+      MetadataKey cacheKey = new MetadataKey(appName, tableId);
+      long changeCount = metadataChangeCount.get();
+      long epoch = metadataCacheEpoch.get();
+      CachedMetadata cached = getMetadata(cacheKey);
+      TableMetaDataEntries allEntries;
+
+      if (cached == null) {
         // If there is no cache hit, fetch from the database
         allEntries = internalUserDbInterface
             .getTableMetadata(appName, dbHandleName, tableId, null, null, null);
-        putMetadata(tableId, allEntries);
-      } else {
-        // If there is a cache hit, check if it is stale
+        putMetadata(cacheKey, allEntries, changeCount, epoch);
+      } else if (!notified || cached.stale) {
+        // If there is a cache hit, check if it is stale. When the service announces
+        // changes this is only needed after an announcement.
+        allEntries = cached.entries;
         TableMetaDataEntries newEntries = internalUserDbInterface
             .getTableMetadataIfChanged(appName, dbHandleName, tableId, allEntries.getRevId());
         String newEntRevId = newEntries.getRevId();
         // We want to update the cache if the condition of the revIds being the
         // same does NOT hold
         if (!(newEntRevId != null && newEntRevId.equals(allEntries.getRevId()))) {
-          putMetadata(tableId, newEntries);
           allEntries = newEntries;
+          putMetadata(cacheKey, allEntries, changeCount, epoch);
+        } else if (cached.stale) {
+          putMetadata(cacheKey, allEntries, changeCount, epoch);
         }
+      } else {
+        allEntries = cached.entries;
       }
 
       // Filter the requested entries from the full list
@@ -885,6 +1094,78 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     return baseTable;
   }
 
+  /**
+   * Get a {@link RowCursor} over the results of this query. Rows are decoded as the
+   * result arrives from the database service and can be collected once consumed.
+   * <p>
+   * If any of the clause parts are omitted (null), then the appropriate
+   * simplified SQL statement is constructed.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link RowCursor} over the results of the query
+   */
+  @Override
+  public RowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String tableId,
+      String whereClause, BindArgs bindArgs, String[] groupBy, String having,
+      String[] orderByColNames, String[] orderByDirections, Integer limit, Integer offset)
+      throws ServicesAvailabilityException {
+
+    SimpleQuery query = new SimpleQuery(tableId, bindArgs, whereClause, groupBy, having,
+        orderByColNames, orderByDirections, limit, offset);
+
+    return internalUserDbInterface
+        .simpleQueryCursor(appName, dbHandleName, query.getSqlCommand(), query.getSqlBindArgs(),
+            query.getSqlQueryBounds(), query.getTableId());
+  }
+
+  /**
+   * SYNC ONLY
+   * <p>
+   * Privileged version of above query.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link RowCursor} over the results of the query
+   */
+  @Override
+  public RowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName,
+      String tableId, String whereClause, BindArgs bindArgs, String[] groupBy, String having,
+      String[] orderByColNames, String[] orderByDirections, Integer limit, Integer offset)
+      throws ServicesAvailabilityException {
+
+    SimpleQuery query = new SimpleQuery(tableId, bindArgs, whereClause, groupBy, having,
+        orderByColNames, orderByDirections, limit, offset);
+
+    return internalUserDbInterface
+        .privilegedSimpleQueryCursor(appName, dbHandleName, query.getSqlCommand(),
+            query.getSqlBindArgs(), query.getSqlQueryBounds(), query.getTableId());
+  }
+
   /**
    * Execute an arbitrary command with bind parameters.
    *
@@ -939,6 +1220,46 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     return new UserTable(baseTable, columnDefns, internalGetAdminColumns());
   }
 
+  /**
+   * Get a {@link UserTable} for this table based on the given SQL command. Only the
+   * user columns in the projection and the admin columns are returned.
+   * <p>
+   * If any of the clause parts are omitted (null), then the appropriate
+   * simplified SQL statement is constructed.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param columnDefns       the columns of the table
+   * @param projection        the element keys of the user columns to return; null or
+   *                          empty to return every column
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the sql query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link UserTable} containing the results of the query
+   */
+  @Override
+  public UserTable simpleQuery(String appName, DbHandle dbHandleName, String tableId,
+      OrderedColumns columnDefns, String[] projection, String whereClause, BindArgs bindArgs,
+      String[] groupBy, String having, String[] orderByColNames, String[] orderByDirections,
+      Integer limit, Integer offset) throws ServicesAvailabilityException {
+
+    SimpleQuery query = new SimpleQuery(tableId, projection, bindArgs, whereClause, groupBy,
+        having, orderByColNames, orderByDirections, limit, offset);
+
+    BaseTable baseTable = resumeSimpleQuery(appName, dbHandleName, query);
+
+    return new UserTable(baseTable, columnDefns, internalGetAdminColumns());
+  }
+
   /**
    * SYNC ONLY
    * <p>
@@ -1045,6 +1366,74 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     return new UserTable(baseTable, columnDefns, internalGetAdminColumns());
   }
 
+  /**
+   * Get a {@link TypedRowCursor} over the results of this query. This is the
+   * {@link UserTable} counterpart of the {@link RowCursor} query.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param columnDefns       the columns of the result rows you want returned
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the sql query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link TypedRowCursor} over the results of the query
+   */
+  @Override
+  public TypedRowCursor simpleQueryCursor(String appName, DbHandle dbHandleName, String tableId,
+      OrderedColumns columnDefns, String whereClause, BindArgs bindArgs, String[] groupBy,
+      String having, String[] orderByColNames, String[] orderByDirections, Integer limit,
+      Integer offset) throws ServicesAvailabilityException {
+
+    RowCursor rowCursor = simpleQueryCursor(appName, dbHandleName, tableId, whereClause,
+        bindArgs, groupBy, having, orderByColNames, orderByDirections, limit, offset);
+
+    return new TypedRowCursor(rowCursor, columnDefns);
+  }
+
+  /**
+   * SYNC ONLY
+   * <p>
+   * Privileged version of the above query.
+   *
+   * @param appName           the app name
+   * @param dbHandleName      the database handle to use
+   * @param tableId           the table id
+   * @param columnDefns       the columns of the result rows you want returned
+   * @param whereClause       the whereClause for the selection, beginning with "WHERE". Must
+   *                          include "?" instead of actual values, which are instead passed in
+   *                          the selectionArgs.
+   * @param bindArgs          an array of primitive values (String, Boolean, int, double) for
+   *                          bind parameters
+   * @param groupBy           an array of elementKeys
+   * @param having            part of the sql query
+   * @param orderByColNames   array of columns to order the results by
+   * @param orderByDirections either "ASC" or "DESC", corresponding to each column name
+   * @param limit             the maximum number of rows to return
+   * @param offset            the index to start counting the limit from
+   * @return A {@link TypedRowCursor} over the results of the query
+   */
+  @Override
+  public TypedRowCursor privilegedSimpleQueryCursor(String appName, DbHandle dbHandleName,
+      String tableId, OrderedColumns columnDefns, String whereClause, BindArgs bindArgs,
+      String[] groupBy, String having, String[] orderByColNames, String[] orderByDirections,
+      Integer limit, Integer offset) throws ServicesAvailabilityException {
+
+    RowCursor rowCursor = privilegedSimpleQueryCursor(appName, dbHandleName, tableId,
+        whereClause, bindArgs, groupBy, having, orderByColNames, orderByDirections, limit,
+        offset);
+
+    return new TypedRowCursor(rowCursor, columnDefns);
+  }
+
   /**
    * Insert or update a single table-level metadata KVS entry.
    *
@@ -1056,7 +1445,11 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void replaceTableMetadata(String appName, DbHandle dbHandleName, KeyValueStoreEntry entry)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface.replaceTableMetadata(appName, dbHandleName, entry);
+    try {
+      internalUserDbInterface.replaceTableMetadata(appName, dbHandleName, entry);
+    } finally {
+      invalidateMetadata(appName, entry == null ? null : entry.tableId);
+    }
   }
 
   /**
@@ -1075,8 +1468,12 @@ public class UserDbInterfaceImpl implements UserDbInterface {
   public void replaceTableMetadataList(String appName, DbHandle dbHandleName, String tableId,
       List<KeyValueStoreEntry> entries, boolean clear) throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .replaceTableMetadataList(appName, dbHandleName, tableId, entries, clear);
+    try {
+      internalUserDbInterface
+          .replaceTableMetadataList(appName, dbHandleName, tableId, entries, clear);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -1095,8 +1492,13 @@ public class UserDbInterfaceImpl implements UserDbInterface {
       String partition, String aspect, List<KeyValueStoreEntry> entries)
       throws ServicesAvailabilityException {
 
-    internalUserDbInterface
-        .replaceTableMetadataSubList(appName, dbHandleName, tableId, partition, aspect, entries);
+    try {
+      internalUserDbInterface
+          .replaceTableMetadataSubList(appName, dbHandleName, tableId, partition, aspect,
+              entries);
+    } finally {
+      invalidateMetadata(appName, tableId);
+    }
   }
 
   /**
@@ -1298,6 +1700,76 @@ public class UserDbInterfaceImpl implements UserDbInterface {
     return new UserTable(baseTable, orderedColumns, internalGetAdminColumns());
   }
 
+  /**
+   * CSV Import ONLY
+   * <p>
+   * Insert or replace many rows with a few binder calls instead of several per row.
+   * For each entry, in order: if the rowId has checkpoints or conflicts, the row is left
+   * unchanged; else if a row with the rowId exists in the new_row sync state, it is
+   * replaced; else if a row with the rowId exists, it is left unchanged; otherwise the
+   * values are inserted.
+   * <p>
+   * If the database service predates bulk insertion, the same outcome is produced with
+   * per-row privilegedGetRowsWithId / privilegedDeleteRowWithId /
+   * privilegedInsertRowWithId calls, starting from the first row the service did not apply.
+   *
+   * @param appName              the app name
+   * @param dbHandleName         the database handle to use
+   * @param tableId              the table id
+   * @param orderedColumns       the columns of the table
+   * @param cvValuesList         the values of each row
+   * @param rowIds               the rowId of each row, parallel to cvValuesList
+   * @param asCsvRequestedChange Whether the request is from a csv import
+   * @return one {@link BulkInsertOutcome} code per row
+   */
+  @Override
+  public int[] privilegedBulkInsertRows(String appName, DbHandle dbHandleName, String tableId,
+      OrderedColumns orderedColumns, List<ContentValues> cvValuesList, List<String> rowIds,
+      boolean asCsvRequestedChange) throws ServicesAvailabilityException {
+
+    int[] outcomes = internalUserDbInterface
+        .privilegedBulkInsertRows(appName, dbHandleName, tableId, cvValuesList, rowIds,
+            asCsvRequestedChange);
+    if (outcomes != null && outcomes.length == cvValuesList.size()) {
+      return outcomes;
+    }
+
+    // insert the rows the service did not apply one at a time
+    int applied = outcomes == null ? 0 : outcomes.length;
+    outcomes = outcomes == null ?
+        new int[cvValuesList.size()] :
+        Arrays.copyOf(outcomes, cvValuesList.size());
+    for (int i = applied; i < outcomes.length; ++i) {
+      String rowId = rowIds.get(i);
+      ContentValues cvValues = cvValuesList.get(i);
+
+      UserTable table = privilegedGetRowsWithId(appName, dbHandleName, tableId, orderedColumns,
+          rowId);
+      if (table.getNumberOfRows() > 1) {
+        outcomes[i] = BulkInsertOutcome.SKIPPED_CHECKPOINT_OR_CONFLICT;
+      } else if (table.getNumberOfRows() == 1) {
+        String syncStateStr = table.getRowAtIndex(0)
+            .getRawStringByKey(DataTableColumns.SYNC_STATE);
+        if (syncStateStr == null) {
+          throw new IllegalStateException("Unexpected null syncState value");
+        }
+        if (SyncState.valueOf(syncStateStr) == SyncState.new_row) {
+          privilegedDeleteRowWithId(appName, dbHandleName, tableId, orderedColumns, rowId);
+          privilegedInsertRowWithId(appName, dbHandleName, tableId, orderedColumns, cvValues,
+              rowId, asCsvRequestedChange);
+          outcomes[i] = BulkInsertOutcome.REPLACED;
+        } else {
+          outcomes[i] = BulkInsertOutcome.UNCHANGED;
+        }
+      } else {
+        privilegedInsertRowWithId(appName, dbHandleName, tableId, orderedColumns, cvValues,
+            rowId, asCsvRequestedChange);
+        outcomes[i] = BulkInsertOutcome.INSERTED;
+      }
+    }
+    return outcomes;
+  }
+
   /**
    * Inserts a checkpoint row for the given rowId in the tableId. Checkpoint
    * rows are created by ODK Survey to hold intermediate values during the
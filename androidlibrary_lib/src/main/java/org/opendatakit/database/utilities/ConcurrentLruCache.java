@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache that evicts the least recently used entry.
+ * <p>
+ * Reads never lock: a hit is a ConcurrentHashMap lookup plus a write of the
+ * entry's System.nanoTime() access stamp. Writes that push the cache over its
+ * capacity take a lock and scan for the entry with the oldest stamp, so eviction
+ * is O(capacity) and the cache is meant for small capacities.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class ConcurrentLruCache<K, V> {
+
+  private static final class Node<V> {
+    final V value;
+    volatile long lastAccess;
+
+    Node(V value, long lastAccess) {
+      this.value = value;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  private final int capacity;
+  private final ConcurrentHashMap<K, Node<V>> map;
+  private final Object evictionLock = new Object();
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+  private final AtomicLong evictions = new AtomicLong(0L);
+
+  /**
+   * @param capacity the maximum number of entries, at least 1
+   */
+  public ConcurrentLruCache(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1");
+    }
+    this.capacity = capacity;
+    this.map = new ConcurrentHashMap<>(capacity * 4 / 3 + 1);
+  }
+
+  /**
+   * @param key the key
+   * @return the cached value, or null. Counts as a hit or a miss.
+   */
+  public V get(K key) {
+    Node<V> node = map.get(key);
+    if (node == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    node.lastAccess = System.nanoTime();
+    hits.incrementAndGet();
+    return node.value;
+  }
+
+  /**
+   * @param key the key
+   * @return the cached value, or null, without counting it or marking it used
+   */
+  public V peek(K key) {
+    Node<V> node = map.get(key);
+    return node == null ? null : node.value;
+  }
+
+  /**
+   * Cache a value, evicting the least recently used entry if the cache is full
+   *
+   * @param key   the key
+   * @param value the value, not null
+   */
+  public void put(K key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("value must not be null");
+    }
+    Node<V> previous = map.put(key, new Node<>(value, System.nanoTime()));
+    if (previous == null && map.size() > capacity) {
+      evictOverflow();
+    }
+  }
+
+  /**
+   * @param key the key
+   */
+  public void remove(K key) {
+    map.remove(key);
+  }
+
+  /**
+   * Remove every entry. The counters are not reset.
+   */
+  public void clear() {
+    map.clear();
+  }
+
+  private void evictOverflow() {
+    synchronized (evictionLock) {
+      while (map.size() > capacity) {
+        K oldestKey = null;
+        Node<V> oldestNode = null;
+        for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+          Node<V> node = entry.getValue();
+          if (oldestNode == null || node.lastAccess < oldestNode.lastAccess) {
+            oldestKey = entry.getKey();
+            oldestNode = node;
+          }
+        }
+        if (oldestKey == null) {
+          return;
+        }
+        // only evict the node we examined; it may have been replaced meanwhile
+        if (map.remove(oldestKey, oldestNode)) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.database.utilities;
+
+import android.os.Parcel;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+
+import java.util.List;
+
+/**
+ * Incrementally decodes the rows of a marshalled {@link BaseTable} as the DbChunks
+ * carrying it arrive, so that the whole result never has to be held in memory.
+ * <p>
+ * Only the bytes of the partially-received row are retained between chunks. Rows are
+ * handed out as soon as they are complete; their owner table is a header-only
+ * BaseTable that never references them, so consumed rows can be collected.
+ * <p>
+ * The received bytes are unmarshalled into one reused Parcel and read back with the
+ * same calls BaseTable uses. Parcel does not fail when it runs out of data, so a
+ * field is only accepted if enough bytes remained to hold it: an int must have 4
+ * bytes available, and a String that reads as null must have been written as null.
+ * A row that runs past the received bytes is read again once more have arrived.
+ */
+public final class DbChunkRowDecoder {
+
+  private static final int INT_SIZE = 4;
+
+  /**
+   * Returned when the bytes of a string array have not all arrived
+   */
+  private static final String[] INCOMPLETE = new String[0];
+
+  private Parcel parcel = Parcel.obtain();
+
+  /**
+   * The received bytes; those before readOffset have been decoded
+   */
+  private byte[] pending = new byte[0];
+  private int readOffset = 0;
+  private int pendingLength = 0;
+
+  private BaseTable header = null;
+  private int rowsRemaining = -1;
+
+  public DbChunkRowDecoder() {
+  }
+
+  /**
+   * Append the payload of the next chunk
+   *
+   * @param data the bytes of the next chunk, in order
+   */
+  public void append(byte[] data) {
+    if (data == null || data.length == 0) {
+      return;
+    }
+    int unread = pendingLength - readOffset;
+    if (pendingLength + data.length > pending.length) {
+      // drop the decoded bytes, and grow if the unread ones still do not leave room
+      byte[] target = pending;
+      if (unread + data.length > pending.length) {
+        target = new byte[Math.max(unread + data.length, pending.length * 2)];
+      }
+      System.arraycopy(pending, readOffset, target, 0, unread);
+      pending = target;
+      readOffset = 0;
+      pendingLength = unread;
+    }
+    System.arraycopy(data, 0, pending, pendingLength, data.length);
+    pendingLength += data.length;
+  }
+
+  /**
+   * @return the header-only table (no rows) once enough bytes have arrived, otherwise null
+   */
+  public BaseTable getHeaderTable() {
+    if (header == null) {
+      decodeHeader();
+    }
+    return header;
+  }
+
+  /**
+   * @return true once every row announced in the header has been decoded
+   */
+  public boolean isComplete() {
+    return header != null && rowsRemaining == 0;
+  }
+
+  /**
+   * Decode every complete row received so far.
+   *
+   * @param out the list to append the decoded rows to
+   * @return the number of rows decoded
+   */
+  public int decodeRows(List<Row> out) {
+    if (getHeaderTable() == null || rowsRemaining == 0 || !unmarshallPending()) {
+      return 0;
+    }
+
+    int end = 0;
+    int count = 0;
+    while (count < rowsRemaining) {
+      // Row.writeToParcel(): the length, then writeStringArray() repeats it before the values
+      if (parcel.dataAvail() < INT_SIZE) {
+        break;
+      }
+      parcel.readInt();
+      String[] rowData = readStringArray();
+      if (rowData == INCOMPLETE) {
+        break;
+      }
+      out.add(new Row(rowData, header));
+      end = parcel.dataPosition();
+      ++count;
+    }
+
+    rowsRemaining -= count;
+    readOffset += end;
+    if (rowsRemaining == 0) {
+      release();
+    }
+    return count;
+  }
+
+  /**
+   * Free the Parcel and any bytes still held. Called once the last row is decoded, and
+   * should be called if the result is abandoned before then.
+   */
+  public void release() {
+    if (parcel != null) {
+      parcel.recycle();
+      parcel = null;
+    }
+    pending = new byte[0];
+    readOffset = 0;
+    pendingLength = 0;
+  }
+
+  private void decodeHeader() {
+    if (!unmarshallPending()) {
+      return;
+    }
+    // BaseTable.writeToParcel()
+    if (parcel.dataAvail() < INT_SIZE) {
+      return;
+    }
+    boolean effectiveAccessCreateRow = parcel.readByte() != 0;
+    String[] primaryKey = readMarshalledStringArray();
+    if (primaryKey == INCOMPLETE) {
+      return;
+    }
+    String[] elementKeyForIndex = readMarshalledStringArray();
+    if (elementKeyForIndex == INCOMPLETE || parcel.dataAvail() < INT_SIZE) {
+      return;
+    }
+    rowsRemaining = parcel.readInt();
+
+    header = new BaseTable(primaryKey, elementKeyForIndex, null, 0);
+    header.setEffectiveAccessCreateRow(effectiveAccessCreateRow);
+    readOffset += parcel.dataPosition();
+    if (rowsRemaining == 0) {
+      release();
+    }
+  }
+
+  /**
+   * Load the bytes that have not been decoded yet into the parcel
+   *
+   * @return false if there are none, or the decoder has been released
+   */
+  private boolean unmarshallPending() {
+    if (parcel == null || pendingLength == readOffset) {
+      return false;
+    }
+    parcel.unmarshall(pending, readOffset, pendingLength - readOffset);
+    parcel.setDataPosition(0);
+    return true;
+  }
+
+  /**
+   * Read a MarshallUtil.marshallStringArray()
+   *
+   * @return the array, which may be null, or INCOMPLETE
+   */
+  private String[] readMarshalledStringArray() {
+    if (parcel.dataAvail() < INT_SIZE) {
+      return INCOMPLETE;
+    }
+    if (parcel.readInt() < 0) {
+      return null;
+    }
+    return readStringArray();
+  }
+
+  /**
+   * Read a Parcel.writeStringArray() of a non-null array
+   *
+   * @return the array, or INCOMPLETE
+   */
+  private String[] readStringArray() {
+    if (parcel.dataAvail() < INT_SIZE) {
+      return INCOMPLETE;
+    }
+    int count = parcel.readInt();
+    String[] values = new String[count];
+    for (int i = 0; i < count; ++i) {
+      if (parcel.dataAvail() < INT_SIZE) {
+        return INCOMPLETE;
+      }
+      // a null is written as a length of -1; any other null means the text is missing
+      int position = parcel.dataPosition();
+      boolean isNull = parcel.readInt() < 0;
+      parcel.setDataPosition(position);
+      values[i] = parcel.readString();
+      if (values[i] == null && !isNull) {
+        return INCOMPLETE;
+      }
+    }
+    return values;
+  }
+}
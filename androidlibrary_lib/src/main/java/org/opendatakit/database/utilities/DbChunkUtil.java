@@ -15,10 +15,16 @@
  */
 package org.opendatakit.database.utilities;
 
+import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.util.Log;
+import androidx.annotation.RequiresApi;
 import org.opendatakit.database.service.DbChunk;
+import org.opendatakit.database.service.DbSharedChunk;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -28,6 +34,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -150,6 +157,94 @@ public final class DbChunkUtil {
     return chunkList;
   }
 
+  /**
+   * Convert a parcelable object into a single read-only shared memory region.
+   * This is the service-side half of the shared memory transport.
+   * <p>
+   * Ownership of the region passes to the returned chunk. Returned from a binder call,
+   * the chunk closes the region once it has been written into the reply; otherwise
+   * the caller must close() it.
+   *
+   * @param parcelable The object to be serialized
+   * @param name       Debugging name for the region
+   * @return The shared region, or null if it could not be allocated
+   */
+  @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+  public static DbSharedChunk convertToSharedChunk(Parcelable parcelable, String name) {
+
+    if (parcelable == null) {
+      Log.w(TAG, "convertToSharedChunk: Invalid input. Null returned");
+      return null;
+    }
+
+    // Convert to bytes
+    Parcel parcel = Parcel.obtain();
+    parcelable.writeToParcel(parcel, 0);
+    byte[] bytes = parcel.marshall();
+    parcel.recycle();
+
+    SharedMemory sharedMemory = null;
+    try {
+      // ashmem regions cannot be zero-length
+      sharedMemory = SharedMemory.create(name, Math.max(bytes.length, 1));
+      ByteBuffer buffer = sharedMemory.mapReadWrite();
+      buffer.put(bytes);
+      SharedMemory.unmap(buffer);
+      // the client may only read the region
+      sharedMemory.setProtect(OsConstants.PROT_READ);
+      return new DbSharedChunk(sharedMemory, bytes.length);
+    } catch (ErrnoException e) {
+      Log.w(TAG, "convertToSharedChunk: Unable to allocate shared memory. Null returned");
+      if (sharedMemory != null) {
+        sharedMemory.close();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Rebuild a parcelable object that was placed in shared memory by convertToSharedChunk().
+   * The region is closed once the object has been rebuilt.
+   *
+   * @param sharedChunk The shared memory region
+   * @param creator     The parcelable creator to rebuild the original object
+   * @param <T>         The type of the parcelable object to rebuild
+   * @return The original object
+   */
+  @RequiresApi(api = Build.VERSION_CODES.O_MR1)
+  public static <T> T rebuildFromSharedChunk(DbSharedChunk sharedChunk,
+      Parcelable.Creator<T> creator) {
+
+    if (sharedChunk == null || creator == null) {
+      Log.w(TAG, "rebuildFromSharedChunk: Invalid input. Null returned");
+      return null;
+    }
+
+    // Parcel.unmarshall() only accepts a byte[], so this is the one and only copy
+    // of the payload on the client side.
+    byte[] data = new byte[sharedChunk.getDataLength()];
+    try {
+      ByteBuffer buffer = sharedChunk.getSharedMemory().mapReadOnly();
+      buffer.get(data, 0, data.length);
+      SharedMemory.unmap(buffer);
+    } catch (ErrnoException e) {
+      throw new IllegalStateException("Unable to map shared memory region: " + e.toString());
+    } finally {
+      sharedChunk.close();
+    }
+
+    // Unmarshall the parcel
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+
+      return creator.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
   /**
    * Rebuild a parcelable object that was converted into a list of chunks by convertToChunks().
    *
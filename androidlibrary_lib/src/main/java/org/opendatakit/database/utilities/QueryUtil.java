@@ -17,6 +17,9 @@ package org.opendatakit.database.utilities;
 
 import org.opendatakit.provider.DataTableColumns;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 public final class QueryUtil {
 
   /**
@@ -40,8 +43,43 @@ public final class QueryUtil {
 
   public static String buildSqlStatement(String tableId, String whereClause, String[] groupBy,
       String having, String[] orderByElementKey, String[] orderByDirection) {
+    return buildSqlStatement(tableId, null, whereClause, groupBy, having, orderByElementKey,
+        orderByDirection);
+  }
+
+  /**
+   * Like {@link #buildSqlStatement(String, String, String[], String, String[], String[])},
+   * but only selects the given columns and the admin columns, which the database service
+   * and UserTable depend on.
+   *
+   * @param tableId           the table to select from
+   * @param projection        the element keys of the user columns to return, or null to
+   *                          return every column
+   * @param whereClause       the where clause, or null
+   * @param groupBy           the group by element keys, or null
+   * @param having            the having clause, or null
+   * @param orderByElementKey the element keys to order by, or null
+   * @param orderByDirection  ASC or DESC for each order by element key, or null
+   * @return the SQL statement
+   */
+  public static String buildSqlStatement(String tableId, String[] projection,
+      String whereClause, String[] groupBy, String having, String[] orderByElementKey,
+      String[] orderByDirection) {
     StringBuilder s = new StringBuilder();
-    s.append("SELECT * FROM \"").append(tableId).append("\" ");
+    s.append("SELECT ");
+    if (projection == null) {
+      s.append("*");
+    } else {
+      boolean first = true;
+      for (String elementKey : getProjectionWithAdminColumns(projection)) {
+        if (!first) {
+          s.append(", ");
+        }
+        first = false;
+        s.append("\"").append(elementKey).append("\"");
+      }
+    }
+    s.append(" FROM \"").append(tableId).append("\" ");
 
     if (whereClause != null && !whereClause.isEmpty()) {
       s.append(" WHERE ").append(whereClause);
@@ -90,6 +128,21 @@ public final class QueryUtil {
     return s.toString();
   }
 
+  /**
+   * @param projection the element keys of the user columns to return
+   * @return the admin columns followed by the given element keys, without duplicates
+   */
+  public static String[] getProjectionWithAdminColumns(String[] projection) {
+    Set<String> columns = new LinkedHashSet<>(DataTableColumns.getAdminColumns());
+    for (String elementKey : projection) {
+      if (elementKey == null || elementKey.isEmpty()) {
+        throw new IllegalArgumentException("projection must not contain empty element keys");
+      }
+      columns.add(elementKey);
+    }
+    return columns.toArray(new String[columns.size()]);
+  }
+
   // TODO: This is generally used to convert single string order by arguments into arrays. It should
   // be plumped all the way to the Javascript so that this conversion isn't necessary
   public static String[] convertStringToArray(String arg) {
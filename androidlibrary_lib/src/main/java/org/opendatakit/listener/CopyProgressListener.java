@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.listener;
+
+/**
+ * Optionally implemented by an ImportListener or ExportListener to also be told how the
+ * copying of attachments is going. Called on the importing or exporting thread.
+ */
+public interface CopyProgressListener {
+  /**
+   * @param foldersCopied the number of instance folders copied so far
+   * @param foldersTotal  the number of instance folders to copy found so far
+   * @param bytesCopied   the number of bytes copied so far
+   */
+  void updateCopyProgress(int foldersCopied, int foldersTotal, long bytesCopied);
+}
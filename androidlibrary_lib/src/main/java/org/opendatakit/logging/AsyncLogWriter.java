@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes formatted log lines on a single background thread so that the threads that log
+ * do not wait on the log file.
+ * <p>
+ * Loggers enqueue lines into a bounded ring buffer without taking a lock. The writer
+ * thread takes everything queued, hands each line to the sink it was queued for, and then
+ * flushes every sink it wrote to, so a burst of lines costs one flush.
+ * <p>
+ * When the buffer is full, a line is either dropped and counted, or the logging thread
+ * waits for space, depending on the {@link WebLogger.OverflowPolicy}.
+ */
+final class AsyncLogWriter implements Runnable {
+
+  /**
+   * Where the lines of one logger go. Called only from the writer thread.
+   */
+  interface Sink {
+    void writeLine(String line);
+
+    void flushLines();
+  }
+
+  /**
+   * How long the writer sleeps when there is nothing to write and no one wakes it
+   */
+  private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /**
+   * How long a blocked logging thread waits before checking for space again
+   */
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final int capacity;
+  private final int mask;
+  private final WebLogger.OverflowPolicy policy;
+
+  /**
+   * Per slot: equal to the position when the slot is free to be written at that
+   * position, and one more than the position once the line there is published.
+   */
+  private final AtomicLongArray sequences;
+  private final Sink[] sinks;
+  private final String[] lines;
+
+  /**
+   * The next position to write to
+   */
+  private final AtomicLong tail = new AtomicLong(0L);
+  /**
+   * The next position to read from; only advanced by the writer thread
+   */
+  private volatile long head = 0L;
+  /**
+   * Everything before this position has been written and flushed
+   */
+  private volatile long flushed = 0L;
+
+  private final AtomicLong dropped = new AtomicLong(0L);
+  private final AtomicLong written = new AtomicLong(0L);
+  private volatile long highWater = 0L;
+
+  private final Thread thread;
+  private volatile boolean waiting = false;
+  private volatile boolean stopping = false;
+
+  /**
+   * @param capacity the number of lines that can be queued; rounded up to a power of 2
+   * @param policy   what to do with a line when the queue is full
+   */
+  AsyncLogWriter(int capacity, WebLogger.OverflowPolicy policy) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.capacity = size;
+    this.mask = size - 1;
+    this.policy = policy;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; ++i) {
+      sequences.set(i, i);
+    }
+    this.sinks = new Sink[size];
+    this.lines = new String[size];
+
+    this.thread = new Thread(this, "WebLogger writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Queue a line for the sink
+   *
+   * @param sink the sink to write the line to
+   * @param line the formatted line
+   * @return false if the line was dropped
+   */
+  boolean enqueue(Sink sink, String line) {
+    if (Thread.currentThread() == thread) {
+      // the writer is logging about its own trouble; never wait on ourselves
+      sink.writeLine(line);
+      return true;
+    }
+
+    if (stopping) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    long pos = tail.get();
+    int index;
+    for (;;) {
+      index = (int) (pos & mask);
+      long available = sequences.get(index) - pos;
+      if (available == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = tail.get();
+      } else if (available < 0) {
+        // full
+        if (policy == WebLogger.OverflowPolicy.DROP || stopping) {
+          dropped.incrementAndGet();
+          return false;
+        }
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+        pos = tail.get();
+      } else {
+        pos = tail.get();
+      }
+    }
+
+    sinks[index] = sink;
+    lines[index] = line;
+    sequences.set(index, pos + 1);
+
+    if (waiting) {
+      LockSupport.unpark(thread);
+    }
+    return true;
+  }
+
+  @Override
+  public void run() {
+    List<Sink> touched = new ArrayList<>();
+    for (;;) {
+      long position = head;
+      long depth = tail.get() - position;
+      if (depth > highWater) {
+        highWater = depth;
+      }
+
+      int count = 0;
+      for (;;) {
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+          break;
+        }
+        Sink sink = sinks[index];
+        String line = lines[index];
+        sinks[index] = null;
+        lines[index] = null;
+        sequences.set(index, position + capacity);
+        ++position;
+        ++count;
+        head = position;
+
+        try {
+          sink.writeLine(line);
+        } catch (RuntimeException e) {
+          // a failing sink must not stop the writer for the other loggers
+        }
+        if (!touched.contains(sink)) {
+          touched.add(sink);
+        }
+      }
+
+      if (count != 0) {
+        for (Sink sink : touched) {
+          try {
+            sink.flushLines();
+          } catch (RuntimeException e) {
+            // as above
+          }
+        }
+        touched.clear();
+        written.addAndGet(count);
+        flushed = position;
+        continue;
+      }
+
+      if (stopping && tail.get() == position) {
+        return;
+      }
+
+      waiting = true;
+      if (sequences.get((int) (position & mask)) != position + 1) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      waiting = false;
+    }
+  }
+
+  /**
+   * Wait until every line queued before this call is written and flushed
+   *
+   * @param timeoutMillis how long to wait at most
+   * @return false if the wait timed out
+   */
+  boolean awaitFlushed(long timeoutMillis) {
+    if (Thread.currentThread() == thread) {
+      return false;
+    }
+    long target = tail.get();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (flushed < target) {
+      if (!thread.isAlive() || System.nanoTime() - deadline > 0) {
+        return false;
+      }
+      LockSupport.unpark(thread);
+      LockSupport.parkNanos(this, FULL_PARK_NANOS);
+    }
+    return true;
+  }
+
+  /**
+   * Write out everything queued and stop the writer thread. Lines queued afterwards are
+   * dropped.
+   *
+   * @param timeoutMillis how long to wait at most
+   */
+  void shutdown(long timeoutMillis) {
+    stopping = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of lines waiting to be written
+   */
+  long getQueueDepth() {
+    return Math.max(0L, tail.get() - head);
+  }
+
+  /**
+   * @return the most lines the writer has found waiting at once
+   */
+  long getQueueHighWater() {
+    return highWater;
+  }
+
+  /**
+   * @return the number of lines dropped because the queue was full
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of lines written
+   */
+  long getWrittenCount() {
+    return written.get();
+  }
+}
@@ -29,6 +29,30 @@ import java.util.Map;
  */
 public final class WebLogger {
   static final long MILLISECONDS_DAY = 86400000L;
+
+  /**
+   * What a logging thread does when the queue of the asynchronous writer is full
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the line and count it; the logging thread never waits
+     */
+    DROP,
+    /**
+     * Wait until the writer makes room; no line is lost
+     */
+    BLOCK
+  }
+
+  /**
+   * How long closing a logger waits for its queued lines to be written
+   */
+  private static final long ASYNC_DRAIN_TIMEOUT_MILLIS = 2000L;
+  /**
+   * The writer used by loggers in asynchronous mode, or null when they write to their
+   * files on the logging thread
+   */
+  private static volatile AsyncLogWriter asyncWriter = null;
   private static final Map<String, WebLoggerIf> loggers = new HashMap<>();
   private static long lastStaleScan = 0L;
   private static WebLoggerFactoryIf webLoggerFactory;
@@ -58,6 +82,76 @@ public final class WebLogger {
     webLoggerFactory = webLoggerFactoryImpl;
   }
 
+  /**
+   * Have loggers hand their lines to a background thread instead of writing them to the
+   * log file on the logging thread. Lines that were queued before the mode changes are
+   * still written.
+   *
+   * @param queueCapacity the number of lines that can be waiting to be written
+   * @param policy        what to do with a line when that many are waiting
+   */
+  public static synchronized void setAsynchronousMode(int queueCapacity,
+      OverflowPolicy policy) {
+    if (queueCapacity < 1 || policy == null) {
+      throw new IllegalArgumentException("queueCapacity must be positive and policy non-null");
+    }
+    AsyncLogWriter previous = asyncWriter;
+    asyncWriter = new AsyncLogWriter(queueCapacity, policy);
+    if (previous != null) {
+      previous.shutdown(ASYNC_DRAIN_TIMEOUT_MILLIS);
+    }
+  }
+
+  /**
+   * Have loggers write to their log files on the logging thread; this is the default.
+   */
+  public static synchronized void setSynchronousMode() {
+    AsyncLogWriter previous = asyncWriter;
+    asyncWriter = null;
+    if (previous != null) {
+      previous.shutdown(ASYNC_DRAIN_TIMEOUT_MILLIS);
+    }
+  }
+
+  static AsyncLogWriter getAsyncWriter() {
+    return asyncWriter;
+  }
+
+  /**
+   * Wait for the lines queued by loggers in asynchronous mode to reach their files
+   */
+  static void awaitAsyncWrites() {
+    AsyncLogWriter writer = asyncWriter;
+    if (writer != null) {
+      writer.awaitFlushed(ASYNC_DRAIN_TIMEOUT_MILLIS);
+    }
+  }
+
+  /**
+   * @return the number of lines waiting to be written in asynchronous mode
+   */
+  public static long getAsyncQueueDepth() {
+    AsyncLogWriter writer = asyncWriter;
+    return writer == null ? 0L : writer.getQueueDepth();
+  }
+
+  /**
+   * @return the most lines that have been waiting at once since asynchronous mode was set
+   */
+  public static long getAsyncQueueHighWater() {
+    AsyncLogWriter writer = asyncWriter;
+    return writer == null ? 0L : writer.getQueueHighWater();
+  }
+
+  /**
+   * @return the number of lines dropped under {@link OverflowPolicy#DROP} since
+   * asynchronous mode was set
+   */
+  public static long getAsyncDroppedCount() {
+    AsyncLogWriter writer = asyncWriter;
+    return writer == null ? 0L : writer.getDroppedCount();
+  }
+
   public static synchronized void closeAll() {
     for (WebLoggerIf l : loggers.values()) {
       l.close();
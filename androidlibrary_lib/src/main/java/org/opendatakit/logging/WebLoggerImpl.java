@@ -39,7 +39,7 @@ import java.nio.charset.StandardCharsets;
  *
  * @author mitchellsundt@gmail.com
  */
-class WebLoggerImpl implements WebLoggerIf {
+class WebLoggerImpl implements WebLoggerIf, AsyncLogWriter.Sink {
   private static final long FLUSH_INTERVAL = 12000L; // 5 times a minute
 
   /**
@@ -50,9 +50,32 @@ class WebLoggerImpl implements WebLoggerIf {
   private static final int DEFAULT_MIN_LOG_LEVEL_TO_SPEW = INFO;
 
   private static final String DATE_FORMAT = "yyyy-MM-dd_HH";
-  private static final String LOG_LINE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+  /**
+   * The log line date format is "yyyy-MM-dd HH:mm:ss.SSS"; the milliseconds are appended
+   * to this prefix, which changes only once a second
+   */
+  private static final String LOG_LINE_SECOND_FORMAT = "yyyy-MM-dd HH:mm:ss.";
+  private static final int LOG_LINE_DATE_LENGTH = 23;
+  // the length of "yyyy-MM-dd HH:mm", used to recognize messages that are already stamped
+  private static final int LOG_LINE_MINUTE_LENGTH = 16;
+  private static final int MAX_SYSTEM_LOG_LINE_LENGTH = 128;
+  private static final int LINE_BUILDER_CAPACITY = 256;
+  // a builder grown past this by a long message is not kept for reuse
+  private static final int MAX_LINE_BUILDER_CAPACITY = 8192;
   private static final String TAG = WebLoggerImpl.class.getSimpleName();
 
+  /**
+   * The formatted forms of the current second and hour, shared by every logger
+   */
+  private static volatile TimeStamp currentTimeStamp = null;
+
+  private static final ThreadLocal<StringBuilder> LINE_BUILDER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(LINE_BUILDER_CAPACITY);
+    }
+  };
+
   // appName under which to write log
   private final String appName;
 
@@ -70,6 +93,8 @@ class WebLoggerImpl implements WebLoggerIf {
   // the last time we flushed our output stream
   private long lastFlush = 0L;
   private LoggingFileObserver loggingObserver = null;
+  // the dropped line count of the asynchronous writer last noted in the log
+  private long reportedDropCount = 0L;
 
   WebLoggerImpl(String appName) {
     this.appName = appName;
@@ -79,15 +104,81 @@ class WebLoggerImpl implements WebLoggerIf {
     }
   }
 
-  private String getFormattedFileDateNow() {
-    return new DateTime().toString(DATE_FORMAT);
+  /**
+   * @param now the current time
+   * @return the formatted forms of the second containing now
+   */
+  private static TimeStamp getTimeStamp(long now) {
+    TimeStamp stamp = currentTimeStamp;
+    if (stamp == null || now < stamp.secondStart || now >= stamp.secondStart + 1000L) {
+      stamp = new TimeStamp(now, stamp);
+      currentTimeStamp = stamp;
+    }
+    return stamp;
+  }
+
+  private static boolean isStamped(TimeStamp stamp, String logMsg) {
+    return logMsg.regionMatches(0, stamp.linePrefix, 0, LOG_LINE_MINUTE_LENGTH);
+  }
+
+  private static char getSeverityCode(int severity) {
+    switch (severity) {
+    case ASSERT:
+      return 'A';
+    case DEBUG:
+      return 'D';
+    case ERROR:
+      return 'E';
+    case INFO:
+      return 'I';
+    case SUCCESS:
+      return 'S';
+    case VERBOSE:
+      return 'V';
+    case TIP:
+      return 'T';
+    case WARN:
+      return 'W';
+    default:
+      return '?';
+    }
   }
 
-  private String getFormattedLogLineDateNow() {
-    return new DateTime().toString(LOG_LINE_DATE_FORMAT);
+  /**
+   * Compose the line written to the log file: the severity and tag, then the time unless
+   * the message already starts with it, then the message.
+   *
+   * @param now      the current time
+   * @param severity the severity of the message
+   * @param t        the tag
+   * @param logMsg   the message
+   * @return the line, without a line terminator
+   */
+  static String buildLogLine(long now, int severity, String t, String logMsg) {
+    TimeStamp stamp = getTimeStamp(now);
+    StringBuilder b = LINE_BUILDER.get();
+    b.setLength(0);
+    b.append(getSeverityCode(severity)).append('/').append(t).append(": ");
+    if (!isStamped(stamp, logMsg)) {
+      stamp.appendTo(b, now);
+      b.append(' ');
+    }
+    b.append(logMsg);
+    String line = b.toString();
+    if (b.capacity() > MAX_LINE_BUILDER_CAPACITY) {
+      LINE_BUILDER.remove();
+    }
+    return line;
   }
 
-  public synchronized void close() {
+  public void close() {
+    // let the lines still queued for us reach the file first; this must not hold our
+    // monitor, which the writer thread needs to write them
+    WebLogger.awaitAsyncWrites();
+    closeFile();
+  }
+
+  private synchronized void closeFile() {
     if (logFile != null) {
       OutputStreamWriter writer = logFile;
       logFile = null;
@@ -159,8 +250,53 @@ class WebLoggerImpl implements WebLoggerIf {
     }
   }
 
-  private synchronized void log(String logMsg) throws IOException {
-    String curDateStamp = getFormattedFileDateNow();
+  /**
+   * Write the line to the log file, or queue it for the writer thread in asynchronous mode
+   *
+   * @param logMsg the formatted line
+   * @throws IOException if writing fails
+   */
+  private void log(String logMsg) throws IOException {
+    AsyncLogWriter writer = WebLogger.getAsyncWriter();
+    if (writer != null) {
+      writer.enqueue(this, logMsg);
+    } else {
+      logToFile(logMsg);
+    }
+  }
+
+  @Override
+  public synchronized void writeLine(String line) {
+    try {
+      logToFile(line);
+    } catch (IOException e) {
+      Log.e(TAG, Log.getStackTraceString(e), e);
+    }
+  }
+
+  @Override
+  public synchronized void flushLines() {
+    if (logFile == null) {
+      return;
+    }
+    try {
+      long dropCount = WebLogger.getAsyncDroppedCount();
+      if (dropCount < reportedDropCount) {
+        // the writer was replaced and its count started over
+        reportedDropCount = 0L;
+      }
+      if (dropCount > reportedDropCount) {
+        logFile.write("---- dropped " + (dropCount - reportedDropCount) + " lines ----\n");
+        reportedDropCount = dropCount;
+      }
+      logFile.flush();
+    } catch (IOException e) {
+      Log.e(TAG, Log.getStackTraceString(e), e);
+    }
+  }
+
+  private synchronized void logToFile(String logMsg) throws IOException {
+    String curDateStamp = getTimeStamp(System.currentTimeMillis()).fileKey;
     if (logFile == null || dateStamp == null || !curDateStamp.equals(dateStamp)) {
       // the file we should log to has changed.
       // or has not yet been opened.
@@ -210,7 +346,8 @@ class WebLoggerImpl implements WebLoggerIf {
     }
 
     if (logFile != null) {
-      logFile.write(logMsg + "\n");
+      logFile.write(logMsg);
+      logFile.write('\n');
     }
 
     if (lastFlush + WebLoggerImpl.FLUSH_INTERVAL < System.currentTimeMillis()) {
@@ -237,89 +374,64 @@ class WebLoggerImpl implements WebLoggerIf {
   }
 
   public void log(int severity, String t, String logMsg) {
-    try {
-
-      String androidLogLine = logMsg;
+    long now = System.currentTimeMillis();
+
+    // Our severity level has to have unique values that we actually want to compress
+    // when calculating whether to emit the value to the system log or not. Do that via the
+    // remappedSeverity computation below.
+    int remappedSeverity = severity;
+    if (severity == SUCCESS) {
+      remappedSeverity = ERROR;
+    }
+    if (severity == TIP) {
+      remappedSeverity = ASSERT;
+    }
 
-      // insert timestamp to help with time tracking
-      String curLogLineStamp = getFormattedLogLineDateNow();
-      if (!logMsg.startsWith(curLogLineStamp.substring(0, 16))) {
-        logMsg = curLogLineStamp + " " + logMsg;
-      } else {
-        androidLogLine = logMsg.length() > curLogLineStamp.length() ?
-            logMsg.substring(curLogLineStamp.length()) :
-            logMsg;
-      }
-      if (androidLogLine.length() > 128) {
-        androidLogLine = androidLogLine.substring(0, 125) + "...";
-      }
+    // the system log line is only composed if it will be emitted
+    if (remappedSeverity >= minLogLevelToSpew) {
+      logToSystem(severity, t, getSystemLogLine(getTimeStamp(now), logMsg));
+    }
+    if (getSeverityCode(severity) == '?') {
+      Log.d(t, logMsg);
+    }
 
-      String androidTag = t;
-      int periodIdx = t.lastIndexOf('.');
-      if (t.length() > 26 && periodIdx != -1) {
-        androidTag = t.substring(periodIdx + 1);
-      }
+    // and compose the log to the file...
+    try {
+      log(buildLogLine(now, severity, t, logMsg));
+    } catch (IOException e) {
+      Log.e(TAG, Log.getStackTraceString(e), e);
+    }
+  }
 
-      // Our severity level has to have unique values that we actually want to compress
-      // when calculating whether to emit the value to the system log or not. Do that via the
-      // remappedSeverity computation below.
-      int remappedSeverity = severity;
-      if (severity == SUCCESS) {
-        remappedSeverity = ERROR;
-      }
-      if (severity == TIP) {
-        remappedSeverity = ASSERT;
-      }
+  private static String getSystemLogLine(TimeStamp stamp, String logMsg) {
+    String androidLogLine = logMsg;
+    // the system log has its own timestamp
+    if (isStamped(stamp, logMsg) && logMsg.length() > LOG_LINE_DATE_LENGTH) {
+      androidLogLine = logMsg.substring(LOG_LINE_DATE_LENGTH);
+    }
+    if (androidLogLine.length() > MAX_SYSTEM_LOG_LINE_LENGTH) {
+      androidLogLine = androidLogLine.substring(0, MAX_SYSTEM_LOG_LINE_LENGTH - 3) + "...";
+    }
+    return androidLogLine;
+  }
 
-      if (remappedSeverity >= minLogLevelToSpew) {
-        // do logcat logging...
-        if (severity == ERROR) {
-          Log.e(androidTag, androidLogLine);
-        } else if (severity == WARN) {
-          Log.w(androidTag, androidLogLine);
-        } else if (severity == INFO || severity == SUCCESS || severity == TIP) {
-          Log.i(androidTag, androidLogLine);
-        } else if (severity == DEBUG) {
-          Log.d(androidTag, androidLogLine);
-        } else {
-          Log.v(androidTag, androidLogLine);
-        }
-      }
+  private static void logToSystem(int severity, String t, String androidLogLine) {
+    String androidTag = t;
+    int periodIdx = t.lastIndexOf('.');
+    if (t.length() > 26 && periodIdx != -1) {
+      androidTag = t.substring(periodIdx + 1);
+    }
 
-      // and compose the log to the file...
-      switch (severity) {
-      case ASSERT:
-        logMsg = "A/" + t + ": " + logMsg;
-        break;
-      case DEBUG:
-        logMsg = "D/" + t + ": " + logMsg;
-        break;
-      case ERROR:
-        logMsg = "E/" + t + ": " + logMsg;
-        break;
-      case INFO:
-        logMsg = "I/" + t + ": " + logMsg;
-        break;
-      case SUCCESS:
-        logMsg = "S/" + t + ": " + logMsg;
-        break;
-      case VERBOSE:
-        logMsg = "V/" + t + ": " + logMsg;
-        break;
-      case TIP:
-        logMsg = "T/" + t + ": " + logMsg;
-        break;
-      case WARN:
-        logMsg = "W/" + t + ": " + logMsg;
-        break;
-      default:
-        Log.d(t, logMsg);
-        logMsg = "?/" + t + ": " + logMsg;
-        break;
-      }
-      log(logMsg);
-    } catch (IOException e) {
-      Log.e(TAG, Log.getStackTraceString(e), e);
+    if (severity == ERROR) {
+      Log.e(androidTag, androidLogLine);
+    } else if (severity == WARN) {
+      Log.w(androidTag, androidLogLine);
+    } else if (severity == INFO || severity == SUCCESS || severity == TIP) {
+      Log.i(androidTag, androidLogLine);
+    } else if (severity == DEBUG) {
+      Log.d(androidTag, androidLogLine);
+    } else {
+      Log.v(androidTag, androidLogLine);
     }
   }
 
@@ -373,6 +485,44 @@ class WebLoggerImpl implements WebLoggerIf {
     }
   }
 
+  /**
+   * The formatted forms of one second: the log line prefix, and the file name of its hour
+   */
+  private static final class TimeStamp {
+    final long secondStart;
+    final long hourStart;
+    final long hourEnd;
+    // "yyyy-MM-dd HH:mm:ss."
+    final String linePrefix;
+    // "yyyy-MM-dd_HH"
+    final String fileKey;
+
+    TimeStamp(long now, TimeStamp previous) {
+      DateTime time = new DateTime(now);
+      secondStart = now - time.getMillisOfSecond();
+      linePrefix = time.toString(LOG_LINE_SECOND_FORMAT);
+      if (previous != null && now >= previous.hourStart && now < previous.hourEnd) {
+        hourStart = previous.hourStart;
+        hourEnd = previous.hourEnd;
+        fileKey = previous.fileKey;
+      } else {
+        DateTime hour = time.hourOfDay().roundFloorCopy();
+        hourStart = hour.getMillis();
+        hourEnd = hour.plusHours(1).getMillis();
+        fileKey = time.toString(DATE_FORMAT);
+      }
+    }
+
+    /**
+     * Append "yyyy-MM-dd HH:mm:ss.SSS" for a time within this second
+     */
+    void appendTo(StringBuilder b, long now) {
+      int millis = (int) (now - secondStart);
+      b.append(linePrefix).append((char) ('0' + millis / 100))
+          .append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+    }
+  }
+
   private final class LoggingFileObserver extends FileObserver {
 
     private LoggingFileObserver(String path) {
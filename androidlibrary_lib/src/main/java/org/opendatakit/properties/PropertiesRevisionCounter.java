@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.properties;
+
+import org.opendatakit.logging.WebLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A revision counter for the properties files, shared by every process of an app through a
+ * small memory-mapped file. Reading it is a memory read, with no system call, so it can be
+ * checked on every property access.
+ * <p>
+ * The counter is only incremented while holding the {@link GainPropertiesLock}.
+ * <p>
+ * Used in PropertiesSingleton
+ */
+final class PropertiesRevisionCounter {
+  static final int INVALID_COUNTER = -1;
+
+  private static final int COUNTER_SIZE = 4;
+
+  private final String mAppName;
+  private final File mCounterFile;
+  private volatile MappedByteBuffer mCounter = null;
+
+  PropertiesRevisionCounter(String appName, File counterFile) {
+    mAppName = appName;
+    mCounterFile = counterFile;
+  }
+
+  /**
+   * @return the current value of the counter, or INVALID_COUNTER if the counter file
+   * could not be mapped
+   */
+  int get() {
+    MappedByteBuffer counter = mCounter;
+    if (counter == null) {
+      return INVALID_COUNTER;
+    }
+    return counter.getInt(0);
+  }
+
+  /**
+   * Increment the counter. Must be called while holding the properties lock.
+   *
+   * @return the new value of the counter, or INVALID_COUNTER if the counter file could not
+   * be mapped
+   */
+  int increment() {
+    MappedByteBuffer counter = mCounter;
+    if (counter == null) {
+      return INVALID_COUNTER;
+    }
+    int value = (counter.getInt(0) + 1) & Integer.MAX_VALUE;
+    counter.putInt(0, value);
+    return value;
+  }
+
+  /**
+   * Map the counter file if it is not mapped, or map it again if it has been deleted since,
+   * e.g., when the app's data folder was cleared. This costs system calls and is done only
+   * occasionally.
+   *
+   * @return whether the counter is usable
+   */
+  synchronized boolean revalidate() {
+    if (mCounter != null && mCounterFile.exists()) {
+      return true;
+    }
+    mCounter = null;
+    try {
+      RandomAccessFile file = new RandomAccessFile(mCounterFile, "rw");
+      try {
+        if (file.length() < COUNTER_SIZE) {
+          file.setLength(COUNTER_SIZE);
+        }
+        // the mapping stays valid after the file is closed
+        mCounter = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, COUNTER_SIZE);
+      } finally {
+        file.close();
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(mAppName).printStackTrace(e);
+    }
+    return mCounter != null;
+  }
+}
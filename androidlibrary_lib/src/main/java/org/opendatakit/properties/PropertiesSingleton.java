@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -53,6 +54,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * Device settings and secure settings are not overwritten by changes in the
  * general (syncable) settings. You need to Reset the device configuration to
  * re-initialize these.
+ * <p>
+ * Reads are served from an immutable snapshot of all of these, without locking. Updates
+ * and reloads are serialized on this object, change private working copies, and then
+ * publish a new snapshot.
  */
 public final class PropertiesSingleton {
 
@@ -60,6 +65,17 @@ public final class PropertiesSingleton {
   private static final int INVALID_REVISION = -1;
 
   private static final String PROPERTIES_REVISION_FILENAME = "properties.revision";
+  /**
+   * Must not start with PROPERTIES_REVISION_FILENAME; those files are deleted on every
+   * revision
+   */
+  private static final String PROPERTIES_COUNTER_FILENAME = "properties.counter";
+  /**
+   * How often to scan for revision files even though the revision counter has not changed.
+   * This catches revisions written by older versions of the tools, which do not update the
+   * counter.
+   */
+  private static final long REVISION_SCAN_INTERVAL_NANOS = 2000000000L;
   private static final String GENERAL_PROPERTIES_FILENAME = "app.properties";
   private static final String DEFAULT_DEVICE_PROPERTIES_FILENAME = "default.device.properties";
   private static final String DEVICE_PROPERTIES_FILENAME = "device.properties";
@@ -81,12 +97,18 @@ public final class PropertiesSingleton {
   private final TreeMap<String, String> mGeneralDefaults;
   private final TreeMap<String, String> mDeviceDefaults;
   private final TreeMap<String, String> mSecureDefaults;
+  // the working copies; only accessed while holding this object's monitor
   private final Properties mGeneralProps;
   private final Properties mGlobalDeviceProps;
   private final Properties mDeviceProps;
   private final Properties mSecureProps;
+  private final PropertiesRevisionCounter mRevisionCounter;
   private int currentRevision = INVALID_REVISION;
+  private int currentCounter = PropertiesRevisionCounter.INVALID_COUNTER;
+  private volatile long lastRevisionScan = 0L;
   private String mInstallationId;
+  // what readers see
+  private volatile Snapshot mSnapshot;
 
   PropertiesSingleton(Context context, String appName, ReentrantLock appLock,
                       TreeMap<String, String> plainDefaults,
@@ -116,6 +138,9 @@ public final class PropertiesSingleton {
     mDeviceProps = new Properties();
     mSecureProps = new Properties();
 
+    mRevisionCounter = new PropertiesRevisionCounter(mAppName,
+        new File(ODKFileUtils.getDataFolder(mAppName), PROPERTIES_COUNTER_FILENAME));
+
     // call init
     init();
   }
@@ -175,16 +200,16 @@ public final class PropertiesSingleton {
    */
   @SuppressWarnings("unused")
   public boolean containsKey(String propertyName) {
-    readPropertiesIfModified();
+    Snapshot snapshot = getSnapshot();
     if (isSecureProperty(propertyName)) {
       if ( propertyName.equals(CommonToolProperties.KEY_INSTALLATION_ID)) {
-        return (mInstallationId != null);
+        return (snapshot.installationId != null);
       }
-      return mSecureProps.containsKey(propertyName);
+      return snapshot.secure.containsKey(propertyName);
     } else if (isDeviceProperty(propertyName)) {
-      return mDeviceProps.containsKey(propertyName);
+      return snapshot.device.containsKey(propertyName);
     } else {
-      return mGeneralProps.containsKey(propertyName);
+      return snapshot.general.containsKey(propertyName);
     }
   }
 
@@ -195,20 +220,20 @@ public final class PropertiesSingleton {
    * @return null or the string value
    */
   public String getProperty(String propertyName) {
-    readPropertiesIfModified();
+    Snapshot snapshot = getSnapshot();
     if (isSecureProperty(propertyName)) {
       if (!mHasSecureStorage) {
         throw new IllegalStateException(
             "Attempt to retrieve secured property " + propertyName + " outside of ODK Services");
       }
       if ( propertyName.equals(CommonToolProperties.KEY_INSTALLATION_ID)) {
-        return mInstallationId;
+        return snapshot.installationId;
       }
-      return mSecureProps.getProperty(propertyName);
+      return snapshot.secure.get(propertyName);
     } else if (isDeviceProperty(propertyName)) {
-      return mDeviceProps.getProperty(propertyName);
+      return snapshot.device.get(propertyName);
     } else {
-      return mGeneralProps.getProperty(propertyName);
+      return snapshot.general.get(propertyName);
     }
   }
 
@@ -259,7 +284,7 @@ public final class PropertiesSingleton {
     }
   }
 
-  public void setProperties(Map<String, String> properties) {
+  public synchronized void setProperties(Map<String, String> properties) {
     readPropertiesIfModified();
     if (!mHasSecureStorage) {
       for (String propertyName : properties.keySet()) {
@@ -331,7 +356,7 @@ public final class PropertiesSingleton {
    * server). After re-reading the properties files, this increments the properties
    * revision file so that survey, tables, etc. will also pick up the latest changes.
    */
-  public void signalPropertiesChange() {
+  public synchronized void signalPropertiesChange() {
     // read the current revision and increment it
     {
       /*
@@ -341,7 +366,7 @@ public final class PropertiesSingleton {
       GainPropertiesLock theLock = new GainPropertiesLock(mAppName, mAppLock);
       try {
         currentRevision = getCurrentRevision();
-        currentRevision = incrementAndWriteRevision(currentRevision);
+        incrementRevision();
       } finally {
         theLock.release();
       }
@@ -362,14 +387,12 @@ public final class PropertiesSingleton {
   @SuppressWarnings("unused")
   public boolean shouldRunInitializationTask(String toolName) {
     // this is stored in the device properties
-    readPropertiesIfModified();
-    String value = mDeviceProps.getProperty(toolInitializationPropertyName(toolName));
+    String value = getSnapshot().device.get(toolInitializationPropertyName(toolName));
     return value == null || value.isEmpty();
   }
 
   public boolean shouldRunCommonInitializationTask() {
-    readPropertiesIfModified();
-    String value = mDeviceProps.getProperty(CommonToolProperties.KEY_COMMON_INITIALIZATION);
+    String value = getSnapshot().device.get(CommonToolProperties.KEY_COMMON_INITIALIZATION);
     return value == null || value.isEmpty();
   }
 
@@ -380,7 +403,7 @@ public final class PropertiesSingleton {
    * @param toolName (e.g., survey, tables, scan, etc.)
    */
   @SuppressWarnings("unused")
-  public void clearRunInitializationTask(String toolName) {
+  public synchronized void clearRunInitializationTask(String toolName) {
     // this is stored in the device properties
     readPropertiesIfModified();
     mDeviceProps.setProperty(
@@ -391,7 +414,7 @@ public final class PropertiesSingleton {
     writeProperties(false, true, false);
   }
 
-  public void clearRunCommonInitializationTask() {
+  public synchronized void clearRunCommonInitializationTask() {
     readPropertiesIfModified();
     mDeviceProps.setProperty(
         CommonToolProperties.KEY_COMMON_INITIALIZATION,
@@ -406,7 +429,7 @@ public final class PropertiesSingleton {
    * Used in services.sync.service.SyncExecutionContext
    */
   @SuppressWarnings("unused")
-  public void setAllRunInitializationTasks() {
+  public synchronized void setAllRunInitializationTasks() {
     // this is stored in the device properties
     readPropertiesIfModified();
     ArrayList<String> keysToRemove = new ArrayList<>();
@@ -454,6 +477,7 @@ public final class PropertiesSingleton {
     // (re)set values to defaults
 
     currentRevision = INVALID_REVISION;
+    currentCounter = PropertiesRevisionCounter.INVALID_COUNTER;
 
     mGeneralProps.clear();
     mGlobalDeviceProps.clear();
@@ -512,6 +536,34 @@ public final class PropertiesSingleton {
     if (updatedSecureProps || updatedDeviceProps || updatedGeneralProps) {
       writeProperties(updatedSecureProps, updatedDeviceProps, updatedGeneralProps);
     }
+    // the defaults filled in above are not on disk if nothing needed writing
+    publishSnapshot();
+  }
+
+  /**
+   * Make the working copies visible to readers. Must be called while holding this
+   * object's monitor.
+   */
+  private void publishSnapshot() {
+    mSnapshot = new Snapshot(mGeneralProps, mDeviceProps, mSecureProps, mInstallationId,
+        currentCounter);
+  }
+
+  /**
+   * @return the properties as last read or written, after reloading them if another
+   * thread or process has changed them since
+   */
+  private Snapshot getSnapshot() {
+    Snapshot snapshot = mSnapshot;
+    int counter = mRevisionCounter.get();
+    if (counter != PropertiesRevisionCounter.INVALID_COUNTER && counter == snapshot.counter
+        && System.nanoTime() - lastRevisionScan < REVISION_SCAN_INTERVAL_NANOS) {
+      return snapshot;
+    }
+    synchronized (this) {
+      readPropertiesIfModified();
+      return mSnapshot;
+    }
   }
 
   private int getCurrentRevision() {
@@ -554,6 +606,16 @@ public final class PropertiesSingleton {
     return noResult;
   }
 
+  /**
+   * Advance both the revision file and the revision counter. Must be called while holding
+   * the properties lock.
+   */
+  private void incrementRevision() {
+    currentRevision = incrementAndWriteRevision(currentRevision);
+    mRevisionCounter.revalidate();
+    currentCounter = mRevisionCounter.increment();
+  }
+
   private int incrementAndWriteRevision(int oldRevision) {
     ++oldRevision;
 
@@ -602,8 +664,25 @@ public final class PropertiesSingleton {
     return oldRevision;
   }
 
+  /**
+   * Must be called while holding this object's monitor.
+   */
   private void readPropertiesIfModified() {
 
+    int counter = mRevisionCounter.get();
+    if (counter != PropertiesRevisionCounter.INVALID_COUNTER && counter == currentCounter) {
+      // no tool that updates the counter has written the properties since we read them.
+      // Only occasionally pay for the directory scan that also detects older tools' writes.
+      long now = System.nanoTime();
+      if (now - lastRevisionScan < REVISION_SCAN_INTERVAL_NANOS) {
+        return;
+      }
+      lastRevisionScan = now;
+      if (!mRevisionCounter.revalidate()) {
+        counter = PropertiesRevisionCounter.INVALID_COUNTER;
+      }
+    }
+
     int newRevision = INVALID_REVISION;
 
     {
@@ -624,7 +703,8 @@ public final class PropertiesSingleton {
       newRevision = getCurrentRevision();
     }
     
-    if (newRevision == INVALID_REVISION || newRevision != currentRevision) {
+    if (newRevision == INVALID_REVISION || newRevision != currentRevision
+        || counter != currentCounter) {
       readProperties(false);
     }
 
@@ -766,6 +846,10 @@ public final class PropertiesSingleton {
       }
 
       currentRevision = getCurrentRevision();
+      mRevisionCounter.revalidate();
+      currentCounter = mRevisionCounter.get();
+      lastRevisionScan = System.nanoTime();
+      publishSnapshot();
 
     } finally {
       theLock.release();
@@ -824,7 +908,7 @@ public final class PropertiesSingleton {
 
     GainPropertiesLock theLock = new GainPropertiesLock(mAppName, mAppLock);
     try {
-      currentRevision = incrementAndWriteRevision(currentRevision);
+      incrementRevision();
 
       if (updatedGeneralProps) {
         try {
@@ -880,6 +964,7 @@ public final class PropertiesSingleton {
           WebLogger.getLogger(mAppName).printStackTrace(e);
         }
       }
+      publishSnapshot();
     } finally {
       theLock.release();
     }
@@ -889,12 +974,12 @@ public final class PropertiesSingleton {
    * Used only in services.clearAppPropertiesActivity
    */
   @SuppressWarnings("unused")
-  public void clearSettings() {
+  public synchronized void clearSettings() {
     try {
       GainPropertiesLock theLock = new GainPropertiesLock(mAppName, mAppLock);
 
       try {
-        currentRevision = incrementAndWriteRevision(currentRevision);
+        incrementRevision();
 
         File f;
         f = new File(ODKFileUtils.getDataFolder(mAppName), DEVICE_PROPERTIES_FILENAME);
@@ -920,4 +1005,34 @@ public final class PropertiesSingleton {
       init();
     }
   }
+
+  /**
+   * An immutable copy of the properties. It is replaced, never changed, when they are
+   * read from disk or written.
+   */
+  private static final class Snapshot {
+    final Map<String, String> general;
+    final Map<String, String> device;
+    final Map<String, String> secure;
+    final String installationId;
+    // the revision counter the copy was taken at
+    final int counter;
+
+    Snapshot(Properties general, Properties device, Properties secure, String installationId,
+        int counter) {
+      this.general = copyOf(general);
+      this.device = copyOf(device);
+      this.secure = copyOf(secure);
+      this.installationId = installationId;
+      this.counter = counter;
+    }
+
+    private static Map<String, String> copyOf(Properties props) {
+      Map<String, String> copy = new HashMap<>(props.size() * 2);
+      for (Map.Entry<Object, Object> entry : props.entrySet()) {
+        copy.put((String) entry.getKey(), (String) entry.getValue());
+      }
+      return copy;
+    }
+  }
 }
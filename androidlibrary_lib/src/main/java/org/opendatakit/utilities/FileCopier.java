@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies files and directory trees, preserving last-modified times, for ODKFileUtils.
+ * <p>
+ * A destination file that already has the source's length and last-modified time and
+ * the same contents is left alone. The contents are compared by md5 digest, through the
+ * app's digest cache, if an app name is given, and byte by byte otherwise. Any other
+ * file is copied in the kernel with FileChannel.transferTo, or, if allowed, hard linked
+ * to the source. Hard links only work within one filesystem, and not at all on some
+ * external storage; when linking fails the file is copied and no further links are
+ * attempted.
+ * <p>
+ * A hard linked destination shares its contents with the source, so it must only be
+ * used for files that are replaced rather than changed in place, such as attachments.
+ * <p>
+ * Not thread safe; use one copier per copy.
+ */
+final class FileCopier {
+
+  /**
+   * The most transferTo is asked to move at once
+   */
+  private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+  private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
+  private static final int COMPARE_BUFFER_SIZE = 128 * 1024;
+
+  private final String mAppName;
+  private final boolean mAllowHardLinks;
+  private boolean mHardLinksFailed = false;
+
+  private long mBytesCopied = 0L;
+  private int mFilesCopied = 0;
+  private int mFilesLinked = 0;
+  private int mFilesSkipped = 0;
+
+  /**
+   * @param appName        the app whose digest cache to compare files with, or null to
+   *                       compare them byte by byte
+   * @param allowHardLinks whether to hard link files instead of copying them
+   */
+  FileCopier(String appName, boolean allowHardLinks) {
+    mAppName = appName;
+    mAllowHardLinks = allowHardLinks;
+  }
+
+  /**
+   * @return the number of bytes written to destination files
+   */
+  long getBytesCopied() {
+    return mBytesCopied;
+  }
+
+  int getFilesCopied() {
+    return mFilesCopied;
+  }
+
+  int getFilesLinked() {
+    return mFilesLinked;
+  }
+
+  /**
+   * @return the number of destination files that were already identical
+   */
+  int getFilesSkipped() {
+    return mFilesSkipped;
+  }
+
+  /**
+   * Copy a file, creating the destination's directory if needed and overwriting the
+   * destination if it differs.
+   *
+   * @param srcFile  the file to copy
+   * @param destFile where to copy it to
+   * @throws IOException if the file could not be copied
+   */
+  void copyFile(File srcFile, File destFile) throws IOException {
+    if (srcFile == null || destFile == null) {
+      throw new NullPointerException("Source and destination must not be null");
+    }
+    if (!srcFile.exists()) {
+      throw new FileNotFoundException("Source '" + srcFile + "' does not exist");
+    }
+    if (srcFile.isDirectory()) {
+      throw new IOException("Source '" + srcFile + "' exists but is a directory");
+    }
+    if (srcFile.getCanonicalPath().equals(destFile.getCanonicalPath())) {
+      throw new IOException(
+          "Source '" + srcFile + "' and destination '" + destFile + "' are the same");
+    }
+    File parentFile = destFile.getParentFile();
+    if (parentFile != null && !parentFile.mkdirs() && !parentFile.isDirectory()) {
+      throw new IOException("Destination '" + parentFile + "' directory cannot be created");
+    }
+    if (destFile.exists() && !destFile.canWrite()) {
+      throw new IOException("Destination '" + destFile + "' exists but is read-only");
+    }
+    doCopyFile(srcFile, destFile);
+  }
+
+  /**
+   * Copy the contents of a directory into another, merging with what is already there.
+   *
+   * @param srcDir  the directory to copy
+   * @param destDir where to copy it to
+   * @throws IOException if the directory could not be copied
+   */
+  void copyDirectory(File srcDir, File destDir) throws IOException {
+    if (srcDir == null || destDir == null) {
+      throw new NullPointerException("Source and destination must not be null");
+    }
+    if (!srcDir.exists()) {
+      throw new FileNotFoundException("Source '" + srcDir + "' does not exist");
+    }
+    if (!srcDir.isDirectory()) {
+      throw new IOException("Source '" + srcDir + "' exists but is not a directory");
+    }
+    String srcPath = srcDir.getCanonicalPath();
+    String destPath = destDir.getCanonicalPath();
+    if (srcPath.equals(destPath)) {
+      throw new IOException(
+          "Source '" + srcDir + "' and destination '" + destDir + "' are the same");
+    }
+    // do not copy the destination into itself when it is inside the source
+    String excluded = destPath.startsWith(srcPath + File.separator) ? destPath : null;
+    doCopyDirectory(srcDir, destDir, excluded);
+  }
+
+  private void doCopyDirectory(File srcDir, File destDir, String excluded) throws IOException {
+    File[] children = srcDir.listFiles();
+    if (children == null) {
+      throw new IOException("Failed to list contents of " + srcDir);
+    }
+    if (destDir.exists()) {
+      if (!destDir.isDirectory()) {
+        throw new IOException("Destination '" + destDir + "' exists but is not a directory");
+      }
+    } else if (!destDir.mkdirs() && !destDir.isDirectory()) {
+      throw new IOException("Destination '" + destDir + "' directory cannot be created");
+    }
+    if (!destDir.canWrite()) {
+      throw new IOException("Destination '" + destDir + "' cannot be written to");
+    }
+
+    for (File child : children) {
+      File target = new File(destDir, child.getName());
+      if (child.isDirectory()) {
+        if (excluded != null && excluded.equals(child.getCanonicalPath())) {
+          continue;
+        }
+        doCopyDirectory(child, target, excluded);
+      } else {
+        doCopyFile(child, target);
+      }
+    }
+    destDir.setLastModified(srcDir.lastModified());
+  }
+
+  private void doCopyFile(File srcFile, File destFile) throws IOException {
+    if (destFile.isDirectory()) {
+      throw new IOException("Destination '" + destFile + "' exists but is a directory");
+    }
+    long length = srcFile.length();
+    long lastModified = srcFile.lastModified();
+
+    if (destFile.exists() && destFile.length() == length
+        && destFile.lastModified() == lastModified && hasSameContent(srcFile, destFile)) {
+      ++mFilesSkipped;
+      return;
+    }
+
+    if (mAllowHardLinks && !mHardLinksFailed && link(srcFile, destFile)) {
+      ++mFilesLinked;
+      return;
+    }
+
+    transfer(srcFile, destFile);
+    if (destFile.length() != length) {
+      throw new IOException(
+          "Failed to copy full contents from '" + srcFile + "' to '" + destFile + "'");
+    }
+    destFile.setLastModified(lastModified);
+    mBytesCopied += length;
+    ++mFilesCopied;
+  }
+
+  private boolean hasSameContent(File srcFile, File destFile) {
+    if (mAppName != null) {
+      // usually both digests are cached, and neither file is read
+      Md5DigestCache cache = Md5DigestCache.getInstance(mAppName);
+      String srcDigest = cache.getDigest(srcFile);
+      return srcDigest != null && srcDigest.equals(cache.getDigest(destFile));
+    }
+    // without a cache, comparing the bytes is cheaper than hashing both files
+    try {
+      return contentEquals(srcFile, destFile);
+    } catch (IOException ignored) {
+      return false;
+    }
+  }
+
+  private static boolean contentEquals(File first, File second) throws IOException {
+    ByteBuffer firstBuffer = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+    ByteBuffer secondBuffer = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+    FileInputStream firstIn = new FileInputStream(first);
+    try {
+      FileInputStream secondIn = new FileInputStream(second);
+      try {
+        FileChannel firstChannel = firstIn.getChannel();
+        FileChannel secondChannel = secondIn.getChannel();
+        for (;;) {
+          firstBuffer.clear();
+          secondBuffer.clear();
+          boolean firstDone = !fill(firstChannel, firstBuffer);
+          boolean secondDone = !fill(secondChannel, secondBuffer);
+          firstBuffer.flip();
+          secondBuffer.flip();
+          if (!firstBuffer.equals(secondBuffer)) {
+            return false;
+          }
+          if (firstDone || secondDone) {
+            return firstDone && secondDone;
+          }
+        }
+      } finally {
+        secondIn.close();
+      }
+    } finally {
+      firstIn.close();
+    }
+  }
+
+  /**
+   * @return false if the end of the file was reached
+   */
+  private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean link(File srcFile, File destFile) {
+    if (destFile.exists() && !destFile.delete()) {
+      return false;
+    }
+    try {
+      Os.link(srcFile.getAbsolutePath(), destFile.getAbsolutePath());
+      return true;
+    } catch (Exception ignored) {
+      // EXDEV, EPERM on storage without links, ... -- copy this and the remaining files
+      mHardLinksFailed = true;
+      return false;
+    }
+  }
+
+  private static void transfer(File srcFile, File destFile) throws IOException {
+    FileInputStream in = new FileInputStream(srcFile);
+    try {
+      FileOutputStream out = new FileOutputStream(destFile);
+      try {
+        FileChannel input = in.getChannel();
+        FileChannel output = out.getChannel();
+        long size = input.size();
+        long position = 0L;
+        while (position < size) {
+          long count = input.transferTo(position,
+              Math.min(size - position, TRANSFER_CHUNK_SIZE), output);
+          if (count <= 0L) {
+            // transferTo may refuse; finish through a buffer
+            copyThroughBuffer(input, position, output);
+            break;
+          }
+          position += count;
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void copyThroughBuffer(FileChannel input, long position, FileChannel output)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(FALLBACK_BUFFER_SIZE);
+    input.position(position);
+    while (input.read(buffer) != -1) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        output.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
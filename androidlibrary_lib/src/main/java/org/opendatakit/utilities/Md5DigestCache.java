@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.opendatakit.logging.WebLogger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the md5 digests of files so that unchanged files are not read and hashed
+ * again. An entry is keyed by the file's canonical path and is only used while the
+ * file's length and last-modified time are the ones it was hashed with.
+ * <p>
+ * Files modified within the last few seconds are hashed but not cached, since a later
+ * write could leave both the length and the (coarse) last-modified time unchanged.
+ * <p>
+ * The digests can be saved under the app's system folder with {@link #save()}; they are
+ * loaded again on first use.
+ * <p>
+ * Used in ODKFileUtils
+ */
+public final class Md5DigestCache {
+
+  private static final String TAG = Md5DigestCache.class.getSimpleName();
+
+  private static final String CACHE_FILENAME = "md5.cache";
+  private static final String CACHE_FILE_HEADER = "md5cache 1";
+  private static final int DEFAULT_CAPACITY = 8192;
+  /**
+   * Files modified more recently than this may not be done changing
+   */
+  private static final long UNSTABLE_MODIFICATION_MILLIS = 2000L;
+
+  private static final Map<String, Md5DigestCache> gCaches = new HashMap<>();
+
+  static {
+    // register a state-reset manipulator for the digest caches.
+    StaticStateManipulator.get().register(new StaticStateManipulator.IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        synchronized (Md5DigestCache.class) {
+          gCaches.clear();
+        }
+      }
+
+    });
+  }
+
+  /**
+   * @param appName the app name
+   * @return the digest cache of that app
+   */
+  public static synchronized Md5DigestCache getInstance(String appName) {
+    Md5DigestCache cache = gCaches.get(appName);
+    if (cache == null) {
+      cache = new Md5DigestCache(appName,
+          new File(ODKFileUtils.getSystemFolder(appName), CACHE_FILENAME), DEFAULT_CAPACITY);
+      gCaches.put(appName, cache);
+    }
+    return cache;
+  }
+
+  private static final class Entry {
+    final long length;
+    final long lastModified;
+    final String digest;
+
+    Entry(long length, long lastModified, String digest) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+
+  private final String mAppName;
+  private final File mCacheFile;
+  // access-ordered, so the least recently used entry is dropped when full
+  private final LinkedHashMap<String, Entry> mEntries;
+  private boolean mLoaded = false;
+  private boolean mDirty = false;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * @param appName   the app name, for logging
+   * @param cacheFile where {@link #save()} writes the digests; may be null
+   * @param capacity  the most digests to remember
+   */
+  Md5DigestCache(String appName, File cacheFile, final int capacity) {
+    mAppName = appName;
+    mCacheFile = cacheFile;
+    mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  private static String getKey(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException ignored) {
+      return file.getAbsolutePath();
+    }
+  }
+
+  /**
+   * The identity of a file as the cache sees it
+   */
+  private static final class Stat {
+    final File file;
+    final String key;
+    final long length;
+    final long lastModified;
+
+    Stat(File file) {
+      this.file = file;
+      this.key = getKey(file);
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+  }
+
+  private String lookup(Stat stat) {
+    Entry entry;
+    synchronized (this) {
+      loadIfNeeded();
+      entry = mEntries.get(stat.key);
+    }
+    if (entry != null && entry.length == stat.length
+        && entry.lastModified == stat.lastModified && stat.lastModified != 0L) {
+      hits.incrementAndGet();
+      return entry.digest;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  private void store(Stat stat, String digest) {
+    File file = stat.file;
+    // only keep it if the file did not change while it was read, and is not likely to
+    // change again within the same last-modified tick
+    if (digest != null && stat.lastModified != 0L && file.length() == stat.length
+        && file.lastModified() == stat.lastModified
+        && System.currentTimeMillis() - stat.lastModified >= UNSTABLE_MODIFICATION_MILLIS) {
+      synchronized (this) {
+        mEntries.put(stat.key, new Entry(stat.length, stat.lastModified, digest));
+        mDirty = true;
+      }
+    }
+  }
+
+  /**
+   * @param file the file to hash
+   * @return the md5 digest of the file, as 32 hex digits, or null if it cannot be read
+   */
+  public String getDigest(File file) {
+    Stat stat = new Stat(file);
+    String digest = lookup(stat);
+    if (digest == null) {
+      digest = ODKFileUtils.computeNakedMd5Hash(mAppName, file);
+      store(stat, digest);
+    }
+    return digest;
+  }
+
+  /**
+   * Get the digests of many files, hashing the ones not in the cache concurrently
+   *
+   * @param files the files to hash
+   * @return the md5 digest, as 32 hex digits, of each file that could be read
+   */
+  public Map<File, String> getDigests(Collection<File> files) {
+    Map<File, String> digests = new HashMap<>(files.size() * 2);
+    Map<File, Stat> toHash = new HashMap<>();
+    for (File file : files) {
+      Stat stat = new Stat(file);
+      String digest = lookup(stat);
+      if (digest != null) {
+        digests.put(file, digest);
+      } else {
+        toHash.put(file, stat);
+      }
+    }
+    if (!toHash.isEmpty()) {
+      Map<File, String> hashed = Md5Hasher.hashAll(mAppName, toHash.keySet());
+      for (Map.Entry<File, String> entry : hashed.entrySet()) {
+        store(toHash.get(entry.getKey()), entry.getValue());
+        digests.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * Forget the digest of a file, e.g. after changing it within the same second
+   *
+   * @param file the file
+   */
+  public synchronized void invalidate(File file) {
+    if (mEntries.remove(getKey(file)) != null) {
+      mDirty = true;
+    }
+  }
+
+  /**
+   * Forget every digest. The hit and miss counts are not reset.
+   */
+  public synchronized void clear() {
+    mLoaded = true;
+    mDirty = !mEntries.isEmpty();
+    mEntries.clear();
+  }
+
+  public synchronized int size() {
+    return mEntries.size();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  private void loadIfNeeded() {
+    if (mLoaded) {
+      return;
+    }
+    mLoaded = true;
+    if (mCacheFile == null || !mCacheFile.exists()) {
+      return;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(mCacheFile), StandardCharsets.UTF_8));
+      if (!CACHE_FILE_HEADER.equals(reader.readLine())) {
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // digest, length, last modified, path -- the path last as it may contain tabs
+        String[] fields = line.split("\t", 4);
+        if (fields.length != 4) {
+          continue;
+        }
+        try {
+          mEntries.put(fields[3],
+              new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+        } catch (NumberFormatException ignored) {
+          // skip it
+        }
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(mAppName).w(TAG, "Unable to read digest cache: " + e.getMessage());
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException ignored) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the digests to the app's system folder if any changed since they were loaded
+   * or last saved.
+   */
+  public synchronized void save() {
+    if (mCacheFile == null || !mDirty) {
+      return;
+    }
+    // Survey, Tables and Services each keep a cache for the same app and may save at the
+    // same time, so each writes its own temp file and renames it into place
+    File tempFile = null;
+    Writer writer = null;
+    try {
+      tempFile = File.createTempFile(mCacheFile.getName(), ".temp", mCacheFile.getParentFile());
+      writer = new BufferedWriter(
+          new OutputStreamWriter(new FileOutputStream(tempFile, false), StandardCharsets.UTF_8));
+      writer.write(CACHE_FILE_HEADER);
+      writer.write('\n');
+      for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+        if (e.getKey().indexOf('\n') != -1) {
+          continue;
+        }
+        Entry entry = e.getValue();
+        writer.write(entry.digest);
+        writer.write('\t');
+        writer.write(Long.toString(entry.length));
+        writer.write('\t');
+        writer.write(Long.toString(entry.lastModified));
+        writer.write('\t');
+        writer.write(e.getKey());
+        writer.write('\n');
+      }
+      writer.close();
+      writer = null;
+      if (!tempFile.renameTo(mCacheFile)) {
+        throw new IOException("Unable to replace " + mCacheFile.getName());
+      }
+      mDirty = false;
+    } catch (IOException e) {
+      WebLogger.getLogger(mAppName).w(TAG, "Unable to save digest cache: " + e.getMessage());
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException ignored) {
+          // ignore
+        }
+      }
+      if (tempFile != null && tempFile.exists()) {
+        tempFile.delete();
+      }
+    }
+  }
+}
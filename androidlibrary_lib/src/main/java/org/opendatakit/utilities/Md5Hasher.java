@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.opendatakit.logging.WebLogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes md5 digests of files, one at a time or many at once on a small pool of
+ * threads. Files are read through a FileChannel. Each pool thread keeps a large direct
+ * buffer for the next file, and it is freed with the thread once the pool is idle. Other
+ * callers get a small heap buffer for each file, so they hold nothing afterwards.
+ * <p>
+ * Used in ODKFileUtils and Md5DigestCache
+ */
+final class Md5Hasher {
+
+  private static final String TAG = Md5Hasher.class.getSimpleName();
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+  /**
+   * Buffer size for files hashed on the caller's thread
+   */
+  private static final int SMALL_BUFFER_SIZE = 16 * 1024;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /**
+   * Idle pool threads, and their buffers, go away after this long
+   */
+  private static final long POOL_KEEP_ALIVE_SECONDS = 30L;
+
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("MD5 is not available", e);
+      }
+    }
+  };
+
+  private static ThreadPoolExecutor gPool = null;
+
+  /**
+   * Do not instantiate this class
+   */
+  private Md5Hasher() {
+  }
+
+  private static synchronized ThreadPoolExecutor getPool() {
+    if (gPool == null) {
+      // reading is mostly waiting on storage; hashing is mostly cpu. One thread per core
+      // keeps both busy.
+      int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+      final AtomicInteger count = new AtomicInteger(0);
+      gPool = new ThreadPoolExecutor(threads, threads, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new PoolThread(r, "Md5Hasher-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      gPool.allowCoreThreadTimeOut(true);
+    }
+    return gPool;
+  }
+
+  /**
+   * @param digest the digest bytes
+   * @return the digest as lowercase hex digits, two per byte
+   */
+  static String toHex(byte[] digest) {
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; ++i) {
+      int b = digest[i] & 0xff;
+      hex[2 * i] = HEX_DIGITS[b >>> 4];
+      hex[2 * i + 1] = HEX_DIGITS[b & 0x0f];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * @param bytes the bytes to hash
+   * @return the md5 digest of the bytes, as 32 hex digits
+   */
+  static String hash(byte[] bytes) {
+    return hash(bytes, bytes.length);
+  }
+
+  /**
+   * @param bytes  the bytes to hash
+   * @param length how many of the bytes, from the start, to hash
+   * @return the md5 digest of those bytes, as 32 hex digits
+   */
+  static String hash(byte[] bytes, int length) {
+    MessageDigest md = DIGEST.get();
+    md.reset();
+    md.update(bytes, 0, length);
+    return toHex(md.digest());
+  }
+
+  /**
+   * @param file the file to hash
+   * @return the md5 digest of the file, as 32 hex digits
+   * @throws IOException if the file cannot be read
+   */
+  static String hash(File file) throws IOException {
+    MessageDigest md = DIGEST.get();
+    md.reset();
+    Thread thread = Thread.currentThread();
+    ByteBuffer buffer = thread instanceof PoolThread ?
+        ((PoolThread) thread).getBuffer() :
+        ByteBuffer.allocate(SMALL_BUFFER_SIZE);
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      buffer.clear();
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        md.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(md.digest());
+  }
+
+  /**
+   * Hash the files concurrently
+   *
+   * @param appName the app name, for logging
+   * @param files   the files to hash
+   * @return the md5 digest, as 32 hex digits, of each file that could be read
+   */
+  static Map<File, String> hashAll(String appName, Collection<File> files) {
+    Map<File, String> digests = new HashMap<>(files.size() * 2);
+    if (files.size() <= 1) {
+      for (File file : files) {
+        try {
+          digests.put(file, hash(file));
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).e(TAG, "Unable to hash " + file.getName() + ": "
+              + e.getMessage());
+        }
+      }
+      return digests;
+    }
+
+    ThreadPoolExecutor pool = getPool();
+    List<File> submitted = new ArrayList<>(files.size());
+    List<Future<String>> futures = new ArrayList<>(files.size());
+    for (final File file : files) {
+      submitted.add(file);
+      futures.add(pool.submit(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          return hash(file);
+        }
+      }));
+    }
+
+    for (int i = 0; i < futures.size(); ++i) {
+      File file = submitted.get(i);
+      try {
+        digests.put(file, futures.get(i).get());
+      } catch (ExecutionException e) {
+        WebLogger.getLogger(appName).e(TAG, "Unable to hash " + file.getName() + ": "
+            + e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        for (int j = i; j < futures.size(); ++j) {
+          futures.get(j).cancel(false);
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return digests;
+  }
+
+  /**
+   * A pool thread, which keeps its read buffer for as long as it lives
+   */
+  private static final class PoolThread extends Thread {
+    private ByteBuffer buffer = null;
+
+    PoolThread(Runnable r, String name) {
+      super(r, name);
+    }
+
+    ByteBuffer getBuffer() {
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+      return buffer;
+    }
+  }
+}
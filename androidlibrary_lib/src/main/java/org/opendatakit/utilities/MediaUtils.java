@@ -32,6 +32,9 @@ import org.opendatakit.logging.WebLogger;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -52,6 +55,17 @@ public final class MediaUtils {
    */
   private static final String TAG = MediaUtils.class.getSimpleName();
 
+  /**
+   * The most paths put in one _data IN (...) selection. SQLite allows 999 arguments.
+   */
+  private static final int MAX_PATHS_PER_DELETE = 500;
+
+  /**
+   * The media providers searched when deleting files of any media type
+   */
+  private static final Uri[] MEDIA_CONTENT_URIS = { Images.Media.EXTERNAL_CONTENT_URI,
+      Audio.Media.EXTERNAL_CONTENT_URI, Video.Media.EXTERNAL_CONTENT_URI };
+
   /**
    * Do not instantiate this class
    */
@@ -66,6 +80,128 @@ public final class MediaUtils {
     return ep;
   }
 
+  /**
+   * Remove the entries for the given files from one media provider, with one delete per
+   * MAX_PATHS_PER_DELETE files.
+   *
+   * @param cr         the content resolver
+   * @param appName    the app name, for logging
+   * @param contentUri the media provider's external content uri
+   * @param paths      the absolute paths of the files
+   * @return the number of entries removed
+   */
+  private static int deleteFromMediaProvider(ContentResolver cr, String appName, Uri contentUri,
+      Collection<String> paths) {
+    int count = 0;
+    List<String> chunk = new ArrayList<>(Math.min(paths.size(), MAX_PATHS_PER_DELETE));
+    Iterator<String> iterator = paths.iterator();
+    while (iterator.hasNext()) {
+      chunk.add(iterator.next());
+      if (chunk.size() == MAX_PATHS_PER_DELETE || !iterator.hasNext()) {
+        StringBuilder select = new StringBuilder(MediaStore.MediaColumns.DATA);
+        if (chunk.size() == 1) {
+          select.append("=?");
+        } else {
+          select.append(" IN (?");
+          for (int i = 1; i < chunk.size(); ++i) {
+            select.append(",?");
+          }
+          select.append(')');
+        }
+        try {
+          count += cr.delete(contentUri, select.toString(),
+              chunk.toArray(new String[chunk.size()]));
+        } catch (Exception e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+        }
+        chunk.clear();
+      }
+    }
+    if (count != 0) {
+      WebLogger.getLogger(appName).i(TAG, "deleted " + count + " entries from " + contentUri);
+    }
+    return count;
+  }
+
+  /**
+   * Remove the entries for every file under a folder from one media provider, with a
+   * single delete.
+   *
+   * @param cr         the content resolver
+   * @param appName    the app name, for logging
+   * @param contentUri the media provider's external content uri
+   * @param folder     the folder
+   * @return the number of entries removed
+   */
+  private static int deleteFolderFromMediaProvider(ContentResolver cr, String appName,
+      Uri contentUri, File folder) {
+    int count = 0;
+    try {
+      String select = MediaStore.MediaColumns.DATA + " like ? escape '!'";
+      String[] selectArgs = { escapePath(folder.getAbsolutePath() + File.separator) + "%" };
+      count = cr.delete(contentUri, select, selectArgs);
+    } catch (Exception e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+    if (count != 0) {
+      WebLogger.getLogger(appName).i(TAG,
+          "deleted " + count + " entries under " + folder + " from " + contentUri);
+    }
+    return count;
+  }
+
+  /**
+   * Remove the image, audio and video entries of the given files from the media providers,
+   * then delete the files. Each media provider is called once per few hundred files.
+   *
+   * @param context the context
+   * @param appName the app name
+   * @param files   the absolute paths of the files
+   * @return the number of media provider entries removed
+   */
+  public static int deleteMediaFilesFromMediaProvider(Context context, String appName,
+      Collection<String> files) {
+    if (files == null || files.isEmpty())
+      return 0;
+
+    ContentResolver cr = context.getContentResolver();
+    int count = 0;
+    for (Uri contentUri : MEDIA_CONTENT_URIS) {
+      count += deleteFromMediaProvider(cr, appName, contentUri, files);
+    }
+    for (String file : files) {
+      File f = new File(file);
+      if (f.exists()) {
+        if (!f.delete()) {
+          WebLogger.getLogger(appName).e(TAG, "Could not delete media file " + file);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Remove the image, audio and video entries of every file under a folder from the media
+   * providers, with one delete per media provider. The files themselves are left alone.
+   *
+   * @param context the context
+   * @param appName the app name
+   * @param folder  the folder, e.g. an instance folder
+   * @return the number of media provider entries removed
+   */
+  public static int deleteMediaInFolderFromMediaProvider(Context context, String appName,
+      File folder) {
+    if (folder == null)
+      return 0;
+
+    ContentResolver cr = context.getContentResolver();
+    int count = 0;
+    for (Uri contentUri : MEDIA_CONTENT_URIS) {
+      count += deleteFolderFromMediaProvider(cr, appName, contentUri, folder);
+    }
+    return count;
+  }
+
   public static Uri getImageUriFromMediaProvider(Context context, String imageFile) {
     String selection = Images.ImageColumns.DATA + "=?";
     String[] selectArgs = { imageFile };
@@ -97,40 +233,8 @@ public final class MediaUtils {
 
     ContentResolver cr = context.getContentResolver();
     // images
-    int count = 0;
-    Cursor imageCursor = null;
-    try {
-      String select = Images.Media.DATA + "=?";
-      String[] selectArgs = { imageFile };
-
-      String[] projection = { Images.ImageColumns._ID };
-      imageCursor = cr
-          .query(android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (imageCursor != null && imageCursor.getCount() > 0) {
-        imageCursor.moveToFirst();
-        List<Uri> imagesToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(imageCursor, imageCursor.getColumnIndex(Images.ImageColumns._ID));
-
-          imagesToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (imageCursor.moveToNext());
-
-        for (Uri uri : imagesToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (imageCursor != null) {
-        imageCursor.close();
-      }
-    }
+    int count = deleteFromMediaProvider(cr, appName, Images.Media.EXTERNAL_CONTENT_URI,
+        Collections.singletonList(imageFile));
     File f = new File(imageFile);
     if (f.exists()) {
       if (!f.delete()) {
@@ -147,41 +251,7 @@ public final class MediaUtils {
 
     ContentResolver cr = context.getContentResolver();
     // images
-    int count = 0;
-    Cursor imageCursor = null;
-    try {
-      String select = Images.Media.DATA + " like ? escape '!'";
-      String[] selectArgs = { escapePath(folder.getAbsolutePath()) };
-
-      String[] projection = { Images.ImageColumns._ID };
-      imageCursor = cr
-          .query(android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (imageCursor != null && imageCursor.getCount() > 0) {
-        imageCursor.moveToFirst();
-        List<Uri> imagesToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(imageCursor, imageCursor.getColumnIndex(Images.ImageColumns._ID));
-
-          imagesToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (imageCursor.moveToNext());
-
-        for (Uri uri : imagesToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (imageCursor != null) {
-        imageCursor.close();
-      }
-    }
-    return count;
+    return deleteFolderFromMediaProvider(cr, appName, Images.Media.EXTERNAL_CONTENT_URI, folder);
   }
 
   public static Uri getAudioUriFromMediaProvider(Context ctxt, String audioFile) {
@@ -215,40 +285,8 @@ public final class MediaUtils {
 
     ContentResolver cr = context.getContentResolver();
     // audio
-    int count = 0;
-    Cursor audioCursor = null;
-    try {
-      String select = Audio.Media.DATA + "=?";
-      String[] selectArgs = { audioFile };
-
-      String[] projection = { Audio.AudioColumns._ID };
-      audioCursor = cr
-          .query(android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (audioCursor != null && audioCursor.getCount() > 0) {
-        audioCursor.moveToFirst();
-        List<Uri> audioToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(audioCursor, audioCursor.getColumnIndex(Audio.AudioColumns._ID));
-
-          audioToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (audioCursor.moveToNext());
-
-        for (Uri uri : audioToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (audioCursor != null) {
-        audioCursor.close();
-      }
-    }
+    int count = deleteFromMediaProvider(cr, appName, Audio.Media.EXTERNAL_CONTENT_URI,
+        Collections.singletonList(audioFile));
     File f = new File(audioFile);
     if (f.exists()) {
       if (!f.delete()) {
@@ -265,41 +303,7 @@ public final class MediaUtils {
 
     ContentResolver cr = context.getContentResolver();
     // audio
-    int count = 0;
-    Cursor audioCursor = null;
-    try {
-      String select = Audio.Media.DATA + " like ? escape '!'";
-      String[] selectArgs = { escapePath(folder.getAbsolutePath()) };
-
-      String[] projection = { Audio.AudioColumns._ID };
-      audioCursor = cr
-          .query(android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (audioCursor != null && audioCursor.getCount() > 0) {
-        audioCursor.moveToFirst();
-        List<Uri> audioToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(audioCursor, audioCursor.getColumnIndex(Audio.AudioColumns._ID));
-
-          audioToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (audioCursor.moveToNext());
-
-        for (Uri uri : audioToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (audioCursor != null) {
-        audioCursor.close();
-      }
-    }
-    return count;
+    return deleteFolderFromMediaProvider(cr, appName, Audio.Media.EXTERNAL_CONTENT_URI, folder);
   }
 
   public static Uri getVideoUriFromMediaProvider(Context ctxt, String videoFile) {
@@ -333,40 +337,8 @@ public final class MediaUtils {
 
     ContentResolver cr = ctxt.getContentResolver();
     // video
-    int count = 0;
-    Cursor videoCursor = null;
-    try {
-      String select = Video.Media.DATA + "=?";
-      String[] selectArgs = { videoFile };
-
-      String[] projection = { Video.VideoColumns._ID };
-      videoCursor = cr
-          .query(android.provider.MediaStore.Video.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (videoCursor != null && videoCursor.getCount() > 0) {
-        videoCursor.moveToFirst();
-        List<Uri> videoToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(videoCursor, videoCursor.getColumnIndex(Video.VideoColumns._ID));
-
-          videoToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (videoCursor.moveToNext());
-
-        for (Uri uri : videoToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (videoCursor != null) {
-        videoCursor.close();
-      }
-    }
+    int count = deleteFromMediaProvider(cr, appName, Video.Media.EXTERNAL_CONTENT_URI,
+        Collections.singletonList(videoFile));
     File f = new File(videoFile);
     if (f.exists()) {
       if (!f.delete()) {
@@ -383,41 +355,7 @@ public final class MediaUtils {
 
     ContentResolver cr = context.getContentResolver();
     // video
-    int count = 0;
-    Cursor videoCursor = null;
-    try {
-      String select = Video.Media.DATA + " like ? escape '!'";
-      String[] selectArgs = { escapePath(folder.getAbsolutePath()) };
-
-      String[] projection = { Video.VideoColumns._ID };
-      videoCursor = cr
-          .query(android.provider.MediaStore.Video.Media.EXTERNAL_CONTENT_URI, projection, select,
-              selectArgs, null);
-      if (videoCursor != null && videoCursor.getCount() > 0) {
-        videoCursor.moveToFirst();
-        List<Uri> videoToDelete = new ArrayList<>();
-        do {
-          String id = CursorUtils
-              .getIndexAsString(videoCursor, videoCursor.getColumnIndex(Video.VideoColumns._ID));
-
-          videoToDelete.add(
-              Uri.withAppendedPath(android.provider.MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
-                  id));
-        } while (videoCursor.moveToNext());
-
-        for (Uri uri : videoToDelete) {
-          WebLogger.getLogger(appName).i(TAG, "attempting to delete: " + uri);
-          count += cr.delete(uri, null, null);
-        }
-      }
-    } catch (Exception e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } finally {
-      if (videoCursor != null) {
-        videoCursor.close();
-      }
-    }
-    return count;
+    return deleteFolderFromMediaProvider(cr, appName, Video.Media.EXTERNAL_CONTENT_URI, folder);
   }
 
   @SuppressLint("NewApi")
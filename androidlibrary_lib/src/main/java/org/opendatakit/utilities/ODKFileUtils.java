@@ -33,23 +33,19 @@ import org.w3c.dom.NodeList;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -1332,6 +1328,9 @@ public final class ODKFileUtils {
 
   /**
    * MD5's a file. Used in ODKDatabaseImplUtils and EncryptionUtils
+   * <p>
+   * The digests of files are remembered in the app's {@link Md5DigestCache}, so an
+   * unchanged file is only read once.
    *
    * @param appName the app name
    * @param file    the file to hash
@@ -1339,93 +1338,71 @@ public final class ODKFileUtils {
    */
   @SuppressWarnings("WeakerAccess")
   public static String getNakedMd5Hash(String appName, Object file) {
-    InputStream is = null;
-    try {
-      // CTS (6/15/2010) : stream file through digest instead of handing
-      // it the byte[]
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      int chunkSize = 8192;
+    if (file instanceof File) {
+      return Md5DigestCache.getInstance(appName).getDigest((File) file);
+    }
+    return computeNakedMd5Hash(appName, file);
+  }
 
-      byte[] chunk = new byte[chunkSize];
+  /**
+   * MD5's many files at once, on a pool of threads sized for the device. Used to build
+   * manifests of folders with many attachments.
+   * <p>
+   * Unchanged files whose digests are in the app's {@link Md5DigestCache} are not read.
+   *
+   * @param appName the app name
+   * @param files   the files to hash
+   * @return the md5sum of each file that could be read
+   */
+  public static Map<File, String> getNakedMd5Hashes(String appName, Collection<File> files) {
+    return Md5DigestCache.getInstance(appName).getDigests(files);
+  }
 
-      // Get the size of the file
-      long lLength;
+  /**
+   * Gets the md5sums of many files at once with the correct prefix
+   *
+   * @param appName the app name
+   * @param files   the files to hash
+   * @return md5:(:the hash of the file) for each file that could be read
+   */
+  public static Map<File, String> getMd5Hashes(String appName, Collection<File> files) {
+    Map<File, String> hashes = getNakedMd5Hashes(appName, files);
+    for (Map.Entry<File, String> entry : hashes.entrySet()) {
+      entry.setValue(MD5_COLON_PREFIX + entry.getValue());
+    }
+    return hashes;
+  }
+
+  /**
+   * MD5's a file or string without consulting the digest cache
+   *
+   * @param appName the app name
+   * @param file    the file or string to hash
+   * @return the md5sum of that file
+   */
+  static String computeNakedMd5Hash(String appName, Object file) {
+    try {
       if (file instanceof File) {
-        lLength = ((File) file).length();
+        return Md5Hasher.hash((File) file);
       } else if (file instanceof String) {
-        lLength = ((String) file).length();
+        // only the first String.length() bytes of the UTF-8 encoding have ever been
+        // hashed, and digests of non-ASCII strings may have been stored; keep it that way
+        String string = (String) file;
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        return Md5Hasher.hash(bytes, Math.min(string.length(), bytes.length));
       } else {
         throw new IllegalArgumentException("Bad object to md5");
       }
-
-      if (lLength > Integer.MAX_VALUE) {
-        if (file instanceof File) {
-          WebLogger.getLogger(appName).e(TAG, "File " + ((File) file).getName() + " is too large");
-        } else {
-          WebLogger.getLogger(appName).e(TAG, "String is too large to md5");
-        }
-        return null;
-      }
-
-      if (lLength > Integer.MAX_VALUE) {
-        throw new RuntimeException("Refusing to cast from long to int with loss of precision");
-      }
-      //noinspection NumericCastThatLosesPrecision
-      int length = (int) lLength;
-
-
-      if (file instanceof File) {
-        is = new FileInputStream((File) file);
-      } else {
-        is = new ByteArrayInputStream(((String) file).getBytes(StandardCharsets.UTF_8));
-      }
-
-      int l;
-      for (l = 0; l + chunkSize < length; l += chunkSize) {
-        // TODO double check that this still works after the change
-        if (is.read(chunk, 0, chunkSize) == -1)
-          break;
-        md.update(chunk, 0, chunkSize);
-      }
-
-      int remaining = length - l;
-      if (remaining > 0) {
-        // TODO double check that this still works after the change
-        if (is.read(chunk, 0, remaining) != -1) {
-          md.update(chunk, 0, remaining);
-        }
-      }
-      byte[] messageDigest = md.digest();
-
-      BigInteger number = new BigInteger(1, messageDigest);
-      String md5 = number.toString(16);
-      while (md5.length() < 32)
-        md5 = "0" + md5;
-      is.close();
-      return md5;
-
-    } catch (NoSuchAlgorithmException e) {
-      WebLogger.getLogger(appName).e("MD5", e.getMessage());
-      return null;
-
     } catch (FileNotFoundException e) {
       WebLogger.getLogger(appName).e("No Cache File", e.getMessage());
       return null;
     } catch (IOException e) {
       WebLogger.getLogger(appName).e("Problem reading from file", e.getMessage());
       return null;
-    } finally {
-      if (is != null) {
-        try {
-          is.close();
-        } catch (IOException e) {
-          WebLogger.getLogger(appName).printStackTrace(e);
-        }
-      }
     }
-
   }
 
+
   /**
    * Used in WebCursorUtils
    *
@@ -1467,18 +1444,32 @@ public final class ODKFileUtils {
   }
 
   /**
-   * Copies the given directory, see {@link FileUtils#copyDirectory}
+   * Copies the given directory, merging it into the destination. Files already in the
+   * destination with the same length, last-modified time and contents are not copied again.
    * @param sourceFolder the directory to copy
    * @param destinationFolder where to copy it to
    * @throws IOException if the action couldn't be completed
    */
   public static void copyDirectory(File sourceFolder, File destinationFolder) throws IOException {
-    ContextClassLoaderWrapper wrapper = new ContextClassLoaderWrapper();
-    try {
-      FileUtils.copyDirectory(sourceFolder, destinationFolder);
-    } finally {
-      wrapper.release();
-    }
+    copyDirectory(null, sourceFolder, destinationFolder, false);
+  }
+
+  /**
+   * Copies the given directory, see {@link #copyDirectory(File, File)}. Files are hard linked
+   * instead of copied if allowed and the source and destination are on the same filesystem.
+   * Only allow hard links if neither copy of a file will be changed in place afterwards.
+   * @param appName the app whose md5 digest cache to compare files with, or null
+   * @param sourceFolder the directory to copy
+   * @param destinationFolder where to copy it to
+   * @param allowHardLinks whether files may be hard linked
+   * @return the number of bytes copied, not counting files that were skipped or linked
+   * @throws IOException if the action couldn't be completed
+   */
+  public static long copyDirectory(String appName, File sourceFolder, File destinationFolder,
+      boolean allowHardLinks) throws IOException {
+    FileCopier copier = new FileCopier(appName, allowHardLinks);
+    copier.copyDirectory(sourceFolder, destinationFolder);
+    return copier.getBytesCopied();
   }
 
   /**
@@ -1527,18 +1518,32 @@ public final class ODKFileUtils {
   }
 
   /**
-   * Copies the given file, see {@link FileUtils#copyFile}
+   * Copies the given file, keeping its last-modified time. The copy is skipped if the
+   * destination already has the same length, last-modified time and contents.
    * @param sourceFile the file to copy
    * @param destinationFile where to move it to
    * @throws IOException if the action couldn't be completed
    */
   public static void copyFile(File sourceFile, File destinationFile) throws IOException {
-    ContextClassLoaderWrapper wrapper = new ContextClassLoaderWrapper();
-    try {
-      FileUtils.copyFile(sourceFile, destinationFile);
-    } finally {
-      wrapper.release();
-    }
+    copyFile(null, sourceFile, destinationFile, false);
+  }
+
+  /**
+   * Copies the given file, see {@link #copyFile(File, File)}. The file is hard linked
+   * instead of copied if allowed and the source and destination are on the same filesystem.
+   * Only allow hard links if neither copy of the file will be changed in place afterwards.
+   * @param appName the app whose md5 digest cache to compare files with, or null
+   * @param sourceFile the file to copy
+   * @param destinationFile where to copy it to
+   * @param allowHardLink whether the file may be hard linked
+   * @return the number of bytes copied, 0 if the copy was skipped or linked
+   * @throws IOException if the action couldn't be completed
+   */
+  public static long copyFile(String appName, File sourceFile, File destinationFile,
+      boolean allowHardLink) throws IOException {
+    FileCopier copier = new FileCopier(appName, allowHardLink);
+    copier.copyFile(sourceFile, destinationFile);
+    return copier.getBytesCopied();
   }
 
   /**
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.builder;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.listener.CopyProgressListener;
+import org.opendatakit.listener.ExportListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class AttachmentCopierTest {
+
+  private static final String TAG = AttachmentCopierTest.class.getSimpleName();
+  private static final String APP_NAME = "attachmentCopierTest";
+
+  private static final int NUM_INSTANCES = 200;
+
+  private File workDir;
+  private File srcDir;
+  private File destDir;
+  private long totalBytes;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    workDir = Files.createTempDirectory(TAG).toFile();
+    srcDir = new File(workDir, "src");
+    destDir = new File(workDir, "dest");
+    Random random = new Random(3);
+    totalBytes = 0L;
+    for (int i = 0; i < NUM_INSTANCES; ++i) {
+      byte[] photo = new byte[100 * 1024 + random.nextInt(100 * 1024)];
+      random.nextBytes(photo);
+      FileUtils.writeByteArrayToFile(new File(srcDir, "uuid" + i + "/photo.jpg"), photo);
+      byte[] audio = new byte[random.nextInt(20 * 1024)];
+      random.nextBytes(audio);
+      FileUtils.writeByteArrayToFile(new File(srcDir, "uuid" + i + "/audio.3gp"), audio);
+      totalBytes += photo.length + audio.length;
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workDir);
+  }
+
+  private static class Listener implements ExportListener, CopyProgressListener {
+    int lastCopied = 0;
+    int lastTotal = 0;
+    long lastBytes = 0L;
+
+    @Override
+    public void updateProgressDetail(int row, int total) {
+    }
+
+    @Override
+    public void updateCopyProgress(int foldersCopied, int foldersTotal, long bytesCopied) {
+      assertTrue(foldersCopied >= lastCopied);
+      assertTrue(bytesCopied >= lastBytes);
+      lastCopied = foldersCopied;
+      lastTotal = foldersTotal;
+      lastBytes = bytesCopied;
+    }
+  }
+
+  @Test
+  public void testCopiesEveryFolder() throws IOException {
+    Listener listener = new Listener();
+    AttachmentCopier copier = new AttachmentCopier(APP_NAME, listener);
+    for (int i = 0; i < NUM_INSTANCES; ++i) {
+      copier.submit(new File(srcDir, "uuid" + i), new File(destDir, "uuid" + i));
+    }
+    copier.awaitCompletion();
+
+    assertEquals(NUM_INSTANCES, copier.getFoldersCopied());
+    assertEquals(totalBytes, copier.getBytesCopied());
+    assertEquals(NUM_INSTANCES, listener.lastCopied);
+    assertEquals(NUM_INSTANCES, listener.lastTotal);
+    assertEquals(totalBytes, listener.lastBytes);
+    for (int i = 0; i < NUM_INSTANCES; i += 17) {
+      assertTrue(FileUtils.contentEquals(new File(srcDir, "uuid" + i + "/photo.jpg"),
+          new File(destDir, "uuid" + i + "/photo.jpg")));
+    }
+  }
+
+  @Test
+  public void testFailuresAreCollected() {
+    AttachmentCopier copier = new AttachmentCopier(APP_NAME, null);
+    try {
+      for (int i = 0; i < 10; ++i) {
+        // every third folder is missing
+        String name = (i % 3 == 0 ? "missing" : "uuid") + i;
+        copier.submit(new File(srcDir, name), new File(destDir, name));
+      }
+      copier.awaitCompletion();
+      fail("missing folders were not reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("4 of 10 "));
+    }
+    assertEquals(6, copier.getFoldersCopied());
+  }
+
+  @Test
+  public void testFinishCopiesEverySubmittedFolder() throws IOException {
+    AttachmentCopier copier = new AttachmentCopier(APP_NAME, null);
+    for (int i = 0; i < NUM_INSTANCES; ++i) {
+      copier.submit(new File(srcDir, "uuid" + i), new File(destDir, "uuid" + i));
+    }
+    // as when the import thread gives up because it was interrupted
+    Thread.currentThread().interrupt();
+    try {
+      copier.finish();
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(NUM_INSTANCES, copier.getFoldersCopied());
+  }
+
+  @Test
+  public void testCancel() throws IOException {
+    AttachmentCopier copier = new AttachmentCopier(APP_NAME, null);
+    for (int i = 0; i < NUM_INSTANCES; ++i) {
+      copier.submit(new File(srcDir, "uuid" + i), new File(destDir, "uuid" + i));
+    }
+    copier.cancel();
+    int copied = copier.getFoldersCopied();
+    assertTrue(copied <= NUM_INSTANCES);
+    // nothing is still running
+    Thread.yield();
+    assertEquals(copied, copier.getFoldersCopied());
+  }
+}
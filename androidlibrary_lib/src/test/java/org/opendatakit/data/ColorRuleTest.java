@@ -20,13 +20,31 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.data.UserTable;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.utilities.StaticStateManipulator;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @RunWith(JUnit4.class)
 public class ColorRuleTest {
 
+   private static final String TAG = ColorRuleTest.class.getSimpleName();
+
+   private static final String COUNT_COL = "count_col";
+   private static final String NAME_COL = "name_col";
+   private static final int NUM_ROWS = 800;
+   private static final int RENDERS = 50;
+
    @BeforeClass
    public static void oneTimeSetUp() throws Exception {
       StaticStateManipulator.get().reset();
@@ -92,4 +110,161 @@ public class ColorRuleTest {
       Assert.assertTrue(cr1.equalsWithoutId(cr2));
    }
 
+   private static UserTable buildTable(int numRows) {
+      List<Column> columns = new ArrayList<>();
+      columns.add(new Column(COUNT_COL, COUNT_COL, ElementDataType.integer.name(), null));
+      columns.add(new Column(NAME_COL, NAME_COL, ElementDataType.string.name(), null));
+      OrderedColumns orderedColumns = new OrderedColumns("app", "table", columns);
+
+      String[] elementKeys = { DataTableColumns.ID, COUNT_COL, NAME_COL };
+      BaseTable table = new BaseTable(null, elementKeys, null, numRows);
+      for (int i = 0; i < numRows; ++i) {
+         String count = (i % 10 == 9) ? null : Integer.toString(i % 100);
+         table.addRow(new Row(new String[] { "r" + i, count, "name" + (i % 7) }, table));
+      }
+      return new UserTable(table, orderedColumns, new String[0]);
+   }
+
+   private static List<ColorRule> buildRules() {
+      List<ColorRule> rules = new ArrayList<>();
+      rules.add(new ColorRule(COUNT_COL, ColorRule.RuleType.GREATER_THAN, "90", Color.RED,
+          Color.WHITE));
+      rules.add(new ColorRule(COUNT_COL, ColorRule.RuleType.EQUAL, "50.0", Color.GREEN,
+          Color.WHITE));
+      rules.add(new ColorRule(NAME_COL, ColorRule.RuleType.EQUAL, "name3", Color.BLUE,
+          Color.WHITE));
+      rules.add(new ColorRule(COUNT_COL, ColorRule.RuleType.LESS_THAN_OR_EQUAL, "5",
+          Color.YELLOW, Color.WHITE));
+      rules.add(new ColorRule(COUNT_COL, ColorRule.RuleType.LESS_THAN, "not a number",
+          Color.BLACK, Color.WHITE));
+      return rules;
+   }
+
+   private static ColorRule firstMatch(List<ColorRule> rules, UserTable table, TypedRow row) {
+      for (ColorRule rule : rules) {
+         ElementDataType type = table.getTypedRowDescriptor()
+             .getDataType(table.getTypedRowDescriptor().getColumnIndex(rule.getColumnElementKey()));
+         if (rule.checkMatch(type, row)) {
+            return rule;
+         }
+      }
+      return null;
+   }
+
+   @Test
+   public void testCheckMatch() {
+      UserTable table = buildTable(100);
+      List<ColorRule> rules = buildRules();
+
+      // row 50 has count 50, which equals "50.0" numerically but not as a string
+      TypedRow row = table.getRowAtIndex(50);
+      Assert.assertTrue(rules.get(1).checkMatch(ElementDataType.integer, row));
+      Assert.assertFalse(rules.get(1).checkMatch(ElementDataType.string, row));
+      // a rule whose value is not a number never matches
+      Assert.assertFalse(rules.get(4).checkMatch(ElementDataType.integer, row));
+      // nulls never match
+      Assert.assertFalse(rules.get(3).checkMatch(ElementDataType.integer, table.getRowAtIndex(9)));
+
+      // a changed rule is recompiled
+      rules.get(1).setVal("51");
+      Assert.assertFalse(rules.get(1).checkMatch(ElementDataType.integer, row));
+      Assert.assertTrue(rules.get(1).checkMatch(ElementDataType.integer, table.getRowAtIndex(51)));
+   }
+
+   @Test
+   public void testEvaluatorMatchesRules() {
+      UserTable table = buildTable(NUM_ROWS);
+      List<ColorRule> rules = buildRules();
+      ColorRuleEvaluator evaluator = new ColorRuleEvaluator(rules, table.getTypedRowDescriptor());
+
+      int matched = 0;
+      for (int i = 0; i < table.getNumberOfRows(); ++i) {
+         TypedRow row = table.getRowAtIndex(i);
+         ColorRule expected = firstMatch(rules, table, row);
+         Assert.assertSame(expected, evaluator.getMatchingRule(row));
+         if (expected != null) {
+            ++matched;
+         }
+      }
+      Assert.assertTrue(matched > 0);
+   }
+
+   /**
+    * Colors a list of rows the way a list view render does, checking each rule on its
+    * own against checking the group with a ColorRuleEvaluator.
+    */
+   @Test
+   public void testEvaluatorThroughput() {
+      UserTable table = buildTable(NUM_ROWS);
+      List<ColorRule> rules = buildRules();
+
+      long start = System.nanoTime();
+      int legacyMatches = 0;
+      for (int render = 0; render < RENDERS; ++render) {
+         for (int i = 0; i < NUM_ROWS; ++i) {
+            TypedRow row = table.getRowAtIndex(i);
+            for (ColorRule rule : rules) {
+               if (legacyCheckMatch(rule, table, row)) {
+                  ++legacyMatches;
+                  break;
+               }
+            }
+         }
+      }
+      long legacyNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int compiledMatches = 0;
+      for (int render = 0; render < RENDERS; ++render) {
+         ColorRuleEvaluator evaluator = new ColorRuleEvaluator(rules,
+             table.getTypedRowDescriptor());
+         for (int i = 0; i < NUM_ROWS; ++i) {
+            if (evaluator.getMatchingRuleIndex(table.getRowAtIndex(i)) >= 0) {
+               ++compiledMatches;
+            }
+         }
+      }
+      long compiledNanos = System.nanoTime() - start;
+
+      Assert.assertEquals(legacyMatches, compiledMatches);
+      long rows = (long) RENDERS * NUM_ROWS;
+      WebLogger.getLogger(null).i(TAG, "per row: parse on every check " + (legacyNanos / rows)
+          + " ns, ColorRuleEvaluator " + (compiledNanos / rows) + " ns");
+   }
+
+   /**
+    * What ColorRule.checkMatch did before rules were compiled
+    */
+   private static boolean legacyCheckMatch(ColorRule rule, UserTable table, TypedRow row) {
+      String testValue = row.getRawStringByKey(rule.getColumnElementKey());
+      if (testValue == null) {
+         return false;
+      }
+      ElementDataType type = table.getTypedRowDescriptor()
+          .getDataType(table.getTypedRowDescriptor().getColumnIndex(rule.getColumnElementKey()));
+      int compVal;
+      try {
+         if (type == ElementDataType.number || type == ElementDataType.integer) {
+            compVal = Double.valueOf(Double.parseDouble(testValue))
+                .compareTo(Double.parseDouble(rule.getVal()));
+         } else {
+            compVal = testValue.compareTo(rule.getVal());
+         }
+      } catch (NumberFormatException e) {
+         return false;
+      }
+      switch (rule.getOperator()) {
+      case LESS_THAN:
+         return (compVal < 0);
+      case LESS_THAN_OR_EQUAL:
+         return (compVal <= 0);
+      case EQUAL:
+         return (compVal == 0);
+      case GREATER_THAN_OR_EQUAL:
+         return (compVal >= 0);
+      default:
+         return (compVal > 0);
+      }
+   }
+
 }
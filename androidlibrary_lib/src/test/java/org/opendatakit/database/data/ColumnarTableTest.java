@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.data;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ColumnarTableTest {
+
+  private static final String COUNT_COL = "count_col";
+  private static final String PRICE_COL = "price_col";
+  private static final String FLAG_COL = "flag_col";
+  private static final String NAME_COL = "name_col";
+  private static final String PADDED_COL = "padded_col";
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  private static ColumnarTable buildTable() {
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(COUNT_COL, COUNT_COL, ElementDataType.integer.name(), null));
+    columns.add(new Column(PRICE_COL, PRICE_COL, ElementDataType.number.name(), null));
+    columns.add(new Column(FLAG_COL, FLAG_COL, ElementDataType.bool.name(), null));
+    columns.add(new Column(NAME_COL, NAME_COL, ElementDataType.string.name(), null));
+    columns.add(new Column(PADDED_COL, PADDED_COL, ElementDataType.number.name(), null));
+    OrderedColumns orderedColumns = new OrderedColumns("app", "table", columns);
+
+    String[] elementKeys = { COUNT_COL, PRICE_COL, FLAG_COL, NAME_COL, PADDED_COL };
+    BaseTable table = new BaseTable(null, elementKeys, null, 4);
+    table.addRow(new Row(new String[] { "3", "2.5", "1", "b", "1.50" }, table));
+    table.addRow(new Row(new String[] { null, "-1.0", "0", "a", null }, table));
+    table.addRow(new Row(new String[] { "-7", null, null, "b", "2.0" }, table));
+    table.addRow(new Row(new String[] { "10", "4.0", "1", null, "1.0e-05" }, table));
+
+    return new ColumnarTable(table, orderedColumns);
+  }
+
+  @Test
+  public void testStorageAndRawStrings() {
+    ColumnarTable table = buildTable();
+
+    assertEquals(ColumnarTable.StorageType.LONG, table.getStorageType(0));
+    assertEquals(ColumnarTable.StorageType.DOUBLE, table.getStorageType(1));
+    assertEquals(ColumnarTable.StorageType.BOOLEAN, table.getStorageType(2));
+    assertEquals(ColumnarTable.StorageType.STRING, table.getStorageType(3));
+    // "1.50" and "1.0e-05" do not round trip through a double but are still numbers
+    assertEquals(ColumnarTable.StorageType.DOUBLE, table.getStorageType(4));
+
+    assertEquals(-7L, table.getLong(2, 0));
+    assertEquals(2.5, table.getDouble(0, 1), 0.0);
+    assertTrue(table.getBoolean(3, 2));
+    assertFalse(table.getBoolean(1, 2));
+    assertTrue(table.isNull(1, 0));
+
+    Row row = table.getRowAtIndex(0);
+    assertEquals("3", row.getRawStringByKey(COUNT_COL));
+    assertEquals("2.5", row.getRawStringByKey(PRICE_COL));
+    assertEquals("1", row.getRawStringByKey(FLAG_COL));
+    assertEquals("b", row.getRawStringByKey(NAME_COL));
+    assertEquals("1.50", row.getRawStringByKey(PADDED_COL));
+    assertEquals("2.0", table.getRowAtIndex(2).getRawStringByKey(PADDED_COL));
+    assertEquals("1.0e-05", table.getRowAtIndex(3).getRawStringByKey(PADDED_COL));
+    assertEquals(1.5, table.getDouble(0, 4), 0.0);
+    assertNull(table.getRowAtIndex(2).getRawStringByKey(FLAG_COL));
+    assertNull(table.getRowAtIndex(4));
+
+    TypedRow typedRow = table.getTypedRowAtIndex(3);
+    assertEquals(10L, typedRow.getDataByKey(COUNT_COL));
+    assertEquals(Boolean.TRUE, typedRow.getDataByKey(FLAG_COL));
+  }
+
+  @Test
+  public void testAggregatesAndSorting() {
+    ColumnarTable table = buildTable();
+
+    assertEquals(3, table.countNonNull(0));
+    assertEquals(6.0, table.sum(0), 0.0);
+    assertEquals(-7.0, table.min(0), 0.0);
+    assertEquals(10.0, table.max(0), 0.0);
+    assertEquals(5.5, table.sum(1), 0.0);
+    assertEquals(3.50001, table.sum(4), 1e-12);
+    assertEquals(1.0e-05, table.min(4), 0.0);
+    assertEquals(2.0, table.max(4), 0.0);
+
+    assertArrayEquals(new int[] { 1, 2, 0, 3 }, table.getSortedRowIndexes(0, true));
+    assertArrayEquals(new int[] { 3, 0, 2, 1 }, table.getSortedRowIndexes(0, false));
+    assertArrayEquals(new int[] { 2, 1, 0, 3 }, table.getSortedRowIndexes(1, true));
+    assertArrayEquals(new int[] { 3, 1, 0, 2 }, table.getSortedRowIndexes(3, true));
+    assertArrayEquals(new int[] { 1, 3, 0, 2 }, table.getSortedRowIndexes(4, true));
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.data;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(JUnit4.class)
+public class TypedRowDescriptorTest {
+
+  private static final String COUNT_COL = "count_col";
+  private static final String PRICE_COL = "price_col";
+  private static final String FLAG_COL = "flag_col";
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  private static UserTable buildTable() {
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(COUNT_COL, COUNT_COL, ElementDataType.integer.name(), null));
+    columns.add(new Column(PRICE_COL, PRICE_COL, ElementDataType.number.name(), null));
+    columns.add(new Column(FLAG_COL, FLAG_COL, ElementDataType.bool.name(), null));
+    OrderedColumns orderedColumns = new OrderedColumns("app", "table", columns);
+
+    String[] elementKeys = { DataTableColumns.ID, DataTableColumns.CONFLICT_TYPE, COUNT_COL,
+        PRICE_COL, FLAG_COL };
+    BaseTable table = new BaseTable(null, elementKeys, null, 2);
+    table.addRow(new Row(new String[] { "r1", null, "3", "2.5", "1" }, table));
+    table.addRow(new Row(new String[] { "r2", "1", "-7", null, "0" }, table));
+    return new UserTable(table, orderedColumns, new String[0]);
+  }
+
+  @Test
+  public void testColumnTypes() {
+    TypedRowDescriptor descriptor = buildTable().getTypedRowDescriptor();
+
+    assertEquals(5, descriptor.getWidth());
+    assertEquals(ElementDataType.string, descriptor.getDataType(0));
+    assertEquals(ElementDataType.integer, descriptor.getDataType(1));
+    assertEquals(ElementDataType.integer, descriptor.getDataType(2));
+    assertEquals(ElementDataType.number, descriptor.getDataType(3));
+    assertEquals(ElementDataType.bool, descriptor.getDataType(4));
+    assertEquals(2, descriptor.getColumnIndex(COUNT_COL));
+    assertEquals(-1, descriptor.getColumnIndex("not_a_column"));
+  }
+
+  @Test
+  public void testTypedAccessAndReuse() {
+    UserTable table = buildTable();
+
+    TypedRow first = table.getRowAtIndex(0, null);
+    assertEquals(3L, first.getDataByKey(COUNT_COL));
+    assertEquals(2.5, first.getDataByKey(PRICE_COL));
+    assertEquals(Boolean.TRUE, first.getDataByKey(FLAG_COL));
+    assertEquals("r1", first.getStringValueByKey(DataTableColumns.ID));
+    assertNull(first.getDataByKey(DataTableColumns.CONFLICT_TYPE));
+    assertNull(first.getDataByKey("not_a_column"));
+
+    TypedRow second = table.getRowAtIndex(1, first);
+    assertSame(first, second);
+    assertEquals(-7L, second.getDataByIndex(2));
+    assertEquals("1", second.getStringValueByKey(DataTableColumns.CONFLICT_TYPE));
+    assertEquals("false", second.getStringValueByKey(FLAG_COL));
+    assertNull(second.getStringValueByKey(PRICE_COL));
+
+    // a TypedRow from another table is not repositioned
+    TypedRow other = buildTable().getRowAtIndex(0);
+    assertNotSame(other, table.getRowAtIndex(0, other));
+  }
+}
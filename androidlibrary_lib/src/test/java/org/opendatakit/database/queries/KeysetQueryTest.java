@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.queries;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(JUnit4.class)
+public class KeysetQueryTest {
+
+  private static final String TABLE_ID = "table1";
+  private static final String SORT_COL = "sort_col";
+  private static final String WHERE = "flag=?";
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  private static BaseTable page(KeysetQuery query, String[][] rows) {
+    BaseTable table = new BaseTable(query,
+        new String[] { DataTableColumns.ID, SORT_COL }, null, null, rows.length);
+    for (String[] row : rows) {
+      table.addRow(new Row(row, table));
+    }
+    return table;
+  }
+
+  @Test
+  public void testFirstPage() {
+    KeysetQuery query = new KeysetQuery(TABLE_ID, new BindArgs(new Object[] { 1 }), WHERE,
+        SORT_COL, "DESC", 2);
+
+    assertEquals("SELECT * FROM \"table1\"  WHERE flag=? ORDER BY sort_col DESC, _id DESC",
+        query.getSqlCommand());
+    assertArrayEquals(new Object[] { 1 }, query.getSqlBindArgs().bindArgs);
+    assertEquals(2, query.getSqlQueryBounds().mLimit);
+    assertEquals(0, query.getSqlQueryBounds().mOffset);
+  }
+
+  @Test
+  public void testResumeForwardAndBackward() {
+    KeysetQuery query = new KeysetQuery(TABLE_ID, new BindArgs(new Object[] { 1 }), WHERE,
+        SORT_COL, null, 2);
+
+    BaseTable first = page(query, new String[][] { { "a", "1" }, { "b", "5" } });
+    assertSame(query, first.resumeQueryForward(2));
+    assertEquals("SELECT * FROM \"table1\"  WHERE (flag=?) AND "
+            + "(sort_col>? OR (sort_col=? AND _id>?)) ORDER BY sort_col ASC, _id ASC",
+        query.getSqlCommand());
+    assertArrayEquals(new Object[] { 1, "5", "5", "b" }, query.getSqlBindArgs().bindArgs);
+    // the position is tracked, but never sent to the database
+    assertEquals(0, query.getSqlQueryBounds().mOffset);
+    assertEquals(2, query.getSqlOffset());
+
+    BaseTable second = page(query, new String[][] { { "c", "5" }, { "d", "9" } });
+    assertEquals(2, second.getStartIndex());
+    assertSame(query, second.resumeQueryBackward(2));
+    assertEquals("SELECT * FROM (SELECT * FROM \"table1\"  WHERE (flag=?) AND "
+            + "(sort_col<? OR (sort_col=? AND _id<?) OR sort_col IS NULL) "
+            + "ORDER BY sort_col DESC, _id DESC LIMIT ?)  ORDER BY sort_col ASC, _id ASC",
+        query.getSqlCommand());
+    assertArrayEquals(new Object[] { 1, "5", "5", "c", 2 }, query.getSqlBindArgs().bindArgs);
+    assertNull(query.getSqlQueryBounds());
+    assertEquals(0, query.getSqlOffset());
+
+    BaseTable back = page(query, new String[][] { { "a", "1" }, { "b", "5" } });
+    assertNull(back.resumeQueryBackward(2));
+  }
+
+  @Test
+  public void testResumeFromNullSortKey() {
+    KeysetQuery query = new KeysetQuery(TABLE_ID, null, null, SORT_COL, "ASC", 2);
+
+    BaseTable first = page(query, new String[][] { { "a", null }, { "b", null } });
+    first.resumeQueryForward(2);
+    assertEquals("SELECT * FROM \"table1\"  WHERE (sort_col IS NULL AND _id>?) OR "
+        + "sort_col IS NOT NULL ORDER BY sort_col ASC, _id ASC", query.getSqlCommand());
+    assertArrayEquals(new Object[] { "b" }, query.getSqlBindArgs().bindArgs);
+
+    // a short page is the end of the results
+    BaseTable last = page(query, new String[][] { { "c", "3" } });
+    assertNull(last.resumeQueryForward(2));
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.queries;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class SimpleQueryTest {
+
+  private static final String TAG = SimpleQueryTest.class.getSimpleName();
+  private static final String TABLE_ID = "table1";
+  private static final int PAGES = 100000;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Test
+  public void testWithoutProjection() {
+    SimpleQuery query = new SimpleQuery(TABLE_ID, null, "a=?", null, null,
+        new String[] { "b" }, null, null, null);
+
+    assertNull(query.getProjection());
+    assertEquals("SELECT * FROM \"table1\"  WHERE a=? ORDER BY b ASC", query.getSqlCommand());
+  }
+
+  @Test
+  public void testProjection() {
+    SimpleQuery query = new SimpleQuery(TABLE_ID, new String[] { "name", DataTableColumns.ID },
+        null, "a=?", null, null, null, null, null, null);
+
+    StringBuilder expected = new StringBuilder("SELECT ");
+    for (String adminColumn : DataTableColumns.getAdminColumns()) {
+      expected.append("\"").append(adminColumn).append("\", ");
+    }
+    // _id is not selected twice
+    expected.append("\"name\" FROM \"table1\"  WHERE a=?");
+    assertEquals(expected.toString(), query.getSqlCommand());
+
+    // an empty projection returns every column
+    query = new SimpleQuery(TABLE_ID, new String[0], null, null, null, null, null, null, null,
+        null);
+    assertTrue(query.getSqlCommand().startsWith("SELECT * "));
+  }
+
+  @Test
+  public void testSqlCommandIsBuiltOnce() {
+    SimpleQuery query = new SimpleQuery(TABLE_ID, new BindArgs(new Object[] { "x", 1 }), "a=?",
+        null, null, new String[] { "b" }, null, 20, 0);
+    String sqlCommand = query.getSqlCommand();
+
+    // resuming only moves the bounds
+    query.setSqlOffset(20);
+    assertSame(sqlCommand, query.getSqlCommand());
+
+    // the same query built again has the same command
+    SimpleQuery again = new SimpleQuery(TABLE_ID, new BindArgs(new Object[] { "y", 2 }), "a=?",
+        null, null, new String[] { "b" }, null, 20, 40);
+    assertEquals(sqlCommand, again.getSqlCommand());
+  }
+
+  /**
+   * Compares fetching the SQL command for each page against rebuilding the
+   * statement every time, which is what paging used to cost.
+   */
+  @Test
+  public void testPerPageOverhead() {
+    SimpleQuery query = new SimpleQuery(TABLE_ID, new String[] { "name", "age", "city" },
+        new BindArgs(new Object[] { "x", 1 }), "a=? AND b>?", null, null,
+        new String[] { "name", "age" }, new String[] { "ASC", "DESC" }, 20, 0);
+
+    String[] projection = query.getProjection();
+    long start = System.nanoTime();
+    int length = 0;
+    for (int page = 0; page < PAGES; ++page) {
+      length += QueryUtil.buildSqlStatement(TABLE_ID, projection, "a=? AND b>?", null, null,
+          new String[] { "name", "age" }, new String[] { "ASC", "DESC" }).length();
+    }
+    long rebuildNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int page = 0; page < PAGES; ++page) {
+      query.setSqlOffset(page * 20);
+      length -= query.getSqlCommand().length();
+    }
+    long cachedNanos = System.nanoTime() - start;
+
+    assertEquals(0, length);
+    WebLogger.getLogger(null).i(TAG, "per page: rebuilt " + (rebuildNanos / PAGES)
+        + " ns, cached " + (cachedNanos / PAGES) + " ns");
+  }
+
+  @Test
+  public void testKeysetProjectionKeepsSortColumn() {
+    KeysetQuery query = new KeysetQuery(TABLE_ID, new String[] { "name" }, null, null, "age",
+        null, 10);
+
+    String sql = query.getSqlCommand();
+    assertTrue(sql, sql.contains("\"name\", \"age\" FROM"));
+  }
+}
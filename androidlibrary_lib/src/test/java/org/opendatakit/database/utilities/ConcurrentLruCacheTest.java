@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.database.utilities;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class ConcurrentLruCacheTest {
+
+  private static final String TAG = ConcurrentLruCacheTest.class.getSimpleName();
+
+  private static final int NUM_TABLES = 32;
+  private static final int READS_PER_THREAD = 200000;
+  private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<>(3);
+    cache.put("a", "A");
+    Thread.sleep(1);
+    cache.put("b", "B");
+    Thread.sleep(1);
+    cache.put("c", "C");
+    Thread.sleep(1);
+    assertEquals("A", cache.get("a"));
+    Thread.sleep(1);
+    cache.put("d", "D");
+
+    assertEquals(3, cache.size());
+    assertNull(cache.peek("b"));
+    assertNotNull(cache.peek("a"));
+    assertNotNull(cache.peek("c"));
+    assertNotNull(cache.peek("d"));
+    assertNull(cache.get("b"));
+
+    // replacing an entry does not evict
+    cache.put("a", "A2");
+    assertEquals(3, cache.size());
+    assertEquals("A2", cache.get("a"));
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  /**
+   * Reads of a warm cache from several threads, against the synchronized HashMap
+   * that UserDbInterfaceImpl used to hold its metadata in.
+   */
+  @Test
+  public void testConcurrentReadScalability() throws Exception {
+    String[] keys = new String[NUM_TABLES];
+    final ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<>(NUM_TABLES);
+    final Map<String, String> synchronizedMap = new HashMap<>();
+    for (int i = 0; i < NUM_TABLES; ++i) {
+      keys[i] = "table" + i;
+      cache.put(keys[i], keys[i]);
+      synchronizedMap.put(keys[i], keys[i]);
+    }
+
+    for (int threads : THREAD_COUNTS) {
+      long lruNanos = timeReads(threads, keys, new Reader() {
+        @Override
+        public String read(String key) {
+          return cache.get(key);
+        }
+      });
+      long syncNanos = timeReads(threads, keys, new Reader() {
+        @Override
+        public String read(String key) {
+          synchronized (synchronizedMap) {
+            return synchronizedMap.get(key);
+          }
+        }
+      });
+      long reads = (long) threads * READS_PER_THREAD;
+      WebLogger.getLogger(null).i(TAG, threads + " threads: ConcurrentLruCache "
+          + (reads * 1000L / Math.max(1L, lruNanos)) + " reads/us, synchronized HashMap "
+          + (reads * 1000L / Math.max(1L, syncNanos)) + " reads/us");
+    }
+
+    long totalReads = 0;
+    for (int threads : THREAD_COUNTS) {
+      totalReads += (long) threads * READS_PER_THREAD;
+    }
+    assertEquals(totalReads, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  private interface Reader {
+    String read(String key);
+  }
+
+  private static long timeReads(int threadCount, final String[] keys, final Reader reader)
+      throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final Throwable[] failure = new Throwable[1];
+    for (int t = 0; t < threadCount; ++t) {
+      final int offset = t;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < READS_PER_THREAD; ++i) {
+              if (reader.read(keys[(i + offset) % keys.length]) == null) {
+                throw new IllegalStateException("unexpected miss");
+              }
+            }
+          } catch (Throwable e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+    synchronized (failure) {
+      assertNull(failure[0]);
+    }
+    return elapsed;
+  }
+}
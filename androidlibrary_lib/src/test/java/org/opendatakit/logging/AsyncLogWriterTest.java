@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.logging;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AsyncLogWriterTest {
+
+  private static final int THREADS = 4;
+  private static final int LINES_PER_THREAD = 5000;
+
+  private static class ListSink implements AsyncLogWriter.Sink {
+    final List<String> lines = new ArrayList<>();
+    int flushes = 0;
+    CountDownLatch gate = null;
+
+    @Override
+    public void writeLine(String line) {
+      if (gate != null) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      lines.add(line);
+    }
+
+    @Override
+    public void flushLines() {
+      ++flushes;
+    }
+  }
+
+  @Test
+  public void testBlockingLosesNothing() throws InterruptedException {
+    final AsyncLogWriter writer = new AsyncLogWriter(64, WebLogger.OverflowPolicy.BLOCK);
+    final ListSink sink = new ListSink();
+
+    Thread[] threads = new Thread[THREADS];
+    for (int t = 0; t < THREADS; ++t) {
+      final int id = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < LINES_PER_THREAD; ++i) {
+            assertTrue(writer.enqueue(sink, id + ":" + i));
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(writer.awaitFlushed(10000L));
+    writer.shutdown(1000L);
+
+    assertEquals(0L, writer.getDroppedCount());
+    assertEquals(THREADS * LINES_PER_THREAD, writer.getWrittenCount());
+    assertEquals(THREADS * LINES_PER_THREAD, sink.lines.size());
+    assertTrue(writer.getQueueHighWater() <= writer.getCapacity());
+    // batching means far fewer flushes than lines
+    assertTrue(sink.flushes < sink.lines.size());
+
+    // each thread's lines arrive in the order it logged them
+    int[] next = new int[THREADS];
+    for (String line : sink.lines) {
+      String[] parts = line.split(":");
+      int id = Integer.parseInt(parts[0]);
+      assertEquals(next[id]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  @Test
+  public void testDroppingCountsLostLines() throws InterruptedException {
+    AsyncLogWriter writer = new AsyncLogWriter(4, WebLogger.OverflowPolicy.DROP);
+    ListSink sink = new ListSink();
+    sink.gate = new CountDownLatch(1);
+    assertEquals(4, writer.getCapacity());
+
+    // the writer takes the first line and then waits at the gate
+    assertTrue(writer.enqueue(sink, "first"));
+    while (writer.getQueueDepth() != 0) {
+      Thread.sleep(1L);
+    }
+    for (int i = 0; i < 4; ++i) {
+      assertTrue(writer.enqueue(sink, "queued " + i));
+    }
+    assertFalse(writer.enqueue(sink, "dropped"));
+    assertEquals(1L, writer.getDroppedCount());
+    assertEquals(4L, writer.getQueueDepth());
+
+    sink.gate.countDown();
+    assertTrue(writer.awaitFlushed(10000L));
+    assertEquals(5, sink.lines.size());
+    assertEquals(0L, writer.getQueueDepth());
+
+    // once stopped, lines are no longer accepted
+    writer.shutdown(1000L);
+    assertFalse(writer.enqueue(sink, "late"));
+    assertEquals(2L, writer.getDroppedCount());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class PropertiesRevisionCounterTest {
+
+  private static final String APP_NAME = "revisionCounterTest";
+
+  private File counterFile;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    counterFile = File.createTempFile("properties", ".counter");
+    assertTrue(counterFile.delete());
+  }
+
+  @After
+  public void tearDown() {
+    counterFile.delete();
+  }
+
+  @Test
+  public void testUnmappedCounterIsInvalid() {
+    PropertiesRevisionCounter counter = new PropertiesRevisionCounter(APP_NAME, counterFile);
+    assertEquals(PropertiesRevisionCounter.INVALID_COUNTER, counter.get());
+    assertEquals(PropertiesRevisionCounter.INVALID_COUNTER, counter.increment());
+  }
+
+  @Test
+  public void testIncrementsAreSharedThroughTheFile() {
+    // two mappings of the same file, as two processes would have
+    PropertiesRevisionCounter writer = new PropertiesRevisionCounter(APP_NAME, counterFile);
+    PropertiesRevisionCounter reader = new PropertiesRevisionCounter(APP_NAME, counterFile);
+    assertTrue(writer.revalidate());
+    assertTrue(reader.revalidate());
+
+    assertEquals(0, reader.get());
+    assertEquals(1, writer.increment());
+    assertEquals(2, writer.increment());
+    assertEquals(2, reader.get());
+  }
+
+  @Test
+  public void testRevalidateRemapsDeletedFile() {
+    PropertiesRevisionCounter counter = new PropertiesRevisionCounter(APP_NAME, counterFile);
+    assertTrue(counter.revalidate());
+    counter.increment();
+    assertEquals(1, counter.get());
+
+    // e.g. the app's data folder was cleared
+    assertTrue(counterFile.delete());
+    assertTrue(counter.revalidate());
+    assertTrue(counterFile.exists());
+    assertEquals(0, counter.get());
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class FileCopierTest {
+
+  private static final String TAG = FileCopierTest.class.getSimpleName();
+
+  private static final int NUM_INSTANCES = 40;
+  private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3600000L;
+
+  private File workDir;
+  private File srcDir;
+  private long totalBytes;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  /**
+   * A table's instances folder: each instance has a few small files, a photo and now
+   * and then a video
+   */
+  @Before
+  public void setUp() throws IOException {
+    workDir = Files.createTempDirectory(TAG).toFile();
+    srcDir = new File(workDir, "instances");
+    Random random = new Random(11);
+    totalBytes = 0L;
+    for (int i = 0; i < NUM_INSTANCES; ++i) {
+      File instanceDir = new File(srcDir, "uuid" + i);
+      totalBytes += write(random, new File(instanceDir, "signature.png"), 2 * 1024);
+      totalBytes += write(random, new File(instanceDir, "audio.3gp"), 40 * 1024);
+      totalBytes += write(random, new File(instanceDir, "photo.jpg"), 1024 * 1024);
+      if (i % 8 == 0) {
+        totalBytes += write(random, new File(instanceDir, "video.mp4"), 12 * 1024 * 1024);
+      }
+    }
+    assertTrue(new File(srcDir, "empty").mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workDir);
+  }
+
+  private static long write(Random random, File file, int maxSize) throws IOException {
+    byte[] content = new byte[maxSize / 2 + random.nextInt(maxSize / 2)];
+    random.nextBytes(content);
+    FileUtils.writeByteArrayToFile(file, content);
+    assertTrue(file.setLastModified(AN_HOUR_AGO));
+    return content.length;
+  }
+
+  private static void assertSameTree(File expected, File actual) throws IOException {
+    assertTrue(actual.isDirectory());
+    String[] names = expected.list();
+    assertEquals(names.length, actual.list().length);
+    for (String name : names) {
+      File expectedChild = new File(expected, name);
+      File actualChild = new File(actual, name);
+      if (expectedChild.isDirectory()) {
+        assertSameTree(expectedChild, actualChild);
+      } else {
+        assertEquals(expectedChild.lastModified(), actualChild.lastModified());
+        assertArrayEquals(FileUtils.readFileToByteArray(expectedChild),
+            FileUtils.readFileToByteArray(actualChild));
+      }
+    }
+  }
+
+  @Test
+  public void testCopyDirectory() throws IOException {
+    File destDir = new File(workDir, "copy");
+    FileCopier copier = new FileCopier(null, false);
+    copier.copyDirectory(srcDir, destDir);
+    assertSameTree(srcDir, destDir);
+    assertEquals(totalBytes, copier.getBytesCopied());
+    assertEquals(0, copier.getFilesSkipped());
+
+    // again: nothing is written
+    copier = new FileCopier(null, false);
+    copier.copyDirectory(srcDir, destDir);
+    assertEquals(0L, copier.getBytesCopied());
+    assertEquals(NUM_INSTANCES * 3 + (NUM_INSTANCES + 7) / 8, copier.getFilesSkipped());
+
+    // a file with the same length and time but different contents is copied
+    File photo = new File(destDir, "uuid3" + File.separator + "photo.jpg");
+    byte[] content = FileUtils.readFileToByteArray(photo);
+    content[0] ^= 1;
+    FileUtils.writeByteArrayToFile(photo, content);
+    assertTrue(photo.setLastModified(AN_HOUR_AGO));
+    copier = new FileCopier(null, false);
+    copier.copyDirectory(srcDir, destDir);
+    assertEquals(content.length, copier.getBytesCopied());
+    assertSameTree(srcDir, destDir);
+  }
+
+  @Test
+  public void testHardLinksFallBackToCopying() throws IOException {
+    // no links outside of Android; the copy must still be complete
+    File destDir = new File(workDir, "linked");
+    FileCopier copier = new FileCopier(null, true);
+    copier.copyDirectory(srcDir, destDir);
+    assertSameTree(srcDir, destDir);
+    assertEquals(0, copier.getFilesLinked());
+    assertEquals(totalBytes, copier.getBytesCopied());
+  }
+
+  @Test
+  public void testCopyIntoItself() throws IOException {
+    File destDir = new File(srcDir, "uuid0" + File.separator + "backup");
+    new FileCopier(null, false).copyDirectory(srcDir, destDir);
+    assertTrue(new File(destDir, "uuid1" + File.separator + "photo.jpg").exists());
+    assertFalse(new File(destDir, "uuid0" + File.separator + "backup").exists());
+  }
+
+  @Test
+  public void testCopyFileErrors() throws IOException {
+    File photo = new File(srcDir, "uuid0" + File.separator + "photo.jpg");
+    try {
+      ODKFileUtils.copyFile(new File(workDir, "missing.jpg"), new File(workDir, "x.jpg"));
+      fail("copied a missing file");
+    } catch (IOException ignored) {
+      // expected
+    }
+    try {
+      ODKFileUtils.copyFile(photo, new File(srcDir, "uuid0/../uuid0/photo.jpg"));
+      fail("copied a file onto itself");
+    } catch (IOException ignored) {
+      // expected
+    }
+    File copy = new File(workDir, "a" + File.separator + "b" + File.separator + "photo.jpg");
+    assertEquals(photo.length(), ODKFileUtils.copyFile(null, photo, copy, false));
+    assertEquals(photo.lastModified(), copy.lastModified());
+    assertEquals(0L, ODKFileUtils.copyFile(null, photo, copy, false));
+  }
+
+  @Test
+  public void testCompareWithFileUtils() throws IOException {
+    File before = new File(workDir, "fileUtils");
+    long start = System.nanoTime();
+    FileUtils.copyDirectory(srcDir, before);
+    long fileUtilsNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    FileUtils.copyDirectory(srcDir, before);
+    long fileUtilsAgainNanos = System.nanoTime() - start;
+
+    File after = new File(workDir, "copier");
+    start = System.nanoTime();
+    ODKFileUtils.copyDirectory(srcDir, after);
+    long copierNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    ODKFileUtils.copyDirectory(srcDir, after);
+    long copierAgainNanos = System.nanoTime() - start;
+
+    assertSameTree(before, after);
+    WebLogger.getLogger(null).i(TAG, (totalBytes / 1024L) + " KB: FileUtils "
+        + (fileUtilsNanos / 1000000L) + " ms, again " + (fileUtilsAgainNanos / 1000000L)
+        + " ms; ODKFileUtils " + (copierNanos / 1000000L) + " ms, again "
+        + (copierAgainNanos / 1000000L) + " ms");
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class Md5DigestCacheTest {
+
+  private static final String TAG = Md5DigestCacheTest.class.getSimpleName();
+  private static final String APP_NAME = "md5CacheTest";
+
+  private static final int NUM_ATTACHMENTS = 300;
+  private static final int ATTACHMENT_SIZE = 64 * 1024;
+  private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3600000L;
+
+  private File workDir;
+  private File[] attachments;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    workDir = Files.createTempDirectory(TAG).toFile();
+    Random random = new Random(42);
+    byte[] content = new byte[ATTACHMENT_SIZE];
+    attachments = new File[NUM_ATTACHMENTS];
+    for (int i = 0; i < NUM_ATTACHMENTS; ++i) {
+      random.nextBytes(content);
+      attachments[i] = write(new File(workDir, "attachment" + i + ".jpg"), content);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workDir);
+  }
+
+  private static File write(File file, byte[] content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    assertTrue(file.setLastModified(AN_HOUR_AGO));
+    return file;
+  }
+
+  @Test
+  public void testUnchangedFilesAreHashedOnce() {
+    Md5DigestCache cache = new Md5DigestCache(APP_NAME, null, 1000);
+
+    long start = System.nanoTime();
+    String[] digests = new String[NUM_ATTACHMENTS];
+    for (int i = 0; i < NUM_ATTACHMENTS; ++i) {
+      digests[i] = cache.getDigest(attachments[i]);
+    }
+    long coldNanos = System.nanoTime() - start;
+    assertEquals(0L, cache.getHitCount());
+    assertEquals(NUM_ATTACHMENTS, cache.getMissCount());
+
+    start = System.nanoTime();
+    for (int i = 0; i < NUM_ATTACHMENTS; ++i) {
+      assertEquals(digests[i], cache.getDigest(attachments[i]));
+    }
+    long warmNanos = System.nanoTime() - start;
+    assertEquals(NUM_ATTACHMENTS, cache.getHitCount());
+
+    for (int i = 0; i < NUM_ATTACHMENTS; i += 37) {
+      assertEquals(ODKFileUtils.computeNakedMd5Hash(APP_NAME, attachments[i]), digests[i]);
+    }
+    WebLogger.getLogger(null).i(TAG, NUM_ATTACHMENTS + " attachments: hashed in "
+        + (coldNanos / 1000000L) + " ms, cached in " + (warmNanos / 1000000L) + " ms");
+  }
+
+  @Test
+  public void testChangedFileIsHashedAgain() throws IOException {
+    Md5DigestCache cache = new Md5DigestCache(APP_NAME, null, 1000);
+    File file = attachments[0];
+    String before = cache.getDigest(file);
+
+    // same length, different content and time
+    byte[] content = new byte[ATTACHMENT_SIZE];
+    write(file, content);
+    assertTrue(file.setLastModified(AN_HOUR_AGO + 1000L));
+    String after = cache.getDigest(file);
+    assertNotEquals(before, after);
+    assertEquals(ODKFileUtils.computeNakedMd5Hash(APP_NAME, file), after);
+    assertEquals(0L, cache.getHitCount());
+
+    // a file that was just written is not trusted to stay as it is
+    File fresh = new File(workDir, "fresh.jpg");
+    FileUtils.writeByteArrayToFile(fresh, content);
+    cache.getDigest(fresh);
+    cache.getDigest(fresh);
+    assertEquals(0L, cache.getHitCount());
+  }
+
+  @Test
+  public void testCapacityIsBounded() {
+    Md5DigestCache cache = new Md5DigestCache(APP_NAME, null, 10);
+    for (File attachment : attachments) {
+      cache.getDigest(attachment);
+    }
+    assertEquals(10, cache.size());
+  }
+
+  @Test
+  public void testSaveAndLoad() {
+    File cacheFile = new File(workDir, "md5.cache");
+    Md5DigestCache cache = new Md5DigestCache(APP_NAME, cacheFile, 1000);
+    for (File attachment : attachments) {
+      cache.getDigest(attachment);
+    }
+    cache.save();
+    assertTrue(cacheFile.exists());
+
+    Md5DigestCache reloaded = new Md5DigestCache(APP_NAME, cacheFile, 1000);
+    for (File attachment : attachments) {
+      assertEquals(cache.getDigest(attachment), reloaded.getDigest(attachment));
+    }
+    assertEquals(NUM_ATTACHMENTS, reloaded.getHitCount());
+    assertEquals(0L, reloaded.getMissCount());
+  }
+
+  @Test
+  public void testConcurrentSaves() throws Exception {
+    // e.g. Survey and Tables saving their caches for the same app at the same time
+    final File cacheFile = new File(workDir, "md5.cache");
+    Thread[] savers = new Thread[2];
+    final Throwable[] failures = new Throwable[savers.length];
+    for (int t = 0; t < savers.length; ++t) {
+      final int first = t;
+      savers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 20; ++round) {
+              Md5DigestCache cache = new Md5DigestCache(APP_NAME, cacheFile, 1000);
+              cache.clear();
+              for (int i = first; i < NUM_ATTACHMENTS; i += 2) {
+                cache.getDigest(attachments[i]);
+              }
+              cache.save();
+            }
+          } catch (Throwable e) {
+            failures[first] = e;
+          }
+        }
+      });
+      savers[t].start();
+    }
+    for (int t = 0; t < savers.length; ++t) {
+      savers[t].join();
+      if (failures[t] != null) {
+        throw new AssertionError(failures[t]);
+      }
+    }
+
+    // whichever save came last is intact, and no temp file is left behind
+    Md5DigestCache reloaded = new Md5DigestCache(APP_NAME, cacheFile, 1000);
+    for (File attachment : attachments) {
+      assertEquals(ODKFileUtils.computeNakedMd5Hash(APP_NAME, attachment),
+          reloaded.getDigest(attachment));
+    }
+    assertEquals(NUM_ATTACHMENTS / 2, reloaded.getHitCount());
+    assertEquals(1, workDir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(cacheFile.getName());
+      }
+    }).length);
+  }
+}
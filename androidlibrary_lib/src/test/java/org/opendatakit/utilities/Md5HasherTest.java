@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.utilities;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.desktop.WebLoggerDesktopFactoryImpl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+@RunWith(JUnit4.class)
+public class Md5HasherTest {
+
+  private static final String TAG = Md5HasherTest.class.getSimpleName();
+  private static final String APP_NAME = "md5HasherTest";
+
+  private static final int NUM_FILES = 400;
+  private static final int MAX_FILE_SIZE = 512 * 1024;
+
+  private File workDir;
+  private List<File> files;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    StaticStateManipulator.get().reset();
+    WebLogger.setFactory(new WebLoggerDesktopFactoryImpl());
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    workDir = Files.createTempDirectory(TAG).toFile();
+    Random random = new Random(7);
+    files = new ArrayList<>();
+    for (int i = 0; i < NUM_FILES; ++i) {
+      // include empty files and sizes around the buffer size
+      byte[] content = new byte[i == 0 ? 0 : random.nextInt(MAX_FILE_SIZE)];
+      random.nextBytes(content);
+      File file = new File(workDir, "file" + i + ".bin");
+      FileUtils.writeByteArrayToFile(file, content);
+      files.add(file);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workDir);
+  }
+
+  /**
+   * How files were hashed before: 8 KB reads and BigInteger formatting
+   */
+  private static String legacyHash(File file) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    byte[] chunk = new byte[8192];
+    InputStream is = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = is.read(chunk)) != -1) {
+        md.update(chunk, 0, read);
+      }
+    } finally {
+      is.close();
+    }
+    String md5 = new BigInteger(1, md.digest()).toString(16);
+    while (md5.length() < 32) {
+      md5 = "0" + md5;
+    }
+    return md5;
+  }
+
+  @Test
+  public void testToHex() {
+    assertEquals("000fff7f80", Md5Hasher.toHex(new byte[] { 0, 15, -1, 127, -128 }));
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", Md5Hasher.hash(new byte[0]));
+    assertEquals("5d41402abc4b2a76b9719d911017c592",
+        Md5Hasher.hash("hello".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testStringHashIsUnchanged() {
+    // strings were hashed over their first String.length() UTF-8 bytes
+    assertEquals("5d41402abc4b2a76b9719d911017c592",
+        ODKFileUtils.computeNakedMd5Hash(APP_NAME, "hello"));
+    assertEquals("19bcbeaa24e98c9d9a1e3dddbb3dd2ea",
+        ODKFileUtils.computeNakedMd5Hash(APP_NAME, "h\u00e9llo w\u00f6rld"));
+  }
+
+  @Test
+  public void testMatchesLegacyHash() throws Exception {
+    for (int i = 0; i < NUM_FILES; i += 13) {
+      assertEquals(legacyHash(files.get(i)), Md5Hasher.hash(files.get(i)));
+    }
+  }
+
+  @Test
+  public void testHashAll() throws Exception {
+    long start = System.nanoTime();
+    String[] sequential = new String[NUM_FILES];
+    for (int i = 0; i < NUM_FILES; ++i) {
+      sequential[i] = legacyHash(files.get(i));
+    }
+    long legacyNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    Map<File, String> digests = Md5Hasher.hashAll(APP_NAME, files);
+    long batchNanos = System.nanoTime() - start;
+
+    assertEquals(NUM_FILES, digests.size());
+    for (int i = 0; i < NUM_FILES; ++i) {
+      assertEquals(sequential[i], digests.get(files.get(i)));
+    }
+    WebLogger.getLogger(null).i(TAG, NUM_FILES + " files: one at a time "
+        + (legacyNanos / 1000000L) + " ms, batched " + (batchNanos / 1000000L) + " ms on "
+        + Runtime.getRuntime().availableProcessors() + " cores");
+  }
+
+  @Test
+  public void testUnreadableFilesAreLeftOut() {
+    List<File> some = new ArrayList<>(files.subList(0, 3));
+    File missing = new File(workDir, "missing.bin");
+    some.add(missing);
+
+    Map<File, String> digests = Md5Hasher.hashAll(APP_NAME, some);
+    assertEquals(3, digests.size());
+    assertFalse(digests.containsKey(missing));
+  }
+}